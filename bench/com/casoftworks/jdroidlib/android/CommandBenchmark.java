@@ -0,0 +1,105 @@
+/*
+ * Copyright (C) 2016 Ca Softworks.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+package com.casoftworks.jdroidlib.android;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures dispatching commands: building the ADB process of a command, and
+ * complete round trips through the ADB server protocol against a local fake
+ * ADB server, which answers with recorded outputs.
+ * Building processes requires the resources extracted by the
+ * {@link com.casoftworks.jdroidlib.util.ResourceManager} for the current platform.
+ * @author simoncahill
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class CommandBenchmark {
+    
+    private FakeAdbServer server;
+    private AdbSocketController controller;
+    private AndroidCommand shellCommand;
+    private AndroidCommand hostCommand;
+    
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        server = FakeAdbServer.start();
+        server.addDevice("bench0001");
+        controller = new AdbSocketController(AdbSocketController.DEFAULT_HOST, server.getPort());
+        shellCommand = AndroidCommand.formAndroidShellCommand(null, false, "dumpsys", "battery");
+        hostCommand = AndroidCommand.formAndroidCommand(null, "version");
+        CommandMetrics.getInstance().setEnabled(false);
+    }
+    
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        CommandMetrics.getInstance().setEnabled(true);
+        server.close();
+    }
+    
+    /**
+     * {@code AndroidCommand.buildProcess()} for a shell command.
+     */
+    @Benchmark
+    public ProcessBuilder buildProcess() throws IOException {
+        return shellCommand.buildProcess();
+    }
+    
+    /**
+     * A shell command, from connecting to the ADB server until its output has been read.
+     */
+    @Benchmark
+    public String shellRoundTrip() throws IOException, InterruptedException {
+        return controller.executeCommandReturnOutput(shellCommand);
+    }
+    
+    /**
+     * A shell command including its exit code.
+     */
+    @Benchmark
+    public int shellExitCodeRoundTrip() throws IOException, InterruptedException {
+        return controller.executeCommandReturnExitCode(shellCommand);
+    }
+    
+    /**
+     * A host service answered by the ADB server itself.
+     */
+    @Benchmark
+    public String hostRoundTrip() throws IOException, InterruptedException {
+        return controller.executeCommandReturnOutput(hostCommand);
+    }
+    
+}
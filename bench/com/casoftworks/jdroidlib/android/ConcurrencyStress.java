@@ -0,0 +1,443 @@
+/*
+ * Copyright (C) 2016 Ca Softworks.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+package com.casoftworks.jdroidlib.android;
+
+import com.casoftworks.jdroidlib.interfaces.IBatteryThresholdListener;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+
+/**
+ * Hammers the thread-safe parts of JDroidLib from hundreds of threads against
+ * a {@link FakeAdbServer}, and checks the invariants which must hold:
+ * <ul>
+ * <li>all threads racing for {@link AndroidController#getInstance()} get the same instance;</li>
+ * <li>battery snapshots are never torn, and a battery's last snapshot never goes back in time;</li>
+ * <li>threads reading the same battery at the same time share a single command;</li>
+ * <li>a {@link BatterySampler} keeps a bounded number of consistent samples per
+ *     device while being read, and reports each threshold crossing once;</li>
+ * <li>concurrent directory walks return every entry exactly once, and close
+ *     all of their connections, whether they run to the end or are closed early;</li>
+ * <li>at the default scheduling limits, a walk still finishes while its consumer
+ *     runs commands on the same device;</li>
+ * <li>the device registry can be read while device tracking applies a constant
+ *     churn of devices, and ends up matching the server's device list.</li>
+ * </ul>
+ * Options are given as {@code --name=value}: {@code --threads} (default 256)
+ * and {@code --duration}, the seconds each scenario runs (default 5).
+ * Exits with status 1 if any invariant was violated.
+ * Run with {@code ant stresstest}.
+ * @author simoncahill
+ */
+public final class ConcurrencyStress {
+    
+    private static final String BATTERY_LOW = "level: 15\n  voltage: 3500\n  temperature: 200\n";
+    private static final String BATTERY_HIGH = "level: 95\n  voltage: 4300\n  temperature: 400\n";
+    
+    private final int threads;
+    private final long duration;
+    private boolean failed = false;
+    
+    private ConcurrencyStress(Map<String, String> options) {
+        threads = Integer.parseInt(options.getOrDefault("threads", "256"));
+        duration = TimeUnit.SECONDS.toMillis(Long.parseLong(options.getOrDefault("duration", "5")));
+    }
+    
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new HashMap<>();
+        for (String arg : args) {
+            if (!arg.startsWith("--") || !arg.contains("="))
+                throw new IllegalArgumentException("Options must be given as --name=value: " + arg);
+            options.put(arg.substring(2, arg.indexOf('=')), arg.substring(arg.indexOf('=') + 1));
+        }
+        
+        ConcurrencyStress stress = new ConcurrencyStress(options);
+        stress.singleton();
+        try (FakeAdbServer server = FakeAdbServer.start()) {
+            AndroidController controller = AndroidController.getInstance();
+            controller.useAdbServer(AdbSocketController.DEFAULT_HOST, server.getPort());
+            stress.walkerAtDefaultLimits(server, controller);
+            controller.setSchedulingLimits(stress.threads, stress.threads, Integer.MAX_VALUE);
+            stress.battery(server, controller);
+            stress.singleFlight(server, controller);
+            stress.sampler(server, controller);
+            stress.walker(server, controller);
+            stress.registry(server, controller);
+        }
+        System.exit(stress.failed ? 1 : 0);
+    }
+    
+    private void singleton() throws Exception {
+        CyclicBarrier start = new CyclicBarrier(threads);
+        Set<AndroidController> instances = Collections.newSetFromMap(new IdentityHashMap<>());
+        AtomicLong errors = new AtomicLong();
+        
+        runAll(threads, () -> {
+            start.await();
+            AndroidController controller = AndroidController.getInstance();
+            synchronized (instances) { instances.add(controller); }
+        }, errors);
+        check("singleton", instances.size() == 1 && errors.get() == 0,
+                instances.size() + " instances, " + errors.get() + " errors");
+    }
+    
+    private void battery(FakeAdbServer server, AndroidController controller) throws Exception {
+        List<SimulatedDevice> simulated = server.addDevices(8, "battery");
+        List<Device> devices = new ArrayList<>();
+        for (SimulatedDevice device : simulated) {
+            device.reply("dumpsys battery", BATTERY_LOW, 0);
+            devices.add(controller.getDevice(device.getSerialNumber()));
+        }
+        
+        BatterySnapshot low = parse(BATTERY_LOW);
+        BatterySnapshot high = parse(BATTERY_HIGH);
+        long end = System.currentTimeMillis() + duration;
+        AtomicLong reads = new AtomicLong();
+        AtomicLong torn = new AtomicLong();
+        AtomicLong backwards = new AtomicLong();
+        AtomicLong errors = new AtomicLong();
+        
+        Thread flipper = new Thread(() -> {
+            boolean charged = false;
+            while (System.currentTimeMillis() < end) {
+                charged = !charged;
+                for (SimulatedDevice device : simulated)
+                    device.reply("dumpsys battery", charged ? BATTERY_HIGH : BATTERY_LOW, 0);
+                try { Thread.sleep(1); } catch (InterruptedException ex) { return; }
+            }
+        });
+        flipper.start();
+        
+        runAll(threads, () -> {
+            Map<Device, Long> lastSequence = new HashMap<>();
+            while (System.currentTimeMillis() < end) {
+                Device device = devices.get(ThreadLocalRandom.current().nextInt(devices.size()));
+                int level = device.getBattery().getLevel();
+                BatterySnapshot snapshot = device.getBattery().getLastSnapshot();
+                reads.incrementAndGet();
+                
+                if (level != low.getLevel() && level != high.getLevel()) torn.incrementAndGet();
+                if (!matches(snapshot, low) && !matches(snapshot, high)) torn.incrementAndGet();
+                Long last = lastSequence.put(device, snapshot.getSequence());
+                if (last != null && snapshot.getSequence() - last < 0) backwards.incrementAndGet();
+            }
+        }, errors);
+        flipper.join();
+        
+        check("battery snapshots", reads.get() > 0 && torn.get() == 0 && backwards.get() == 0 && errors.get() == 0,
+                reads.get() + " reads, " + torn.get() + " torn, " + backwards.get() + " out of order, " + errors.get() + " errors");
+    }
+    
+    private void singleFlight(FakeAdbServer server, AndroidController controller) throws Exception {
+        SimulatedDevice simulated = server.addDevice("singleflight").setLatency(50, 0);
+        Device device = controller.getDevice(simulated.getSerialNumber());
+        CyclicBarrier start = new CyclicBarrier(threads);
+        AtomicLong errors = new AtomicLong();
+        
+        runAll(threads, () -> {
+            start.await();
+            device.getBattery().snapshot(0);
+        }, errors);
+        long commands = simulated.getCommands();
+        check("single flight", commands <= Math.max(1, threads / 4) && errors.get() == 0,
+                threads + " readers, " + commands + " commands, " + errors.get() + " errors");
+    }
+    
+    private void sampler(FakeAdbServer server, AndroidController controller) throws Exception {
+        List<SimulatedDevice> simulated = server.addDevices(64, "sampler");
+        BatterySampler sampler = new BatterySampler(5, 32);
+        for (SimulatedDevice device : simulated) {
+            device.reply("dumpsys battery", BATTERY_LOW, 0);
+            sampler.addDevice(controller.getDevice(device.getSerialNumber()));
+        }
+        
+        BatterySnapshot low = parse(BATTERY_LOW);
+        BatterySnapshot high = parse(BATTERY_HIGH);
+        int threshold = (low.getLevel() + high.getLevel()) / 2;
+        Map<String, Boolean> above = new ConcurrentHashMap<>();
+        AtomicLong crossings = new AtomicLong();
+        AtomicLong repeated = new AtomicLong();
+        sampler.addThresholdListener(BatteryMetric.LEVEL, threshold, new IBatteryThresholdListener() {
+            @Override
+            public void valueRose(Device device, BatteryMetric metric, int threshold, int value) {
+                crossings.incrementAndGet();
+                if (Boolean.TRUE.equals(above.put(device.getSerialNumber(), true))) repeated.incrementAndGet();
+            }
+            
+            @Override
+            public void valueFell(Device device, BatteryMetric metric, int threshold, int value) {
+                crossings.incrementAndGet();
+                if (Boolean.FALSE.equals(above.put(device.getSerialNumber(), false))) repeated.incrementAndGet();
+            }
+        });
+        
+        long end = System.currentTimeMillis() + duration;
+        AtomicLong reads = new AtomicLong();
+        AtomicLong inconsistent = new AtomicLong();
+        AtomicLong errors = new AtomicLong();
+        sampler.start();
+        
+        Thread flipper = new Thread(() -> {
+            boolean charged = false;
+            while (System.currentTimeMillis() < end) {
+                charged = !charged;
+                for (SimulatedDevice device : simulated)
+                    device.reply("dumpsys battery", charged ? BATTERY_HIGH : BATTERY_LOW, 0);
+                try { Thread.sleep(20); } catch (InterruptedException ex) { return; }
+            }
+        });
+        flipper.start();
+        
+        runAll(threads, () -> {
+            long[] timestamps = new long[32];
+            int[] levels = new int[32];
+            while (System.currentTimeMillis() < end) {
+                BatterySeries series = sampler.getSeries().get(ThreadLocalRandom.current().nextInt(simulated.size()));
+                int count = series.copy(BatteryMetric.LEVEL, timestamps, levels);
+                for (int i = 0; i < count; i++)
+                    if ((levels[i] != low.getLevel() && levels[i] != high.getLevel()) || (i > 0 && timestamps[i] < timestamps[i - 1]))
+                        inconsistent.incrementAndGet();
+                
+                BatterySeries.Aggregate aggregate = series.aggregate(BatteryMetric.VOLTAGE, 0, Long.MAX_VALUE);
+                if (aggregate.getCount() > series.getCapacity()
+                        || (aggregate.getCount() > 0 && (aggregate.getMin() < low.getVoltage() || aggregate.getMax() > high.getVoltage())))
+                    inconsistent.incrementAndGet();
+                reads.incrementAndGet();
+            }
+        }, errors);
+        flipper.join();
+        sampler.close();
+        
+        long samples = 0, failures = 0;
+        for (BatterySeries series : sampler.getSeries()) {
+            samples += series.getSampleCount();
+            failures += series.getFailureCount();
+            if (series.getSize() > series.getCapacity()) inconsistent.incrementAndGet();
+        }
+        check("battery sampler", samples > 0 && crossings.get() > 0 && repeated.get() == 0 && inconsistent.get() == 0 && errors.get() == 0,
+                samples + " samples, " + failures + " failed, " + crossings.get() + " crossings, " + repeated.get() + " repeated, "
+                + reads.get() + " reads, " + inconsistent.get() + " inconsistent, " + errors.get() + " errors");
+    }
+    
+    private void walker(FakeAdbServer server, AndroidController controller) throws Exception {
+        List<SimulatedDevice> simulated = server.addDevices(4, "walk");
+        List<Device> devices = new ArrayList<>();
+        int expected = 0;
+        for (SimulatedDevice device : simulated) {
+            expected = 1 + device.getFileSystem().generate("/sdcard/tree", 3, 4, 10);
+            devices.add(controller.getDevice(device.getSerialNumber()));
+        }
+        final int entries = expected;
+        // Connections of the scenarios before may still be closing.
+        int connections = settledConnections(server);
+        
+        long end = System.currentTimeMillis() + duration;
+        AtomicLong walks = new AtomicLong();
+        AtomicLong abandoned = new AtomicLong();
+        AtomicLong wrong = new AtomicLong();
+        AtomicLong errors = new AtomicLong();
+        
+        runAll(Math.min(threads, 32), () -> {
+            while (System.currentTimeMillis() < end) {
+                FileSystem fileSystem = devices.get(ThreadLocalRandom.current().nextInt(devices.size())).getFileSystem();
+                FileSystem.WalkOptions options = new FileSystem.WalkOptions()
+                        .parallelism(1 + ThreadLocalRandom.current().nextInt(4))
+                        .bufferSize(1 + ThreadLocalRandom.current().nextInt(64));
+                try (Stream<FileEntry> walk = fileSystem.walk("/sdcard/tree", false, options)) {
+                    if (ThreadLocalRandom.current().nextInt(4) == 0) {
+                        walk.limit(ThreadLocalRandom.current().nextInt(entries)).count();
+                        abandoned.incrementAndGet();
+                        continue;
+                    }
+                    Set<String> paths = new HashSet<>();
+                    walk.forEach(entry -> { if (!paths.add(entry.getPath())) wrong.incrementAndGet(); });
+                    if (paths.size() != entries) wrong.incrementAndGet();
+                    walks.incrementAndGet();
+                }
+            }
+        }, errors);
+        
+        int leaked = settledConnections(server) - connections;
+        check("file walker", walks.get() > 0 && wrong.get() == 0 && leaked == 0 && errors.get() == 0,
+                walks.get() + " walks, " + abandoned.get() + " closed early, " + wrong.get() + " wrong, "
+                + leaked + " connections leaked, " + errors.get() + " errors");
+    }
+    
+    private void walkerAtDefaultLimits(FakeAdbServer server, AndroidController controller) throws Exception {
+        SimulatedDevice simulated = server.addDevice("consume");
+        final int entries = 1 + simulated.getFileSystem().generate("/sdcard/tree", 3, 4, 10);
+        FileSystem fileSystem = controller.getDevice(simulated.getSerialNumber()).getFileSystem();
+        
+        long end = System.currentTimeMillis() + duration;
+        AtomicLong walks = new AtomicLong();
+        AtomicLong commands = new AtomicLong();
+        AtomicLong wrong = new AtomicLong();
+        AtomicLong errors = new AtomicLong();
+        
+        // By default, a walk opens as many connections as its device has slots,
+        // and the consumer stats every entry on the same device.
+        int stuck = runAll(4, () -> {
+            while (System.currentTimeMillis() < end) {
+                int found = 0;
+                try (Stream<FileEntry> walk = fileSystem.walk("/sdcard/tree", false, new FileSystem.WalkOptions().bufferSize(8))) {
+                    Iterator<FileEntry> iterator = walk.iterator();
+                    while (iterator.hasNext()) {
+                        if (fileSystem.stat(iterator.next().getPath(), false) == null) wrong.incrementAndGet();
+                        commands.incrementAndGet();
+                        found++;
+                    }
+                }
+                if (found != entries) wrong.incrementAndGet();
+                walks.incrementAndGet();
+            }
+        }, errors, duration + TimeUnit.SECONDS.toMillis(10));
+        check("walker at defaults", walks.get() > 0 && stuck == 0 && wrong.get() == 0 && errors.get() == 0,
+                walks.get() + " walks, " + commands.get() + " commands while walking, " + stuck + " deadlocked, "
+                + wrong.get() + " wrong, " + errors.get() + " errors");
+    }
+    
+    private void registry(FakeAdbServer server, AndroidController controller) throws Exception {
+        server.addDevices(500, "rack");
+        controller.startDeviceTracking();
+        
+        long end = System.currentTimeMillis() + duration;
+        AtomicLong reads = new AtomicLong();
+        AtomicLong inconsistent = new AtomicLong();
+        AtomicLong errors = new AtomicLong();
+        Map<String, Boolean> events = new ConcurrentHashMap<>();
+        
+        Thread churn = new Thread(() -> {
+            int next = 0;
+            while (System.currentTimeMillis() < end) {
+                String serial = "churn" + (next++ % 64);
+                if (server.getDevice(serial) == null) server.addDevice(serial);
+                else if (ThreadLocalRandom.current().nextBoolean()) server.removeDevice(serial);
+                else server.getDevice(serial).setState("offline");
+                events.put(serial, true);
+                try { Thread.sleep(1); } catch (InterruptedException ex) { return; }
+            }
+        });
+        churn.start();
+        
+        runAll(threads, () -> {
+            while (System.currentTimeMillis() < end) {
+                List<Device> devices = controller.getDevices();
+                Set<String> serials = new HashSet<>();
+                for (Device device : devices)
+                    if (device == null || !serials.add(device.getSerialNumber())) inconsistent.incrementAndGet();
+                Device rack = controller.getDevice(String.format("rack%06d", ThreadLocalRandom.current().nextInt(500)));
+                if (rack == null || rack.getLastDeviceState() != DeviceState.ONLINE) inconsistent.incrementAndGet();
+                reads.incrementAndGet();
+            }
+        }, errors);
+        churn.join();
+        
+        Thread.sleep(500);
+        Set<String> expected = new HashSet<>();
+        server.getDevices().forEach(device -> expected.add(device.getSerialNumber()));
+        Set<String> actual = new HashSet<>();
+        controller.getDevices().forEach(device -> actual.add(device.getSerialNumber()));
+        controller.stopDeviceTracking();
+        
+        check("device registry", reads.get() > 0 && inconsistent.get() == 0 && errors.get() == 0 && expected.equals(actual),
+                reads.get() + " reads, " + events.size() + " churned serials, " + inconsistent.get() + " inconsistent, "
+                + errors.get() + " errors, " + actual.size() + "/" + expected.size() + " devices in sync");
+    }
+    
+    private static BatterySnapshot parse(String output) {
+        BatterySnapshot.Builder builder = new BatterySnapshot.Builder();
+        for (String line : output.split("\n")) builder.parseLine(line);
+        return builder.build();
+    }
+    
+    private static boolean matches(BatterySnapshot snapshot, BatterySnapshot expected) {
+        return snapshot.getLevel() == expected.getLevel() && snapshot.getVoltage() == expected.getVoltage()
+            && snapshot.getTemperature() == expected.getTemperature();
+    }
+    
+    @FunctionalInterface
+    private interface Task { void run() throws Exception; }
+    
+    private static void runAll(int count, Task task, AtomicLong errors) throws InterruptedException {
+        runAll(count, task, errors, 0);
+    }
+    
+    /**
+     * Runs a task on several threads at once, and waits for them to finish.
+     * @param timeout The time to wait in milliseconds, or 0 to wait indefinitely.
+     * @return The number of threads still running once the timeout has passed, e.g.: because they deadlocked.
+     */
+    private static int runAll(int count, Task task, AtomicLong errors, long timeout) throws InterruptedException {
+        List<Thread> workers = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            Thread worker = new Thread(() -> {
+                try {
+                    task.run();
+                } catch (Exception ex) {
+                    if (errors.getAndIncrement() == 0) ex.printStackTrace(System.err);
+                }
+            }, "ConcurrencyStress worker " + i);
+            worker.setDaemon(true);
+            worker.start();
+            workers.add(worker);
+        }
+        long deadline = System.currentTimeMillis() + timeout;
+        int running = 0;
+        for (Thread worker : workers) {
+            worker.join(timeout <= 0 ? 0 : Math.max(1, deadline - System.currentTimeMillis()));
+            if (worker.isAlive()) running++;
+        }
+        return running;
+    }
+    
+    /**
+     * Waits until the number of connections open on a server has stopped changing.
+     * Connections are closed by the server shortly after the client closed them.
+     * @return The number of open connections, once it has not changed for 100 ms (or after 2 s at most).
+     */
+    private static int settledConnections(FakeAdbServer server) throws InterruptedException {
+        int connections = server.getOpenConnections();
+        for (int i = 0, stable = 0; i < 100 && stable < 5; i++) {
+            Thread.sleep(20);
+            int open = server.getOpenConnections();
+            stable = open == connections ? stable + 1 : 0;
+            connections = open;
+        }
+        return connections;
+    }
+    
+    private void check(String scenario, boolean passed, String details) {
+        System.out.printf("%-20s %s (%s)%n", scenario, passed ? "PASS" : "FAIL", details);
+        failed |= !passed;
+    }
+    
+}
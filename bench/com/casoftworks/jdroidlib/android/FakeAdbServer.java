@@ -0,0 +1,598 @@
+/*
+ * Copyright (C) 2016 Ca Softworks.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+package com.casoftworks.jdroidlib.android;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * A stand-in for the ADB server, listening on a loopback port, which
+ * simulates any number of {@link SimulatedDevice}s.
+ * It speaks the smart socket protocol as far as JDroidLib uses it: the host
+ * services {@code version}, {@code devices[-l]}, {@code track-devices[-l]}, {@code features},
+ * {@code get-state} and {@code get-serialno}, transports, and the device
+ * services {@code shell:} (including interactive shells as used by shell
+ * sessions), {@code shell,v2}, {@code exec:} and {@code sync:} (listing,
+ * stat and send requests against the device's {@link SimulatedFileSystem},
+ * which {@code ls} lists, unless it is empty, and {@code rm -r} and
+ * {@code mkdir -p} change).
+ * Each connection is served by its own thread. Injected failures of the kind
+ * {@link SimulatedDevice.Failure#REFUSE} answer the device service with
+ * {@code FAIL}.
+ * @author simoncahill
+ */
+final class FakeAdbServer implements Closeable {
+    
+    private static final Pattern SESSION_COMMAND = Pattern.compile(
+            "^echo (\\S+); \\{ (.*) ; \\} </dev/null 2>&1; __jdl=\\$\\?; echo; echo (\\S+)\\$__jdl$");
+    
+    private final ServerSocket socket;
+    private final ExecutorService handlers = Executors.newCachedThreadPool(runnable -> {
+        Thread thread = new Thread(runnable, "FakeAdbServer client");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final Map<String, SimulatedDevice> devices = new ConcurrentHashMap<>();
+    private final Map<String, SimulatedDevice.Reply> replies = new ConcurrentHashMap<>();
+    private final List<Tracker> trackers = new CopyOnWriteArrayList<>();
+    private final AtomicInteger nextTransportId = new AtomicInteger(1);
+    private final AtomicInteger connections = new AtomicInteger();
+    private final AtomicInteger openConnections = new AtomicInteger();
+    
+    private FakeAdbServer() throws IOException {
+        socket = new ServerSocket(0, 1024, InetAddress.getLoopbackAddress());
+    }
+    
+    /**
+     * Starts a new server without any devices, answering {@code dumpsys battery}
+     * and {@code ls} with the recorded {@link Fixtures}.
+     * @return The running server.
+     * @throws IOException If no port could be bound, or the fixtures could not be loaded.
+     */
+    static FakeAdbServer start() throws IOException {
+        FakeAdbServer server = new FakeAdbServer();
+        server.reply("dumpsys battery", Fixtures.load(Fixtures.DUMPSYS_BATTERY), 0);
+        server.reply("ls", Fixtures.load(Fixtures.LS_L), 0);
+        Thread acceptor = new Thread(server::accept, "FakeAdbServer");
+        acceptor.setDaemon(true);
+        acceptor.start();
+        return server;
+    }
+    
+    /**
+     * Gets the port this server is listening on.
+     * @return The port.
+     */
+    int getPort() { return socket.getLocalPort(); }
+    
+    /**
+     * Gets the number of connections accepted so far.
+     * @return The number of connections.
+     */
+    int getConnections() { return connections.get(); }
+    
+    /**
+     * Gets the number of connections which have not been closed yet.
+     * @return The number of open connections.
+     */
+    int getOpenConnections() { return openConnections.get(); }
+    
+    //<editor-fold defaultstate="collapsed" desc="Devices and replies" >
+    /**
+     * Attaches a new simulated device.
+     * @param serialNumber The serial number of the device.
+     * @return The device.
+     */
+    SimulatedDevice addDevice(String serialNumber) {
+        SimulatedDevice device = new SimulatedDevice(this, serialNumber, nextTransportId.getAndIncrement());
+        devices.put(serialNumber, device);
+        devicesChanged();
+        return device;
+    }
+    
+    /**
+     * Attaches a number of simulated devices, with serial numbers made of a
+     * prefix and a running number.
+     * @param count The number of devices.
+     * @param prefix The prefix of the serial numbers.
+     * @return The devices.
+     */
+    List<SimulatedDevice> addDevices(int count, String prefix) {
+        List<SimulatedDevice> added = new ArrayList<>(count);
+        for (int i = 0; i < count; i++)
+            added.add(addDevice(String.format("%s%06d", prefix, i)));
+        return added;
+    }
+    
+    /**
+     * Detaches a simulated device.
+     * @param serialNumber The serial number of the device.
+     */
+    void removeDevice(String serialNumber) {
+        if (devices.remove(serialNumber) != null) devicesChanged();
+    }
+    
+    /**
+     * Gets a simulated device.
+     * @param serialNumber The serial number of the device.
+     * @return The device, or {@code null} if no such device is attached.
+     */
+    SimulatedDevice getDevice(String serialNumber) { return devices.get(serialNumber); }
+    
+    /**
+     * Gets all simulated devices.
+     * @return The devices.
+     */
+    Collection<SimulatedDevice> getDevices() { return devices.values(); }
+    
+    /**
+     * Registers the output of a command on all devices.
+     * @param commandLine The command line, or the name of the command to answer all its invocations.
+     * @param output The output.
+     * @param exitCode The exit code.
+     */
+    void reply(String commandLine, String output, int exitCode) {
+        replies.put(commandLine, new SimulatedDevice.Reply(output, exitCode));
+    }
+    
+    SimulatedDevice.Reply getReply(String commandLine) { return replies.get(commandLine); }
+    
+    /**
+     * Called whenever a device has been attached or detached, or its state has
+     * changed. Sends the new list of devices to all {@code track-devices} streams.
+     */
+    void devicesChanged() {
+        for (Tracker tracker : trackers) {
+            try {
+                tracker.send();
+            } catch (IOException ex) {
+                trackers.remove(tracker);
+            }
+        }
+    }
+    
+    /**
+     * An open {@code track-devices} stream.
+     */
+    private final class Tracker {
+        
+        private final OutputStream out;
+        private final boolean longFormat;
+        
+        Tracker(OutputStream out, boolean longFormat) {
+            this.out = out;
+            this.longFormat = longFormat;
+        }
+        
+        void send() throws IOException {
+            synchronized (out) {
+                byte[] payload = describeDevices(longFormat).getBytes(StandardCharsets.UTF_8);
+                out.write(String.format("%04x", payload.length).getBytes(StandardCharsets.US_ASCII));
+                out.write(payload);
+                out.flush();
+            }
+        }
+        
+    }
+    //</editor-fold>
+    
+    @Override
+    public void close() throws IOException {
+        socket.close();
+        handlers.shutdownNow();
+    }
+    
+    private void accept() {
+        while (!socket.isClosed()) {
+            try {
+                Socket client = socket.accept();
+                client.setTcpNoDelay(true);
+                connections.incrementAndGet();
+                openConnections.incrementAndGet();
+                handlers.execute(() -> handle(client));
+            } catch (IOException ex) { }
+        }
+    }
+    
+    //<editor-fold defaultstate="collapsed" desc="Protocol" >
+    private void handle(Socket client) {
+        try {
+            DataInputStream in = new DataInputStream(client.getInputStream());
+            OutputStream out = client.getOutputStream();
+            SimulatedDevice transport = null;
+            
+            while (true) {
+                String request = readRequest(in);
+                if (request == null) return;
+                
+                if (request.startsWith("host:transport")) {
+                    String serial = request.startsWith("host:transport:") ? request.substring("host:transport:".length()) : null;
+                    transport = select(serial, out);
+                    if (transport == null) return;
+                    okay(out);
+                    continue;
+                }
+                if (request.equals("host:track-devices") || request.equals("host:track-devices-l")) {
+                    track(request.endsWith("-l"), in, out);
+                    return;
+                }
+                if (transport == null) {
+                    hostService(request, out);
+                    return;
+                }
+                deviceService(transport, request, in, out);
+                return;
+            }
+        } catch (IOException | InterruptedException ex) {
+        } finally {
+            try {
+                client.close();
+            } catch (IOException ex) { }
+            openConnections.decrementAndGet();
+        }
+    }
+    
+    private void hostService(String request, OutputStream out) throws IOException {
+        if (request.equals("host:version")) {
+            okay(out, "0029");
+        } else if (request.equals("host:devices") || request.equals("host:devices-l")) {
+            okay(out, describeDevices(request.endsWith("-l")));
+        } else if (request.equals("host:kill")) {
+            okay(out);
+        } else if (request.startsWith("host:") || request.startsWith("host-serial:")) {
+            String serial = null;
+            String service = request.substring("host:".length());
+            if (request.startsWith("host-serial:")) {
+                int index = request.lastIndexOf(':');
+                serial = request.substring("host-serial:".length(), index);
+                service = request.substring(index + 1);
+            }
+            SimulatedDevice device = select(serial, out);
+            if (device == null) return;
+            switch (service) {
+                case "get-state":
+                    okay(out, device.getState());
+                    break;
+                case "get-serialno":
+                    okay(out, device.getSerialNumber());
+                    break;
+                case "features":
+                    okay(out, device.supportsShellV2() ? "shell_v2,cmd,stat_v2" : "cmd");
+                    break;
+                default:
+                    fail(out, "unknown host service");
+            }
+        } else fail(out, "unknown service");
+    }
+    
+    private void deviceService(SimulatedDevice device, String request, DataInputStream in, OutputStream out) throws IOException, InterruptedException {
+        if (request.equals("shell:")) {
+            okay(out);
+            interactiveShell(device, in, out);
+            return;
+        }
+        if (request.equals("sync:")) {
+            okay(out);
+            sync(device, in, out);
+            return;
+        }
+        
+        boolean v2 = request.startsWith("shell,v2,");
+        String commandLine;
+        if (v2) commandLine = request.substring(request.indexOf(':') + 1);
+        else if (request.startsWith("shell:")) commandLine = request.substring("shell:".length());
+        else if (request.startsWith("exec:")) commandLine = request.substring("exec:".length());
+        else {
+            fail(out, "unknown service");
+            return;
+        }
+        
+        SimulatedDevice.Failure failure = device.nextFailure();
+        if (failure == SimulatedDevice.Failure.REFUSE) {
+            fail(out, "device offline");
+            return;
+        }
+        okay(out);
+        
+        String marker = "; echo " + AdbSocketController.EXIT_CODE_MARKER + "$?";
+        boolean reportExitCode = commandLine.endsWith(marker);
+        if (reportExitCode) commandLine = commandLine.substring(0, commandLine.length() - marker.length());
+        device.delay();
+        SimulatedDevice.Reply reply = run(device, commandLine);
+        
+        if (failure == SimulatedDevice.Failure.HANG) {
+            while (in.read() >= 0) { }
+            return;
+        }
+        if (failure != null) {
+            out.write(reply.output, 0, reply.output.length / 2);
+            return;
+        }
+        
+        if (v2) {
+            writePacket(out, ShellProtocol.ID_STDOUT, reply.output);
+            writePacket(out, ShellProtocol.ID_EXIT, new byte[] { (byte)reply.exitCode });
+        } else {
+            out.write(reply.output);
+            if (reportExitCode)
+                out.write((AdbSocketController.EXIT_CODE_MARKER + reply.exitCode + "\n").getBytes(StandardCharsets.UTF_8));
+        }
+        out.flush();
+    }
+    
+    /**
+     * Serves sync requests until the client quits. Each request is counted as a
+     * command, and may fail or be delayed like one.
+     */
+    private void sync(SimulatedDevice device, DataInputStream in, OutputStream out) throws IOException, InterruptedException {
+        SimulatedFileSystem fileSystem = device.getFileSystem();
+        byte[] header = new byte[8];
+        
+        while (true) {
+            in.readFully(header);
+            ByteBuffer request = ByteBuffer.wrap(header).order(ByteOrder.LITTLE_ENDIAN);
+            String id = new String(header, 0, 4, StandardCharsets.US_ASCII);
+            byte[] payload = new byte[request.getInt(4)];
+            in.readFully(payload);
+            String path = new String(payload, StandardCharsets.UTF_8);
+            if (id.equals("QUIT")) return;
+            
+            SimulatedDevice.Failure failure = device.nextFailure();
+            device.delay();
+            if (failure == SimulatedDevice.Failure.REFUSE) {
+                writeSync(out, "FAIL", syncString("device offline"));
+                return;
+            }
+            if (failure != null) return;
+            
+            ByteBuffer answer;
+            switch (id) {
+                case "LIST":
+                    List<SimulatedFileSystem.Node> nodes = fileSystem.list(path);
+                    if (nodes != null) {
+                        SimulatedFileSystem.Node directory = fileSystem.lookup(path, true);
+                        writeDent(out, ".", directory);
+                        writeDent(out, "..", directory);
+                        for (SimulatedFileSystem.Node node : nodes)
+                            writeDent(out, node.name, node);
+                    }
+                    writeSync(out, "DONE", ByteBuffer.allocate(16));
+                    break;
+                case "STAT": {
+                    SimulatedFileSystem.Node node = fileSystem.lookup(path, false);
+                    answer = ByteBuffer.allocate(12).order(ByteOrder.LITTLE_ENDIAN);
+                    if (node != null) answer.putInt(node.mode).putInt((int)node.size).putInt((int)node.time);
+                    writeSync(out, "STAT", answer);
+                    break;
+                }
+                case "STA2":
+                case "LST2": {
+                    SimulatedFileSystem.Node node = fileSystem.lookup(path, id.equals("STA2"));
+                    answer = ByteBuffer.allocate(68).order(ByteOrder.LITTLE_ENDIAN);
+                    answer.putInt(node == null ? 2 : 0).putLong(0).putLong(0);
+                    if (node != null)
+                        answer.putInt(node.mode).putInt(1).putInt(1000).putInt(1000)
+                              .putLong(node.size).putLong(node.time).putLong(node.time).putLong(node.time);
+                    writeSync(out, id, answer);
+                    break;
+                }
+                case "SEND": {
+                    int comma = path.lastIndexOf(',');
+                    String file = path.substring(0, comma);
+                    int mode = Integer.parseInt(path.substring(comma + 1));
+                    long size = 0;
+                    while (true) {
+                        in.readFully(header);
+                        int length = ByteBuffer.wrap(header).order(ByteOrder.LITTLE_ENDIAN).getInt(4);
+                        if (new String(header, 0, 4, StandardCharsets.US_ASCII).equals("DONE")) {
+                            SimulatedFileSystem.Node existing = fileSystem.lookup(file, true);
+                            if (existing != null && existing.isDirectory()) {
+                                writeSync(out, "FAIL", syncString("couldn't create file: Is a directory"));
+                                return;
+                            }
+                            fileSystem.add(file, mode, size, length & 0xffffffffL, null);
+                            writeSync(out, "OKAY", ByteBuffer.allocate(4));
+                            break;
+                        }
+                        in.readFully(new byte[length]);
+                        size += length;
+                    }
+                    break;
+                }
+                default:
+                    writeSync(out, "FAIL", syncString("unknown sync request " + id));
+                    return;
+            }
+            out.flush();
+        }
+    }
+    
+    private static void writeDent(OutputStream out, String name, SimulatedFileSystem.Node node) throws IOException {
+        byte[] bytes = name.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer dent = ByteBuffer.allocate(16 + bytes.length).order(ByteOrder.LITTLE_ENDIAN);
+        dent.putInt(node.mode).putInt((int)node.size).putInt((int)node.time).putInt(bytes.length).put(bytes);
+        writeSync(out, "DENT", dent);
+    }
+    
+    private static ByteBuffer syncString(String value) {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        return ByteBuffer.allocate(4 + bytes.length).order(ByteOrder.LITTLE_ENDIAN).putInt(bytes.length).put(bytes);
+    }
+    
+    private static void writeSync(OutputStream out, String id, ByteBuffer body) throws IOException {
+        out.write(id.getBytes(StandardCharsets.US_ASCII));
+        out.write(body.array());
+    }
+    
+    /**
+     * Sends the list of devices, and again whenever it changes, until the client
+     * closes the connection.
+     */
+    private void track(boolean longFormat, DataInputStream in, OutputStream out) throws IOException {
+        Tracker tracker = new Tracker(out, longFormat);
+        okay(out);
+        trackers.add(tracker);
+        try {
+            tracker.send();
+            while (in.read() >= 0) { }
+        } finally {
+            trackers.remove(tracker);
+        }
+    }
+    
+    /**
+     * Emulates the shell as far as shell sessions use it: {@code su}, and
+     * commands wrapped in begin and end markers.
+     */
+    private void interactiveShell(SimulatedDevice device, DataInputStream in, OutputStream out) throws IOException, InterruptedException {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8));
+        boolean root = false;
+        String line;
+        
+        while ((line = reader.readLine()) != null) {
+            if (line.trim().equals("su")) {
+                if (!device.isRooted()) out.write("/system/bin/sh: su: not found\n".getBytes(StandardCharsets.UTF_8));
+                root = device.isRooted();
+                continue;
+            }
+            Matcher matcher = SESSION_COMMAND.matcher(line);
+            if (!matcher.matches()) continue;
+            
+            SimulatedDevice.Failure failure = device.nextFailure();
+            device.delay();
+            if (failure != null) return;
+            
+            String commandLine = matcher.group(2);
+            SimulatedDevice.Reply reply = commandLine.equals("id -u") ?
+                    new SimulatedDevice.Reply(root ? "0\n" : "2000\n", 0) : run(device, commandLine);
+            ByteArrayOutputStream answer = new ByteArrayOutputStream();
+            answer.write((matcher.group(1).replace("''", "") + "\n").getBytes(StandardCharsets.UTF_8));
+            answer.write(reply.output);
+            answer.write(("\n" + matcher.group(3).replace("''", "") + reply.exitCode + "\n").getBytes(StandardCharsets.UTF_8));
+            out.write(answer.toByteArray());
+            out.flush();
+        }
+    }
+    
+    private static SimulatedDevice.Reply run(SimulatedDevice device, String commandLine) {
+        if (commandLine.startsWith("su ")) {
+            if (!device.isRooted()) return new SimulatedDevice.Reply("/system/bin/sh: su: not found\n", 127);
+            commandLine = commandLine.substring("su ".length());
+        }
+        // Devices with simulated files list them; others answer with the fixture.
+        if (commandLine.startsWith("ls ") && !device.getFileSystem().isEmpty())
+            return device.getFileSystem().ls(commandLine.substring("ls ".length()));
+        if (commandLine.startsWith("rm -r "))
+            return device.getFileSystem().rm(commandLine.substring("rm -r ".length()));
+        if (commandLine.startsWith("mkdir -p "))
+            return device.getFileSystem().mkdir(commandLine.substring("mkdir -p ".length()));
+        return device.resolve(commandLine);
+    }
+    
+    /**
+     * Selects the device addressed by a request, or answers with the error the ADB server would.
+     * @param serial The serial number, or {@code null} for any single device.
+     * @return The device, or {@code null} if the request has been refused.
+     */
+    private SimulatedDevice select(String serial, OutputStream out) throws IOException {
+        SimulatedDevice device;
+        if (serial == null) {
+            if (devices.size() != 1) {
+                fail(out, devices.isEmpty() ? "no devices/emulators found" : "more than one device/emulator");
+                return null;
+            }
+            device = devices.values().iterator().next();
+        } else device = devices.get(serial);
+        
+        if (device == null) {
+            fail(out, "device '" + serial + "' not found");
+            return null;
+        }
+        if (!device.isOnline()) {
+            fail(out, "device " + device.getState());
+            return null;
+        }
+        return device;
+    }
+    
+    private String describeDevices(boolean longFormat) {
+        StringBuilder builder = new StringBuilder();
+        devices.values().forEach(device -> builder.append(device.describe(longFormat)));
+        return builder.toString();
+    }
+    
+    private static String readRequest(DataInputStream in) throws IOException {
+        byte[] length = new byte[4];
+        if (in.read(length, 0, 1) < 0) return null;
+        in.readFully(length, 1, 3);
+        byte[] payload = new byte[Integer.parseInt(new String(length, StandardCharsets.US_ASCII), 16)];
+        in.readFully(payload);
+        return new String(payload, StandardCharsets.UTF_8);
+    }
+    
+    private static void okay(OutputStream out) throws IOException {
+        out.write("OKAY".getBytes(StandardCharsets.US_ASCII));
+        out.flush();
+    }
+    
+    private static void okay(OutputStream out, String answer) throws IOException {
+        byte[] payload = answer.getBytes(StandardCharsets.UTF_8);
+        out.write(String.format("OKAY%04x", payload.length).getBytes(StandardCharsets.US_ASCII));
+        out.write(payload);
+        out.flush();
+    }
+    
+    private static void fail(OutputStream out, String reason) throws IOException {
+        byte[] payload = reason.getBytes(StandardCharsets.UTF_8);
+        out.write(String.format("FAIL%04x", payload.length).getBytes(StandardCharsets.US_ASCII));
+        out.write(payload);
+        out.flush();
+    }
+    
+    private static void writePacket(OutputStream out, int id, byte[] payload) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(5).order(ByteOrder.LITTLE_ENDIAN);
+        header.put((byte)id).putInt(payload.length);
+        out.write(header.array());
+        out.write(payload);
+    }
+    //</editor-fold>
+    
+}
@@ -0,0 +1,75 @@
+/*
+ * Copyright (C) 2016 Ca Softworks.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+package com.casoftworks.jdroidlib.android;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Recorded outputs of real devices, used as the input of the benchmarks.
+ * The fixtures are stored next to this class, in the {@code fixtures} directory.
+ * @author simoncahill
+ */
+final class Fixtures {
+    
+    /** The output of {@code dumpsys battery}. */
+    static final String DUMPSYS_BATTERY = "dumpsys-battery.txt";
+    
+    /** The output of a complete {@code dumpsys}, trimmed to six services. */
+    static final String DUMPSYS = "dumpsys.txt";
+    
+    /** The output of {@code ls -l} in a device's root directory (toolbox format). */
+    static final String LS_L = "ls-l.txt";
+    
+    /** The output of {@code adb devices -l} with 34 attached devices. */
+    static final String DEVICES_L = "devices-l.txt";
+    
+    private Fixtures() { }
+    
+    /**
+     * Loads a fixture.
+     * @param name The name of the fixture.
+     * @return The recorded output.
+     * @throws IOException If the fixture could not be found.
+     */
+    static String load(String name) throws IOException {
+        try (InputStream stream = Fixtures.class.getResourceAsStream("fixtures/" + name)) {
+            if (stream == null) throw new IOException("Fixture not found: " + name);
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            byte[] buffer = new byte[4096];
+            int read;
+            while ((read = stream.read(buffer)) >= 0)
+                bytes.write(buffer, 0, read);
+            return new String(bytes.toByteArray(), StandardCharsets.UTF_8);
+        }
+    }
+    
+    /**
+     * Loads a fixture and splits it in to lines, as the controllers pass them to output handlers.
+     * @param name The name of the fixture.
+     * @return The lines of the recorded output.
+     * @throws IOException If the fixture could not be found.
+     */
+    static String[] loadLines(String name) throws IOException {
+        return load(name).split("\n");
+    }
+    
+}
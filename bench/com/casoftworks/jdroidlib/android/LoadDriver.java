@@ -0,0 +1,182 @@
+/*
+ * Copyright (C) 2016 Ca Softworks.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+package com.casoftworks.jdroidlib.android;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Drives the {@link AndroidController} with a closed-loop load against a
+ * {@link FakeAdbServer} simulating a fleet of devices, and reports the
+ * throughput, the latency distribution and the errors seen by the callers.
+ * <p>
+ * Each worker thread repeatedly picks a random device and executes a shell
+ * command on it. Options are given as {@code --name=value}:
+ * <ul>
+ * <li>{@code --devices} the number of simulated devices (default 1000)</li>
+ * <li>{@code --servers} the number of fake ADB servers the devices are spread over (default 1)</li>
+ * <li>{@code --concurrency} the number of worker threads (default 64)</li>
+ * <li>{@code --duration} the measured time in seconds (default 30)</li>
+ * <li>{@code --warmup} the time in seconds before measuring (default 5)</li>
+ * <li>{@code --latency} and {@code --jitter} the simulated device latency in milliseconds (default 5 and 5)</li>
+ * <li>{@code --failure-rate} the probability of a command failing (default 0)</li>
+ * <li>{@code --failure} the kind of failure: {@code refuse}, {@code disconnect} or {@code hang} (default disconnect)</li>
+ * <li>{@code --timeout} the command timeout in milliseconds (default 5000)</li>
+ * <li>{@code --command} the shell command to execute (default {@code dumpsys battery})</li>
+ * <li>{@code --sessions} the shell sessions per device; 0 starts a shell per command (default 0)</li>
+ * <li>{@code --max-running} and {@code --max-running-per-device} the scheduling limits (default 256 and 4)</li>
+ * </ul>
+ * Run with {@code ant loadtest -Dloadtest.args="--devices=1000 --concurrency=128"}.
+ * @author simoncahill
+ */
+public final class LoadDriver {
+    
+    private final Map<String, String> options = new HashMap<>();
+    private final Histogram latencies = new Histogram();
+    private final AtomicLong errors = new AtomicLong();
+    private final AtomicLong timeouts = new AtomicLong();
+    private volatile boolean measuring;
+    private volatile boolean running = true;
+    
+    private LoadDriver(String[] args) {
+        for (String arg : args) {
+            if (!arg.startsWith("--") || !arg.contains("="))
+                throw new IllegalArgumentException("Options must be given as --name=value: " + arg);
+            options.put(arg.substring(2, arg.indexOf('=')), arg.substring(arg.indexOf('=') + 1));
+        }
+    }
+    
+    public static void main(String[] args) throws Exception {
+        new LoadDriver(args).run();
+    }
+    
+    private void run() throws IOException, InterruptedException {
+        int deviceCount = getInt("devices", 1000);
+        int serverCount = getInt("servers", 1);
+        int concurrency = getInt("concurrency", 64);
+        long duration = getInt("duration", 30);
+        long warmup = getInt("warmup", 5);
+        long timeout = getInt("timeout", 5000);
+        int sessions = getInt("sessions", 0);
+        String[] command = get("command", "dumpsys battery").trim().split("\\s+");
+        SimulatedDevice.Failure failure = SimulatedDevice.Failure.valueOf(get("failure", "disconnect").toUpperCase());
+        
+        List<FakeAdbServer> servers = new ArrayList<>(serverCount);
+        try {
+            String[] sockets = new String[serverCount];
+            for (int i = 0; i < serverCount; i++) {
+                servers.add(FakeAdbServer.start());
+                sockets[i] = "tcp:" + AdbSocketController.DEFAULT_HOST + ":" + servers.get(i).getPort();
+            }
+            
+            List<Device> devices = new ArrayList<>(deviceCount);
+            for (int i = 0; i < deviceCount; i++) {
+                SimulatedDevice simulated = servers.get(i % serverCount).addDevice(String.format("sim%06d", i));
+                simulated.setLatency(getInt("latency", 5), getInt("jitter", 5))
+                        .setFailures(Double.parseDouble(get("failure-rate", "0")), failure);
+                Device device = new Device(simulated.getSerialNumber(), DeviceState.ONLINE);
+                device.setShard(i % serverCount);
+                devices.add(device);
+            }
+            
+            AndroidController controller = AndroidController.getInstance();
+            controller.useAdbServers(sockets);
+            controller.useShellSessions(sessions);
+            controller.setSchedulingLimits(getInt("max-running", 256), getInt("max-running-per-device", 4), Integer.MAX_VALUE);
+            
+            System.out.printf("%d devices on %d servers, %d workers, %s%n", deviceCount, serverCount, concurrency, String.join(" ", command));
+            List<Thread> workers = new ArrayList<>(concurrency);
+            for (int i = 0; i < concurrency; i++) {
+                Thread worker = new Thread(() -> work(controller, devices, command, timeout), "LoadDriver worker " + i);
+                worker.setDaemon(true);
+                worker.start();
+                workers.add(worker);
+            }
+            
+            TimeUnit.SECONDS.sleep(warmup);
+            latencies.reset();
+            errors.set(0);
+            timeouts.set(0);
+            long start = System.nanoTime();
+            measuring = true;
+            TimeUnit.SECONDS.sleep(duration);
+            measuring = false;
+            long elapsed = System.nanoTime() - start;
+            running = false;
+            for (Thread worker : workers) worker.join(timeout * 2);
+            
+            report(elapsed, servers);
+            devices.forEach(Device::closeShellSessions);
+        } finally {
+            for (FakeAdbServer server : servers) server.close();
+        }
+    }
+    
+    private void work(AndroidController controller, List<Device> devices, String[] command, long timeout) {
+        String[] args = new String[command.length - 1];
+        System.arraycopy(command, 1, args, 0, args.length);
+        
+        while (running) {
+            Device device = devices.get(ThreadLocalRandom.current().nextInt(devices.size()));
+            AndroidCommand cmd = AndroidCommand.formAndroidShellCommand(device, false, command[0], args);
+            cmd.setTimeout(timeout);
+            long start = System.nanoTime();
+            try {
+                int exitCode = controller.executeCommandReturnExitCode(cmd);
+                if (!measuring) continue;
+                latencies.record(System.nanoTime() - start);
+                if (exitCode != 0) errors.incrementAndGet();
+            } catch (IOException ex) {
+                if (!measuring) continue;
+                if (System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(timeout)) timeouts.incrementAndGet();
+                else errors.incrementAndGet();
+            } catch (InterruptedException ex) {
+                return;
+            }
+        }
+    }
+    
+    private void report(long elapsed, List<FakeAdbServer> servers) {
+        double seconds = elapsed / 1e9;
+        long succeeded = latencies.getCount();
+        System.out.printf("ops:        %d in %.1f s (%.0f ops/s)%n", succeeded, seconds, succeeded / seconds);
+        System.out.printf("errors:     %d%n", errors.get());
+        System.out.printf("timeouts:   %d%n", timeouts.get());
+        System.out.printf("latency ms: mean %.2f, p50 %.2f, p90 %.2f, p99 %.2f, p99.9 %.2f, max %.2f%n",
+                latencies.getMean() / 1e6,
+                latencies.getValueAtPercentile(50) / 1e6,
+                latencies.getValueAtPercentile(90) / 1e6,
+                latencies.getValueAtPercentile(99) / 1e6,
+                latencies.getValueAtPercentile(99.9) / 1e6,
+                latencies.getMax() / 1e6);
+        for (int i = 0; i < servers.size(); i++)
+            System.out.printf("server %d:   %d connections%n", i, servers.get(i).getConnections());
+    }
+    
+    private String get(String name, String defaultValue) { return options.getOrDefault(name, defaultValue); }
+    
+    private int getInt(String name, int defaultValue) { return Integer.parseInt(get(name, String.valueOf(defaultValue))); }
+    
+}
@@ -0,0 +1,119 @@
+/*
+ * Copyright (C) 2016 Ca Softworks.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+package com.casoftworks.jdroidlib.android;
+
+import com.casoftworks.jdroidlib.interfaces.IDumpsysParser;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.TimeZone;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Measures the parsers JDroidLib runs over the output of device commands,
+ * fed with recorded outputs instead of a device.
+ * Each operation parses one complete output.
+ * @author simoncahill
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ParserBenchmark {
+    
+    private static final FileSystem.ListingOptions LISTING_OPTIONS = new FileSystem.ListingOptions();
+    private static final TimeZone UTC = TimeZone.getTimeZone("UTC");
+    
+    private String[] batteryLines;
+    private String[] dumpsysLines;
+    private String[] listingLines;
+    private String[] deviceLines;
+    
+    @Setup
+    public void setUp() throws IOException {
+        batteryLines = Fixtures.loadLines(Fixtures.DUMPSYS_BATTERY);
+        dumpsysLines = Fixtures.loadLines(Fixtures.DUMPSYS);
+        listingLines = Fixtures.loadLines(Fixtures.LS_L);
+        deviceLines = Fixtures.loadLines(Fixtures.DEVICES_L);
+    }
+    
+    /**
+     * The parser behind {@code BatteryInfo.update()}.
+     */
+    @Benchmark
+    public BatterySnapshot batteryInfo() {
+        BatterySnapshot.Builder builder = new BatterySnapshot.Builder();
+        for (String line : batteryLines)
+            builder.parseLine(line);
+        return builder.build();
+    }
+    
+    /**
+     * The section router behind {@code Dumpsys.readAll}, picking two services
+     * out of a complete dump and skipping all others.
+     */
+    @Benchmark
+    public void dumpsysSections(Blackhole blackhole) throws IOException {
+        IDumpsysParser<BatterySnapshot> battery = BatterySnapshot.parser();
+        DumpsysProperties window = new DumpsysProperties("window", '=', "mCurrentFocus");
+        Dumpsys.SectionRouter router = new Dumpsys.SectionRouter(battery, window);
+        for (String line : dumpsysLines)
+            if (!router.onLine(line)) break;
+        blackhole.consume(battery.getResult());
+        blackhole.consume(window.getString("mCurrentFocus"));
+    }
+    
+    /**
+     * The parser behind {@code FileSystem.listFiles} and {@code FileSystem.listEntries}
+     * on the {@code ls} path, including the map {@code listFiles} returns.
+     */
+    @Benchmark
+    public HashMap<String, FileSystem.ListingType> listFiles() {
+        HashMap<String, FileSystem.ListingType> entries = new HashMap<>();
+        ListingParser parser = new ListingParser("/", LISTING_OPTIONS, UTC);
+        for (String line : listingLines)
+            parser.onLine(line);
+        for (FileEntry entry : parser.getEntries())
+            entries.put(entry.getName(), entry.getListingType());
+        return entries;
+    }
+    
+    /**
+     * The parser behind the device registry, for a rack of devices.
+     */
+    @Benchmark
+    public void deviceList(Blackhole blackhole) {
+        for (String line : deviceLines)
+            blackhole.consume(DeviceRegistry.parseLine(line));
+    }
+    
+}
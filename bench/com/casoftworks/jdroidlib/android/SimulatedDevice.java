@@ -0,0 +1,250 @@
+/*
+ * Copyright (C) 2016 Ca Softworks.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+package com.casoftworks.jdroidlib.android;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A device simulated by the {@link FakeAdbServer}.
+ * Each device answers shell commands with the outputs registered for it, or
+ * with the outputs registered for the whole server, after a configurable
+ * latency. Failures can be injected with a given probability.
+ * All settings may be changed while the server is running.
+ * @author simoncahill
+ */
+final class SimulatedDevice {
+    
+    /**
+     * The ways in which a command on a simulated device can fail.
+     */
+    enum Failure {
+        /** The ADB server refuses the transport, as if the device had gone offline. */
+        REFUSE,
+        /** The connection is closed after half of the output has been sent. */
+        DISCONNECT,
+        /** The device never answers; the command only ends once the client gives up. */
+        HANG
+    }
+    
+    /**
+     * The output and exit code a command is answered with.
+     */
+    static final class Reply {
+        
+        final byte[] output;
+        final int exitCode;
+        
+        Reply(String output, int exitCode) {
+            this.output = output.getBytes(StandardCharsets.UTF_8);
+            this.exitCode = exitCode;
+        }
+        
+    }
+    
+    private final FakeAdbServer server;
+    private final String serialNumber;
+    private final int transportId;
+    private final Map<String, Reply> replies = new ConcurrentHashMap<>();
+    private final AtomicLong commands = new AtomicLong();
+    private final AtomicLong failures = new AtomicLong();
+    private final SimulatedFileSystem fileSystem = new SimulatedFileSystem();
+    
+    private volatile String state = "device";
+    private volatile String product = "hero2ltexx";
+    private volatile String model = "SM_G935F";
+    private volatile String deviceName = "hero2lte";
+    private volatile boolean rooted = true;
+    private volatile boolean shellV2 = true;
+    private volatile long latency = 0;
+    private volatile long jitter = 0;
+    private volatile double failureRate = 0;
+    private volatile Failure failure = Failure.DISCONNECT;
+    
+    SimulatedDevice(FakeAdbServer server, String serialNumber, int transportId) {
+        this.server = server;
+        this.serialNumber = serialNumber;
+        this.transportId = transportId;
+    }
+    
+    //<editor-fold defaultstate="collapsed" desc="Configuration" >
+    /**
+     * Gets the serial number of this device.
+     * @return The serial number.
+     */
+    String getSerialNumber() { return serialNumber; }
+    
+    /**
+     * Gets the state this device is reported in.
+     * @return The state, as reported by {@code adb devices} (e.g.: {@code device}).
+     */
+    String getState() { return state; }
+    
+    /**
+     * Sets the state this device is reported in. Devices which are not in the
+     * {@code device} state refuse all commands.
+     * @param state The state, as reported by {@code adb devices} (e.g.: {@code offline}).
+     * @return This device. (Useful for method-chaining.)
+     */
+    SimulatedDevice setState(String state) {
+        this.state = state;
+        server.devicesChanged();
+        return this;
+    }
+    
+    /**
+     * Sets the attributes reported by {@code adb devices -l}.
+     * @param product The product name.
+     * @param model The model name.
+     * @param deviceName The device name.
+     * @return This device. (Useful for method-chaining.)
+     */
+    SimulatedDevice setAttributes(String product, String model, String deviceName) {
+        this.product = product;
+        this.model = model;
+        this.deviceName = deviceName;
+        server.devicesChanged();
+        return this;
+    }
+    
+    /**
+     * Sets a value indicating whether {@code su} is available on this device.
+     * @param rooted Set to {@code false} to fail all root commands. Default is {@code true}.
+     * @return This device. (Useful for method-chaining.)
+     */
+    SimulatedDevice setRooted(boolean rooted) { this.rooted = rooted; return this; }
+    
+    /**
+     * Sets a value indicating whether this device advertises the {@code shell_v2} feature.
+     * @param shellV2 Set to {@code false} to simulate an old device. Default is {@code true}.
+     * @return This device. (Useful for method-chaining.)
+     */
+    SimulatedDevice setShellV2(boolean shellV2) { this.shellV2 = shellV2; return this; }
+    
+    /**
+     * Sets the time this device takes to answer a command.
+     * @param latency The minimum latency in milliseconds.
+     * @param jitter The maximum random latency added in milliseconds.
+     * @return This device. (Useful for method-chaining.)
+     */
+    SimulatedDevice setLatency(long latency, long jitter) {
+        this.latency = latency;
+        this.jitter = jitter;
+        return this;
+    }
+    
+    /**
+     * Injects failures in to the commands executed on this device.
+     * @param failureRate The probability (0 to 1) of a command failing.
+     * @param failure The way failing commands fail.
+     * @return This device. (Useful for method-chaining.)
+     */
+    SimulatedDevice setFailures(double failureRate, Failure failure) {
+        this.failureRate = failureRate;
+        this.failure = failure;
+        return this;
+    }
+    
+    /**
+     * Registers the output of a command on this device only.
+     * @param commandLine The command line, or the name of the command to answer all its invocations.
+     * @param output The output.
+     * @param exitCode The exit code.
+     * @return This device. (Useful for method-chaining.)
+     */
+    SimulatedDevice reply(String commandLine, String output, int exitCode) {
+        replies.put(commandLine, new Reply(output, exitCode));
+        return this;
+    }
+    
+    /**
+     * Gets the filesystem of this device, served by the {@code sync:} service.
+     * @return The filesystem.
+     */
+    SimulatedFileSystem getFileSystem() { return fileSystem; }
+    
+    /**
+     * Gets the number of commands this device has received.
+     * @return The number of commands.
+     */
+    long getCommands() { return commands.get(); }
+    
+    /**
+     * Gets the number of commands which were failed on purpose.
+     * @return The number of injected failures.
+     */
+    long getFailures() { return failures.get(); }
+    //</editor-fold>
+    
+    boolean isOnline() { return "device".equals(state); }
+    
+    boolean isRooted() { return rooted; }
+    
+    boolean supportsShellV2() { return shellV2; }
+    
+    /**
+     * Forms this device's line in the output of {@code adb devices}.
+     * @param longFormat Set to {@code true} for the format of {@code adb devices -l}.
+     * @return The line, including its line terminator.
+     */
+    String describe(boolean longFormat) {
+        if (!longFormat) return serialNumber + "\t" + state + "\n";
+        return String.format("%-22s %s usb:1-%d product:%s model:%s device:%s transport_id:%d\n",
+                serialNumber, state, transportId, product, model, deviceName, transportId);
+    }
+    
+    /**
+     * Counts a command and decides whether it fails.
+     * @return The failure to inject, or {@code null} if the command succeeds.
+     */
+    Failure nextFailure() {
+        commands.incrementAndGet();
+        if (failureRate <= 0 || ThreadLocalRandom.current().nextDouble() >= failureRate) return null;
+        failures.incrementAndGet();
+        return failure;
+    }
+    
+    /**
+     * Waits for the latency of this device.
+     * @throws InterruptedException If the thread was interrupted while waiting.
+     */
+    void delay() throws InterruptedException {
+        long millis = latency + (jitter > 0 ? ThreadLocalRandom.current().nextLong(jitter + 1) : 0);
+        if (millis > 0) Thread.sleep(millis);
+    }
+    
+    /**
+     * Finds the reply to a command, first by its command line, then by its name;
+     * first on this device, then on the server.
+     * @param commandLine The command line.
+     * @return The reply. Unknown commands are answered like the shell would.
+     */
+    Reply resolve(String commandLine) {
+        String name = commandLine.trim().split("\\s+", 2)[0];
+        Reply reply = replies.get(commandLine);
+        if (reply == null) reply = server.getReply(commandLine);
+        if (reply == null) reply = replies.get(name);
+        if (reply == null) reply = server.getReply(name);
+        return reply != null ? reply : new Reply("/system/bin/sh: " + name + ": not found\n", 127);
+    }
+    
+}
@@ -0,0 +1,294 @@
+/*
+ * Copyright (C) 2016 Ca Softworks.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+package com.casoftworks.jdroidlib.android;
+
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.TreeMap;
+
+/**
+ * The filesystem of a {@link SimulatedDevice}, served by the {@link FakeAdbServer}'s
+ * {@code sync:} service, and listed by {@code ls -l} in the format of toybox.
+ * Only metadata is simulated: files have a size, but no content.
+ * Directories are created as needed when entries are added.
+ * @author simoncahill
+ */
+final class SimulatedFileSystem {
+    
+    /** The time all entries are created with, unless given (2016-05-02 14:21:07 UTC). */
+    static final long DEFAULT_TIME = 1462198867L;
+    
+    /** The format of times listed by {@code ls -l}; simulated devices are in UTC. */
+    private static final DateTimeFormatter LS_TIME = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm").withZone(ZoneOffset.UTC);
+    
+    /**
+     * A file, directory, link or device node.
+     */
+    static final class Node {
+        
+        final String name;
+        final int mode;
+        final long size;
+        final long time;
+        final String target;
+        final TreeMap<String, Node> children;
+        volatile boolean readable = true;
+        volatile String owner = "root";
+        volatile String group = "root";
+        
+        private Node(String name, int mode, long size, long time, String target) {
+            this.name = name;
+            this.mode = mode;
+            this.size = size;
+            this.time = time;
+            this.target = target;
+            this.children = (mode & FileEntry.S_IFMT) == FileEntry.S_IFDIR ? new TreeMap<>() : null;
+        }
+        
+        boolean isDirectory() { return children != null; }
+        
+    }
+    
+    private final Node root = new Node("/", FileEntry.S_IFDIR | 0755, 4096, DEFAULT_TIME, null);
+    
+    //<editor-fold defaultstate="collapsed" desc="Building the tree" >
+    /**
+     * Adds a directory, and any missing parent directories.
+     * @param path The absolute path.
+     * @return The directory.
+     */
+    synchronized Node addDirectory(String path) {
+        Node node = root;
+        for (String name : split(path)) {
+            Node child = node.children.get(name);
+            if (child == null) node.children.put(name, child = new Node(name, FileEntry.S_IFDIR | 0771, 4096, DEFAULT_TIME, null));
+            if (!child.isDirectory()) throw new IllegalArgumentException("Not a directory: " + path);
+            node = child;
+        }
+        return node;
+    }
+    
+    /**
+     * Adds a regular file.
+     * @param path The absolute path.
+     * @param size The size in bytes.
+     * @param time The time of the last modification, in seconds since the epoch.
+     * @return The file.
+     */
+    Node addFile(String path, long size, long time) { return add(path, FileEntry.S_IFREG | 0660, size, time, null); }
+    
+    /**
+     * Adds a symbolic link.
+     * @param path The absolute path.
+     * @param target The target of the link, absolute or relative to the link's directory.
+     * @return The link.
+     */
+    Node addSymlink(String path, String target) { return add(path, FileEntry.S_IFLNK | 0777, target.length(), DEFAULT_TIME, target); }
+    
+    /**
+     * Adds an entry of any type.
+     * @param path The absolute path.
+     * @param mode The Unix mode, including the type.
+     * @param size The size in bytes.
+     * @param time The time of the last modification, in seconds since the epoch.
+     * @param target The target of a link, or {@code null}.
+     * @return The entry.
+     */
+    synchronized Node add(String path, int mode, long size, long time, String target) {
+        List<String> names = split(path);
+        Node parent = addDirectory(join(names.subList(0, names.size() - 1)));
+        String name = names.get(names.size() - 1);
+        Node node = new Node(name, mode, size, time, target);
+        parent.children.put(name, node);
+        return node;
+    }
+    
+    /**
+     * Removes an entry, and everything below it.
+     * @param path The absolute path.
+     * @return {@code true} if the entry existed.
+     */
+    synchronized boolean remove(String path) {
+        List<String> names = split(path);
+        if (names.isEmpty()) return false;
+        Node parent = lookup(join(names.subList(0, names.size() - 1)), true);
+        return parent != null && parent.isDirectory() && parent.children.remove(names.get(names.size() - 1)) != null;
+    }
+    
+    /**
+     * Generates a tree of directories and files below a given directory.
+     * @param path The absolute path of the tree's root.
+     * @param depth The number of directory levels below the root.
+     * @param directories The number of subdirectories of each directory.
+     * @param files The number of files in each directory.
+     * @return The number of entries created.
+     */
+    synchronized int generate(String path, int depth, int directories, int files) {
+        addDirectory(path);
+        int created = 0;
+        for (int i = 0; i < files; i++) {
+            addFile(path + "/file" + i + ".dat", 1024L * (i + 1), DEFAULT_TIME + i);
+            created++;
+        }
+        if (depth > 0) {
+            for (int i = 0; i < directories; i++)
+                created += 1 + generate(path + "/dir" + i, depth - 1, directories, files);
+        }
+        return created;
+    }
+    //</editor-fold>
+    
+    /**
+     * Looks up an entry.
+     * @param path The absolute path.
+     * @param follow Set to {@code true} to follow a symbolic link at the end of the path.
+     * @return The entry, or {@code null} if it does not exist.
+     */
+    synchronized Node lookup(String path, boolean follow) {
+        return lookup(split(path), follow, 0);
+    }
+    
+    private Node lookup(List<String> names, boolean follow, int links) {
+        if (links > 8) return null;
+        Node node = root;
+        for (int i = 0; i < names.size(); i++) {
+            if (node == null || !node.isDirectory()) return null;
+            Node child = node.children.get(names.get(i));
+            if (child != null && child.target != null && (follow || i < names.size() - 1)) {
+                List<String> target = new ArrayList<>(child.target.startsWith("/") ? Collections.emptyList() : names.subList(0, i));
+                target.addAll(split(child.target));
+                child = lookup(target, true, links + 1);
+            }
+            node = child;
+        }
+        return node;
+    }
+    
+    /**
+     * Lists a directory.
+     * @param path The absolute path.
+     * @return The entries of the directory, or {@code null} if it is missing, not a directory or not readable.
+     */
+    synchronized List<Node> list(String path) {
+        Node node = lookup(path, true);
+        if (node == null || !node.isDirectory() || !node.readable) return null;
+        return new ArrayList<>(node.children.values());
+    }
+    
+    /**
+     * Checks whether any entries have been added.
+     * @return {@code true} if the root directory is empty.
+     */
+    synchronized boolean isEmpty() { return root.children.isEmpty(); }
+    
+    /**
+     * Runs {@code ls} on this filesystem, the way toybox does. Of the options,
+     * {@code -a}, {@code -A}, {@code -p} and {@code -F} are honoured; the output is always long.
+     * @param arguments The arguments of {@code ls}; the last one is the (optionally quoted) path.
+     * @return The output and exit code.
+     */
+    synchronized SimulatedDevice.Reply ls(String arguments) {
+        String[] args = arguments.trim().split("\\s+(?=(?:[^']*'[^']*')*[^']*$)");
+        String path = unquote(args[args.length - 1]);
+        boolean hidden = false, indicators = false, slashes = false;
+        for (int i = 0; i < args.length - 1; i++) {
+            hidden |= args[i].contains("a") || args[i].contains("A");
+            indicators |= args[i].contains("F");
+            slashes |= args[i].contains("p");
+        }
+        
+        Node node = lookup(path, true);
+        if (node == null) return new SimulatedDevice.Reply("ls: " + path + ": No such file or directory\n", 1);
+        StringBuilder output = new StringBuilder();
+        if (!node.isDirectory()) {
+            appendLine(output, lookup(path, false), path, indicators, slashes);
+            return new SimulatedDevice.Reply(output.toString(), 0);
+        }
+        if (!node.readable) return new SimulatedDevice.Reply("ls: " + path + ": Permission denied\n", 1);
+        
+        output.append("total ").append(node.children.size() * 4).append('\n');
+        for (Node child : node.children.values())
+            if (hidden || !child.name.startsWith(".")) appendLine(output, child, child.name, indicators, slashes);
+        return new SimulatedDevice.Reply(output.toString(), 0);
+    }
+    
+    /**
+     * Runs {@code rm -r} on this filesystem.
+     * @param argument The (optionally quoted) path.
+     * @return The output and exit code.
+     */
+    synchronized SimulatedDevice.Reply rm(String argument) {
+        String path = unquote(argument.trim());
+        return remove(path) ? new SimulatedDevice.Reply("", 0) : new SimulatedDevice.Reply("rm: " + path + ": No such file or directory\n", 1);
+    }
+    
+    /**
+     * Runs {@code mkdir -p} on this filesystem.
+     * @param argument The (optionally quoted) path.
+     * @return The output and exit code.
+     */
+    synchronized SimulatedDevice.Reply mkdir(String argument) {
+        String path = unquote(argument.trim());
+        try {
+            addDirectory(path);
+            return new SimulatedDevice.Reply("", 0);
+        } catch (IllegalArgumentException ex) {
+            return new SimulatedDevice.Reply("mkdir: '" + path + "': File exists\n", 1);
+        }
+    }
+    
+    private static String unquote(String argument) {
+        if (argument.length() < 2 || !argument.startsWith("'") || !argument.endsWith("'")) return argument;
+        return argument.substring(1, argument.length() - 1).replace("'\\''", "'");
+    }
+    
+    private static void appendLine(StringBuilder output, Node node, String name, boolean indicators, boolean slashes) {
+        int type = node.mode & FileEntry.S_IFMT;
+        output.append(type == FileEntry.S_IFDIR ? 'd' : type == FileEntry.S_IFLNK ? 'l' : type == FileEntry.S_IFCHR ? 'c'
+                : type == FileEntry.S_IFBLK ? 'b' : type == FileEntry.S_IFIFO ? 'p' : type == FileEntry.S_IFSOCK ? 's' : '-');
+        String permissions = "rwxrwxrwx";
+        for (int i = 0; i < 9; i++)
+            output.append((node.mode & (1 << (8 - i))) != 0 ? permissions.charAt(i) : '-');
+        output.append(' ').append(node.isDirectory() ? 2 + node.children.size() : 1)
+              .append(' ').append(node.owner).append(' ').append(node.group).append(' ');
+        if (type == FileEntry.S_IFCHR || type == FileEntry.S_IFBLK) output.append("1,   3");
+        else output.append(node.size);
+        output.append(' ').append(LS_TIME.format(Instant.ofEpochSecond(node.time))).append(' ').append(name);
+        if (node.target != null) output.append(" -> ").append(node.target);
+        else if (node.isDirectory() && (indicators || slashes)) output.append('/');
+        else if (type == FileEntry.S_IFREG && indicators && (node.mode & 0111) != 0) output.append('*');
+        output.append('\n');
+    }
+    
+    private static List<String> split(String path) {
+        List<String> names = new ArrayList<>();
+        for (String name : path.split("/"))
+            if (!name.isEmpty() && !name.equals(".")) names.add(name);
+        return names;
+    }
+    
+    private static String join(List<String> names) {
+        return "/" + String.join("/", names);
+    }
+    
+}
@@ -0,0 +1,188 @@
+/*
+ * Copyright (C) 2016 Ca Softworks.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+package com.casoftworks.jdroidlib.android;
+
+import com.casoftworks.jdroidlib.exception.AdbServerException;
+
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * A single connection to an ADB server's smart socket.
+ * Requests are sent as a four-digit hexadecimal length followed by the payload,
+ * and are answered with either {@code OKAY} or {@code FAIL} followed by a
+ * length-prefixed reason.
+ * Once a device service (e.g.: {@code shell:}) has been accepted, the connection
+ * carries the raw stream of that service until either side closes it.
+ * This class is package-private.
+ * @author simoncahill
+ */
+final class AdbConnection implements ShellSession.Channel {
+    
+    private final Socket socket;
+    private final DataInputStream in;
+    private final OutputStream out;
+    
+    /**
+     * Opens a new connection to an ADB server.
+     * @param host The host the ADB server is listening on.
+     * @param port The port the ADB server is listening on.
+     * @param connectTimeout The time (in ms) to wait for the connection to be established.
+     * @return The open connection.
+     * @throws IOException If the server could not be reached.
+     */
+    static AdbConnection open(String host, int port, int connectTimeout) throws IOException {
+        Socket socket = new Socket();
+        try {
+            socket.setTcpNoDelay(true);
+            socket.connect(new InetSocketAddress(host, port), connectTimeout);
+            return new AdbConnection(socket);
+        } catch (IOException ex) {
+            socket.close();
+            throw ex;
+        }
+    }
+    
+    private volatile CommandWatchdog.Timeout timeout = CommandWatchdog.NONE;
+    
+    private AdbConnection(Socket socket) throws IOException {
+        this.socket = socket;
+        this.in = new DataInputStream(new FilterInputStream(socket.getInputStream()) {
+            @Override
+            public int read() throws IOException {
+                try {
+                    int read = super.read();
+                    if (read < 0) timeout.throwIfExpired();
+                    return read;
+                } catch (IOException ex) {
+                    timeout.throwIfExpired();
+                    throw ex;
+                }
+            }
+            
+            @Override
+            public int read(byte[] buffer, int offset, int length) throws IOException {
+                try {
+                    int read = super.read(buffer, offset, length);
+                    if (read < 0) timeout.throwIfExpired();
+                    return read;
+                } catch (IOException ex) {
+                    timeout.throwIfExpired();
+                    throw ex;
+                }
+            }
+        });
+        this.out = socket.getOutputStream();
+    }
+    
+    /**
+     * Sends a request to the ADB server and waits for it to be accepted.
+     * @param request The request (e.g.: {@code host:transport:<serial>}).
+     * @throws AdbServerException If the server refused the request.
+     * @throws IOException If an error occurs while communicating with the server.
+     */
+    void send(String request) throws IOException {
+        byte[] payload = request.getBytes(StandardCharsets.UTF_8);
+        out.write(String.format("%04x", payload.length).getBytes(StandardCharsets.US_ASCII));
+        out.write(payload);
+        out.flush();
+        readStatus();
+    }
+    
+    /**
+     * Reads the status of the last request sent to the ADB server.
+     * @throws AdbServerException If the server answered with {@code FAIL}.
+     * @throws IOException If an error occurs while communicating with the server.
+     */
+    void readStatus() throws IOException {
+        String status = readString(4);
+        if ("OKAY".equals(status)) return;
+        if ("FAIL".equals(status)) throw new AdbServerException(readLengthPrefixed());
+        throw new AdbServerException("Unexpected response from ADB server: " + status);
+    }
+    
+    /**
+     * Reads a string prefixed with its length as four hexadecimal digits.
+     * This is how the ADB server answers host services such as {@code host:devices}.
+     * @return The string read.
+     * @throws IOException If an error occurs while communicating with the server.
+     */
+    String readLengthPrefixed() throws IOException {
+        String length = readString(4);
+        try {
+            return readString(Integer.parseInt(length, 16));
+        } catch (NumberFormatException ex) {
+            throw new AdbServerException("Invalid length received from ADB server: " + length);
+        }
+    }
+    
+    private String readString(int length) throws IOException {
+        byte[] buffer = new byte[length];
+        in.readFully(buffer);
+        return new String(buffer, StandardCharsets.UTF_8);
+    }
+    
+    /**
+     * Registers a deadline for this connection with the {@link CommandWatchdog}.
+     * Once the deadline has passed, the connection is closed, and reading from
+     * it fails with a {@link com.casoftworks.jdroidlib.exception.CommandTimeoutException}.
+     * The deadline is cancelled when the connection is closed.
+     * @param timeout The timeout in milliseconds. Values smaller than 1 disable the timeout.
+     */
+    void setDeadline(long timeout) {
+        this.timeout.cancel();
+        this.timeout = CommandWatchdog.getInstance().watch(timeout, (Closeable)this);
+    }
+    
+    /**
+     * Gets the stream from which the output of an accepted service can be read.
+     * @return The input stream of this connection.
+     */
+    @Override
+    public DataInputStream getInputStream() { return in; }
+    
+    /**
+     * Gets the stream to which the input of an accepted service can be written.
+     * @return The output stream of this connection.
+     */
+    @Override
+    public OutputStream getOutputStream() { return out; }
+    
+    /**
+     * Gets a value indicating whether this connection has been closed.
+     * @return {@code true} if this connection is closed.
+     */
+    boolean isClosed() { return socket.isClosed(); }
+    
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void close() throws IOException {
+        timeout.cancel();
+        socket.close();
+    }
+    
+}
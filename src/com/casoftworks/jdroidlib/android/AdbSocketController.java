@@ -0,0 +1,525 @@
+/*
+ * Copyright (C) 2016 Ca Softworks.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+package com.casoftworks.jdroidlib.android;
+
+import com.casoftworks.jdroidlib.exception.AdbServerException;
+import com.casoftworks.jdroidlib.interfaces.ICommand;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * AdbSocketController class. Extends {@link com.casoftworks.jdroidlib.android.Controller}.
+ * This controller talks directly to the ADB server's smart socket (usually
+ * localhost:5037) instead of spawning the ADB binary for every command.
+ * Shell commands are sent via {@code host:transport:<serial>} followed by
+ * {@code shell:}, {@code exec-out} via {@code exec:}, and the most common
+ * host commands ({@code devices}, {@code version}, {@code kill-server},
+ * {@code get-state}, {@code get-serialno}) are mapped to their host services.
+ * Devices advertising the {@code shell_v2} feature run shell commands via the
+ * framed {@code shell,v2} service, which reports error output and exit codes
+ * separately; older devices have the exit code echoed after the command.
+ * Commands which cannot be expressed as an ADB server service are passed on
+ * to a fallback controller, if one is set.
+ * @author simoncahill
+ */
+public final class AdbSocketController extends Controller {
+    
+    /** The host the ADB server listens on by default. */
+    public static final String DEFAULT_HOST = "127.0.0.1";
+    
+    /** The port the ADB server listens on by default. */
+    public static final int DEFAULT_PORT = 5037;
+    
+    /** Marker echoed after a shell command to carry its exit code. */
+    static final String EXIT_CODE_MARKER = ":JDROIDLIB_EXIT:";
+    
+    private final String host;
+    private final int port;
+    private final Controller fallback;
+    private volatile int connectTimeout = 2000;
+    private final ConcurrentHashMap<String, String> features = new ConcurrentHashMap<>();
+    
+    /**
+     * Creates a new controller which talks to the ADB server at the given address.
+     * Commands which cannot be sent to the ADB server will fail with an {@link IOException}.
+     * @param host The host the ADB server is listening on.
+     * @param port The port the ADB server is listening on.
+     */
+    public AdbSocketController(String host, int port) { this(host, port, null); }
+    
+    /**
+     * Creates a new controller which talks to the ADB server at the given address.
+     * @param host The host the ADB server is listening on.
+     * @param port The port the ADB server is listening on.
+     * @param fallback The controller to use for commands which cannot be sent
+     *                 to the ADB server. May be {@code null}.
+     */
+    AdbSocketController(String host, int port, Controller fallback) {
+        super(fallback == null ? null : fallback.executable);
+        this.host = host;
+        this.port = port;
+        this.fallback = fallback;
+    }
+    
+    /**
+     * Gets the host of the ADB server this controller talks to.
+     * @return The host.
+     */
+    public String getHost() { return host; }
+    
+    /**
+     * Gets the port of the ADB server this controller talks to.
+     * @return The port.
+     */
+    public int getPort() { return port; }
+    
+    /**
+     * Sets the time (in ms) to wait for a connection to the ADB server.
+     * @param connectTimeout The timeout in milliseconds. Default is 2000.
+     */
+    public void setConnectTimeout(int connectTimeout) { this.connectTimeout = connectTimeout; }
+    
+    /**
+     * Gets the time (in ms) to wait for a connection to the ADB server.
+     * @return The timeout in milliseconds.
+     */
+    public int getConnectTimeout() { return connectTimeout; }
+    
+    /**
+     * Gets a value indicating whether a given command can be sent to the ADB
+     * server directly, without spawning the ADB binary.
+     * @param cmd The command to check.
+     * @return {@code true} if the command can be sent to the ADB server.
+     */
+    public boolean supports(ICommand cmd) { return Service.resolve(cmd, false) != null; }
+    
+    //<editor-fold defaultstate="collapsed" desc="Methods implemented from Controller" >
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String executeCommandReturnOutput(ICommand cmd) throws IOException, InterruptedException {
+        Service service = Service.resolve(cmd, false);
+        if (service == null)
+            return fallback().executeCommandReturnOutput(cmd);
+        
+        try (CommandMetrics.Sample sample = CommandMetrics.getInstance().start(cmd);
+             AdbConnection connection = open(service, cmd, sample)) {
+            String output;
+            if (service.lengthPrefixed)
+                output = readOutput(new StringReader(readLengthPrefixed(connection, sample)));
+            else output = service.hasOutput ? readOutput(sample.count(connection.getInputStream())) : "";
+            sample.finished(service.transport == null ? 0 : -1);
+            return output;
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     * The exit code of shell commands is reported by the {@code shell,v2}
+     * service, or carried back by echoing it after the command has finished.
+     * Host commands return 0 if the ADB server accepted them, and 1 if the ADB
+     * server refused them, as the ADB binary would.
+     */
+    @Override
+    public int executeCommandReturnExitCode(ICommand cmd) throws IOException, InterruptedException {
+        Service service = Service.resolve(cmd, true);
+        if (service == null)
+            return fallback().executeCommandReturnExitCode(cmd);
+        if (service.reportsExitCode && supportsShellV2(((AndroidCommand)cmd).getDevice()))
+            return executeCommandReturnResult(cmd).getExitCode();
+        
+        try (CommandMetrics.Sample sample = CommandMetrics.getInstance().start(cmd)) {
+            int exitCode = 0;
+            try (AdbConnection connection = open(service, cmd, sample)) {
+                if (service.lengthPrefixed)
+                    readLengthPrefixed(connection, sample);
+                else if (service.hasOutput) {
+                    String output = readOutput(sample.count(connection.getInputStream()));
+                    if (service.reportsExitCode) exitCode = parseExitCode(output);
+                }
+            } catch (AdbServerException ex) {
+                exitCode = 1;
+            }
+            sample.finished(exitCode);
+            return exitCode;
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     * Shell commands are run via the {@code shell,v2} service if the device
+     * supports it; otherwise, the error output is part of the output, and the
+     * exit code is echoed after the command has finished.
+     * Host commands the ADB server refused return the reason as their error
+     * output, and an exit code of 1.
+     */
+    @Override
+    public CommandResult executeCommandReturnResult(ICommand cmd) throws IOException, InterruptedException {
+        Service service = Service.resolve(cmd, true);
+        if (service == null)
+            return fallback().executeCommandReturnResult(cmd);
+        
+        try (CommandMetrics.Sample sample = CommandMetrics.getInstance().start(cmd)) {
+            CommandResult result;
+            try {
+                if (service.reportsExitCode && supportsShellV2(((AndroidCommand)cmd).getDevice())) {
+                    try (AdbConnection connection = open(Service.resolveShellV2((AndroidCommand)cmd), cmd, sample)) {
+                        result = ShellProtocol.read(sample.count(connection.getInputStream()));
+                    }
+                } else {
+                    try (AdbConnection connection = open(service, cmd, sample)) {
+                        if (service.lengthPrefixed)
+                            result = new CommandResult(readOutput(new StringReader(readLengthPrefixed(connection, sample))), 0);
+                        else {
+                            String output = service.hasOutput ? readOutput(sample.count(connection.getInputStream())) : "";
+                            result = service.reportsExitCode ?
+                                    new CommandResult(stripExitCode(output), parseExitCode(output)) : new CommandResult(output, 0);
+                        }
+                    }
+                }
+            } catch (AdbServerException ex) {
+                result = new CommandResult("", ex.getMessage(), 1);
+            }
+            sample.finished(result.getExitCode());
+            return result;
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void executeCommand(ICommand cmd) throws IOException, InterruptedException {
+        Service service = Service.resolve(cmd, false);
+        if (service == null) {
+            fallback().executeCommand(cmd);
+            return;
+        }
+        
+        try (CommandMetrics.Sample sample = CommandMetrics.getInstance().start(cmd);
+             AdbConnection connection = open(service, cmd, sample)) {
+            if (service.lengthPrefixed)
+                readLengthPrefixed(connection, sample);
+            else if (service.hasOutput)
+                readOutput(sample.count(connection.getInputStream()));
+            sample.finished(service.transport == null ? 0 : -1);
+        }
+    }
+    
+    /**
+     * {@inheritDoc}
+     * Closing the stream closes the connection to the ADB server, which ends
+     * the service on the device.
+     */
+    @Override
+    InputStream openOutput(ICommand cmd) throws IOException {
+        Service service = Service.resolve(cmd, false);
+        if (service == null)
+            return fallback().openOutput(cmd);
+        
+        CommandMetrics.Sample sample = CommandMetrics.getInstance().startStreaming(cmd);
+        AdbConnection connection;
+        try {
+            connection = open(service, cmd, sample);
+        } catch (IOException | RuntimeException ex) {
+            sample.close();
+            throw ex;
+        }
+        if (service.hasOutput && !service.lengthPrefixed)
+            return new FilterInputStream(sample.count(connection.getInputStream())) {
+                @Override
+                public void close() throws IOException {
+                    try {
+                        connection.close();
+                    } finally {
+                        sample.finished(-1);
+                        sample.close();
+                    }
+                }
+            };
+        
+        try (CommandMetrics.Sample closingSample = sample; AdbConnection closing = connection) {
+            InputStream output = new ByteArrayInputStream(service.lengthPrefixed ?
+                    readLengthPrefixed(closing, closingSample).getBytes(StandardCharsets.UTF_8) : new byte[0]);
+            closingSample.finished(0);
+            return output;
+        }
+    }
+    
+    /**
+     * {@inheritDoc}
+     * The sync service is opened via the ADB server's {@code sync:} service.
+     */
+    @Override
+    SyncProtocol openSync(Device device) throws IOException {
+        boolean statV2 = supportsFeature(device, SyncProtocol.FEATURE_STAT_V2);
+        AdbConnection connection = AdbConnection.open(host, port, connectTimeout);
+        CommandExecutor.closeOnCancel(connection);
+        try {
+            connection.send(Service.transport(device));
+            connection.send("sync:");
+            return new SyncProtocol(connection, statV2);
+        } catch (IOException ex) {
+            connection.close();
+            throw ex;
+        }
+    }
+    
+    /**
+     * {@inheritDoc}
+     * The shell is opened via the ADB server's {@code shell:} service.
+     */
+    @Override
+    ShellSession.Channel openShell(Device device) throws IOException {
+        AdbConnection connection = AdbConnection.open(host, port, connectTimeout);
+        try {
+            connection.send("host:transport:" + device.getSerialNumber());
+            connection.send("shell:");
+            return connection;
+        } catch (IOException ex) {
+            connection.close();
+            throw ex;
+        }
+    }
+    //</editor-fold>
+    
+    /**
+     * Opens a connection to the ADB server and sends the requests needed for a
+     * given service. The connection is closed if the task running the command is cancelled.
+     * @param service The service to open.
+     * @param cmd The command the service was resolved from.
+     * @param sample The sample the command is reported to, once the service has been accepted.
+     * @return The connection, positioned at the start of the service's output.
+     * @throws IOException If the ADB server could not be reached or refused the service.
+     */
+    AdbConnection open(Service service, ICommand cmd, CommandMetrics.Sample sample) throws IOException {
+        AdbConnection connection = AdbConnection.open(host, port, connectTimeout);
+        CommandExecutor.closeOnCancel(connection);
+        try {
+            connection.setDeadline(cmd.getTimeout());
+            if (service.transport != null)
+                connection.send(service.transport);
+            connection.send(service.request);
+            sample.started();
+            return connection;
+        } catch (IOException ex) {
+            connection.close();
+            throw ex;
+        }
+    }
+    
+    /**
+     * Reads the length-prefixed answer of a host service, and reports it to a sample.
+     * @param connection The connection to read from.
+     * @param sample The sample of the command.
+     * @return The answer.
+     * @throws IOException If reading from the connection failed.
+     */
+    private static String readLengthPrefixed(AdbConnection connection, CommandMetrics.Sample sample) throws IOException {
+        String answer = connection.readLengthPrefixed();
+        sample.read(4 + answer.length());
+        return answer;
+    }
+    
+    /**
+     * Gets a value indicating whether a given device supports the {@code shell,v2}
+     * service.
+     * @param device The device, or {@code null} for the only connected device.
+     * @return {@code true} if the device supports the {@code shell,v2} service.
+     * @throws IOException If the ADB server could not be reached.
+     */
+    boolean supportsShellV2(Device device) throws IOException { return supportsFeature(device, ShellProtocol.FEATURE); }
+    
+    /**
+     * Gets a value indicating whether a given device advertises a given feature
+     * (e.g.: {@code shell_v2}). The device's feature list is queried once and remembered.
+     * If the query is refused (e.g.: because the device is briefly offline, or the
+     * ADB server is too old to report feature lists), the device is treated as not
+     * supporting any feature, and the list is queried again next time.
+     * @param device The device, or {@code null} for the only connected device.
+     * @param feature The feature.
+     * @return {@code true} if the device supports the feature.
+     * @throws IOException If the ADB server could not be reached.
+     */
+    boolean supportsFeature(Device device, String feature) throws IOException {
+        String serial = device == null ? "" : device.getSerialNumber();
+        String list = features.get(serial);
+        if (list == null) {
+            try (AdbConnection connection = AdbConnection.open(host, port, connectTimeout)) {
+                connection.send(device == null ? "host:features" : "host-serial:" + serial + ":features");
+                list = connection.readLengthPrefixed();
+            } catch (AdbServerException ex) {
+                return false;
+            }
+            features.put(serial, list);
+        }
+        
+        for (String supported : list.split(","))
+            if (feature.equals(supported.trim())) return true;
+        return false;
+    }
+    
+    private Controller fallback() throws IOException {
+        if (fallback == null)
+            throw new IOException("The command cannot be sent to the ADB server and no fallback is available.");
+        return fallback;
+    }
+    
+    /**
+     * Extracts the exit code echoed after a shell command.
+     * @param output The output of the command, including the marker line.
+     * @return The exit code, or -1 if the marker could not be found.
+     * @throws IOException Never thrown, as the output is held in memory.
+     */
+    static int parseExitCode(String output) throws IOException {
+        int exitCode = -1;
+        String line;
+        try (BufferedReader reader = new BufferedReader(new StringReader(output))) {
+            while ((line = reader.readLine()) != null) {
+                int index = line.lastIndexOf(EXIT_CODE_MARKER);
+                if (index < 0) continue;
+                try {
+                    exitCode = Integer.parseInt(line.substring(index + EXIT_CODE_MARKER.length()).trim());
+                } catch (NumberFormatException ex) { exitCode = -1; }
+            }
+        }
+        return exitCode;
+    }
+    
+    /**
+     * Removes the exit code echoed after a shell command from its output.
+     * @param output The output of the command, including the marker line.
+     * @return The output of the command alone.
+     */
+    static String stripExitCode(String output) {
+        int index = output.lastIndexOf(EXIT_CODE_MARKER);
+        if (index < 0) return output;
+        String head = output.substring(0, index);
+        return head.endsWith("\n") ? head.substring(0, head.length() - 1) : head;
+    }
+    
+    /**
+     * Joins a command and its arguments in to a single command line, the same
+     * way the ADB binary does.
+     * @param command The command.
+     * @param args The arguments of the command.
+     * @return The command line.
+     */
+    static String joinCommandLine(String command, List<String> args) {
+        StringBuilder builder = new StringBuilder(command);
+        for (String arg : args)
+            builder.append(' ').append(arg);
+        return builder.toString();
+    }
+    
+    /**
+     * Describes how a command is sent to the ADB server.
+     */
+    static final class Service {
+        
+        /** The transport request to send first, or {@code null} for host services. */
+        final String transport;
+        /** The service request. */
+        final String request;
+        /** Whether the answer is a single length-prefixed string. */
+        final boolean lengthPrefixed;
+        /** Whether the service produces any output after being accepted. */
+        final boolean hasOutput;
+        /** Whether the service reports the exit code of the command, framed or via the exit code marker. */
+        final boolean reportsExitCode;
+        
+        private Service(String transport, String request, boolean lengthPrefixed, boolean hasOutput, boolean reportsExitCode) {
+            this.transport = transport;
+            this.request = request;
+            this.lengthPrefixed = lengthPrefixed;
+            this.hasOutput = hasOutput;
+            this.reportsExitCode = reportsExitCode;
+        }
+        
+        /**
+         * Resolves the ADB server service for a given command.
+         * @param cmd The command to resolve.
+         * @param withExitCode Set to {@code true} to have shell commands echo their exit code.
+         * @return The service, or {@code null} if the command cannot be sent to the ADB server.
+         */
+        static Service resolve(ICommand cmd, boolean withExitCode) {
+            if (!(cmd instanceof AndroidCommand)) return null;
+            AndroidCommand command = (AndroidCommand)cmd;
+            Device device = command.getDevice();
+            List<String> args = command.getArgs();
+            String transport = transport(device);
+            
+            if (command.isShellCommand()) {
+                String commandLine = shellCommandLine(command);
+                if (withExitCode)
+                    commandLine = commandLine + "; echo " + EXIT_CODE_MARKER + "$?";
+                return new Service(transport, "shell:" + commandLine, false, true, withExitCode);
+            }
+            
+            String prefix = device == null ? "host:" : "host-serial:" + device.getSerialNumber() + ":";
+            switch (command.getCommand()) {
+                case "devices":
+                    return device != null ? null :
+                            new Service(null, args.contains("-l") ? "host:devices-l" : "host:devices", true, true, false);
+                case "version":
+                    return device != null ? null : new Service(null, "host:version", true, true, false);
+                case "kill-server":
+                    return device != null ? null : new Service(null, "host:kill", false, false, false);
+                case "get-state":
+                    return new Service(null, prefix + "get-state", true, true, false);
+                case "get-serialno":
+                    return new Service(null, prefix + "get-serialno", true, true, false);
+                case "exec-out":
+                    return args.isEmpty() ? null :
+                            new Service(transport, "exec:" + joinCommandLine(args.get(0), args.subList(1, args.size())), false, true, false);
+                default:
+                    return null;
+            }
+        }
+        
+        /**
+         * Resolves the {@code shell,v2} service for a given shell command.
+         * @param command The shell command to resolve.
+         * @return The service.
+         */
+        static Service resolveShellV2(AndroidCommand command) {
+            return new Service(transport(command.getDevice()), ShellProtocol.request(shellCommandLine(command)), false, true, true);
+        }
+        
+        static String transport(Device device) {
+            return device == null ? "host:transport-any" : "host:transport:" + device.getSerialNumber();
+        }
+        
+        private static String shellCommandLine(AndroidCommand command) {
+            String commandLine = joinCommandLine(command.getCommand(), command.getArgs());
+            return command.runAsRoot() ? "su " + commandLine : commandLine;
+        }
+        
+    }
+    
+}
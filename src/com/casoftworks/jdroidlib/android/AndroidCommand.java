@@ -40,6 +40,7 @@ public final class AndroidCommand implements ICommand {
     private boolean _runAsRoot;
     private final boolean _isShellCmd;
     private long timeout = -1;
+    private CommandPriority priority = CommandPriority.NORMAL;
     
     /**
      * Forms a new AndroidCommand which can be executed with JDroidLib.
@@ -51,7 +52,7 @@ public final class AndroidCommand implements ICommand {
      */
     public static AndroidCommand formAndroidCommand(Device device, String executable, List<String> args) {
         return new AndroidCommand(
-                executable, false, false, device, (String[])args.toArray()
+                executable, false, false, device, args.toArray(new String[args.size()])
         );
     }
     
@@ -97,7 +98,7 @@ public final class AndroidCommand implements ICommand {
                 executable,
                 true, suPrivilege,
                 device, 
-                (String[])args.toArray()
+                args.toArray(new String[args.size()])
         );
     }
     
@@ -234,4 +235,22 @@ public final class AndroidCommand implements ICommand {
     public String getCommand() {
         return this._command;
     }
+    
+    /**
+     * Sets the priority this command is scheduled with, when its device is busy.
+     * @param priority The priority. Default is {@link CommandPriority#NORMAL}.
+     */
+    public void setPriority(CommandPriority priority) { this.priority = priority; }
+    
+    /**
+     * Gets the priority this command is scheduled with, when its device is busy.
+     * @return The priority of this command.
+     */
+    public CommandPriority getPriority() { return priority; }
+    
+    /**
+     * Gets the device this command will be executed on.
+     * @return The device, or {@code null} if this command is run directly within the ADB.
+     */
+    public Device getDevice() { return _device; }
 }
@@ -19,17 +19,22 @@
 package com.casoftworks.jdroidlib.android;
 
 import com.casoftworks.jdroidlib.interfaces.ICommand;
+import com.casoftworks.jdroidlib.interfaces.IDeviceListener;
+import com.casoftworks.jdroidlib.interfaces.IOutputHandler;
 import java.io.BufferedReader;
 
+import java.io.File;
+import java.io.FilterInputStream;
 import java.io.IOException;
-import java.io.InputStreamReader;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.io.StringReader;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.ExecutionException;
-import java.util.concurrent.Future;
-import java.util.concurrent.FutureTask;
-import java.util.concurrent.TimeUnit;
 
 /**
  * AndroidController class. Extends {@link com.casoftworks.jdroidlib.android.Controller}.
@@ -44,30 +49,234 @@ public final class AndroidController extends Controller {
     
     //<editor-fold defaultstate="collapsed" desc="Singleton Stuff" >
     /** Contains the singleton instance of this class. */
-    private static AndroidController instance;
+    private static volatile AndroidController instance;
 
     /**
      * Singleton method.
      * If necessary, spawns a new instance of the {@link com.casoftworks.jdroidlib.android.AndroidController} class.
+     * Safe to call from any number of threads; only one instance is ever created.
      * @return Returns the instance of this class.
      * @throws IOException  This exception is thrown,
      *                      if something goes wrong during the initialisation
      *                      of JDroidLib.
      */
     public static AndroidController getInstance() throws IOException {
-        return instance == null ? instance = new AndroidController() : instance;
+        AndroidController controller = instance;
+        if (controller != null) return controller;
+        synchronized (AndroidController.class) {
+            if (instance == null) instance = new AndroidController();
+            return instance;
+        }
     }
     //</editor-fold>
     
-    private List<Device> deviceList;
+    /** All devices known, by serial number. */
+    private final DeviceRegistry devices = new DeviceRegistry();
+    
+    /** Keep the device list up to date, one for each ADB server, while device tracking is enabled. */
+    private volatile List<DeviceTracker> deviceTrackers;
+    
+    /** Notified of changes to the device list. */
+    private final List<IDeviceListener> deviceListeners = new CopyOnWriteArrayList<>();
+    
+    /** Spawns the ADB binary for each command. Always available as a fallback. */
+    private final ProcessController processController;
+    
+    /** The controller commands are currently passed on to, unless their device is connected to another ADB server. */
+    private volatile Controller transport;
+    
+    /** The ADB servers in use, in the order they were given. Empty while the ADB binary is used. */
+    private volatile List<AdbSocketController> adbServers = Collections.emptyList();
+    
+    /** Decides when commands may start. */
+    private final CommandScheduler scheduler = new CommandScheduler();
+    
+    /** Holds the output of idempotent queries. */
+    private final ResultCache resultCache = new ResultCache();
+    
+    /** The maximum number of shell sessions per device and kind. 0 disables sessions. */
+    private volatile int maxShellSessions = 0;
     
     /**
      * Default constructor for this class.
      * This constructor can not be called by any other members, than the 
      * singleton function in this class.
+     * The ADB binary is only extracted once the first command spawns it, so
+     * JDroidLib can talk to an ADB server without extracting it at all.
      * @throws IOException 
      */
-    private AndroidController() throws IOException { super(); }
+    private AndroidController() throws IOException {
+        super((File)null);
+        processController = new ProcessController((File)null);
+        transport = processController;
+    }
+    
+    //<editor-fold defaultstate="collapsed" desc="Transport selection" >
+    /**
+     * Sends all commands which can be expressed as an ADB server service
+     * directly to the ADB server's smart socket, instead of spawning the ADB
+     * binary for each of them.
+     * All other commands are still executed by spawning the ADB binary, which
+     * is pointed at the same server via {@code ADB_SERVER_SOCKET}.
+     * The ADB server must already be running (e.g.: by calling {@code adb start-server}).
+     * @param host The host the ADB server is listening on.
+     * @param port The port the ADB server is listening on.
+     */
+    public void useAdbServer(String host, int port) {
+        useAdbServers(Collections.singletonList(new AdbSocketController(host, port, new ProcessController(null, "tcp:" + host + ":" + port))));
+    }
+    
+    /**
+     * Spreads the devices over several ADB servers, e.g.: one for each USB hub
+     * of a rack, each started with its own port
+     * ({@code adb -P 5038 start-server}, or {@code ADB_SERVER_SOCKET=tcp:localhost:5038}).
+     * {@link #getDevices()} lists the devices of all servers. Each device
+     * belongs to the server which listed it, and all its commands are sent to
+     * that server; commands without a device (e.g.: {@code version}) go to the
+     * first server.
+     * Commands which cannot be expressed as an ADB server service spawn the
+     * ADB binary with {@code ADB_SERVER_SOCKET} pointing at the device's server.
+     * @param serverSockets The sockets of the ADB servers, in the syntax of
+     *                      {@code ADB_SERVER_SOCKET} ({@code tcp:<host>:<port>}),
+     *                      or as {@code <host>:<port>}, or as {@code <port>} on localhost.
+     * @throws IllegalArgumentException If a socket is malformed, or none is given.
+     * @see Device#getShard() 
+     */
+    public void useAdbServers(String... serverSockets) {
+        if (serverSockets.length == 0) throw new IllegalArgumentException("At least one ADB server is required.");
+        List<AdbSocketController> servers = new ArrayList<>(serverSockets.length);
+        for (String serverSocket : serverSockets) {
+            String address = serverSocket.startsWith("tcp:") ? serverSocket.substring("tcp:".length()) : serverSocket;
+            int index = address.lastIndexOf(':');
+            String host = index < 0 ? AdbSocketController.DEFAULT_HOST : address.substring(0, index);
+            int port;
+            try {
+                port = Integer.parseInt(address.substring(index + 1));
+            } catch (NumberFormatException ex) {
+                throw new IllegalArgumentException("Invalid ADB server socket: " + serverSocket);
+            }
+            if (host.startsWith("[") && host.endsWith("]")) host = host.substring(1, host.length() - 1);
+            servers.add(new AdbSocketController(host, port, new ProcessController(null, "tcp:" + address)));
+        }
+        useAdbServers(servers);
+    }
+    
+    /**
+     * Gets the ADB servers commands are sent to.
+     * @return The ADB servers, in the order they were given; empty while the ADB binary is used.
+     */
+    public List<AdbSocketController> getAdbServers() { return adbServers; }
+    
+    /**
+     * Replaces the ADB servers in use. Devices of servers which are no longer
+     * used are disconnected.
+     * @param servers The ADB servers; empty to use the ADB binary.
+     */
+    private synchronized void useAdbServers(List<AdbSocketController> servers) {
+        stopDeviceTracking();
+        adbServers = Collections.unmodifiableList(servers);
+        transport = servers.isEmpty() ? processController : servers.get(0);
+        notifyListeners(devices.retainShards(Math.max(1, servers.size())));
+    }
+    
+    /**
+     * Sends all commands which can be expressed as an ADB server service
+     * directly to the ADB server listening on localhost:5037.
+     * @see #useAdbServer(java.lang.String, int) 
+     */
+    public void useAdbServer() { useAdbServer(AdbSocketController.DEFAULT_HOST, AdbSocketController.DEFAULT_PORT); }
+    
+    /**
+     * Executes all commands by spawning the ADB binary. This is the default.
+     */
+    public void useAdbBinary() { useAdbServers(Collections.<AdbSocketController>emptyList()); }
+    
+    /**
+     * Gets a value indicating whether commands are sent to the ADB server directly.
+     * @return {@code true} if commands are sent to the ADB server's smart socket.
+     */
+    public boolean isUsingAdbServer() { return transport instanceof AdbSocketController; }
+    
+    /**
+     * Gets the controller a command is passed on to: the ADB server its device
+     * is connected to.
+     * @param cmd The command.
+     * @return The controller.
+     */
+    private Controller route(ICommand cmd) {
+        return cmd instanceof AndroidCommand ? route(((AndroidCommand)cmd).getDevice()) : transport;
+    }
+    
+    /**
+     * Gets the controller the commands of a device are passed on to.
+     * @param device The device, or {@code null} for commands without a device.
+     * @return The controller.
+     */
+    private Controller route(Device device) {
+        List<AdbSocketController> servers = adbServers;
+        int shard = device == null ? 0 : device.getShard();
+        return shard > 0 && shard < servers.size() ? servers.get(shard) : transport;
+    }
+    
+    /**
+     * Runs shell commands in persistent shell sessions instead of starting a
+     * new shell for each command.
+     * Each device keeps up to the given number of interactive shells, and as
+     * many root shells, open. Root shells enter {@code su} only once, which
+     * greatly speeds up bursts of commands on rooted devices.
+     * Broken sessions are replaced automatically.
+     * Commands run in a session have their input redirected from
+     * {@code /dev/null}; interactive programs are not supported.
+     * @param maxSessionsPerDevice The maximum number of sessions of each kind
+     *                             per device. Set to 0 to disable sessions.
+     */
+    public void useShellSessions(int maxSessionsPerDevice) {
+        maxShellSessions = Math.max(0, maxSessionsPerDevice);
+        if (maxShellSessions == 0)
+            devices.getDevices().forEach(Device::closeShellSessions);
+    }
+    
+    /**
+     * Gets a value indicating whether shell commands are run in persistent shell sessions.
+     * @return {@code true} if shell sessions are enabled.
+     */
+    public boolean isUsingShellSessions() { return maxShellSessions > 0; }
+    //</editor-fold>
+    
+    /**
+     * Sets the limits used to schedule commands.
+     * Commands beyond a device's limit wait in that device's queue, and are
+     * started by their {@link CommandPriority} once the device has a free slot.
+     * Free slots of the global limit are handed to waiting devices
+     * round-robin, so a single busy device cannot starve all others.
+     * Defaults are 64 commands overall, 4 per device, and 256 waiting per device.
+     * @param maxRunning The maximum number of commands running at the same time, for all devices together.
+     * @param maxRunningPerDevice The maximum number of commands running at the same time on a single device.
+     * @param maxQueuedPerDevice The maximum number of commands waiting for a single device.
+     *                           Further commands fail with a
+     *                           {@link com.casoftworks.jdroidlib.exception.CommandRejectedException}.
+     */
+    public void setSchedulingLimits(int maxRunning, int maxRunningPerDevice, int maxQueuedPerDevice) {
+        scheduler.setLimits(maxRunning, maxRunningPerDevice, maxQueuedPerDevice);
+    }
+    
+    /**
+     * Gets the cache holding the output of idempotent device queries.
+     * Configure a time to live for a command class to have its output served
+     * from memory, e.g.: {@code getResultCache().setTimeToLive("dumpsys battery", 1000)}.
+     * Nothing is cached by default.
+     * @return The result cache.
+     */
+    public ResultCache getResultCache() { return resultCache; }
+    
+    /**
+     * Gets the registry of the metrics recorded for every command executed,
+     * tagged by device serial and command name.
+     * The metrics are also available through JMX, under the domain
+     * {@value CommandMetrics#JMX_DOMAIN}.
+     * @return The metrics registry.
+     */
+    public CommandMetrics getMetrics() { return CommandMetrics.getInstance(); }
     
     //<editor-fold defaultstate="collapsed" desc="Methods implemented from Controller" >
     /**
@@ -75,21 +284,31 @@ public final class AndroidController extends Controller {
      */
     @Override
     public String executeCommandReturnOutput(ICommand cmd) throws IOException, InterruptedException {
-        StringBuilder output = new StringBuilder();
-        ProcessBuilder process = cmd.buildProcess();
-        Process pr = process.start();
-        String line;
-        
-        try (BufferedReader reader = new BufferedReader(new InputStreamReader(pr.getInputStream()))) {
-            while ((line = reader.readLine()) != null)
-                output.append(line);
-        } catch (IOException ex) {
-            System.err.println("An error has occurred within JDroidLib!");
-            ex.printStackTrace(System.err);
-            throw ex;
+        if (resultCache.getTimeToLive(cmd) > 0) {
+            String output = resultCache.get(cmd);
+            if (output == null)
+                resultCache.put(cmd, output = executeUncached(cmd));
+            return output;
+        }
+        return executeUncached(cmd);
+    }
+    
+    /**
+     * Executes a command, bypassing the result cache.
+     * @param cmd The command to be executed.
+     * @return The full output of the command.
+     * @throws IOException
+     * @throws InterruptedException 
+     */
+    private String executeUncached(ICommand cmd) throws IOException, InterruptedException {
+        CommandScheduler.Ticket ticket = scheduler.acquire(cmd);
+        try {
+            if (runsInSession(cmd))
+                return readOutput(new StringReader(executeInSession((AndroidCommand)cmd).getOutput()));
+            return route(cmd).executeCommandReturnOutput(cmd);
+        } finally {
+            scheduler.release(ticket);
         }
-        pr.waitFor(cmd.getTimeout(), TimeUnit.MILLISECONDS);
-        return output.toString();
     }
 
     /**
@@ -97,15 +316,13 @@ public final class AndroidController extends Controller {
      */
     @Override
     public int executeCommandReturnExitCode(ICommand cmd) throws IOException, InterruptedException {
+        CommandScheduler.Ticket ticket = scheduler.acquire(cmd);
         try {
-            Process pr = cmd.buildProcess().start();
-            if (pr.waitFor(cmd.getTimeout(), TimeUnit.MILLISECONDS))
-                return pr.exitValue();
-            else return -1;
-        } catch (IOException | InterruptedException ex) {
-            System.err.println("An error has occurred within JDroidLib!");
-            ex.printStackTrace(System.err);
-            throw ex;
+            if (runsInSession(cmd))
+                return executeInSession((AndroidCommand)cmd).getExitCode();
+            return route(cmd).executeCommandReturnExitCode(cmd);
+        } finally {
+            scheduler.release(ticket);
         }
     }
 
@@ -114,115 +331,216 @@ public final class AndroidController extends Controller {
      */
     @Override
     public void executeCommand(ICommand cmd) throws IOException, InterruptedException {
-        Process pr = cmd.buildProcess().start();
-        pr.waitFor(cmd.getTimeout(), TimeUnit.MILLISECONDS);
+        CommandScheduler.Ticket ticket = scheduler.acquire(cmd);
+        try {
+            if (runsInSession(cmd))
+                executeInSession((AndroidCommand)cmd);
+            else route(cmd).executeCommand(cmd);
+        } finally {
+            scheduler.release(ticket);
+        }
     }
-
-    private IOException executeCommandReturnNoOutputAsyncIOException;
+    
+    /**
+     * {@inheritDoc}
+     * Results never come from shell sessions, as sessions merge the error
+     * output in to the output; nor are they cached.
+     */
+    @Override
+    public CommandResult executeCommandReturnResult(ICommand cmd) throws IOException, InterruptedException {
+        CommandScheduler.Ticket ticket = scheduler.acquire(cmd);
+        try {
+            return route(cmd).executeCommandReturnResult(cmd);
+        } finally {
+            scheduler.release(ticket);
+        }
+    }
+    
     /**
      * {@inheritDoc}
+     * Commands cached in the {@link ResultCache} are executed as a whole and
+     * their cached output is replayed to the handler.
      */
     @Override
-    public Future<String> executeCommandReturnOutputAsync(ICommand cmd) throws IOException, InterruptedException, ExecutionException {
+    public void executeCommandStreamOutput(ICommand cmd, IOutputHandler handler) throws IOException, InterruptedException {
+        if (resultCache.getTimeToLive(cmd) <= 0) {
+            super.executeCommandStreamOutput(cmd, handler);
+            return;
+        }
         
-        executeCommandReturnNoOutputAsyncIOException = null;
+        String line;
+        try (BufferedReader reader = new BufferedReader(new StringReader(executeCommandReturnOutput(cmd)))) {
+            while ((line = reader.readLine()) != null)
+                if (!handler.onLine(line)) break;
+        }
+    }
+    
+    /**
+     * {@inheritDoc}
+     * Streamed commands never run in shell sessions, as they may run for an
+     * unbounded amount of time (e.g.: {@code logcat}). They do occupy one of
+     * their device's slots until the stream is closed.
+     */
+    @Override
+    InputStream openOutput(ICommand cmd) throws IOException {
+        final CommandScheduler.Ticket ticket;
+        try {
+            ticket = scheduler.acquire(cmd);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for the device.");
+        }
         
-        Future<String> future = new FutureTask<>(() -> {
-            StringBuilder output = new StringBuilder();
-            Process pr = cmd.buildProcess().start();
-            String line;
-            
-            try (BufferedReader reader = new BufferedReader(new InputStreamReader(pr.getInputStream()))) {
-                while ((line = reader.readLine()) != null) {
-                    
+        try {
+            return new FilterInputStream(route(cmd).openOutput(cmd)) {
+                @Override
+                public void close() throws IOException {
+                    try {
+                        super.close();
+                    } finally {
+                        scheduler.release(ticket);
+                    }
                 }
-            } catch (IOException ex) {
-                System.err.println("An error has occurred within JDroidLib");
-                ex.printStackTrace(System.err);
-                executeCommandReturnNoOutputAsyncIOException = ex;
-                return null;
-            }
-            return output.toString();
-        });
-        
-        if (executeCommandReturnNoOutputAsyncIOException != null)
-            throw executeCommandReturnNoOutputAsyncIOException;
-        
-        return future;
+            };
+        } catch (IOException | RuntimeException ex) {
+            scheduler.release(ticket);
+            throw ex;
+        }
     }
-
-    private InterruptedException executeCommandReturnExitCodeAsyncInterruptedException;
-    private IOException executeCommandReturnExitCodeAsyncIOException;
+    
     /**
      * {@inheritDoc}
+     * An open sync service occupies one of its device's slots until it is
+     * closed, except while it has handed the slot back with {@link SyncProtocol#releaseSlot()}.
      */
     @Override
-    public Future<Integer> executeCommandReturnExitCodeAsync(ICommand cmd) throws IOException, InterruptedException, ExecutionException {
-        
-        executeCommandReturnExitCodeAsyncInterruptedException = null;
-        executeCommandReturnExitCodeAsyncIOException = null;
-        
-        Future<Integer> future = new FutureTask<>(() -> {
-            int returnVal = -1;
-            try {
-                 Process pr = cmd.buildProcess().start();
-                 pr.waitFor(cmd.getTimeout(), TimeUnit.MILLISECONDS);
-                 returnVal = pr.exitValue();
-            } catch (IOException | InterruptedException ex) {
-                System.err.println("An error has occurred within JDroidLib");
-                ex.printStackTrace(System.err);
-                if (ex instanceof IOException)
-                    executeCommandReturnExitCodeAsyncIOException = (IOException)ex;
-                else executeCommandReturnExitCodeAsyncInterruptedException = (InterruptedException)ex;
+    SyncProtocol openSync(Device device) throws IOException {
+        SyncProtocol.Slot slot = new SyncProtocol.Slot() {
+            private CommandScheduler.Ticket ticket;
+            
+            @Override
+            public void acquire() throws IOException {
+                try {
+                    ticket = scheduler.acquire(device.getSerialNumber(), CommandPriority.NORMAL);
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted while waiting for the device.");
+                }
             }
-            return returnVal;
-        });
-        
-        if (executeCommandReturnExitCodeAsyncIOException != null)
-            throw executeCommandReturnExitCodeAsyncIOException;
-        if (executeCommandReturnExitCodeAsyncInterruptedException != null)
-            throw executeCommandReturnExitCodeAsyncInterruptedException;
-        
-        return future;
+            
+            @Override
+            public void release() {
+                scheduler.release(ticket);
+                ticket = null;
+            }
+        };
+        slot.acquire();
         
+        try {
+            SyncProtocol sync = route(device).openSync(device);
+            if (sync == null) slot.release();
+            else sync.holdSlot(slot);
+            return sync;
+        } catch (IOException | RuntimeException ex) {
+            slot.release();
+            throw ex;
+        }
     }
-
-    private IOException executeCommandAsyncIOException;
-    private InterruptedException executeCommandAsyncInterruptedException;
+    
     /**
      * {@inheritDoc}
      */
     @Override
-    public Future<Void> executeCommandAsync(ICommand cmd) throws IOException, InterruptedException, ExecutionException {
+    ShellSession.Channel openShell(Device device) throws IOException {
+        return route(device).openShell(device);
+    }
+    //</editor-fold>
+    
+    /**
+     * Executes several shell commands on one device in a single shell
+     * invocation, instead of one round trip per command.
+     * The output and exit code of each command are returned separately.
+     * If {@code parallel} is set, the commands are started at the same time on
+     * the device, and their outputs are buffered in temporary files below
+     * {@code /data/local/tmp} until all of them have finished.
+     * The batch is scheduled with the highest priority of its commands, and
+     * its timeout is the sum of its commands' timeouts.
+     * @param device The device to execute the commands on.
+     * @param parallel Set to {@code true} to run the commands in parallel on the device.
+     * @param commands The commands to execute. All must be shell commands
+     *                 for the given device, and either all or none must run as root.
+     * @return The result of each command, in the order the commands were given.
+     * @throws IOException  This exception is thrown, if something goes wrong
+     *                      during an IO operation or communication between
+     *                      JDroidLib and the device.
+     * @throws InterruptedException
+     * @throws IllegalArgumentException If the commands cannot be batched together.
+     */
+    public List<CommandResult> executeBatch(Device device, boolean parallel, List<? extends ICommand> commands) throws IOException, InterruptedException {
+        if (commands.isEmpty()) return new ArrayList<>();
+        CommandBatch batch = new CommandBatch(device, commands, parallel);
+        String script = batch.buildScript();
         
-        executeCommandAsyncIOException = null;
-        executeCommandAsyncInterruptedException = null;
+        AndroidCommand cmd;
+        if (batch.isRoot() && maxShellSessions == 0)
+            // "su <cmd>" would only elevate the first statement of the script.
+            cmd = AndroidCommand.formAndroidShellCommand(device, false, "su", "-c", "'" + script.replace("'", "'\\''") + "'");
+        else
+            cmd = AndroidCommand.formAndroidShellCommand(device, batch.isRoot(), script);
+        cmd.setTimeout(batch.getTimeout());
+        cmd.setPriority(batch.getPriority());
         
-        Future future = new FutureTask(() -> {
-            
+        return batch.parse(executeCommandReturnOutput(cmd));
+    }
+    
+    /**
+     * Executes several shell commands on one device in a single shell
+     * invocation, asynchronously.
+     * @param device The device to execute the commands on.
+     * @param parallel Set to {@code true} to run the commands in parallel on the device.
+     * @param commands The commands to execute.
+     * @return A future completed with the result of each command.
+     * @see #executeBatch(com.casoftworks.jdroidlib.android.Device, boolean, java.util.List) 
+     */
+    public CompletableFuture<List<CommandResult>> executeBatchAsync(Device device, boolean parallel, List<? extends ICommand> commands) {
+        return CommandExecutor.submit(() -> executeBatch(device, parallel, commands));
+    }
+    
+    /**
+     * Gets a value indicating whether a given command is run in a shell session.
+     * @param cmd The command.
+     * @return {@code true} if sessions are enabled and the command is a shell command for a specific device.
+     */
+    private boolean runsInSession(ICommand cmd) {
+        if (maxShellSessions == 0 || !(cmd instanceof AndroidCommand)) return false;
+        AndroidCommand command = (AndroidCommand)cmd;
+        return command.isShellCommand() && command.getDevice() != null;
+    }
+    
+    /**
+     * Executes a shell command in one of its device's shell sessions.
+     * @param cmd The command to execute.
+     * @return The output and exit code of the command.
+     * @throws IOException If no session could be opened, or the session broke.
+     * @throws InterruptedException If the thread was interrupted while waiting for a free session.
+     */
+    private CommandResult executeInSession(AndroidCommand cmd) throws IOException, InterruptedException {
+        ShellSessionPool pool = cmd.getDevice().getShellSessions(cmd.runAsRoot());
+        int max = maxShellSessions;
+        
+        try (CommandMetrics.Sample sample = CommandMetrics.getInstance().start(cmd)) {
+            ShellSession session = pool.acquire(this, max);
+            sample.started();
             try {
-                Process pr = cmd.buildProcess().start();
-                pr.waitFor(cmd.getTimeout(), TimeUnit.MILLISECONDS);
-            } catch (IOException | InterruptedException ex) {
-                System.err.println("An error has occurred within JDroidLib");
-                ex.printStackTrace(System.err);
-                if (ex instanceof IOException)
-                    executeCommandAsyncIOException = (IOException)ex;
-                else executeCommandAsyncInterruptedException = (InterruptedException)ex;
+                CommandResult result = session.execute(AdbSocketController.joinCommandLine(cmd.getCommand(), cmd.getArgs()), cmd.getTimeout());
+                sample.read(result.getOutput().length());
+                sample.finished(result.getExitCode());
+                return result;
+            } finally {
+                pool.release(session, maxShellSessions);
             }
-            
-            return null;
-        });
-        
-        if (executeCommandAsyncIOException != null)
-            throw executeCommandAsyncIOException;
-        if (executeCommandAsyncInterruptedException != null)
-            throw executeCommandAsyncInterruptedException;
-        
-        return future;
-        
+        }
     }
-    //</editor-fold>
     
     /**
      * Updates the list of devices and gets a list of all devices connected to
@@ -233,47 +551,177 @@ public final class AndroidController extends Controller {
      * @throws java.lang.InterruptedException 
      */
     public List<Device> getDevices() throws IOException, InterruptedException {
-        updateDeviceList(); return deviceList;
+        refreshDeviceList(); return devices.getDevices();
+    }
+    
+    /**
+     * Gets a connected device by its serial number.
+     * The device list is updated first, unless it is kept up to date by device
+     * tracking; the lookup itself takes constant time.
+     * @param serialNumber The serial number (or IP address and port) of the device.
+     * @return The device, or {@code null} if no such device is connected.
+     * @throws IOException 
+     * @throws InterruptedException 
+     */
+    public Device getDevice(String serialNumber) throws IOException, InterruptedException {
+        refreshDeviceList(); return devices.get(serialNumber);
+    }
+    
+    //<editor-fold defaultstate="collapsed" desc="Device tracking" >
+    /**
+     * Keeps a {@code host:track-devices} stream open to each ADB server, so the
+     * list of devices is updated as soon as a device is connected, disconnected
+     * or changes its state.
+     * While tracking, {@link #getDevices()} and {@link Device#getDeviceState()}
+     * are answered from memory instead of running {@code adb devices} each time,
+     * and {@link IDeviceListener}s are notified of all changes.
+     * If the stream breaks (e.g.: the ADB server has been restarted), it is
+     * reopened automatically; the device list is queried as usual meanwhile.
+     * Tracking requires the ADB server to be used, and stops when the
+     * transport is changed.
+     * @throws IllegalStateException If commands are not sent to an ADB server.
+     * @throws IOException If the ADB server did not send the list of devices.
+     * @throws InterruptedException If the thread was interrupted while waiting for the list of devices.
+     * @see #useAdbServer(java.lang.String, int) 
+     */
+    public synchronized void startDeviceTracking() throws IOException, InterruptedException {
+        if (deviceTrackers != null) return;
+        List<AdbSocketController> servers = adbServers;
+        if (servers.isEmpty())
+            throw new IllegalStateException("Device tracking requires the ADB server to be used.");
+        
+        List<DeviceTracker> trackers = new ArrayList<>(servers.size());
+        try {
+            for (int i = 0; i < servers.size(); i++) {
+                AdbSocketController server = servers.get(i);
+                DeviceTracker tracker = new DeviceTracker(this, i, server.getHost(), server.getPort(), server.getConnectTimeout());
+                trackers.add(tracker);
+                tracker.start(Math.max(server.getConnectTimeout(), 5000));
+            }
+        } catch (IOException | InterruptedException | RuntimeException ex) {
+            trackers.forEach(DeviceTracker::close);
+            throw ex;
+        }
+        deviceTrackers = trackers;
+    }
+    
+    /**
+     * Closes the {@code host:track-devices} streams. The list of devices is
+     * queried on demand again.
+     */
+    public synchronized void stopDeviceTracking() {
+        if (deviceTrackers == null) return;
+        deviceTrackers.forEach(DeviceTracker::close);
+        deviceTrackers = null;
+    }
+    
+    /**
+     * Gets a value indicating whether the list of devices is kept up to date
+     * by the ADB server.
+     * @return {@code true} if device tracking is enabled.
+     */
+    public boolean isTrackingDevices() { return deviceTrackers != null; }
+    
+    /**
+     * Adds a listener, which is notified of devices being connected,
+     * disconnected, or changing their state.
+     * Changes are detected whenever the device list is updated: immediately
+     * while device tracking is enabled, otherwise each time the devices are queried.
+     * @param listener The listener to add.
+     * @see #startDeviceTracking() 
+     */
+    public void addDeviceListener(IDeviceListener listener) { deviceListeners.add(listener); }
+    
+    /**
+     * Removes a previously added listener.
+     * @param listener The listener to remove.
+     */
+    public void removeDeviceListener(IDeviceListener listener) { deviceListeners.remove(listener); }
+    //</editor-fold>
+    
+    /**
+     * Updates the list of devices, unless it is kept up to date by device tracking.
+     * @throws IOException 
+     * @throws InterruptedException 
+     */
+    void refreshDeviceList() throws IOException, InterruptedException {
+        List<DeviceTracker> trackers = deviceTrackers;
+        if (trackers == null || !trackers.stream().allMatch(DeviceTracker::isCurrent)) updateDeviceList();
     }
     
     /**
      * Updates the list of devices stored in this object.
      * If the device list is updated and devices are still connected, these 
      * instances will not be changed.
-     * @throws IOException 
+     * With several ADB servers, each server is queried; the devices of servers
+     * which cannot be reached are kept until the server can be reached again.
+     * @throws IOException If any of the ADB servers could not be queried.
      */
     void updateDeviceList() throws IOException, InterruptedException {
         AndroidCommand cmd = AndroidCommand.formAndroidCommand(null, "devices", "-l");
-        String output = executeCommandReturnOutput(cmd);
-        
-        String line;
-        List<Device> newDeviceList = new ArrayList<>();
+        List<AdbSocketController> servers = adbServers;
+        if (servers.size() <= 1) {
+            applyDeviceList(0, executeCommandReturnOutput(cmd));
+            return;
+        }
         
-        try (BufferedReader reader = new BufferedReader(new StringReader(output))) {
-            while ((line = reader.readLine()) != null) {
-                if (line.toLowerCase().startsWith("list of") || line.isEmpty()) continue; // Start anew, no device listings (yet).
-                String[] splitValues = line.trim().split("\\s"); // [Serial/IP] [state] [product:value] [model:modelID] [device:[deviceID]
-                boolean deviceFound = false;
-                for (Device device : this.deviceList) {
-                    if (device.getSerialNumber().equals(splitValues[0])) {
-                        device.setDeviceState(DeviceState.valueOf(splitValues[1]));
-                        newDeviceList.add(device);
-                        deviceFound = true; 
-                        break;
-                    }
-                }
-                if (deviceFound) continue;
-                newDeviceList.add(new Device(splitValues[0], DeviceState.valueOf(splitValues[1])));
+        List<CompletableFuture<String>> outputs = new ArrayList<>(servers.size());
+        for (AdbSocketController server : servers)
+            outputs.add(server.executeCommandReturnOutputAsync(cmd));
+        IOException error = null;
+        for (int i = 0; i < outputs.size(); i++) {
+            try {
+                applyDeviceList(i, outputs.get(i).get());
+            } catch (ExecutionException ex) {
+                IOException cause = ex.getCause() instanceof IOException ? (IOException)ex.getCause() : new IOException(ex.getCause());
+                if (error == null) error = cause;
+                else error.addSuppressed(cause);
             }
+        }
+        if (error != null) throw error;
+    }
+    
+    /**
+     * Applies a list of devices, as output by {@code adb devices -l}, to the
+     * devices of an ADB server, and notifies the listeners of all changes.
+     * Devices which are still connected keep their instances.
+     * @param shard The index of the ADB server which listed the devices.
+     * @param output The list of devices.
+     * @throws IOException 
+     */
+    void applyDeviceList(int shard, String output) throws IOException {
+        try {
+            notifyListeners(devices.apply(shard, output));
         } catch (IOException ex) {
             System.err.println("An error has occurred within JDroidLib!");
             ex.printStackTrace(System.err);
             throw ex;
-        } finally {
-            if (!newDeviceList.isEmpty())
-                this.deviceList = newDeviceList;
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        }
+    }
+    
+    /**
+     * Closes the shell sessions of disconnected devices, and notifies the
+     * listeners of changes to the device list.
+     * @param changes The changes.
+     */
+    private void notifyListeners(DeviceRegistry.Changes changes) {
+        changes.disconnected.forEach(Device::closeShellSessions);
+        for (IDeviceListener listener : deviceListeners) {
+            try {
+                changes.disconnected.forEach(listener::deviceDisconnected);
+                for (int i = 0; i < changes.changed.size(); i++) {
+                    Device device = changes.changed.get(i);
+                    listener.deviceStateChanged(device, changes.oldStates.get(i), device.getLastDeviceState());
+                }
+                changes.connected.forEach(listener::deviceConnected);
+            } catch (RuntimeException ex) {
+                System.err.println("An error has occurred within a device listener!");
+                ex.printStackTrace(System.err);
+            }
         }
-        
     }
     
 }
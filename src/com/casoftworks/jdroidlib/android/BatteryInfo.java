@@ -18,52 +18,42 @@
  */
 package com.casoftworks.jdroidlib.android;
 
-import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.StringReader;
+import java.io.InterruptedIOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
  * Contains information and manipulation methods for a given device's battery.
  * This class will give you detailed information about what is happening with a device's battery, including conversion methods
  * for native output.
+ * Each getter which reads the battery takes a new {@link BatterySnapshot};
+ * to get several consistent values from a single reading, use {@link #snapshot(long)}.
+ * BatteryInfo objects may be used from any number of threads. Threads reading
+ * the battery at the same time share a single {@code dumpsys battery} command.
  * @author simoncahill
  */
 public class BatteryInfo {
     
     private final Device device;
-    private final AndroidController androidController;
     
     /**
      * Default constructor.
      * @param device The device to wrap with this class.
      */
-    BatteryInfo(Device device) throws IOException, InterruptedException {
+    BatteryInfo(Device device) {
         this.device = device;
-        androidController = AndroidController.getInstance();
     }
     
+    /** The most recent reading; replaced as a whole by each update. */
+    private final AtomicReference<BatterySnapshot> snapshot = new AtomicReference<>(BatterySnapshot.EMPTY);
+    
+    /** The reading in progress, shared by all threads waiting for it; {@code null} if none is. */
+    private final AtomicReference<CompletableFuture<BatterySnapshot>> inFlight = new AtomicReference<>();
+    
     //<editor-fold defaultstate="collapsed" desc="Battery variables" >
-    private boolean acPowered = false;
-    private boolean usbPowered = false;
-    private boolean wirelesslyPowered = false;
-    private int status = -1;
-    private int health = -1;
-    private boolean present = false;
-    private int level = -1;
-    private int scale = -1;
-    private int voltage = -1;
-    private double temperature = -1;
-    private String technology = null;
-    private boolean ledCharging = false;
-    private boolean ledLowBattery = false;
-    private int currentNow = -1;
-    private boolean adaptiveFastChargingSettings = false;
-    private boolean supportLogBatteryUsage = false;
-    private boolean tablet = false;
-    private double maxTemp = -1;
-    private int maxCurrent = -1;
-    private int asocEfs = -1;
-    private int asocNow = -1;
     //<editor-fold defaultstate="collapsed" desc="Getter Methods" >
     /**
      * Gets a value indicating whether the battery is being powered via an AC (mains) outlet.
@@ -71,7 +61,7 @@ public class BatteryInfo {
      * @throws IOException
      * @throws InterruptedException 
      */
-    public boolean isAcPowered() throws IOException, InterruptedException { update(); return acPowered; }
+    public boolean isAcPowered() throws IOException, InterruptedException { return snapshot(0).isAcPowered(); }
     
     /**
      * Gets a value indicating whether the battery is being powered via a USB port.
@@ -79,7 +69,7 @@ public class BatteryInfo {
      * @throws IOException
      * @throws InterruptedException 
      */
-    public boolean isUsbPowered() throws IOException, InterruptedException { update(); return usbPowered; }
+    public boolean isUsbPowered() throws IOException, InterruptedException { return snapshot(0).isUsbPowered(); }
     
     /**
      * Gets a value indicating whether the battery is being powered wirelessly.
@@ -87,7 +77,7 @@ public class BatteryInfo {
      * @throws IOException
      * @throws InterruptedException 
      */
-    public boolean isWirelesslyPowered() throws IOException, InterruptedException { update(); return wirelesslyPowered; }
+    public boolean isWirelesslyPowered() throws IOException, InterruptedException { return snapshot(0).isWirelesslyPowered(); }
     
     /**
      * Gets a value indicating the current status of the battery.
@@ -97,7 +87,7 @@ public class BatteryInfo {
      * @throws IOException
      * @throws InterruptedException
      */
-    public int getStatus() throws IOException, InterruptedException { update(); return status; } 
+    public int getStatus() throws IOException, InterruptedException { return snapshot(0).getStatus(); } 
     
     /**
      * Gets a value indicating the current health of the battery.
@@ -106,7 +96,7 @@ public class BatteryInfo {
      * @throws IOException
      * @throws InterruptedException 
      */
-    public int getHealth() throws IOException, InterruptedException { update(); return health; }
+    public int getHealth() throws IOException, InterruptedException { return snapshot(0).getHealth(); }
     
     /**
      * Gets a value indicating whether the battery is present or not.
@@ -114,7 +104,7 @@ public class BatteryInfo {
      * @throws IOException
      * @throws InterruptedException 
      */
-    public boolean isPresent() throws IOException, InterruptedException { update(); return present; }
+    public boolean isPresent() throws IOException, InterruptedException { return snapshot(0).isPresent(); }
     
     /**
      * Gets a value indicating the current level of the battery.
@@ -122,7 +112,7 @@ public class BatteryInfo {
      * @throws IOException
      * @throws InterruptedException 
      */
-    public int getLevel() throws IOException, InterruptedException { update(); return level; }
+    public int getLevel() throws IOException, InterruptedException { return snapshot(0).getLevel(); }
     
     /**
      * Gets a value indicating the scale of the battery.
@@ -130,7 +120,7 @@ public class BatteryInfo {
      * @throws IOException
      * @throws InterruptedException 
      */
-    public int getScale() throws IOException, InterruptedException { update(); return scale; }
+    public int getScale() throws IOException, InterruptedException { return snapshot(0).getScale(); }
     
     /**
      * Gets a value indicating the current voltage output of the battery.
@@ -138,7 +128,7 @@ public class BatteryInfo {
      * @throws IOException
      * @throws InterruptedException 
      */
-    public int getVoltage() throws IOException, InterruptedException { update(); return voltage; }
+    public int getVoltage() throws IOException, InterruptedException { return snapshot(0).getVoltage(); }
     
     /**
      * Gets a value indicating the current temperature of the battery.
@@ -147,7 +137,7 @@ public class BatteryInfo {
      * @throws IOException
      * @throws InterruptedException 
      */
-    public double getTemperature() throws IOException, InterruptedException { update(); return temperature; }
+    public double getTemperature() throws IOException, InterruptedException { return snapshot(0).getTemperature(); }
     
     /**
      * Gets a value indicating the technology used in the battery.
@@ -155,7 +145,7 @@ public class BatteryInfo {
      * @throws IOException
      * @throws InterruptedException 
      */
-    public String getTechnology() throws IOException, InterruptedException { return technology; } // No point updating, this won't change.
+    public String getTechnology() throws IOException, InterruptedException { return snapshot.get().getTechnology(); } // No point updating, this won't change.
     
     /**
      * Gets a value indicating whether the LED will illuminate to indicate the device is charging.
@@ -163,7 +153,7 @@ public class BatteryInfo {
      * @throws IOException
      * @throws InterruptedException 
      */
-    public boolean ledIndicatesCharging() throws IOException, InterruptedException { update(); return ledCharging; }
+    public boolean ledIndicatesCharging() throws IOException, InterruptedException { return snapshot(0).ledIndicatesCharging(); }
     
     /**
      * Gets a value indicating whether the LED will illuminate to indicate a low battery.
@@ -171,7 +161,7 @@ public class BatteryInfo {
      * @throws IOException
      * @throws InterruptedException 
      */
-    public boolean ledIndicatesLowBattery() throws IOException, InterruptedException { update(); return ledLowBattery; }
+    public boolean ledIndicatesLowBattery() throws IOException, InterruptedException { return snapshot(0).ledIndicatesLowBattery(); }
     
     /**
      * Gets a value indicating the current output (mA) of the battery.
@@ -179,7 +169,7 @@ public class BatteryInfo {
      * @throws IOException
      * @throws InterruptedException 
      */
-    public int getCurrentNow() throws IOException, InterruptedException { update(); return currentNow; }
+    public int getCurrentNow() throws IOException, InterruptedException { return snapshot(0).getCurrentNow(); }
     
     /**
      * Gets a value indicating whether this device has adaptive fast charging settings.
@@ -187,7 +177,7 @@ public class BatteryInfo {
      * @throws IOException
      * @throws InterruptedException 
      */
-    public boolean hasAdaptiveFastChargingSettings() throws IOException, InterruptedException { return adaptiveFastChargingSettings; } // No point updating, this won't change.
+    public boolean hasAdaptiveFastChargingSettings() throws IOException, InterruptedException { return snapshot.get().hasAdaptiveFastChargingSettings(); } // No point updating, this won't change.
     
     /**
      * Gets a value indicating whether this battery supports battery usage logging.
@@ -195,7 +185,7 @@ public class BatteryInfo {
      * @throws IOException
      * @throws InterruptedException 
      */
-    public boolean supportsBatteryUsageLogging() throws IOException, InterruptedException { update(); return supportLogBatteryUsage; }
+    public boolean supportsBatteryUsageLogging() throws IOException, InterruptedException { return snapshot(0).supportsBatteryUsageLogging(); }
     
     /**
      * Gets a value indicating whether this device is a tablet or not.
@@ -203,7 +193,7 @@ public class BatteryInfo {
      * @throws IOException
      * @throws InterruptedException 
      */
-    public boolean isTablet() throws IOException, InterruptedException { return tablet; } // This definitely won't change...
+    public boolean isTablet() throws IOException, InterruptedException { return snapshot.get().isTablet(); } // This definitely won't change...
     
     /**
      * Gets a value indicating the maximum temperature of this battery.
@@ -211,7 +201,7 @@ public class BatteryInfo {
      * @throws IOException
      * @throws InterruptedException 
      */
-    public double getMaxTemperature() throws IOException, InterruptedException { return maxTemp; } // No point in... why do I bother?
+    public double getMaxTemperature() throws IOException, InterruptedException { return snapshot.get().getMaxTemperature(); } // No point in... why do I bother?
     
     /**
      * Gets a value indicating the maximum current of this battery.
@@ -219,7 +209,7 @@ public class BatteryInfo {
      * @throws IOException
      * @throws InterruptedException 
      */
-    public int getMaxCurrent() throws IOException, InterruptedException { return maxCurrent; }
+    public int getMaxCurrent() throws IOException, InterruptedException { return snapshot.get().getMaxCurrent(); }
     
     /**
      * I honestly have no idea what this is.
@@ -228,7 +218,7 @@ public class BatteryInfo {
      * @throws IOException
      * @throws InterruptedException 
      */
-    public int getAsocEfs() throws IOException, InterruptedException { update(); return asocEfs; }
+    public int getAsocEfs() throws IOException, InterruptedException { return snapshot(0).getAsocEfs(); }
     
     /**
      * I don't know what this is, either...
@@ -236,7 +226,7 @@ public class BatteryInfo {
      * @throws IOException
      * @throws InterruptedException 
      */
-    public int getAsocNow() throws IOException, InterruptedException { update(); return asocNow; }
+    public int getAsocNow() throws IOException, InterruptedException { return snapshot(0).getAsocNow(); }
     //</editor-fold>
     //<editor-fold defaultstate="collapsed" desc="Conversaion Methods and consts" >
     /**
@@ -435,65 +425,69 @@ public class BatteryInfo {
     //</editor-fold>
     //</editor-fold>
     
-    private void update() throws IOException, InterruptedException {
-        AndroidCommand cmd = AndroidCommand.formAndroidShellCommand(device, false, "dumpsys", "battery");
-        String output = androidController.executeCommandReturnOutput(cmd);
-        try (BufferedReader reader = new BufferedReader(new StringReader(output))) {
-            String line;
-            while ((line = reader.readLine()) != null) {
-                if (line.isEmpty() || line.toLowerCase().startsWith("current battery service")) continue;
-                
-                if (line.trim().toLowerCase().startsWith("ac po")) {
-                    acPowered = Boolean.valueOf(line.split(":")[1]);
-                } if (line.trim().toLowerCase().startsWith("usb po")) {
-                    usbPowered = Boolean.valueOf(line.split(":")[1]);
-                } if (line.trim().toLowerCase().startsWith("wireless")) {
-                    wirelesslyPowered = Boolean.valueOf(line.split(":")[1]);
-                } if (line.trim().toLowerCase().startsWith("status")) {
-                    status = Integer.valueOf(line.split(":")[1]);
-                } if (line.trim().toLowerCase().startsWith("health")) {
-                    health = Integer.valueOf(line.split(":")[1]);
-                } if (line.trim().toLowerCase().startsWith("present")) {
-                    present = Boolean.valueOf(line.split(":")[1]);
-                } if (line.trim().toLowerCase().startsWith("level")) {
-                    level = Integer.valueOf(line.split(":")[1]);
-                } if (line.trim().toLowerCase().startsWith("scale")) {
-                    scale = Integer.valueOf(line.split(":")[1]);
-                } if (line.trim().toLowerCase().startsWith("voltage")) {
-                    voltage = Integer.valueOf(line.split(":")[1]);
-                } if (line.trim().toLowerCase().startsWith("temperature")) {
-                    String split = line.split(":\\s")[1].trim();
-                    char lastChar = split.charAt(split.length() - 1);
-                    String newString = split.substring(0, split.length() - 2).concat(".").concat(String.valueOf(lastChar));
-                    temperature = Double.valueOf(newString);
-                } if (line.trim().toLowerCase().startsWith("technology")) {
-                    technology = line.split(":\\s")[1].trim();
-                } if (line.trim().toLowerCase().startsWith("led charg")) {
-                    ledCharging = Boolean.valueOf(line.split(":")[1]);
-                } if (line.trim().toLowerCase().startsWith("led low")) {
-                    ledLowBattery = Boolean.valueOf(line.split(":")[1]);
-                } if (line.trim().toLowerCase().startsWith("current now")) {
-                    currentNow = Integer.valueOf(line.split(":\\s")[1].trim());
-                } if (line.trim().toLowerCase().startsWith("adaptive")) {
-                    adaptiveFastChargingSettings = Boolean.valueOf(line.split(":")[1]);
-                } if (line.trim().toLowerCase().startsWith("support_log")) {
-                    supportLogBatteryUsage = Boolean.valueOf(line.split(":")[1]);
-                } if (line.trim().toLowerCase().startsWith("istablet")) {
-                    tablet = Boolean.valueOf(line.split(":")[1]);
-                } if (line.trim().toLowerCase().startsWith("mbatterymaxtemp")) {
-                    String split = line.split(":\\s")[1].trim();
-                    char lastChar = split.charAt(split.length() - 1);
-                    String newString = split.substring(0, split.length() - 2).concat(".").concat(String.valueOf(lastChar));
-                    maxTemp = Double.valueOf(newString);
-                } if (line.trim().toLowerCase().startsWith("mbatterymaxcurrent")) {
-                    maxCurrent = Integer.valueOf(line.split(":\\s")[1].trim());
-                } if (line.trim().toLowerCase().startsWith("mbatteryasocefs")) {
-                    asocEfs = Integer.valueOf(line.split(":\\s")[1].trim());
-                } if (line.trim().toLowerCase().startsWith("mbatteryasocnow")) {
-                    asocNow = Integer.valueOf(line.split(":\\s")[1].trim());
+    /**
+     * Gets the most recent reading of this battery, without reading it again.
+     * @return The most recent snapshot. All its values are {@code -1},
+     *         {@code false} or {@code null} if the battery has not been read yet.
+     */
+    public BatterySnapshot getLastSnapshot() { return snapshot.get(); }
+    
+    /**
+     * Gets a reading of this battery which is at most a given age.
+     * If the last reading is too old, the battery is read again. Threads which
+     * need a new reading while another thread is already reading the battery
+     * wait for that reading instead of reading the battery themselves, so
+     * there is never more than one {@code dumpsys battery} running per device.
+     * @param maxAge The maximum age (in ms) of the reading. Use 0 to always wait for a new reading.
+     * @return A snapshot of all values of the battery, read by a single command.
+     * @throws IOException If the battery could not be read.
+     * @throws InterruptedException If the thread was interrupted while waiting for the reading.
+     */
+    public BatterySnapshot snapshot(long maxAge) throws IOException, InterruptedException {
+        BatterySnapshot last = snapshot.get();
+        if (maxAge > 0 && last != BatterySnapshot.EMPTY && System.nanoTime() - last.getSequence() <= TimeUnit.MILLISECONDS.toNanos(maxAge))
+            return last;
+        
+        CompletableFuture<BatterySnapshot> reading = inFlight.get();
+        if (reading == null) {
+            CompletableFuture<BatterySnapshot> own = new CompletableFuture<>();
+            if (inFlight.compareAndSet(null, own)) {
+                try {
+                    BatterySnapshot read = update();
+                    own.complete(read);
+                    return read;
+                } catch (IOException | InterruptedException | RuntimeException ex) {
+                    own.completeExceptionally(ex);
+                    throw ex;
+                } finally {
+                    inFlight.compareAndSet(own, null);
                 }
             }
+            reading = inFlight.get();
+            if (reading == null) return snapshot(maxAge); // Finished in the meantime.
+        }
+        
+        try {
+            return reading.get();
+        } catch (ExecutionException ex) {
+            Throwable cause = ex.getCause();
+            if (cause instanceof IOException) throw (IOException)cause;
+            if (cause instanceof RuntimeException) throw (RuntimeException)cause;
+            if (cause instanceof InterruptedException) throw new InterruptedIOException("The thread reading the battery was interrupted.");
+            throw new IOException(cause);
         }
     }
     
+    /**
+     * Reads the battery, and publishes the new snapshot unless a more recent
+     * one has been published meanwhile by another thread.
+     * @return The new snapshot.
+     */
+    private BatterySnapshot update() throws IOException, InterruptedException {
+        BatterySnapshot read = Dumpsys.read(device, new BatterySnapshot.Builder());
+        snapshot.accumulateAndGet(read, (current, update) ->
+                current == BatterySnapshot.EMPTY || update.getSequence() - current.getSequence() >= 0 ? update : current);
+        return read;
+    }
+    
 }
@@ -0,0 +1,65 @@
+/*
+ * Copyright (C) 2016 Ca Softworks.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+package com.casoftworks.jdroidlib.android;
+
+/**
+ * The battery values recorded by a {@link BatterySampler}.
+ * All values are stored as integers, in the units {@code dumpsys battery} reports them in.
+ * Values the device did not report are stored as {@link #NOT_REPORTED}.
+ * @author simoncahill
+ */
+public enum BatteryMetric {
+    
+    /** The charge level of the battery, usually in percent (see {@link BatteryInfo#getScale()}). */
+    LEVEL,
+    
+    /** The voltage of the battery, in millivolts. */
+    VOLTAGE,
+    
+    /** The temperature of the battery, in tenths of a degree Celsius (e.g.: 285 for 28.5°C). */
+    TEMPERATURE,
+    
+    /** The current drawn from or fed in to the battery, as reported by the device (usually mA or µA). */
+    CURRENT_NOW,
+    
+    /** The charging status of the battery; one of the {@code BATTERY_STATUS_*} constants of {@link BatteryInfo}. */
+    STATUS;
+    
+    /** The value of a metric the device did not report. */
+    public static final int NOT_REPORTED = -1;
+    
+    /**
+     * Reads the value of this metric from a snapshot.
+     * @param snapshot The snapshot.
+     * @return The value of this metric, or {@link #NOT_REPORTED}.
+     */
+    int read(BatterySnapshot snapshot) {
+        switch (this) {
+            case LEVEL: return snapshot.getLevel();
+            case VOLTAGE: return snapshot.getVoltage();
+            case TEMPERATURE:
+                double temperature = snapshot.getTemperature();
+                return temperature == -1 ? NOT_REPORTED : (int)Math.round(temperature * 10);
+            case CURRENT_NOW: return snapshot.getCurrentNow();
+            case STATUS: return snapshot.getStatus();
+            default: throw new AssertionError(this);
+        }
+    }
+    
+}
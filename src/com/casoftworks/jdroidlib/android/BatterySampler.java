@@ -0,0 +1,256 @@
+/*
+ * Copyright (C) 2016 Ca Softworks.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+package com.casoftworks.jdroidlib.android;
+
+import com.casoftworks.jdroidlib.interfaces.IBatteryThresholdListener;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Periodically samples the batteries of a set of devices.
+ * Every interval, the level, voltage, temperature, current and status of each
+ * device's battery are read and recorded in the device's {@link BatterySeries},
+ * which keeps a fixed number of samples in primitive arrays. The memory taken
+ * by the sampler therefore stays constant, however long it runs.
+ * Listeners can be notified whenever a value crosses a threshold.
+ * Devices are sampled in parallel; a device which has not answered the previous
+ * sample yet is skipped, rather than queuing up further commands.
+ * Readings are shared with {@link BatteryInfo}: a snapshot taken by another
+ * thread less than half an interval ago is recorded instead of reading the battery again.
+ * @author simoncahill
+ */
+public final class BatterySampler implements Closeable {
+    
+    /**
+     * A threshold and the listener to notify when it is crossed.
+     */
+    private static final class Threshold {
+        
+        private final BatteryMetric metric;
+        private final int value;
+        private final IBatteryThresholdListener listener;
+        
+        private Threshold(BatteryMetric metric, int value, IBatteryThresholdListener listener) {
+            this.metric = metric;
+            this.value = value;
+            this.listener = listener;
+        }
+        
+    }
+    
+    /**
+     * A sampled device.
+     */
+    private static final class Entry {
+        
+        private final BatterySeries series;
+        private final AtomicBoolean sampling = new AtomicBoolean();
+        
+        private Entry(BatterySeries series) { this.series = series; }
+        
+    }
+    
+    private final long interval;
+    private final int capacity;
+    private final ConcurrentMap<String, Entry> devices = new ConcurrentHashMap<>();
+    private final List<Threshold> thresholds = new CopyOnWriteArrayList<>();
+    private ScheduledExecutorService scheduler = null;
+    
+    /**
+     * Creates a new sampler. The sampler must be started with {@link #start()}.
+     * @param interval The time between two samples of a device, in milliseconds.
+     * @param capacity The number of samples kept per device. Once they are
+     *                 taken, each new sample replaces the oldest one.
+     */
+    public BatterySampler(long interval, int capacity) {
+        if (interval < 1) throw new IllegalArgumentException("The interval must be at least 1 ms.");
+        if (capacity < 1) throw new IllegalArgumentException("The capacity must be at least 1.");
+        this.interval = interval;
+        this.capacity = capacity;
+    }
+    
+    //<editor-fold defaultstate="collapsed" desc="Devices" >
+    /**
+     * Adds a device to sample. Adding a device twice has no effect.
+     * @param device The device.
+     * @return The series the device's samples are recorded in.
+     */
+    public BatterySeries addDevice(Device device) {
+        return devices.computeIfAbsent(device.getSerialNumber(), serial -> new Entry(new BatterySeries(device, capacity))).series;
+    }
+    
+    /**
+     * Adds devices to sample.
+     * @param devices The devices.
+     */
+    public void addDevices(Collection<Device> devices) { devices.forEach(this::addDevice); }
+    
+    /**
+     * Stops sampling a device and discards its samples.
+     * @param device The device.
+     * @return {@code true} if the device was being sampled.
+     */
+    public boolean removeDevice(Device device) { return devices.remove(device.getSerialNumber()) != null; }
+    
+    /**
+     * Gets the samples of a device.
+     * @param serialNumber The serial number of the device.
+     * @return The series of the device, or {@code null} if the device is not being sampled.
+     */
+    public BatterySeries getSeries(String serialNumber) {
+        Entry entry = devices.get(serialNumber);
+        return entry == null ? null : entry.series;
+    }
+    
+    /**
+     * Gets the samples of a device.
+     * @param device The device.
+     * @return The series of the device, or {@code null} if the device is not being sampled.
+     */
+    public BatterySeries getSeries(Device device) { return getSeries(device.getSerialNumber()); }
+    
+    /**
+     * Gets the samples of all devices.
+     * @return A snapshot of the list of series.
+     */
+    public List<BatterySeries> getSeries() {
+        List<BatterySeries> list = new ArrayList<>(devices.size());
+        devices.values().forEach(entry -> list.add(entry.series));
+        return list;
+    }
+    //</editor-fold>
+    
+    //<editor-fold defaultstate="collapsed" desc="Thresholds" >
+    /**
+     * Adds a listener, which is notified whenever a given metric of any
+     * sampled device crosses a given threshold.
+     * @param metric The metric to watch.
+     * @param threshold The threshold, in the units of the metric.
+     * @param listener The listener.
+     */
+    public void addThresholdListener(BatteryMetric metric, int threshold, IBatteryThresholdListener listener) {
+        thresholds.add(new Threshold(metric, threshold, listener));
+    }
+    
+    /**
+     * Removes a listener from all thresholds it was added to.
+     * @param listener The listener.
+     */
+    public void removeThresholdListener(IBatteryThresholdListener listener) {
+        thresholds.removeIf(threshold -> threshold.listener == listener);
+    }
+    //</editor-fold>
+    
+    //<editor-fold defaultstate="collapsed" desc="Getters" >
+    /**
+     * Gets the time between two samples of a device.
+     * @return The interval in milliseconds.
+     */
+    public long getInterval() { return interval; }
+    
+    /**
+     * Gets the number of samples kept per device.
+     * @return The capacity of each series.
+     */
+    public int getCapacity() { return capacity; }
+    
+    /**
+     * Gets a value indicating whether the sampler is running.
+     * @return {@code true} if the sampler has been started and not closed.
+     */
+    public synchronized boolean isRunning() { return scheduler != null; }
+    //</editor-fold>
+    
+    /**
+     * Starts sampling. Calling this method while the sampler is running has no effect.
+     */
+    public synchronized void start() {
+        if (scheduler != null) return;
+        scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "JDroidLib battery sampler");
+            thread.setDaemon(true);
+            return thread;
+        });
+        scheduler.scheduleAtFixedRate(this::sampleAll, 0, interval, TimeUnit.MILLISECONDS);
+    }
+    
+    /**
+     * Stops sampling. Samples already recorded are kept; the sampler may be started again.
+     */
+    @Override
+    public synchronized void close() {
+        if (scheduler == null) return;
+        scheduler.shutdownNow();
+        scheduler = null;
+    }
+    
+    private void sampleAll() {
+        for (Entry entry : devices.values()) {
+            if (entry.sampling.compareAndSet(false, true))
+                CommandExecutor.submit(() -> { sample(entry); return null; });
+        }
+    }
+    
+    private void sample(Entry entry) {
+        try {
+            BatterySeries series = entry.series;
+            BatterySnapshot snapshot;
+            try {
+                snapshot = series.getDevice().getBattery().snapshot(interval / 2);
+            } catch (Exception ex) {
+                if (ex instanceof InterruptedException) Thread.currentThread().interrupt();
+                series.failed();
+                return;
+            }
+            if (series.record(snapshot) && !thresholds.isEmpty())
+                notifyListeners(series, snapshot);
+        } finally {
+            entry.sampling.set(false);
+        }
+    }
+    
+    private void notifyListeners(BatterySeries series, BatterySnapshot snapshot) {
+        for (Threshold threshold : thresholds) {
+            int previous = series.getPrevious(threshold.metric);
+            int value = threshold.metric.read(snapshot);
+            // A value the device did not report neither crosses a threshold, nor is crossed from.
+            if (previous == BatteryMetric.NOT_REPORTED || value == BatteryMetric.NOT_REPORTED) continue;
+            try {
+                if (previous < threshold.value && value >= threshold.value)
+                    threshold.listener.valueRose(series.getDevice(), threshold.metric, threshold.value, value);
+                else if (previous >= threshold.value && value < threshold.value)
+                    threshold.listener.valueFell(series.getDevice(), threshold.metric, threshold.value, value);
+            } catch (RuntimeException ex) {
+                System.err.println("An error has occurred within JDroidLib!");
+                ex.printStackTrace(System.err);
+            }
+        }
+    }
+    
+}
@@ -0,0 +1,289 @@
+/*
+ * Copyright (C) 2016 Ca Softworks.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+package com.casoftworks.jdroidlib.android;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The battery samples of a single device, recorded by a {@link BatterySampler}.
+ * Samples are kept in a fixed-size ring buffer of primitive arrays: once the
+ * series is full, every new sample overwrites the oldest one, so a series
+ * takes the same amount of memory no matter how long the sampler runs.
+ * Recording a sample does not allocate any memory.
+ * Series may be read from any number of threads while they are being recorded.
+ * @author simoncahill
+ */
+public final class BatterySeries {
+    
+    private static final BatteryMetric[] ALL_METRICS = BatteryMetric.values();
+    private static final int METRICS = ALL_METRICS.length;
+    
+    private final Device device;
+    private final long[] timestamps;
+    private final int[] values;
+    private int head = 0;
+    private int size = 0;
+    private long samples = 0;
+    private long failures = 0;
+    
+    /** The previous sample's values; only touched by the thread recording a sample. */
+    private final int[] previous = new int[METRICS];
+    private long lastSequence = 0;
+    
+    /**
+     * Creates a new series.
+     * @param device The device sampled.
+     * @param capacity The number of samples kept.
+     */
+    BatterySeries(Device device, int capacity) {
+        if (capacity < 1) throw new IllegalArgumentException("The capacity must be at least 1.");
+        this.device = device;
+        this.timestamps = new long[capacity];
+        this.values = new int[capacity * METRICS];
+    }
+    
+    //<editor-fold defaultstate="collapsed" desc="Recording" >
+    /**
+     * Records a sample. Must only be called by one thread at a time.
+     * The values of the sample recorded before are kept for {@link #getPrevious(BatteryMetric)}.
+     * @param snapshot The snapshot to record.
+     * @return {@code true} if the snapshot was recorded and a previous sample
+     *         exists, {@code false} if the snapshot was recorded before, or is the first sample.
+     */
+    synchronized boolean record(BatterySnapshot snapshot) {
+        if (samples > 0 && snapshot.getSequence() == lastSequence) return false;
+        
+        boolean hasPrevious = size > 0;
+        if (hasPrevious)
+            System.arraycopy(values, indexOf(size - 1) * METRICS, previous, 0, METRICS);
+        
+        int row = head * METRICS;
+        for (BatteryMetric metric : ALL_METRICS)
+            values[row + metric.ordinal()] = metric.read(snapshot);
+        timestamps[head] = snapshot.getTimestamp();
+        head = (head + 1) % timestamps.length;
+        size = Math.min(size + 1, timestamps.length);
+        samples++;
+        lastSequence = snapshot.getSequence();
+        return hasPrevious;
+    }
+    
+    /**
+     * Counts a sample which could not be taken.
+     */
+    synchronized void failed() { failures++; }
+    
+    /**
+     * Gets a value of the sample recorded before the last one.
+     * Only valid on the thread which has just recorded a sample.
+     * @param metric The metric.
+     * @return The previous value.
+     */
+    int getPrevious(BatteryMetric metric) { return previous[metric.ordinal()]; }
+    
+    private int indexOf(int sample) {
+        return (head - size + sample + timestamps.length) % timestamps.length;
+    }
+    //</editor-fold>
+    
+    //<editor-fold defaultstate="collapsed" desc="Getters" >
+    /**
+     * Gets the device sampled.
+     * @return The device.
+     */
+    public Device getDevice() { return device; }
+    
+    /**
+     * Gets the maximum number of samples kept.
+     * @return The capacity of this series.
+     */
+    public int getCapacity() { return timestamps.length; }
+    
+    /**
+     * Gets the number of samples currently kept.
+     * @return The number of samples, at most {@link #getCapacity()}.
+     */
+    public synchronized int getSize() { return size; }
+    
+    /**
+     * Gets the number of samples recorded since the series was created,
+     * including the ones which have been overwritten since.
+     * @return The number of samples recorded.
+     */
+    public synchronized long getSampleCount() { return samples; }
+    
+    /**
+     * Gets the number of samples which could not be taken (e.g.: because the device was offline).
+     * @return The number of failed samples.
+     */
+    public synchronized long getFailureCount() { return failures; }
+    
+    /**
+     * Gets the time the latest sample was taken at.
+     * @return The time in milliseconds since the epoch, or 0 if no sample has been recorded.
+     */
+    public synchronized long getLatestTimestamp() { return size == 0 ? 0 : timestamps[indexOf(size - 1)]; }
+    
+    /**
+     * Gets a value of the latest sample.
+     * @param metric The metric.
+     * @return The value, or -1 if no sample has been recorded or the device did not report the metric.
+     */
+    public synchronized int getLatest(BatteryMetric metric) {
+        return size == 0 ? -1 : values[indexOf(size - 1) * METRICS + metric.ordinal()];
+    }
+    //</editor-fold>
+    
+    /**
+     * Copies the latest samples of a metric, oldest first, in to the given arrays.
+     * Does not allocate any memory.
+     * @param metric The metric.
+     * @param timestamps Receives the times of the samples, in milliseconds since the epoch.
+     * @param values Receives the values of the samples.
+     * @return The number of samples copied; at most the length of the shorter array.
+     */
+    public synchronized int copy(BatteryMetric metric, long[] timestamps, int[] values) {
+        int count = Math.min(size, Math.min(timestamps.length, values.length));
+        for (int i = 0; i < count; i++) {
+            int index = indexOf(size - count + i);
+            timestamps[i] = this.timestamps[index];
+            values[i] = this.values[index * METRICS + metric.ordinal()];
+        }
+        return count;
+    }
+    
+    /**
+     * Aggregates the samples of a metric taken in a given period.
+     * Samples in which the device did not report the metric are left out.
+     * @param metric The metric.
+     * @param from The start of the period (inclusive), in milliseconds since the epoch.
+     * @param to The end of the period (exclusive), in milliseconds since the epoch.
+     * @return The aggregate; its count is 0 if no sample was taken in the period.
+     */
+    public synchronized Aggregate aggregate(BatteryMetric metric, long from, long to) {
+        Aggregate aggregate = new Aggregate(from, to);
+        for (int i = 0; i < size; i++) {
+            int index = indexOf(i);
+            int value = values[index * METRICS + metric.ordinal()];
+            if (timestamps[index] >= from && timestamps[index] < to && value != BatteryMetric.NOT_REPORTED)
+                aggregate.add(value);
+        }
+        return aggregate;
+    }
+    
+    /**
+     * Downsamples the samples of a metric taken in a given period, in to
+     * buckets of a fixed length. Buckets without any sample are left out, as
+     * are samples in which the device did not report the metric.
+     * @param metric The metric.
+     * @param from The start of the period (inclusive), in milliseconds since the epoch.
+     * @param to The end of the period (exclusive), in milliseconds since the epoch.
+     * @param bucketLength The length of each bucket, in milliseconds.
+     * @return The buckets in chronological order, each with the minimum, maximum and average of its samples.
+     */
+    public synchronized List<Aggregate> downsample(BatteryMetric metric, long from, long to, long bucketLength) {
+        if (bucketLength < 1) throw new IllegalArgumentException("The bucket length must be at least 1 ms.");
+        
+        List<Aggregate> buckets = new ArrayList<>();
+        Aggregate bucket = null;
+        for (int i = 0; i < size; i++) {
+            int index = indexOf(i);
+            long timestamp = timestamps[index];
+            int value = values[index * METRICS + metric.ordinal()];
+            if (timestamp < from || timestamp >= to || value == BatteryMetric.NOT_REPORTED) continue;
+            
+            if (bucket == null || timestamp >= bucket.getEnd() || timestamp < bucket.getStart()) {
+                long start = from + (timestamp - from) / bucketLength * bucketLength;
+                bucket = new Aggregate(start, Math.min(start + bucketLength, to));
+                buckets.add(bucket);
+            }
+            bucket.add(value);
+        }
+        return buckets;
+    }
+    
+    /**
+     * The minimum, maximum and average of the samples taken in a period.
+     */
+    public static final class Aggregate {
+        
+        private final long start;
+        private final long end;
+        private int count = 0;
+        private int min = Integer.MAX_VALUE;
+        private int max = Integer.MIN_VALUE;
+        private long sum = 0;
+        
+        private Aggregate(long start, long end) {
+            this.start = start;
+            this.end = end;
+        }
+        
+        private void add(int value) {
+            count++;
+            min = Math.min(min, value);
+            max = Math.max(max, value);
+            sum += value;
+        }
+        
+        /**
+         * Gets the start of the period.
+         * @return The start of the period (inclusive), in milliseconds since the epoch.
+         */
+        public long getStart() { return start; }
+        
+        /**
+         * Gets the end of the period.
+         * @return The end of the period (exclusive), in milliseconds since the epoch.
+         */
+        public long getEnd() { return end; }
+        
+        /**
+         * Gets the number of samples taken in the period.
+         * @return The number of samples.
+         */
+        public int getCount() { return count; }
+        
+        /**
+         * Gets the smallest value sampled in the period.
+         * @return The minimum, or 0 if no sample was taken.
+         */
+        public int getMin() { return count == 0 ? 0 : min; }
+        
+        /**
+         * Gets the largest value sampled in the period.
+         * @return The maximum, or 0 if no sample was taken.
+         */
+        public int getMax() { return count == 0 ? 0 : max; }
+        
+        /**
+         * Gets the average of the values sampled in the period.
+         * @return The average, or {@link Double#NaN} if no sample was taken.
+         */
+        public double getAverage() { return count == 0 ? Double.NaN : (double)sum / count; }
+        
+        @Override
+        public String toString() {
+            return String.format("[%d, %d): count=%d min=%d max=%d avg=%.2f", start, end, count, getMin(), getMax(), getAverage());
+        }
+        
+    }
+    
+}
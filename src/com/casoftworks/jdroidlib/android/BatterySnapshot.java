@@ -0,0 +1,372 @@
+/*
+ * Copyright (C) 2016 Ca Softworks.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+package com.casoftworks.jdroidlib.android;
+
+import com.casoftworks.jdroidlib.interfaces.IDumpsysParser;
+
+/**
+ * An immutable reading of a device's battery, as reported by a single call of
+ * {@code dumpsys battery}.
+ * All values of a snapshot were read at the same time, so they are consistent
+ * with each other, and a snapshot can be shared freely between threads.
+ * Values the device did not report keep their defaults ({@code -1},
+ * {@code false} or {@code null}).
+ * @author simoncahill
+ * @see BatteryInfo
+ */
+public final class BatterySnapshot {
+    
+    /** The snapshot of a battery which has not been read yet. */
+    static final BatterySnapshot EMPTY = new Builder(0, 0).build();
+    
+    /**
+     * Creates a parser for {@code dumpsys battery}'s output, e.g.: to read the
+     * battery together with other services via {@link Dumpsys#readAll(Device, IDumpsysParser...)}.
+     * @return A new parser, whose result is the snapshot read.
+     */
+    public static IDumpsysParser<BatterySnapshot> parser() { return new Builder(); }
+    
+    private final long timestamp;
+    private final long sequence;
+    private final boolean acPowered;
+    private final boolean usbPowered;
+    private final boolean wirelesslyPowered;
+    private final int status;
+    private final int health;
+    private final boolean present;
+    private final int level;
+    private final int scale;
+    private final int voltage;
+    private final double temperature;
+    private final String technology;
+    private final boolean ledCharging;
+    private final boolean ledLowBattery;
+    private final int currentNow;
+    private final boolean adaptiveFastChargingSettings;
+    private final boolean supportLogBatteryUsage;
+    private final boolean tablet;
+    private final double maxTemp;
+    private final int maxCurrent;
+    private final int asocEfs;
+    private final int asocNow;
+    
+    private BatterySnapshot(Builder builder) {
+        timestamp = builder.timestamp;
+        sequence = builder.sequence;
+        acPowered = builder.acPowered;
+        usbPowered = builder.usbPowered;
+        wirelesslyPowered = builder.wirelesslyPowered;
+        status = builder.status;
+        health = builder.health;
+        present = builder.present;
+        level = builder.level;
+        scale = builder.scale;
+        voltage = builder.voltage;
+        temperature = builder.temperature;
+        technology = builder.technology;
+        ledCharging = builder.ledCharging;
+        ledLowBattery = builder.ledLowBattery;
+        currentNow = builder.currentNow;
+        adaptiveFastChargingSettings = builder.adaptiveFastChargingSettings;
+        supportLogBatteryUsage = builder.supportLogBatteryUsage;
+        tablet = builder.tablet;
+        maxTemp = builder.maxTemp;
+        maxCurrent = builder.maxCurrent;
+        asocEfs = builder.asocEfs;
+        asocNow = builder.asocNow;
+    }
+    
+    //<editor-fold defaultstate="collapsed" desc="Getter Methods" >
+    /**
+     * Gets the time this snapshot was taken at.
+     * @return The time in milliseconds since the epoch, or 0 if the battery has not been read yet.
+     */
+    public long getTimestamp() { return timestamp; }
+    
+    /**
+     * Gets the value of {@link System#nanoTime()} when this snapshot was taken.
+     * Used to tell which of two snapshots is the more recent one.
+     * @return The time in nanoseconds.
+     */
+    long getSequence() { return sequence; }
+    
+    /**
+     * Gets a value indicating whether the battery was being powered via an AC (mains) outlet.
+     * @return {@code true} if the battery was being powered via an AC (mains) outlet.
+     */
+    public boolean isAcPowered() { return acPowered; }
+    
+    /**
+     * Gets a value indicating whether the battery was being powered via a USB port.
+     * @return {@code true} if the battery was being powered via a USB port.
+     */
+    public boolean isUsbPowered() { return usbPowered; }
+    
+    /**
+     * Gets a value indicating whether the battery was being powered wirelessly.
+     * @return {@code true} if the battery was being powered wirelessly.
+     */
+    public boolean isWirelesslyPowered() { return wirelesslyPowered; }
+    
+    /**
+     * Gets a value indicating the status of the battery.
+     * @return The status; see {@link BatteryInfo.BatteryStatus#valueOf(int)}.
+     */
+    public int getStatus() { return status; }
+    
+    /**
+     * Gets a value indicating the health of the battery.
+     * @return The health; see {@link BatteryInfo.BatteryHealth#valueOf(int)}.
+     */
+    public int getHealth() { return health; }
+    
+    /**
+     * Gets a value indicating whether the battery was present or not.
+     * @return {@code true} if the battery was present.
+     */
+    public boolean isPresent() { return present; }
+    
+    /**
+     * Gets the level of the battery.
+     * @return The charge percentage of the battery (0-100).
+     */
+    public int getLevel() { return level; }
+    
+    /**
+     * Gets the scale of the battery.
+     * @return The scale of the battery.
+     */
+    public int getScale() { return scale; }
+    
+    /**
+     * Gets the voltage output of the battery.
+     * @return The voltage output of the battery (in mV).
+     */
+    public int getVoltage() { return voltage; }
+    
+    /**
+     * Gets the temperature of the battery.
+     * @return The temperature of the battery (in °C).
+     */
+    public double getTemperature() { return temperature; }
+    
+    /**
+     * Gets the technology used in the battery.
+     * @return The technology used in the battery.
+     */
+    public String getTechnology() { return technology; }
+    
+    /**
+     * Gets a value indicating whether the LED illuminates to indicate the device is charging.
+     * @return {@code true} if the LED illuminates to indicate the device is charging.
+     */
+    public boolean ledIndicatesCharging() { return ledCharging; }
+    
+    /**
+     * Gets a value indicating whether the LED illuminates to indicate a low battery.
+     * @return {@code true} if the LED illuminates to indicate a low battery.
+     */
+    public boolean ledIndicatesLowBattery() { return ledLowBattery; }
+    
+    /**
+     * Gets the current output (mA) of the battery.
+     * @return The current output of the battery.
+     */
+    public int getCurrentNow() { return currentNow; }
+    
+    /**
+     * Gets a value indicating whether the device has adaptive fast charging settings.
+     * @return {@code true} if the device has adaptive fast charging settings.
+     */
+    public boolean hasAdaptiveFastChargingSettings() { return adaptiveFastChargingSettings; }
+    
+    /**
+     * Gets a value indicating whether the battery supports battery usage logging.
+     * @return {@code true} if the device supports battery usage logging.
+     */
+    public boolean supportsBatteryUsageLogging() { return supportLogBatteryUsage; }
+    
+    /**
+     * Gets a value indicating whether the device is a tablet or not.
+     * @return {@code true} if the device is a tablet.
+     */
+    public boolean isTablet() { return tablet; }
+    
+    /**
+     * Gets the maximum temperature of the battery.
+     * @return The maximum temperature of the battery.
+     */
+    public double getMaxTemperature() { return maxTemp; }
+    
+    /**
+     * Gets the maximum current of the battery.
+     * @return The maximum current of the battery.
+     */
+    public int getMaxCurrent() { return maxCurrent; }
+    
+    /**
+     * See {@link BatteryInfo#getAsocEfs()}.
+     * @return 
+     */
+    public int getAsocEfs() { return asocEfs; }
+    
+    /**
+     * See {@link BatteryInfo#getAsocNow()}.
+     * @return 
+     */
+    public int getAsocNow() { return asocNow; }
+    //</editor-fold>
+    
+    /**
+     * Collects the values of a snapshot while {@code dumpsys battery}'s output is parsed.
+     * Builders are confined to the thread parsing the output.
+     */
+    static final class Builder implements DumpsysTokenizer.Handler, IDumpsysParser<BatterySnapshot> {
+        
+        private final long timestamp;
+        private final long sequence;
+        private boolean acPowered = false;
+        private boolean usbPowered = false;
+        private boolean wirelesslyPowered = false;
+        private int status = -1;
+        private int health = -1;
+        private boolean present = false;
+        private int level = -1;
+        private int scale = -1;
+        private int voltage = -1;
+        private double temperature = -1;
+        private String technology = null;
+        private boolean ledCharging = false;
+        private boolean ledLowBattery = false;
+        private int currentNow = -1;
+        private boolean adaptiveFastChargingSettings = false;
+        private boolean supportLogBatteryUsage = false;
+        private boolean tablet = false;
+        private double maxTemp = -1;
+        private int maxCurrent = -1;
+        private int asocEfs = -1;
+        private int asocNow = -1;
+        
+        Builder() { this(System.currentTimeMillis(), System.nanoTime()); }
+        
+        private Builder(long timestamp, long sequence) {
+            this.timestamp = timestamp;
+            this.sequence = sequence;
+        }
+        
+        BatterySnapshot build() { return new BatterySnapshot(this); }
+        
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public String getService() { return "battery"; }
+        
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public boolean onLine(CharSequence line) {
+            parseLine(line);
+            return true;
+        }
+        
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public BatterySnapshot getResult() { return build(); }
+        
+        /**
+         * Parses a single line of {@code dumpsys battery}'s output.
+         * @param line The line to parse.
+         */
+        void parseLine(CharSequence line) {
+            DumpsysTokenizer.tokenize(line, ':', KEYS, this);
+        }
+        
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public void onValue(int key, CharSequence line, int start, int end) {
+            switch (key) {
+                case AC_POWERED: acPowered = DumpsysTokenizer.parseBoolean(line, start, end); break;
+                case USB_POWERED: usbPowered = DumpsysTokenizer.parseBoolean(line, start, end); break;
+                case WIRELESS_POWERED: wirelesslyPowered = DumpsysTokenizer.parseBoolean(line, start, end); break;
+                case STATUS: status = DumpsysTokenizer.parseInt(line, start, end); break;
+                case HEALTH: health = DumpsysTokenizer.parseInt(line, start, end); break;
+                case PRESENT: present = DumpsysTokenizer.parseBoolean(line, start, end); break;
+                case LEVEL: level = DumpsysTokenizer.parseInt(line, start, end); break;
+                case SCALE: scale = DumpsysTokenizer.parseInt(line, start, end); break;
+                case VOLTAGE: voltage = DumpsysTokenizer.parseInt(line, start, end); break;
+                case TEMPERATURE: temperature = DumpsysTokenizer.parseTenths(line, start, end); break;
+                case TECHNOLOGY: technology = line.subSequence(start, end).toString(); break;
+                case LED_CHARGING: ledCharging = DumpsysTokenizer.parseBoolean(line, start, end); break;
+                case LED_LOW_BATTERY: ledLowBattery = DumpsysTokenizer.parseBoolean(line, start, end); break;
+                case CURRENT_NOW: currentNow = DumpsysTokenizer.parseInt(line, start, end); break;
+                case ADAPTIVE_FAST_CHARGING: adaptiveFastChargingSettings = DumpsysTokenizer.parseBoolean(line, start, end); break;
+                case SUPPORT_LOG_BATTERY_USAGE: supportLogBatteryUsage = DumpsysTokenizer.parseBoolean(line, start, end); break;
+                case IS_TABLET: tablet = DumpsysTokenizer.parseBoolean(line, start, end); break;
+                case MAX_TEMP: maxTemp = DumpsysTokenizer.parseTenths(line, start, end); break;
+                case MAX_CURRENT: maxCurrent = DumpsysTokenizer.parseInt(line, start, end); break;
+                case ASOC_EFS: asocEfs = DumpsysTokenizer.parseInt(line, start, end); break;
+                case ASOC_NOW: asocNow = DumpsysTokenizer.parseInt(line, start, end); break;
+                default: break;
+            }
+        }
+        
+        //<editor-fold defaultstate="collapsed" desc="Keys" >
+        private static final int AC_POWERED = 0;
+        private static final int USB_POWERED = 1;
+        private static final int WIRELESS_POWERED = 2;
+        private static final int STATUS = 3;
+        private static final int HEALTH = 4;
+        private static final int PRESENT = 5;
+        private static final int LEVEL = 6;
+        private static final int SCALE = 7;
+        private static final int VOLTAGE = 8;
+        private static final int TEMPERATURE = 9;
+        private static final int TECHNOLOGY = 10;
+        private static final int LED_CHARGING = 11;
+        private static final int LED_LOW_BATTERY = 12;
+        private static final int CURRENT_NOW = 13;
+        private static final int ADAPTIVE_FAST_CHARGING = 14;
+        private static final int SUPPORT_LOG_BATTERY_USAGE = 15;
+        private static final int IS_TABLET = 16;
+        private static final int MAX_TEMP = 17;
+        private static final int MAX_CURRENT = 18;
+        private static final int ASOC_EFS = 19;
+        private static final int ASOC_NOW = 20;
+        
+        /**
+         * The keys of {@code dumpsys battery}'s output, in the order of the constants above.
+         */
+        private static final DumpsysTokenizer.Keys KEYS = new DumpsysTokenizer.Keys(
+            "AC powered", "USB powered", "Wireless powered", "status", "health",
+            "present", "level", "scale", "voltage", "temperature", "technology",
+            "LED Charging", "LED Low Battery", "current now",
+            "Adaptive Fast Charging Settings", "SUPPORT_LOG_BATTERY_USAGE", "isTablet",
+            "mBatteryMaxTemp", "mBatteryMaxCurrent", "mBatteryAsocEfs", "mBatteryAsocNow"
+        );
+        //</editor-fold>
+        
+    }
+    
+}
@@ -0,0 +1,84 @@
+/*
+ * Copyright (C) 2016 Ca Softworks.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+package com.casoftworks.jdroidlib.android;
+
+import java.io.Closeable;
+import java.nio.ByteBuffer;
+
+/**
+ * The raw, binary output of a command (e.g.: a screenshot, or a tar stream).
+ * The output is held in a direct buffer taken from a pool shared by all of
+ * JDroidLib. Close this object once the output has been processed, so the
+ * buffer can be reused by later commands; the output must not be accessed
+ * after this object has been closed.
+ * @author simoncahill
+ */
+public final class BinaryOutput implements Closeable {
+    
+    private ByteBuffer buffer;
+    private final ByteBuffer view;
+    
+    /**
+     * Default constructor. Package-private.
+     * @param buffer The pooled buffer holding the output, flipped for reading.
+     */
+    BinaryOutput(ByteBuffer buffer) {
+        this.buffer = buffer;
+        this.view = buffer.asReadOnlyBuffer();
+    }
+    
+    /**
+     * Gets a read-only view of the output.
+     * Each call returns a new view, positioned at the start of the output.
+     * @return The output.
+     * @throws IllegalStateException If this object has been closed.
+     */
+    public synchronized ByteBuffer getBuffer() {
+        if (buffer == null) throw new IllegalStateException("The output has already been released.");
+        return view.duplicate();
+    }
+    
+    /**
+     * Gets the length of the output.
+     * @return The number of bytes in the output.
+     */
+    public int size() { return view.limit(); }
+    
+    /**
+     * Copies the output in to a new array.
+     * @return The output.
+     * @throws IllegalStateException If this object has been closed.
+     */
+    public byte[] toByteArray() {
+        ByteBuffer output = getBuffer();
+        byte[] bytes = new byte[output.remaining()];
+        output.get(bytes);
+        return bytes;
+    }
+    
+    /**
+     * Hands the buffer holding the output back to the pool.
+     */
+    @Override
+    public synchronized void close() {
+        BufferPool.SHARED.release(buffer);
+        buffer = null;
+    }
+    
+}
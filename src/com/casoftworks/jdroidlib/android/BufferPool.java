@@ -0,0 +1,100 @@
+/*
+ * Copyright (C) 2016 Ca Softworks.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+package com.casoftworks.jdroidlib.android;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A pool of direct {@link ByteBuffer}s used to capture binary command output.
+ * Buffers come in power-of-two size classes from 64 KiB to 64 MiB. Larger
+ * requests are served by buffers which are never pooled.
+ * The total capacity of all idle buffers is bounded; buffers handed back
+ * beyond that bound are left to the garbage collector.
+ * This class is package-private.
+ * @author simoncahill
+ */
+final class BufferPool {
+    
+    private static final int MIN_SHIFT = 16;
+    private static final int MAX_SHIFT = 26;
+    
+    /** The pool shared by all controllers. */
+    static final BufferPool SHARED = new BufferPool(128L << 20);
+    
+    @SuppressWarnings("unchecked")
+    private final ConcurrentLinkedQueue<ByteBuffer>[] classes = new ConcurrentLinkedQueue[MAX_SHIFT - MIN_SHIFT + 1];
+    private final AtomicLong idleBytes = new AtomicLong();
+    private final long maxIdleBytes;
+    
+    /**
+     * Default constructor.
+     * @param maxIdleBytes The maximum total capacity of idle buffers held by this pool.
+     */
+    BufferPool(long maxIdleBytes) {
+        this.maxIdleBytes = maxIdleBytes;
+        for (int i = 0; i < classes.length; i++)
+            classes[i] = new ConcurrentLinkedQueue<>();
+    }
+    
+    /**
+     * Takes a cleared buffer of at least the given capacity from this pool.
+     * @param minCapacity The minimum capacity.
+     * @return A direct buffer, positioned at 0 with its limit at its capacity.
+     */
+    ByteBuffer acquire(int minCapacity) {
+        int index = sizeClass(minCapacity);
+        if (index < 0)
+            return ByteBuffer.allocateDirect(minCapacity);
+        
+        ByteBuffer buffer = classes[index].poll();
+        if (buffer == null)
+            return ByteBuffer.allocateDirect(1 << (index + MIN_SHIFT));
+        idleBytes.addAndGet(-buffer.capacity());
+        buffer.clear();
+        return buffer;
+    }
+    
+    /**
+     * Hands a buffer back to this pool. The buffer must not be used afterwards.
+     * @param buffer The buffer. May be {@code null}.
+     */
+    void release(ByteBuffer buffer) {
+        if (buffer == null || !buffer.isDirect()) return;
+        int capacity = buffer.capacity();
+        int index = sizeClass(capacity);
+        if (index < 0 || capacity != 1 << (index + MIN_SHIFT)) return;
+        if (idleBytes.addAndGet(capacity) > maxIdleBytes) {
+            idleBytes.addAndGet(-capacity);
+            return;
+        }
+        classes[index].offer(buffer);
+    }
+    
+    /**
+     * Gets the size class of a given capacity.
+     * @return The index of the size class, or -1 if the capacity is too large to be pooled.
+     */
+    private static int sizeClass(int capacity) {
+        int shift = Math.max(MIN_SHIFT, 32 - Integer.numberOfLeadingZeros(Math.max(1, capacity) - 1));
+        return shift > MAX_SHIFT ? -1 : shift - MIN_SHIFT;
+    }
+    
+}
@@ -0,0 +1,190 @@
+/*
+ * Copyright (C) 2016 Ca Softworks.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+package com.casoftworks.jdroidlib.android;
+
+import com.casoftworks.jdroidlib.interfaces.ICommand;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.StringReader;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Combines several shell commands for one device in to a single shell
+ * invocation, and splits the combined output back in to one result per command.
+ * Each command's output is surrounded by delimiters unique to the batch;
+ * the closing delimiter carries the command's exit code.
+ * When run in parallel, every command writes to its own temporary file on
+ * the device, and the files are printed in order once all commands have finished.
+ * This class is package-private.
+ * @author simoncahill
+ */
+final class CommandBatch {
+    
+    private static final SecureRandom RANDOM = new SecureRandom();
+    
+    private final List<AndroidCommand> commands;
+    private final boolean parallel;
+    private final String token;
+    private final boolean root;
+    
+    /**
+     * Default constructor.
+     * @param device The device all commands are executed on.
+     * @param commands The commands to combine. All must be shell commands.
+     * @param parallel Set to {@code true} to run the commands in parallel on the device.
+     * @throws IllegalArgumentException If a command is not a shell command for the
+     *                                  given device, or if root and non-root commands are mixed.
+     */
+    CommandBatch(Device device, List<? extends ICommand> commands, boolean parallel) {
+        this.commands = new ArrayList<>(commands.size());
+        this.parallel = parallel;
+        this.token = Long.toHexString(RANDOM.nextLong());
+        
+        Boolean runAsRoot = null;
+        for (ICommand cmd : commands) {
+            if (!(cmd instanceof AndroidCommand) || !((AndroidCommand)cmd).isShellCommand())
+                throw new IllegalArgumentException("Only shell commands can be batched.");
+            AndroidCommand command = (AndroidCommand)cmd;
+            if (command.getDevice() != null && command.getDevice() != device)
+                throw new IllegalArgumentException("All batched commands must be executed on the same device.");
+            if (runAsRoot != null && runAsRoot != command.runAsRoot())
+                throw new IllegalArgumentException("Root and non-root commands cannot be batched together.");
+            runAsRoot = command.runAsRoot();
+            this.commands.add(command);
+        }
+        this.root = runAsRoot != null && runAsRoot;
+    }
+    
+    /**
+     * Gets a value indicating whether this batch needs super user-rights.
+     * @return {@code true} if all commands in this batch run as root.
+     */
+    boolean isRoot() { return root; }
+    
+    /**
+     * Gets the combined timeout of all commands in this batch.
+     * @return The sum of all timeouts, or -1 if any command has no timeout.
+     */
+    long getTimeout() {
+        long timeout = 0;
+        for (AndroidCommand command : commands) {
+            if (command.getTimeout() < 0) return -1;
+            timeout += command.getTimeout();
+        }
+        return timeout;
+    }
+    
+    /**
+     * Gets the highest priority of all commands in this batch.
+     * @return The priority the batch should be scheduled with.
+     */
+    CommandPriority getPriority() {
+        CommandPriority priority = CommandPriority.BULK;
+        for (AndroidCommand command : commands)
+            if (command.getPriority().ordinal() < priority.ordinal())
+                priority = command.getPriority();
+        return priority;
+    }
+    
+    /**
+     * Builds the shell script executing all commands in this batch.
+     * @return The script, as a single command line.
+     */
+    String buildScript() {
+        StringBuilder script = new StringBuilder();
+        if (!parallel) {
+            for (int i = 0; i < commands.size(); i++)
+                script.append(String.format("echo %s; { %s ; } </dev/null 2>&1; __jdl=$?; echo; echo %s$__jdl; ",
+                        begin(i), commandLine(i), end(i)));
+            return script.toString();
+        }
+        
+        String dir = "/data/local/tmp/.jdroidlib." + token;
+        script.append("mkdir -p ").append(dir).append("; ");
+        for (int i = 0; i < commands.size(); i++)
+            script.append(String.format("( { %s ; } </dev/null >%s/%d 2>&1; echo $? >%s/%d.rc ) & ",
+                    commandLine(i), dir, i, dir, i));
+        script.append("wait; ");
+        for (int i = 0; i < commands.size(); i++)
+            script.append(String.format("echo %s; cat %s/%d; echo; echo %s$(cat %s/%d.rc); ",
+                    begin(i), dir, i, end(i), dir, i));
+        script.append("rm -rf ").append(dir);
+        return script.toString();
+    }
+    
+    /**
+     * Splits the combined output of this batch in to one result per command.
+     * Commands whose delimiters are missing (e.g.: because the batch was
+     * aborted) get an exit code of -1.
+     * @param output The combined output, lines separated by {@code \n}.
+     * @return The results, in the order the commands were added.
+     * @throws IOException Never thrown, as the output is held in memory.
+     */
+    List<CommandResult> parse(String output) throws IOException {
+        List<CommandResult> results = new ArrayList<>(commands.size());
+        StringBuilder current = null;
+        String line;
+        
+        try (BufferedReader reader = new BufferedReader(new StringReader(output))) {
+            while ((line = reader.readLine()) != null && results.size() < commands.size()) {
+                if (line.endsWith("\r")) line = line.substring(0, line.length() - 1);
+                int index = results.size();
+                if (current == null) {
+                    if (line.equals(begin(index))) current = new StringBuilder();
+                    continue;
+                }
+                if (line.startsWith(end(index))) {
+                    // Drop the newline echoed in front of the end delimiter.
+                    current.setLength(Math.max(0, current.length() - 1));
+                    results.add(new CommandResult(current.toString(), parseExitCode(line.substring(end(index).length()))));
+                    current = null;
+                    continue;
+                }
+                current.append(line).append('\n');
+            }
+        }
+        
+        if (current != null)
+            results.add(new CommandResult(current.toString(), -1));
+        while (results.size() < commands.size())
+            results.add(new CommandResult("", -1));
+        return results;
+    }
+    
+    private String commandLine(int index) {
+        AndroidCommand command = commands.get(index);
+        return AdbSocketController.joinCommandLine(command.getCommand(), command.getArgs());
+    }
+    
+    private String begin(int index) { return ":JDLB:" + token + ":" + index; }
+    
+    private String end(int index) { return ":JDLE:" + token + ":" + index + ":"; }
+    
+    private static int parseExitCode(String value) {
+        try {
+            return Integer.parseInt(value.trim());
+        } catch (NumberFormatException ex) {
+            return -1;
+        }
+    }
+    
+}
@@ -0,0 +1,164 @@
+/*
+ * Copyright (C) 2016 Ca Softworks.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+package com.casoftworks.jdroidlib.android;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs commands asynchronously for all controllers in JDroidLib.
+ * Commands spend nearly all of their time waiting on I/O, so on Java 21 and
+ * newer each command runs on its own virtual thread; thousands of commands
+ * may then be in flight without tying up as many platform threads.
+ * On older runtimes a cached pool of daemon threads is used instead.
+ * This class is package-private.
+ * @author simoncahill
+ */
+final class CommandExecutor {
+    
+    private static final ExecutorService EXECUTOR = createExecutor();
+    
+    private CommandExecutor() { }
+    
+    /**
+     * Submits a task for asynchronous execution.
+     * The returned future is completed with the task's result, or
+     * exceptionally with the exception the task threw. Cancelling the future
+     * with {@code mayInterruptIfRunning} set interrupts the running task, and
+     * closes the resource it registered with {@link #closeOnCancel(java.io.Closeable)}.
+     * @param <T> The result type.
+     * @param task The task to run.
+     * @return A future representing the task.
+     */
+    static <T> CompletableFuture<T> submit(Callable<T> task) {
+        CommandFuture<T> future = new CommandFuture<>();
+        EXECUTOR.execute(() -> future.run(task));
+        return future;
+    }
+    
+    /**
+     * Registers the resource the calling task is blocked on, so cancelling the
+     * task's future can stop it. Reading the pipe of a process or a socket
+     * does not respond to interrupts; closing the resource (or destroying the
+     * process) is the only way to stop such a command.
+     * The resource replaces the one registered before by the same task, and
+     * is forgotten once the task has finished. Calls from threads which are not
+     * running a task of this executor have no effect.
+     * @param resource The resource to close if the task is cancelled.
+     */
+    static void closeOnCancel(Closeable resource) {
+        CommandFuture<?> future = CommandFuture.CURRENT.get();
+        if (future != null) future.closeOnCancel(resource);
+    }
+    
+    /**
+     * Gets a value indicating whether commands are run on virtual threads.
+     * @return {@code true} if the runtime supports virtual threads.
+     */
+    static boolean usesVirtualThreads() { return !(EXECUTOR instanceof ThreadPoolExecutor); }
+    
+    private static ExecutorService createExecutor() {
+        try {
+            Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService)factory.invoke(null);
+        } catch (ReflectiveOperationException | RuntimeException ex) {
+            AtomicInteger count = new AtomicInteger();
+            return Executors.newCachedThreadPool(runnable -> {
+                Thread thread = new Thread(runnable, "JDroidLib command #" + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+    }
+    
+    /**
+     * A future which knows the thread running its task, so it can be interrupted on cancellation.
+     * The running state, the interrupt and the registered resource are guarded by one lock,
+     * so a cancellation never reaches a task the thread runs after this one.
+     * @param <T> The result type.
+     */
+    private static final class CommandFuture<T> extends CompletableFuture<T> {
+        
+        private static final ThreadLocal<CommandFuture<?>> CURRENT = new ThreadLocal<>();
+        
+        private final Object lock = new Object();
+        private Thread runner;
+        private Closeable resource;
+        private boolean stopped;
+        
+        void run(Callable<T> task) {
+            synchronized (lock) {
+                if (isDone()) return;
+                runner = Thread.currentThread();
+            }
+            CURRENT.set(this);
+            try {
+                complete(task.call());
+            } catch (Throwable ex) {
+                completeExceptionally(ex);
+            } finally {
+                CURRENT.remove();
+                synchronized (lock) {
+                    runner = null;
+                    resource = null;
+                }
+                // Clear an interrupt delivered by cancel() while the task was finishing.
+                Thread.interrupted();
+            }
+        }
+        
+        void closeOnCancel(Closeable resource) {
+            synchronized (lock) {
+                this.resource = resource;
+                // The task was stopped before it got to register the resource.
+                if (stopped) close(resource);
+            }
+        }
+        
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            boolean cancelled = super.cancel(mayInterruptIfRunning);
+            if (cancelled && mayInterruptIfRunning) {
+                synchronized (lock) {
+                    if (runner != null) {
+                        stopped = true;
+                        runner.interrupt();
+                        if (resource != null) close(resource);
+                    }
+                }
+            }
+            return cancelled;
+        }
+        
+        private static void close(Closeable resource) {
+            try {
+                resource.close();
+            } catch (IOException ex) { }
+        }
+        
+    }
+    
+}
@@ -0,0 +1,363 @@
+/*
+ * Copyright (C) 2016 Ca Softworks.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+package com.casoftworks.jdroidlib.android;
+
+import com.casoftworks.jdroidlib.interfaces.ICommand;
+import com.casoftworks.jdroidlib.interfaces.ICommandMetrics;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+ * Registry of the metrics recorded for every command executed by JDroidLib.
+ * For each execution, the controllers report the time taken to spawn the ADB
+ * process or connect to the ADB server, the time to the first byte of output,
+ * the total latency, the number of bytes read and the outcome.
+ * Metrics are kept per device serial and command name in {@link CommandStats},
+ * which can be read programmatically or through JMX.
+ * Samples are recycled through a small lock-free pool, so once a combination
+ * of device and command is known, recording an execution does not allocate
+ * any memory.
+ * This is a singleton class.
+ * @author simoncahill
+ */
+public final class CommandMetrics implements ICommandMetrics {
+    
+    //<editor-fold defaultstate="collapsed" desc="Singleton Stuff" >
+    private static final CommandMetrics INSTANCE = new CommandMetrics();
+    
+    /**
+     * Gets the instance of this class.
+     * @return The registry used by all controllers.
+     */
+    public static CommandMetrics getInstance() { return INSTANCE; }
+    //</editor-fold>
+    
+    /** The domain of all MBeans registered by JDroidLib. */
+    public static final String JMX_DOMAIN = "com.casoftworks.jdroidlib";
+    
+    /** The name under which executions are counted once too many commands are tracked. */
+    static final String OVERFLOW = "*";
+    
+    private static final int POOL_SIZE = 64;
+    
+    private final ConcurrentMap<String, ConcurrentMap<String, CommandStats>> stats = new ConcurrentHashMap<>();
+    private final Sample disabled = new Sample(null, false);
+    private final AtomicReferenceArray<Sample> pool = new AtomicReferenceArray<>(POOL_SIZE);
+    private volatile boolean enabled = true;
+    private volatile int maxTrackedCommands = 1024;
+    private int trackedCommands = 0;
+    private boolean jmxRegistered = false;
+    
+    private CommandMetrics() { }
+    
+    /**
+     * Sets the maximum number of combinations of device and command tracked.
+     * Further combinations are counted together, under the serial number and
+     * command {@code *}.
+     * @param maxTrackedCommands The maximum number of tracked commands. Default is 1024.
+     */
+    public void setMaxTrackedCommands(int maxTrackedCommands) { this.maxTrackedCommands = maxTrackedCommands; }
+    
+    /**
+     * Gets the maximum number of combinations of device and command tracked.
+     * @return The maximum number of tracked commands.
+     */
+    public int getMaxTrackedCommands() { return maxTrackedCommands; }
+    
+    /**
+     * Gets the metrics of a given command on a given device.
+     * @param serialNumber The serial number of the device, or an empty string
+     *                     for commands run directly within the ADB.
+     * @param command The name of the command (e.g.: {@code dumpsys}).
+     * @return The metrics, or {@code null} if the command has not been executed on the device.
+     */
+    public CommandStats getStats(String serialNumber, String command) {
+        ConcurrentMap<String, CommandStats> byCommand = stats.get(serialNumber);
+        return byCommand == null ? null : byCommand.get(command);
+    }
+    
+    /**
+     * Gets the metrics of all commands on all devices.
+     * @return A snapshot of the list of tracked commands.
+     */
+    public List<CommandStats> getStats() {
+        List<CommandStats> list = new ArrayList<>();
+        stats.values().forEach(byCommand -> list.addAll(byCommand.values()));
+        return list;
+    }
+    
+    //<editor-fold defaultstate="collapsed" desc="Methods implemented from ICommandMetrics" >
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean isEnabled() { return enabled; }
+    
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void setEnabled(boolean enabled) { this.enabled = enabled; }
+    
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public synchronized int getTrackedCommands() { return trackedCommands; }
+    
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long getTotalCommands() {
+        long total = 0;
+        for (CommandStats entry : getStats())
+            total += entry.getCount();
+        return total;
+    }
+    
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void reset() { getStats().forEach(CommandStats::reset); }
+    //</editor-fold>
+    
+    /**
+     * Starts recording the execution of a given command.
+     * The sample must be closed once the command has finished, by the thread
+     * which started it, and must not be used afterwards: it is recycled.
+     * @param cmd The command being executed.
+     * @return The sample to report the execution to.
+     */
+    Sample start(ICommand cmd) {
+        if (!enabled) return disabled;
+        CommandStats entry = statsFor(cmd);
+        
+        int first = (int)Thread.currentThread().getId();
+        for (int i = 0; i < POOL_SIZE; i++) {
+            int slot = (first + i) & (POOL_SIZE - 1);
+            Sample sample = pool.get(slot);
+            if (sample != null && pool.compareAndSet(slot, sample, null))
+                return sample.reset(entry);
+        }
+        return new Sample(this, true).reset(entry);
+    }
+    
+    /**
+     * Starts recording the execution of a command whose output is handed to
+     * the caller as a stream. The stream may be read, or closed, after the
+     * sample has been closed, so unlike {@link #start(ICommand)}, the sample
+     * is never recycled.
+     * @param cmd The command being executed.
+     * @return The sample to report the execution to.
+     */
+    Sample startStreaming(ICommand cmd) {
+        return enabled ? new Sample(this, false).reset(statsFor(cmd)) : disabled;
+    }
+    
+    private CommandStats statsFor(ICommand cmd) {
+        String serial = "";
+        String command = cmd.getClass().getSimpleName();
+        if (cmd instanceof AndroidCommand) {
+            AndroidCommand androidCmd = (AndroidCommand)cmd;
+            Device device = androidCmd.getDevice();
+            serial = device == null ? "" : device.getSerialNumber();
+            command = androidCmd.getCommand();
+            if ("exec-out".equals(command) && !androidCmd.getArgs().isEmpty())
+                command = androidCmd.getArgs().get(0);
+        }
+        return statsFor(serial, command);
+    }
+    
+    private CommandStats statsFor(String serial, String command) {
+        CommandStats entry = getStats(serial, command);
+        return entry != null ? entry : create(serial, command);
+    }
+    
+    private synchronized CommandStats create(String serial, String command) {
+        CommandStats entry = getStats(serial, command);
+        if (entry != null) return entry;
+        if (trackedCommands >= maxTrackedCommands && !(OVERFLOW.equals(serial) && OVERFLOW.equals(command)))
+            return create(OVERFLOW, OVERFLOW);
+        
+        entry = new CommandStats(serial, command);
+        stats.computeIfAbsent(serial, key -> new ConcurrentHashMap<>()).put(command, entry);
+        trackedCommands++;
+        register(entry);
+        return entry;
+    }
+    
+    /**
+     * Registers the registry, and a given command's metrics, with the platform
+     * MBean server. Failing to do so (e.g.: if JDroidLib has been loaded twice)
+     * is not fatal; the metrics remain available programmatically.
+     */
+    private void register(CommandStats entry) {
+        try {
+            if (!jmxRegistered) {
+                jmxRegistered = true;
+                ManagementFactory.getPlatformMBeanServer().registerMBean(this, new ObjectName(JMX_DOMAIN + ":type=CommandMetrics"));
+            }
+            ManagementFactory.getPlatformMBeanServer().registerMBean(entry, new ObjectName(String.format("%s:type=CommandStats,serial=%s,command=%s",
+                    JMX_DOMAIN, ObjectName.quote(entry.getSerialNumber()), ObjectName.quote(entry.getCommand()))));
+        } catch (JMException | SecurityException ex) { }
+    }
+    
+    private void recycle(Sample sample) {
+        int first = (int)Thread.currentThread().getId();
+        for (int i = 0; i < POOL_SIZE; i++) {
+            int slot = (first + i) & (POOL_SIZE - 1);
+            if (pool.get(slot) == null && pool.compareAndSet(slot, null, sample)) return;
+        }
+    }
+    
+    /**
+     * The record of a single execution.
+     * Controllers report the milestones of the execution as they are reached,
+     * and close the sample once the execution has ended. Executions which are
+     * closed without an exit code are counted as errors.
+     * A sample is only used by one thread at a time, so it is not synchronized;
+     * its output is counted by a single reusable stream.
+     */
+    static final class Sample implements AutoCloseable {
+        
+        /**
+         * Counts the bytes read from the stream it currently wraps.
+         */
+        private final class Counter extends FilterInputStream {
+            
+            private Counter() { super(null); }
+            
+            private InputStream wrap(InputStream stream) {
+                in = stream;
+                return this;
+            }
+            
+            @Override
+            public int read() throws IOException {
+                int read = in.read();
+                if (read >= 0) Sample.this.read(1);
+                return read;
+            }
+            
+            @Override
+            public int read(byte[] buffer, int offset, int length) throws IOException {
+                int read = in.read(buffer, offset, length);
+                Sample.this.read(read);
+                return read;
+            }
+            
+        }
+        
+        private final CommandMetrics owner;
+        private final boolean recyclable;
+        private final Counter counter;
+        private CommandStats stats;
+        private long start;
+        private long connected;
+        private long firstByte;
+        private long bytes;
+        private int exitCode;
+        private boolean finished;
+        private boolean closed;
+        
+        private Sample(CommandMetrics owner, boolean recyclable) {
+            this.owner = owner;
+            this.recyclable = recyclable;
+            this.counter = owner == null ? null : new Counter();
+        }
+        
+        private Sample reset(CommandStats stats) {
+            this.stats = stats;
+            this.start = System.nanoTime();
+            this.connected = 0;
+            this.firstByte = 0;
+            this.bytes = 0;
+            this.exitCode = -1;
+            this.finished = false;
+            this.closed = false;
+            return this;
+        }
+        
+        /**
+         * Reports that the ADB process has been spawned, or the connection accepted.
+         */
+        void started() {
+            if (stats != null && connected == 0) connected = System.nanoTime();
+        }
+        
+        /**
+         * Reports that output has been read.
+         * @param count The number of bytes read.
+         */
+        void read(long count) {
+            if (stats == null || count <= 0) return;
+            if (firstByte == 0) firstByte = System.nanoTime();
+            bytes += count;
+        }
+        
+        /**
+         * Reports the exit code of the command.
+         * @param exitCode The exit code, or -1 if it is unknown.
+         */
+        void finished(int exitCode) {
+            this.exitCode = exitCode;
+            this.finished = true;
+        }
+        
+        /**
+         * Wraps a stream of output, so every byte read from it is reported to this sample.
+         * The wrapper is reused: only the stream passed last is counted, and it
+         * must be read by the thread using this sample.
+         * @param stream The stream to wrap.
+         * @return The wrapped stream.
+         */
+        InputStream count(InputStream stream) {
+            if (stats == null) return stream;
+            return counter.wrap(stream);
+        }
+        
+        /**
+         * Records this sample. Only the first call has any effect.
+         */
+        @Override
+        public void close() {
+            if (stats == null || closed) return;
+            closed = true;
+            stats.record(start, connected, firstByte, bytes, exitCode, !finished);
+            if (!recyclable) return;
+            stats = null;
+            counter.wrap(null);
+            owner.recycle(this);
+        }
+        
+    }
+    
+}
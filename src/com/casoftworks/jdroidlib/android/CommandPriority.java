@@ -0,0 +1,45 @@
+/*
+ * Copyright (C) 2016 Ca Softworks.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+package com.casoftworks.jdroidlib.android;
+
+/**
+ * The priority classes commands are scheduled in.
+ * When a device is busy, waiting commands of a higher priority are started
+ * before any waiting commands of a lower priority. Commands of the same
+ * priority are started in the order they were issued.
+ * @author simoncahill
+ */
+public enum CommandPriority {
+    
+    /**
+     * Short queries a user is waiting for (e.g.: the battery level on a dashboard).
+     */
+    INTERACTIVE,
+    
+    /**
+     * The default priority for all commands.
+     */
+    NORMAL,
+    
+    /**
+     * Long-running transfers and background work (e.g.: pulling files, installing packages).
+     */
+    BULK;
+    
+}
@@ -0,0 +1,85 @@
+/*
+ * Copyright (C) 2016 Ca Softworks.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+package com.casoftworks.jdroidlib.android;
+
+/**
+ * The outcome of a single command: its output, its error output and its exit code.
+ * Error output is only kept apart where the transport can tell it from the
+ * regular output (e.g.: devices supporting the {@code shell_v2} protocol);
+ * otherwise it is part of {@link #getOutput()}.
+ * Instances of this class are immutable.
+ * @author simoncahill
+ */
+public final class CommandResult {
+    
+    private final String output;
+    private final String error;
+    private final int exitCode;
+    
+    /**
+     * Default constructor. Package-private.
+     * @param output The output of the command.
+     * @param exitCode The exit code of the command.
+     */
+    CommandResult(String output, int exitCode) { this(output, "", exitCode); }
+    
+    /**
+     * Constructor for results whose error output was kept apart. Package-private.
+     * @param output The output of the command.
+     * @param error The error output of the command.
+     * @param exitCode The exit code of the command.
+     */
+    CommandResult(String output, String error, int exitCode) {
+        this.output = output;
+        this.error = error;
+        this.exitCode = exitCode;
+    }
+    
+    /**
+     * Gets the output of the command.
+     * @return The output, lines separated by {@code \n}.
+     */
+    public String getOutput() { return output; }
+    
+    /**
+     * Gets the error output of the command.
+     * @return The error output, lines separated by {@code \n}. Empty if the
+     *         error output was merged in to the regular output.
+     */
+    public String getError() { return error; }
+    
+    /**
+     * Gets the exit code of the command.
+     * @return The exit code, or -1 if it could not be determined.
+     */
+    public int getExitCode() { return exitCode; }
+    
+    /**
+     * Gets a value indicating whether the command succeeded.
+     * @return {@code true} if the exit code is 0.
+     */
+    public boolean isSuccess() { return exitCode == 0; }
+    
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String toString() { return String.format("CommandResult[exitCode=%d, output=%s, error=%s]", exitCode, output, error); }
+    
+}
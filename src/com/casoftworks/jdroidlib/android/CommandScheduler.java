@@ -0,0 +1,245 @@
+/*
+ * Copyright (C) 2016 Ca Softworks.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+package com.casoftworks.jdroidlib.android;
+
+import com.casoftworks.jdroidlib.exception.CommandRejectedException;
+import com.casoftworks.jdroidlib.interfaces.ICommand;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Decides when commands may start, so devices are not flooded with commands.
+ * Every device has its own bounded queue and its own limit of commands
+ * running at the same time; on top of that, a global limit applies to all
+ * devices together.
+ * Within a device, waiting commands are started by {@link CommandPriority},
+ * oldest first. Across devices, free slots are handed out round-robin, so a
+ * single busy device cannot starve all others.
+ * Commands not bound to a device (e.g.: {@code adb devices}) share a queue of their own.
+ * This class is package-private.
+ * @author simoncahill
+ */
+final class CommandScheduler {
+    
+    /**
+     * A command's permission to run. Must be handed back via {@link CommandScheduler#release(Ticket)}.
+     */
+    static final class Ticket {
+        
+        private final DeviceQueue queue;
+        /** The thread waiting for this ticket; only this thread is woken once the ticket is granted. */
+        private final Thread owner = Thread.currentThread();
+        /** Written while holding the scheduler's lock, read by the waiting thread without it. */
+        private volatile boolean granted = false;
+        
+        private Ticket(DeviceQueue queue) { this.queue = queue; }
+        
+    }
+    
+    /**
+     * The waiting and running commands of a single device.
+     */
+    private static final class DeviceQueue {
+        
+        private final String serial;
+        @SuppressWarnings("unchecked")
+        private final ArrayDeque<Ticket>[] waiting = new ArrayDeque[CommandPriority.values().length];
+        private int queued = 0;
+        private int running = 0;
+        private boolean scheduled = false;
+        
+        DeviceQueue(String serial) {
+            this.serial = serial;
+            for (int i = 0; i < waiting.length; i++)
+                waiting[i] = new ArrayDeque<>();
+        }
+        
+        Ticket poll() {
+            for (ArrayDeque<Ticket> tickets : waiting) {
+                Ticket ticket = tickets.pollFirst();
+                if (ticket != null) {
+                    queued--;
+                    return ticket;
+                }
+            }
+            return null;
+        }
+        
+    }
+    
+    private final Map<String, DeviceQueue> queues = new HashMap<>();
+    /** Devices with waiting commands, in the order they are served. */
+    private final ArrayDeque<DeviceQueue> rotation = new ArrayDeque<>();
+    private int running = 0;
+    private int maxRunning = 64;
+    private int maxRunningPerDevice = 4;
+    private int maxQueuedPerDevice = 256;
+    
+    /**
+     * Sets the limits of this scheduler.
+     * Lowering a limit does not affect commands which are already running.
+     * @param maxRunning The maximum number of commands running at the same time, for all devices together.
+     * @param maxRunningPerDevice The maximum number of commands running at the same time on a single device.
+     * @param maxQueuedPerDevice The maximum number of commands waiting for a single device.
+     */
+    synchronized void setLimits(int maxRunning, int maxRunningPerDevice, int maxQueuedPerDevice) {
+        this.maxRunning = Math.max(1, maxRunning);
+        this.maxRunningPerDevice = Math.max(1, maxRunningPerDevice);
+        this.maxQueuedPerDevice = Math.max(0, maxQueuedPerDevice);
+        dispatch();
+    }
+    
+    /**
+     * Waits until a given command may run.
+     * @param cmd The command which is about to run.
+     * @return The command's ticket, which must be released once the command has finished.
+     * @throws CommandRejectedException If too many commands are already waiting for the command's device.
+     * @throws InterruptedException If the thread was interrupted while waiting.
+     */
+    Ticket acquire(ICommand cmd) throws CommandRejectedException, InterruptedException {
+        String serial = "";
+        CommandPriority priority = CommandPriority.NORMAL;
+        if (cmd instanceof AndroidCommand) {
+            AndroidCommand command = (AndroidCommand)cmd;
+            if (command.getDevice() != null)
+                serial = command.getDevice().getSerialNumber();
+            priority = command.getPriority();
+        }
+        return acquire(serial, priority);
+    }
+    
+    /**
+     * Waits until a command for a given device may run.
+     * @param serial The serial number of the device, or an empty string for commands not bound to a device.
+     * @param priority The priority of the command.
+     * @return The command's ticket, which must be released once the command has finished.
+     * @throws CommandRejectedException If too many commands are already waiting for the device.
+     * @throws InterruptedException If the thread was interrupted while waiting.
+     */
+    Ticket acquire(String serial, CommandPriority priority) throws CommandRejectedException, InterruptedException {
+        Ticket ticket;
+        synchronized (this) {
+            DeviceQueue queue = queues.get(serial);
+            if (queue == null)
+                queues.put(serial, queue = new DeviceQueue(serial));
+            
+            ticket = new Ticket(queue);
+            if (queue.queued == 0 && queue.running < maxRunningPerDevice && running < maxRunning) {
+                grant(ticket);
+                return ticket;
+            }
+            if (queue.queued >= maxQueuedPerDevice)
+                throw new CommandRejectedException(String.format("Too many commands are waiting for device '%s'.", serial));
+            
+            queue.waiting[priority.ordinal()].addLast(ticket);
+            queue.queued++;
+            if (!queue.scheduled) {
+                queue.scheduled = true;
+                rotation.addLast(queue);
+            }
+            dispatch();
+        }
+        
+        // Wait outside the lock; dispatch() unparks this thread once the ticket is granted.
+        while (!ticket.granted) {
+            LockSupport.park(this);
+            if (Thread.interrupted()) {
+                cancel(ticket, priority);
+                throw new InterruptedException();
+            }
+        }
+        return ticket;
+    }
+    
+    /**
+     * Gives up a ticket whose thread was interrupted while waiting.
+     * If the ticket was granted in the meantime, it is released instead.
+     * @param ticket The ticket to give up.
+     * @param priority The priority the ticket was queued with.
+     */
+    private synchronized void cancel(Ticket ticket, CommandPriority priority) {
+        if (ticket.granted) {
+            release(ticket);
+            return;
+        }
+        DeviceQueue queue = ticket.queue;
+        if (queue.waiting[priority.ordinal()].remove(ticket))
+            queue.queued--;
+        if (queue.running == 0 && queue.queued == 0) {
+            if (queue.scheduled) {
+                rotation.remove(queue);
+                queue.scheduled = false;
+            }
+            queues.remove(queue.serial);
+        }
+    }
+    
+    /**
+     * Hands back a ticket once its command has finished, allowing waiting commands to run.
+     * @param ticket The ticket to hand back. May be {@code null}.
+     */
+    synchronized void release(Ticket ticket) {
+        if (ticket == null || !ticket.granted) return;
+        ticket.granted = false;
+        running--;
+        DeviceQueue queue = ticket.queue;
+        queue.running--;
+        if (queue.running == 0 && queue.queued == 0 && !queue.scheduled)
+            queues.remove(queue.serial);
+        dispatch();
+    }
+    
+    /**
+     * Hands free slots to waiting commands, visiting devices round-robin.
+     * Must be called while holding the lock.
+     */
+    private void dispatch() {
+        int skipped = 0;
+        while (running < maxRunning && skipped < rotation.size()) {
+            DeviceQueue queue = rotation.pollFirst();
+            if (queue.queued == 0) {
+                queue.scheduled = false;
+                continue;
+            }
+            if (queue.running >= maxRunningPerDevice) {
+                rotation.addLast(queue);
+                skipped++;
+                continue;
+            }
+            
+            Ticket ticket = queue.poll();
+            grant(ticket);
+            LockSupport.unpark(ticket.owner);
+            skipped = 0;
+            if (queue.queued > 0)
+                rotation.addLast(queue);
+            else queue.scheduled = false;
+        }
+    }
+    
+    private void grant(Ticket ticket) {
+        ticket.granted = true;
+        ticket.queue.running++;
+        running++;
+    }
+    
+}
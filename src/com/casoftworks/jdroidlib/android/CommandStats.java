@@ -0,0 +1,236 @@
+/*
+ * Copyright (C) 2016 Ca Softworks.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+package com.casoftworks.jdroidlib.android;
+
+import com.casoftworks.jdroidlib.interfaces.ICommandStats;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The metrics recorded for one command on one device.
+ * Times are recorded in nanoseconds; the {@link ICommandStats} getters report
+ * them in milliseconds.
+ * @author simoncahill
+ * @see CommandMetrics
+ */
+public final class CommandStats implements ICommandStats {
+    
+    private final String serialNumber;
+    private final String command;
+    
+    private final Histogram startTime = new Histogram();
+    private final Histogram timeToFirstByte = new Histogram();
+    private final Histogram latency = new Histogram();
+    private final Histogram bytesRead = new Histogram();
+    
+    private final AtomicLong succeeded = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final AtomicLong unknown = new AtomicLong();
+    private final AtomicLong errors = new AtomicLong();
+    
+    /**
+     * Default constructor. Package-private.
+     * @param serialNumber The serial number of the device, or an empty string.
+     * @param command The name of the command.
+     */
+    CommandStats(String serialNumber, String command) {
+        this.serialNumber = serialNumber;
+        this.command = command;
+    }
+    
+    //<editor-fold defaultstate="collapsed" desc="Histograms" >
+    /**
+     * Gets the time taken to spawn the ADB process or connect to the ADB server, in nanoseconds.
+     * @return The histogram of start times.
+     */
+    public Histogram getStartTime() { return startTime; }
+    
+    /**
+     * Gets the time from starting a command until its first byte of output arrived, in nanoseconds.
+     * @return The histogram of times to first byte.
+     */
+    public Histogram getTimeToFirstByte() { return timeToFirstByte; }
+    
+    /**
+     * Gets the time from starting a command until it has finished, in nanoseconds.
+     * @return The histogram of latencies.
+     */
+    public Histogram getLatency() { return latency; }
+    
+    /**
+     * Gets the number of bytes of output read per execution.
+     * @return The histogram of output sizes.
+     */
+    public Histogram getOutputSize() { return bytesRead; }
+    //</editor-fold>
+    
+    //<editor-fold defaultstate="collapsed" desc="Methods implemented from ICommandStats" >
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String getSerialNumber() { return serialNumber; }
+    
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String getCommand() { return command; }
+    
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long getCount() { return succeeded.get() + failed.get() + unknown.get() + errors.get(); }
+    
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long getSucceeded() { return succeeded.get(); }
+    
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long getFailed() { return failed.get(); }
+    
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long getUnknown() { return unknown.get(); }
+    
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long getErrors() { return errors.get(); }
+    
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long getBytesRead() { return bytesRead.getSum(); }
+    
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public double getLatencyMeanMillis() { return latency.getMean() / TimeUnit.MILLISECONDS.toNanos(1); }
+    
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public double getLatencyP50Millis() { return millis(latency.getValueAtPercentile(50)); }
+    
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public double getLatencyP90Millis() { return millis(latency.getValueAtPercentile(90)); }
+    
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public double getLatencyP99Millis() { return millis(latency.getValueAtPercentile(99)); }
+    
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public double getLatencyMaxMillis() { return millis(latency.getMax()); }
+    
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public double getStartTimeP50Millis() { return millis(startTime.getValueAtPercentile(50)); }
+    
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public double getStartTimeP99Millis() { return millis(startTime.getValueAtPercentile(99)); }
+    
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public double getTimeToFirstByteP50Millis() { return millis(timeToFirstByte.getValueAtPercentile(50)); }
+    
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public double getTimeToFirstByteP99Millis() { return millis(timeToFirstByte.getValueAtPercentile(99)); }
+    
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void reset() {
+        startTime.reset();
+        timeToFirstByte.reset();
+        latency.reset();
+        bytesRead.reset();
+        succeeded.set(0);
+        failed.set(0);
+        unknown.set(0);
+        errors.set(0);
+    }
+    //</editor-fold>
+    
+    /**
+     * Records a finished execution.
+     * @param start The time (as of {@link System#nanoTime()}) the command was started.
+     * @param connected The time the process was spawned or the connection accepted, or 0.
+     * @param firstByte The time the first byte of output arrived, or 0.
+     * @param bytes The number of bytes of output read.
+     * @param exitCode The exit code, or -1 if it is unknown.
+     * @param error Whether the execution ended with an exception.
+     */
+    void record(long start, long connected, long firstByte, long bytes, int exitCode, boolean error) {
+        long end = System.nanoTime();
+        if (connected != 0) startTime.record(connected - start);
+        if (firstByte != 0) timeToFirstByte.record(firstByte - start);
+        latency.record(end - start);
+        bytesRead.record(bytes);
+        
+        if (error) errors.incrementAndGet();
+        else if (exitCode == 0) succeeded.incrementAndGet();
+        else if (exitCode > 0) failed.incrementAndGet();
+        else unknown.incrementAndGet();
+    }
+    
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String toString() {
+        return String.format("CommandStats[serial=%s, command=%s, count=%d, errors=%d, latency=%s]",
+                serialNumber, command, getCount(), getErrors(), latency);
+    }
+    
+    private static double millis(long nanos) { return nanos / (double)TimeUnit.MILLISECONDS.toNanos(1); }
+    
+}
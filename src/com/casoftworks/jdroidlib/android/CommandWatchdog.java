@@ -0,0 +1,396 @@
+/*
+ * Copyright (C) 2016 Ca Softworks.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+package com.casoftworks.jdroidlib.android;
+
+import com.casoftworks.jdroidlib.exception.CommandTimeoutException;
+
+import java.io.Closeable;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Enforces the timeouts of all commands executed by JDroidLib.
+ * Deadlines are kept in a hashed timing wheel: registering and cancelling a
+ * deadline costs constant time, and a single background thread advances the
+ * wheel, so tens of thousands of pending deadlines cost next to nothing.
+ * When a command's deadline passes, its ADB process is killed, or its
+ * connection closed, and the command fails with a
+ * {@link com.casoftworks.jdroidlib.exception.CommandTimeoutException}.
+ * Killed processes are checked once more after a grace period; processes
+ * which are still alive by then are counted as leaked.
+ * This is a singleton class.
+ * @author simoncahill
+ */
+public final class CommandWatchdog {
+    
+    //<editor-fold defaultstate="collapsed" desc="Singleton Stuff" >
+    private static final CommandWatchdog INSTANCE = new CommandWatchdog();
+    
+    /**
+     * Gets the instance of this class.
+     * @return The watchdog used by all controllers.
+     */
+    public static CommandWatchdog getInstance() { return INSTANCE; }
+    //</editor-fold>
+    
+    /**
+     * Something the watchdog can terminate.
+     */
+    interface Target {
+        
+        /**
+         * Terminates the command. Must not block.
+         * @throws IOException If terminating failed.
+         */
+        void kill() throws IOException;
+        
+        /**
+         * Gets a value indicating whether the command is still alive after it was killed.
+         * @return {@code true} if the command survived being killed.
+         */
+        boolean isAlive();
+        
+    }
+    
+    /**
+     * A registered deadline.
+     */
+    static final class Timeout {
+        
+        private static final int PENDING = 0, CANCELLED = 1, EXPIRED = 2;
+        
+        private final Target target;
+        private final long deadline;
+        private final AtomicInteger state = new AtomicInteger(PENDING);
+        private long rounds;
+        private boolean verification;
+        
+        private Timeout(Target target, long deadline) {
+            this.target = target;
+            this.deadline = deadline;
+        }
+        
+        /**
+         * Cancels this deadline, e.g.: because the command has finished.
+         * @return {@code true} if the deadline was cancelled before it expired.
+         */
+        boolean cancel() {
+            if (!state.compareAndSet(PENDING, CANCELLED)) return false;
+            if (!verification)
+                INSTANCE.pending.decrementAndGet();
+            return true;
+        }
+        
+        /**
+         * Gets a value indicating whether this deadline has passed and its command was killed.
+         * @return {@code true} if the deadline has expired.
+         */
+        boolean isExpired() { return state.get() == EXPIRED; }
+        
+        /**
+         * Throws a {@link CommandTimeoutException} if this deadline has expired.
+         * @throws CommandTimeoutException If the deadline has expired.
+         */
+        void throwIfExpired() throws CommandTimeoutException {
+            if (isExpired())
+                throw new CommandTimeoutException("The command did not finish in time and was terminated.");
+        }
+        
+    }
+    
+    /** A deadline which never expires. Used for commands without a timeout. */
+    static final Timeout NONE = new Timeout(null, Long.MAX_VALUE);
+    
+    static { NONE.state.set(Timeout.CANCELLED); }
+    
+    private static final long TICK_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+    private static final int WHEEL_SIZE = 512;
+    private static final long GRACE_PERIOD_MS = 5000;
+    
+    @SuppressWarnings("unchecked")
+    private final ArrayDeque<Timeout>[] wheel = new ArrayDeque[WHEEL_SIZE];
+    private final ConcurrentLinkedQueue<Timeout> added = new ConcurrentLinkedQueue<>();
+    private final long start = System.nanoTime();
+    private volatile Thread worker;
+    /** Set while the worker is parked because there is nothing to watch. */
+    private volatile boolean idle = false;
+    /** The number of deadlines in the wheel. Only used by the worker. */
+    private int size = 0;
+    
+    private final AtomicLong pending = new AtomicLong();
+    private final AtomicLong watched = new AtomicLong();
+    private final AtomicLong expired = new AtomicLong();
+    private final AtomicLong reaped = new AtomicLong();
+    private final AtomicLong leaked = new AtomicLong();
+    
+    private CommandWatchdog() {
+        for (int i = 0; i < WHEEL_SIZE; i++)
+            wheel[i] = new ArrayDeque<>();
+    }
+    
+    //<editor-fold defaultstate="collapsed" desc="Statistics" >
+    /**
+     * Gets the number of commands which were registered with a timeout.
+     * @return The number of watched commands.
+     */
+    public long getWatchedCommands() { return watched.get(); }
+    
+    /**
+     * Gets the number of commands currently waiting to finish or expire.
+     * @return The number of pending deadlines.
+     */
+    public long getPendingCommands() { return pending.get(); }
+    
+    /**
+     * Gets the number of commands which did not finish in time.
+     * @return The number of expired commands.
+     */
+    public long getExpiredCommands() { return expired.get(); }
+    
+    /**
+     * Gets the number of expired commands which were terminated successfully.
+     * @return The number of reaped commands.
+     */
+    public long getReapedCommands() { return reaped.get(); }
+    
+    /**
+     * Gets the number of expired commands whose process could not be
+     * terminated, or was still alive after the grace period.
+     * @return The number of leaked commands.
+     */
+    public long getLeakedCommands() { return leaked.get(); }
+    //</editor-fold>
+    
+    /**
+     * Registers a deadline for a command.
+     * @param timeout The timeout in milliseconds. Values smaller than 1 disable the timeout.
+     * @param target The command to terminate once the deadline has passed.
+     * @return The deadline. Must be cancelled once the command has finished.
+     */
+    Timeout watch(long timeout, Target target) {
+        if (timeout <= 0) return NONE;
+        Timeout entry = new Timeout(target, System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout));
+        watched.incrementAndGet();
+        pending.incrementAndGet();
+        schedule(entry);
+        return entry;
+    }
+    
+    /**
+     * Registers a deadline for a spawned ADB process.
+     * Only the ADB client itself is killed: its only possible child is an ADB
+     * server it started, which must outlive the command. Killing the client
+     * closes its connection, which ends the command on the device.
+     * @param timeout The timeout in milliseconds.
+     * @param process The process.
+     * @return The deadline.
+     */
+    Timeout watch(long timeout, final Process process) {
+        return watch(timeout, new Target() {
+            @Override
+            public void kill() { process.destroyForcibly(); }
+            @Override
+            public boolean isAlive() { return process.isAlive(); }
+        });
+    }
+    
+    /**
+     * Registers a deadline for a command running over a connection.
+     * @param timeout The timeout in milliseconds.
+     * @param connection The connection, which is closed once the deadline has passed.
+     * @return The deadline.
+     */
+    Timeout watch(long timeout, final Closeable connection) {
+        return watch(timeout, new Target() {
+            @Override
+            public void kill() throws IOException { connection.close(); }
+            @Override
+            public boolean isAlive() { return false; }
+        });
+    }
+    
+    private void schedule(Timeout entry) {
+        added.add(entry);
+        if (idle) {
+            LockSupport.unpark(worker);
+        } else if (worker == null) {
+            synchronized (this) {
+                if (worker == null) {
+                    Thread thread = new Thread(this::run, "JDroidLib watchdog");
+                    thread.setDaemon(true);
+                    thread.start();
+                    worker = thread;
+                }
+            }
+        }
+    }
+    
+    /**
+     * Advances the wheel one tick at a time, expiring the deadlines in each bucket.
+     * While there are no deadlines at all, the thread is parked until {@link #schedule(Timeout)} wakes it.
+     */
+    private void run() {
+        long tick = 0;
+        while (true) {
+            if (size == 0 && added.isEmpty()) {
+                idle = true;
+                if (added.isEmpty())
+                    LockSupport.park(this);
+                idle = false;
+                // The wheel is empty, so the ticks which passed while parked can be skipped.
+                tick = Math.max(tick, (System.nanoTime() - start) / TICK_NANOS);
+                continue;
+            }
+            
+            long sleep = start + (tick + 1) * TICK_NANOS - System.nanoTime();
+            if (sleep > 0) {
+                try {
+                    TimeUnit.NANOSECONDS.sleep(sleep);
+                } catch (InterruptedException ex) {
+                    // The watchdog runs for the lifetime of the JVM.
+                }
+                continue;
+            }
+            
+            Timeout entry;
+            while ((entry = added.poll()) != null) {
+                if (entry.state.get() == Timeout.CANCELLED) continue;
+                long deadlineTick = Math.max(tick, (entry.deadline - start) / TICK_NANOS);
+                entry.rounds = (deadlineTick - tick) / WHEEL_SIZE;
+                wheel[(int)(deadlineTick % WHEEL_SIZE)].addLast(entry);
+                size++;
+            }
+            
+            Iterator<Timeout> bucket = wheel[(int)(tick % WHEEL_SIZE)].iterator();
+            while (bucket.hasNext()) {
+                entry = bucket.next();
+                if (entry.state.get() == Timeout.CANCELLED) {
+                    bucket.remove();
+                    size--;
+                } else if (entry.rounds > 0) {
+                    entry.rounds--;
+                } else {
+                    bucket.remove();
+                    size--;
+                    expire(entry);
+                }
+            }
+            tick++;
+        }
+    }
+    
+    private void expire(Timeout entry) {
+        if (entry.verification) {
+            // The grace period of a killed process has passed.
+            if (entry.target.isAlive()) leaked.incrementAndGet();
+            else reaped.incrementAndGet();
+            return;
+        }
+        if (!entry.state.compareAndSet(Timeout.PENDING, Timeout.EXPIRED)) return;
+        pending.decrementAndGet();
+        expired.incrementAndGet();
+        
+        try {
+            entry.target.kill();
+        } catch (IOException | RuntimeException ex) {
+            leaked.incrementAndGet();
+            return;
+        }
+        if (!entry.target.isAlive()) {
+            reaped.incrementAndGet();
+            return;
+        }
+        
+        Timeout verification = new Timeout(entry.target, System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(GRACE_PERIOD_MS));
+        verification.verification = true;
+        added.add(verification);
+    }
+    
+    /**
+     * An input stream which turns the end of a terminated command's output in to a
+     * {@link CommandTimeoutException}, and cancels its deadline once closed.
+     */
+    static class WatchedInputStream extends FilterInputStream {
+        
+        private final Timeout timeout;
+        private final Closeable resource;
+        
+        /**
+         * Default constructor.
+         * @param in The output of the command.
+         * @param timeout The deadline of the command.
+         * @param resource Closed along with this stream (e.g.: the command's connection). May be {@code null}.
+         */
+        WatchedInputStream(InputStream in, Timeout timeout, Closeable resource) {
+            super(in);
+            this.timeout = timeout;
+            this.resource = resource;
+        }
+        
+        @Override
+        public int read() throws IOException {
+            try {
+                int read = super.read();
+                if (read < 0) timeout.throwIfExpired();
+                return read;
+            } catch (IOException ex) {
+                timeout.throwIfExpired();
+                throw ex;
+            }
+        }
+        
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            try {
+                int read = super.read(buffer, offset, length);
+                if (read < 0) timeout.throwIfExpired();
+                return read;
+            } catch (IOException ex) {
+                timeout.throwIfExpired();
+                throw ex;
+            }
+        }
+        
+        /**
+         * Gets the deadline of the command.
+         * @return The deadline.
+         */
+        Timeout getTimeout() { return timeout; }
+        
+        @Override
+        public void close() throws IOException {
+            timeout.cancel();
+            try {
+                super.close();
+            } finally {
+                if (resource != null) resource.close();
+            }
+        }
+        
+    }
+    
+}
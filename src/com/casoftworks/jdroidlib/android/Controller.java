@@ -19,12 +19,22 @@
 package com.casoftworks.jdroidlib.android;
 
 import com.casoftworks.jdroidlib.interfaces.ICommand;
+import com.casoftworks.jdroidlib.interfaces.IOutputHandler;
 import com.casoftworks.jdroidlib.util.ResourceManager;
 
+import java.io.BufferedReader;
 import java.io.File;
 import java.io.IOException;
-import java.util.concurrent.ExecutionException;
-import java.util.concurrent.Future;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
 
 /**
  * Abstract class Controller.
@@ -95,44 +105,255 @@ abstract class Controller {
     
     /**
      * Executes a given {@link com.casoftworks.jdroidlib.interfaces.ICommand}
-     * derivative asynchronously. Using this method will <b >not</b> lock the
-     * UI thread.
+     * derivative on the main (UI) thread and returns its output, error output
+     * and exit code at once. Using this method might block the thread.
+     * Where the error output cannot be kept apart, it is merged in to the output.
      * @param cmd The command to be executed.
-     * @return The full output of the command.
+     * @return The result of the command.
      * @throws IOException  This exception is thrown, if something goes wrong
      *                      during an IO operation or communication between
      *                      JDroidLib and any given (connected) device.
      * @throws InterruptedException
-     * @throws ExecutionException
      */
-    public abstract Future<String> executeCommandReturnOutputAsync(ICommand cmd) throws IOException, InterruptedException, ExecutionException;
+    public abstract CommandResult executeCommandReturnResult(ICommand cmd) throws IOException, InterruptedException;
     
     /**
      * Executes a given {@link com.casoftworks.jdroidlib.interfaces.ICommand}
      * derivative asynchronously. Using this method will <b >not</b> lock the
      * UI thread.
+     * If something goes wrong during an IO operation or communication between
+     * JDroidLib and any given (connected) device, the future completes
+     * exceptionally with the {@link IOException} that was thrown.
+     * Cancelling the future interrupts the command, if it is running.
      * @param cmd The command to be executed.
-     * @return The exit code of the binary
+     * @return A future completed with the full output of the command.
+     */
+    public CompletableFuture<String> executeCommandReturnOutputAsync(ICommand cmd) {
+        return CommandExecutor.submit(() -> executeCommandReturnOutput(cmd));
+    }
+    
+    /**
+     * Executes a given {@link com.casoftworks.jdroidlib.interfaces.ICommand}
+     * derivative asynchronously. Using this method will <b >not</b> lock the
+     * UI thread.
+     * If something goes wrong during an IO operation or communication between
+     * JDroidLib and any given (connected) device, the future completes
+     * exceptionally with the {@link IOException} that was thrown.
+     * Cancelling the future interrupts the command, if it is running.
+     * @param cmd The command to be executed.
+     * @return A future completed with the exit code of the binary.
+     */
+    public CompletableFuture<Integer> executeCommandReturnExitCodeAsync(ICommand cmd) {
+        return CommandExecutor.submit(() -> executeCommandReturnExitCode(cmd));
+    }
+    
+    /**
+     * Executes a given {@link com.casoftworks.jdroidlib.interfaces.ICommand}
+     * derivative asynchronously. Using this method will <b >not</b> lock the
+     * UI thread.
+     * If something goes wrong during an IO operation or communication between
+     * JDroidLib and any given (connected) device, the future completes
+     * exceptionally with the {@link IOException} that was thrown.
+     * Cancelling the future interrupts the command, if it is running.
+     * @param cmd The command to be executed.
+     * @return A future completed with the result of the command.
+     */
+    public CompletableFuture<CommandResult> executeCommandReturnResultAsync(ICommand cmd) {
+        return CommandExecutor.submit(() -> executeCommandReturnResult(cmd));
+    }
+    
+    /**
+     * Executes a given {@link com.casoftworks.jdroidlib.interfaces.ICommand}
+     * derivative asynchronously. Using this method will <b >not</b> lock the
+     * UI thread.
+     * If something goes wrong during an IO operation or communication between
+     * JDroidLib and any given (connected) device, the future completes
+     * exceptionally with the {@link IOException} that was thrown.
+     * Cancelling the future interrupts the command, if it is running.
+     * @param cmd The command to be executed.
+     * @return A future completed once the command has finished.
+     */
+    public CompletableFuture<Void> executeCommandAsync(ICommand cmd) {
+        return CommandExecutor.submit(() -> { executeCommand(cmd); return null; });
+    }
+    
+    /**
+     * Executes a given {@link com.casoftworks.jdroidlib.interfaces.ICommand}
+     * derivative and passes its output to a handler line by line, as it
+     * arrives. Using this method will block the thread until the command has
+     * finished or the handler has asked to stop.
+     * The output is never held in memory as a whole.
+     * @param cmd The command to be executed.
+     * @param handler The handler receiving the output.
      * @throws IOException  This exception is thrown, if something goes wrong
      *                      during an IO operation or communication between
-     *                      JDroidLib and any given (connected) device.
+     *                      JDroidLib and any given (connected) device, or if
+     *                      the handler threw it.
      * @throws InterruptedException
-     * @throws ExecutionException
      */
-    public abstract Future<Integer> executeCommandReturnExitCodeAsync(ICommand cmd) throws IOException, InterruptedException, ExecutionException;
+    public void executeCommandStreamOutput(ICommand cmd, IOutputHandler handler) throws IOException, InterruptedException {
+        String line;
+        
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(openOutput(cmd), StandardCharsets.UTF_8))) {
+            while ((line = reader.readLine()) != null) {
+                if (!handler.onLine(line)) break;
+                if (Thread.interrupted()) throw new InterruptedException();
+            }
+        }
+    }
     
     /**
      * Executes a given {@link com.casoftworks.jdroidlib.interfaces.ICommand}
-     * derivative asynchronously. Using this method will <b >not</b> lock the
-     * UI thread.
-     * This method does not return anything.
+     * derivative asynchronously and passes its output to a handler line by
+     * line, as it arrives. The handler is called on the thread running the command.
+     * Cancelling the future stops the command.
+     * @param cmd The command to be executed.
+     * @param handler The handler receiving the output.
+     * @return A future completed once the command has finished or the handler asked to stop.
+     */
+    public CompletableFuture<Void> executeCommandStreamOutputAsync(ICommand cmd, IOutputHandler handler) {
+        return CommandExecutor.submit(() -> { executeCommandStreamOutput(cmd, handler); return null; });
+    }
+    
+    /**
+     * Executes a given {@link com.casoftworks.jdroidlib.interfaces.ICommand}
+     * derivative and captures its raw output, without decoding or altering it
+     * in any way (e.g.: screenshots, or tar archives).
+     * Shell commands are run via {@code exec-out} instead of {@code shell}, so
+     * the device does not translate line endings.
+     * The output is held in a pooled direct buffer, which is handed back once
+     * the returned object is closed.
      * @param cmd The command to be executed.
+     * @return The raw output of the command.
      * @throws IOException  This exception is thrown, if something goes wrong
      *                      during an IO operation or communication between
      *                      JDroidLib and any given (connected) device.
      * @throws InterruptedException
-     * @throws ExecutionException
      */
-    public abstract Future<Void> executeCommandAsync(ICommand cmd) throws IOException, InterruptedException, ExecutionException;
+    public BinaryOutput executeCommandReturnBinary(ICommand cmd) throws IOException, InterruptedException {
+        ByteBuffer buffer = BufferPool.SHARED.acquire(0);
+        
+        try (ReadableByteChannel channel = Channels.newChannel(openOutput(toBinaryCommand(cmd)))) {
+            while (channel.read(buffer) >= 0) {
+                if (Thread.interrupted()) throw new InterruptedException();
+                if (buffer.hasRemaining()) continue;
+                if (buffer.capacity() > Integer.MAX_VALUE >> 1)
+                    throw new IOException("The output of the command is too large to be captured.");
+                
+                ByteBuffer larger = BufferPool.SHARED.acquire(buffer.capacity() << 1);
+                buffer.flip();
+                larger.put(buffer);
+                BufferPool.SHARED.release(buffer);
+                buffer = larger;
+            }
+        } catch (IOException | InterruptedException | RuntimeException | Error ex) {
+            BufferPool.SHARED.release(buffer);
+            throw ex;
+        }
+        buffer.flip();
+        return new BinaryOutput(buffer);
+    }
+    
+    /**
+     * Executes a given {@link com.casoftworks.jdroidlib.interfaces.ICommand}
+     * derivative asynchronously and captures its raw output.
+     * Cancelling the future interrupts the command, if it is running.
+     * @param cmd The command to be executed.
+     * @return A future completed with the raw output of the command.
+     * @see #executeCommandReturnBinary(ICommand) 
+     */
+    public CompletableFuture<BinaryOutput> executeCommandReturnBinaryAsync(ICommand cmd) {
+        return CommandExecutor.submit(() -> executeCommandReturnBinary(cmd));
+    }
+    
+    /**
+     * Starts a given command and returns a stream of its raw output.
+     * Closing the stream stops the command, if it is still running.
+     * @param cmd The command to start.
+     * @return The output of the command.
+     * @throws IOException If the command could not be started.
+     */
+    abstract InputStream openOutput(ICommand cmd) throws IOException;
+    
+    /**
+     * Opens an interactive shell on a given device.
+     * By default, this spawns {@code adb shell} with its input and output piped
+     * to JDroidLib.
+     * @param device The device to open the shell on.
+     * @return A channel to the device's shell.
+     * @throws IOException If the shell could not be opened.
+     */
+    ShellSession.Channel openShell(Device device) throws IOException {
+        ProcessBuilder builder = AndroidCommand.formAndroidCommand(device, "shell").buildProcess();
+        return ShellSession.of(builder.start());
+    }
+    
+    /**
+     * Opens the {@code sync:} service of a given device, which answers
+     * filesystem requests with binary records.
+     * By default, this is not supported, as the ADB binary offers no access
+     * to the raw service.
+     * @param device The device to open the service on.
+     * @return The sync client, or {@code null} if this controller cannot open the service.
+     * @throws IOException If the service could not be opened.
+     */
+    SyncProtocol openSync(Device device) throws IOException { return null; }
+    
+    /**
+     * Converts a given shell command to its {@code exec-out} equivalent,
+     * whose output is passed through by the device unaltered.
+     * @param cmd The command to convert.
+     * @return The converted command, or the given command if it is not a shell command.
+     */
+    static ICommand toBinaryCommand(ICommand cmd) {
+        if (!(cmd instanceof AndroidCommand) || !((AndroidCommand)cmd).isShellCommand())
+            return cmd;
+        
+        AndroidCommand shellCmd = (AndroidCommand)cmd;
+        List<String> args = new ArrayList<>();
+        if (shellCmd.runAsRoot()) args.add("su");
+        args.add(shellCmd.getCommand());
+        args.addAll(shellCmd.getArgs());
+        
+        AndroidCommand binaryCmd = new AndroidCommand("exec-out", false, false, shellCmd.getDevice(), args.toArray(new String[args.size()]));
+        binaryCmd.setTimeout(shellCmd.getTimeout());
+        binaryCmd.setPriority(shellCmd.getPriority());
+        return binaryCmd;
+    }
+    
+    /**
+     * Reads the output of a command until the end of the stream is reached.
+     * Lines are separated by {@code \n}, regardless of the line terminators
+     * used by the device.
+     * @param stream The stream to read from.
+     * @return The output read from the stream.
+     * @throws IOException If reading from the stream fails.
+     */
+    static String readOutput(InputStream stream) throws IOException {
+        return readOutput(new InputStreamReader(stream, StandardCharsets.UTF_8));
+    }
+    
+    /**
+     * Reads the output of a command until the end is reached.
+     * Lines are separated by {@code \n}, regardless of the line terminators
+     * used by the device.
+     * @param source The reader to read from.
+     * @return The output read from the reader.
+     * @throws IOException If reading fails.
+     */
+    static String readOutput(Reader source) throws IOException {
+        StringBuilder output = new StringBuilder();
+        boolean first = true;
+        String line;
+        
+        try (BufferedReader reader = new BufferedReader(source)) {
+            while ((line = reader.readLine()) != null) {
+                if (!first) output.append('\n');
+                output.append(line);
+                first = false;
+            }
+        }
+        return output.toString();
+    }
     
 }
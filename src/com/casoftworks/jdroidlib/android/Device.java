@@ -31,9 +31,20 @@ public class Device {
     
     //<editor-fold defaultstate="collapsed" desc="Properties and shit" >
     private final String serialNumber;
-    private DeviceState deviceState;
+    private volatile DeviceState deviceState;
+    
+    /** The attributes listed by {@code adb devices -l}, as listed; parsed on access. */
+    private volatile String attributes = "";
+    
+    /** The index of the ADB server this device is connected to. */
+    private volatile int shard = 0;
     
     private final BatteryInfo battery;
+    
+    private final FileSystem fileSystem;
+    
+    private final ShellSessionPool shellSessions = new ShellSessionPool(this, false);
+    private final ShellSessionPool rootShellSessions = new ShellSessionPool(this, true);
     //</editor-fold>
     
     /**
@@ -47,6 +58,7 @@ public class Device {
         battery = new BatteryInfo(this);
         this.deviceState = DeviceState.UNKNOWN;
         androidController = AndroidController.getInstance();
+        fileSystem = new FileSystem(this);
     }
     
     /**
@@ -79,10 +91,16 @@ public class Device {
      * @throws java.lang.InterruptedException 
      */
     public DeviceState getDeviceState() throws IOException, InterruptedException {
-        androidController.updateDeviceList();
+        androidController.refreshDeviceList();
         return deviceState;
     }
     
+    /**
+     * Gets the state this device was last seen in, without querying the ADB.
+     * @return The last known state.
+     */
+    DeviceState getLastDeviceState() { return deviceState; }
+    
     /**
      * Sets the state of this object (device).
      * This method is package-private and should never be called by third-party
@@ -91,6 +109,73 @@ public class Device {
      */
     void setDeviceState(DeviceState state) { this.deviceState = state; }
     
+    /**
+     * Gets the product name of this device (e.g.: {@code hero2ltexx}).
+     * @return The product name, or {@code null} if the ADB did not list it.
+     */
+    public String getProduct() { return getAttribute("product:"); }
+    
+    /**
+     * Gets the model name of this device (e.g.: {@code SM_G935F}).
+     * @return The model name, or {@code null} if the ADB did not list it.
+     */
+    public String getModel() { return getAttribute("model:"); }
+    
+    /**
+     * Gets the device name of this device (e.g.: {@code hero2lte}).
+     * @return The device name, or {@code null} if the ADB did not list it.
+     */
+    public String getDeviceName() { return getAttribute("device:"); }
+    
+    /**
+     * Gets the ID of the ADB transport this device is currently connected with.
+     * The ID changes whenever the device is reconnected.
+     * @return The transport ID, or -1 if the ADB did not list it.
+     */
+    public long getTransportId() {
+        String transportId = getAttribute("transport_id:");
+        try {
+            return transportId == null ? -1 : Long.parseLong(transportId);
+        } catch (NumberFormatException ex) {
+            return -1;
+        }
+    }
+    
+    /**
+     * Sets the attributes of this device, as listed by {@code adb devices -l}.
+     * @param attributes The attributes (e.g.: {@code product:x model:y device:z transport_id:1}).
+     */
+    void setAttributes(String attributes) { this.attributes = attributes; }
+    
+    /**
+     * Gets the index of the ADB server this device is connected to, in the
+     * order the servers were passed to {@link AndroidController#useAdbServers(java.lang.String...)}.
+     * @return The index of the ADB server; 0 if only one server (or the ADB binary) is used.
+     */
+    public int getShard() { return shard; }
+    
+    /**
+     * Sets the index of the ADB server this device is connected to.
+     * @param shard The index of the ADB server.
+     */
+    void setShard(int shard) { this.shard = shard; }
+    
+    /**
+     * Finds the value of an attribute listed by {@code adb devices -l}.
+     * @param key The key of the attribute, including the colon.
+     * @return The value, or {@code null} if the attribute is not listed.
+     */
+    private String getAttribute(String key) {
+        String attributes = this.attributes;
+        int index = -1;
+        while ((index = attributes.indexOf(key, index + 1)) >= 0) {
+            if (index > 0 && attributes.charAt(index - 1) != ' ') continue;
+            int end = attributes.indexOf(' ', index);
+            return attributes.substring(index + key.length(), end < 0 ? attributes.length() : end);
+        }
+        return null;
+    }
+    
     /**
      * Gets a value indicating whether this device has authorized this computer
      * or not.
@@ -108,6 +193,29 @@ public class Device {
      * @return An instance of {@link BatteryInfo}.
      */
     public BatteryInfo getBattery() { return battery; }
+    
+    /**
+     * Gets an instance of {@link FileSystem}, which represents the filesystem of this device.
+     * @return An instance of {@link FileSystem}.
+     */
+    public FileSystem getFileSystem() { return fileSystem; }
+    
+    /**
+     * Closes all idle shell sessions held open for this device.
+     * New sessions are opened as needed, if shell sessions are enabled.
+     * @see AndroidController#useShellSessions(int) 
+     */
+    public void closeShellSessions() {
+        shellSessions.closeIdle();
+        rootShellSessions.closeIdle();
+    }
+    
+    /**
+     * Gets the pool of shell sessions of the given kind for this device.
+     * @param root Set to {@code true} to get the pool of root shells.
+     * @return The pool.
+     */
+    ShellSessionPool getShellSessions(boolean root) { return root ? rootShellSessions : shellSessions; }
     //</editor-fold>
     
 }
@@ -0,0 +1,206 @@
+/*
+ * Copyright (C) 2016 Ca Softworks.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+package com.casoftworks.jdroidlib.android;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Holds all devices known to the {@link AndroidController}, keyed by their
+ * serial numbers.
+ * Lookups by serial number take constant time and never block, not even while
+ * a new list of devices is being applied: readers see each device either
+ * before or after the update, and the list of all devices is replaced as a
+ * whole once the update is complete.
+ * Updates are applied one at a time.
+ * Devices are grouped in shards, one for each ADB server they are connected
+ * to. Each update replaces the devices of a single shard; a device belongs to
+ * the first shard which lists it, until that shard no longer lists it.
+ * This class is package-private.
+ * @author simoncahill
+ */
+final class DeviceRegistry {
+    
+    /**
+     * The changes made to the registry by a single update.
+     */
+    static final class Changes {
+        
+        final List<Device> connected = new ArrayList<>();
+        final List<Device> disconnected = new ArrayList<>();
+        final List<Device> changed = new ArrayList<>();
+        final List<DeviceState> oldStates = new ArrayList<>();
+        
+    }
+    
+    private final ConcurrentHashMap<String, Device> devices = new ConcurrentHashMap<>();
+    private final Object updateLock = new Object();
+    private final List<List<Device>> shards = new ArrayList<>();
+    private volatile List<Device> snapshot = Collections.emptyList();
+    
+    /**
+     * Gets a device by its serial number.
+     * @param serialNumber The serial number.
+     * @return The device, or {@code null} if no such device is connected.
+     */
+    Device get(String serialNumber) { return devices.get(serialNumber); }
+    
+    /**
+     * Gets all devices, shard by shard, in the order they were listed by the ADB.
+     * @return An unmodifiable list of the devices.
+     */
+    List<Device> getDevices() { return snapshot; }
+    
+    /**
+     * Applies a list of devices, as output by {@code adb devices -l}, to a shard.
+     * Devices which are still connected keep their instances; their states and
+     * attributes are updated. Devices already belonging to another shard are ignored.
+     * @param shard The shard (the index of the ADB server which listed the devices).
+     * @param output The list of devices.
+     * @return The changes made.
+     * @throws IOException If the list could not be read.
+     * @throws InterruptedException If the thread was interrupted while creating a new device.
+     */
+    Changes apply(int shard, String output) throws IOException, InterruptedException {
+        Changes changes = new Changes();
+        
+        synchronized (updateLock) {
+            while (shards.size() <= shard) shards.add(Collections.emptyList());
+            List<Device> oldShard = shards.get(shard);
+            List<Device> newShard = new ArrayList<>(oldShard.size());
+            Map<String, Device> listed = new HashMap<>(oldShard.size() * 2);
+            String line;
+            
+            try (BufferedReader reader = new BufferedReader(new StringReader(output))) {
+                while ((line = reader.readLine()) != null) {
+                    String[] values = parseLine(line);
+                    if (values == null || listed.containsKey(values[0])) continue;
+                    DeviceState state = DeviceState.fromAdbState(values[1]);
+                    
+                    Device device = devices.get(values[0]);
+                    if (device == null) {
+                        device = new Device(values[0], state);
+                        device.setShard(shard);
+                        device.setAttributes(values[2]);
+                        devices.put(values[0], device);
+                        changes.connected.add(device);
+                    } else if (device.getShard() != shard) {
+                        continue; // Connected to two ADB servers; the first one keeps it.
+                    } else {
+                        DeviceState oldState = device.getLastDeviceState();
+                        device.setAttributes(values[2]);
+                        if (oldState != state) {
+                            device.setDeviceState(state);
+                            changes.changed.add(device);
+                            changes.oldStates.add(oldState);
+                        }
+                    }
+                    listed.put(values[0], device);
+                    newShard.add(device);
+                }
+            }
+            
+            for (Device device : oldShard) {
+                if (listed.containsKey(device.getSerialNumber())) continue;
+                devices.remove(device.getSerialNumber(), device);
+                changes.disconnected.add(device);
+            }
+            shards.set(shard, Collections.unmodifiableList(newShard));
+            publish();
+        }
+        return changes;
+    }
+    
+    /**
+     * Removes all devices of the shards beyond a given number, e.g.: because
+     * fewer ADB servers are used from now on.
+     * @param count The number of shards to keep.
+     * @return The changes made.
+     */
+    Changes retainShards(int count) {
+        Changes changes = new Changes();
+        
+        synchronized (updateLock) {
+            while (shards.size() > count) {
+                for (Device device : shards.remove(shards.size() - 1)) {
+                    devices.remove(device.getSerialNumber(), device);
+                    changes.disconnected.add(device);
+                }
+            }
+            publish();
+        }
+        return changes;
+    }
+    
+    /**
+     * Replaces the list of all devices by the devices of all shards.
+     */
+    private void publish() {
+        if (shards.size() == 1) {
+            snapshot = shards.get(0);
+            return;
+        }
+        List<Device> all = new ArrayList<>(devices.size());
+        shards.forEach(all::addAll);
+        snapshot = Collections.unmodifiableList(all);
+    }
+    
+    /**
+     * Splits a line of {@code adb devices -l}'s output in to its values.
+     * @param line The line to split.
+     * @return The serial number, the state, and the remaining attributes
+     *         (e.g.: {@code product:x model:y device:z transport_id:1}) of the
+     *         device; or {@code null} if the line does not describe a device.
+     */
+    static String[] parseLine(String line) {
+        int serialStart = skipWhitespace(line, 0);
+        int serialEnd = skipToken(line, serialStart);
+        int stateStart = skipWhitespace(line, serialEnd);
+        int stateEnd = skipToken(line, stateStart);
+        if (serialStart == serialEnd || stateStart == stateEnd) return null; // Empty line or daemon message.
+        if (line.regionMatches(true, serialStart, "List of", 0, 7) || line.charAt(serialStart) == '*') return null;
+        
+        int attributesStart = skipWhitespace(line, stateEnd);
+        int attributesEnd = line.length();
+        while (attributesEnd > attributesStart && Character.isWhitespace(line.charAt(attributesEnd - 1))) attributesEnd--;
+        return new String[] {
+            line.substring(serialStart, serialEnd),
+            line.substring(stateStart, stateEnd),
+            line.substring(attributesStart, attributesEnd)
+        };
+    }
+    
+    private static int skipWhitespace(String line, int index) {
+        while (index < line.length() && Character.isWhitespace(line.charAt(index))) index++;
+        return index;
+    }
+    
+    private static int skipToken(String line, int index) {
+        while (index < line.length() && !Character.isWhitespace(line.charAt(index))) index++;
+        return index;
+    }
+    
+}
@@ -52,4 +52,20 @@ public enum DeviceState {
          * The device has not yet been authorized and cannot be used.
          */
         UNAUTHORIZED;
+        
+        /**
+         * Gets the state matching a state as reported by the ADB (e.g.: {@code device}).
+         * @param state The state reported by {@code adb devices}.
+         * @return The matching state, or {@link #UNKNOWN} for states JDroidLib does not know.
+         */
+        public static DeviceState fromAdbState(String state) {
+            switch (state) {
+                case "device": return ONLINE;
+                case "offline": return OFFLINE;
+                case "recovery": return RECOVERY;
+                case "bootloader": return FASTBOOT;
+                case "unauthorized": return UNAUTHORIZED;
+                default: return UNKNOWN;
+            }
+        }
 }
@@ -0,0 +1,137 @@
+/*
+ * Copyright (C) 2016 Ca Softworks.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+package com.casoftworks.jdroidlib.android;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps a {@code host:track-devices-l} stream open to an ADB server.
+ * The ADB server sends the complete list of devices once the stream has been
+ * opened, and again whenever a device is connected, disconnected, or changes
+ * its state. Each list is handed to the {@link AndroidController}, which
+ * applies the differences to its device list.
+ * Broken streams (e.g.: the ADB server has been restarted) are reopened
+ * after a short delay, until the tracker is closed.
+ * This class is package-private.
+ * @author simoncahill
+ */
+final class DeviceTracker implements Closeable {
+    
+    private static final long MIN_RETRY_DELAY = 250;
+    private static final long MAX_RETRY_DELAY = 5000;
+    
+    private final AndroidController controller;
+    private final int shard;
+    private final String host;
+    private final int port;
+    private final int connectTimeout;
+    private final Thread thread;
+    private final CountDownLatch firstList = new CountDownLatch(1);
+    
+    private volatile boolean running = true;
+    private volatile boolean current = false;
+    private volatile AdbConnection connection;
+    private volatile IOException lastError;
+    
+    DeviceTracker(AndroidController controller, int shard, String host, int port, int connectTimeout) {
+        this.controller = controller;
+        this.shard = shard;
+        this.host = host;
+        this.port = port;
+        this.connectTimeout = connectTimeout;
+        thread = new Thread(this::run, "JDroidLib device tracker");
+        thread.setDaemon(true);
+    }
+    
+    /**
+     * Opens the stream and waits for the first list of devices.
+     * @param timeout The time (in ms) to wait for the first list.
+     * @throws IOException If no list has been received in time; the last error
+     *                     received from the ADB server, if any.
+     * @throws InterruptedException If the thread was interrupted while waiting.
+     */
+    void start(long timeout) throws IOException, InterruptedException {
+        thread.start();
+        if (firstList.await(timeout, TimeUnit.MILLISECONDS)) return;
+        close();
+        IOException error = lastError;
+        throw error != null ? error : new IOException("ADB server did not send a device list within " + timeout + "ms.");
+    }
+    
+    /**
+     * Gets a value indicating whether the stream is open, and the device list
+     * of the {@link AndroidController} is therefore up to date.
+     * @return {@code true} if the device list is current.
+     */
+    boolean isCurrent() { return current; }
+    
+    private void run() {
+        long retryDelay = MIN_RETRY_DELAY;
+        
+        while (running) {
+            try (AdbConnection open = AdbConnection.open(host, port, connectTimeout)) {
+                connection = open;
+                if (!running) return;
+                open.send("host:track-devices-l");
+                
+                while (running) {
+                    String list = open.readLengthPrefixed();
+                    controller.applyDeviceList(shard, list);
+                    current = true;
+                    retryDelay = MIN_RETRY_DELAY;
+                    firstList.countDown();
+                }
+            } catch (IOException ex) {
+                lastError = ex;
+            } catch (RuntimeException ex) {
+                System.err.println("An error has occurred within JDroidLib's device tracker!");
+                ex.printStackTrace(System.err);
+            } finally {
+                current = false;
+                connection = null;
+            }
+            
+            try {
+                Thread.sleep(retryDelay);
+            } catch (InterruptedException ex) {
+                return;
+            }
+            retryDelay = Math.min(retryDelay * 2, MAX_RETRY_DELAY);
+        }
+    }
+    
+    /**
+     * Closes the stream. The device list is no longer updated.
+     */
+    @Override
+    public void close() {
+        running = false;
+        current = false;
+        thread.interrupt();
+        AdbConnection open = connection;
+        if (open == null) return;
+        try {
+            open.close();
+        } catch (IOException ex) { }
+    }
+    
+}
@@ -0,0 +1,151 @@
+/*
+ * Copyright (C) 2016 Ca Softworks.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+package com.casoftworks.jdroidlib.android;
+
+import com.casoftworks.jdroidlib.interfaces.IDumpsysParser;
+import com.casoftworks.jdroidlib.interfaces.IOutputHandler;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Reads the state of a device's system services via {@code dumpsys}.
+ * The output is streamed to {@link IDumpsysParser}s line by line, and is never
+ * held in memory as a whole. When several services are read at once, a single
+ * {@code dumpsys} is run for all of them; its sections are told apart by their
+ * {@code DUMP OF SERVICE} headers, and only the sections of the requested
+ * services are parsed. The command is stopped as soon as every parser has
+ * what it needs.
+ * @author simoncahill
+ */
+public final class Dumpsys {
+    
+    private Dumpsys() { }
+    
+    /**
+     * Reads a single service.
+     * Runs {@code dumpsys <service>} and passes its output on to the parser.
+     * @param <T> The type of the parsed result.
+     * @param device The device to read.
+     * @param parser The parser of the service's output.
+     * @return The parser's result.
+     * @throws IOException If the service could not be read, or the parser failed.
+     * @throws InterruptedException If the thread was interrupted while reading the output.
+     */
+    public static <T> T read(Device device, IDumpsysParser<T> parser) throws IOException, InterruptedException {
+        AndroidCommand cmd = AndroidCommand.formAndroidShellCommand(device, false, "dumpsys", parser.getService());
+        AndroidController.getInstance().executeCommandStreamOutput(cmd, parser::onLine);
+        return parser.getResult();
+    }
+    
+    /**
+     * Reads several services with a single command.
+     * Runs {@code dumpsys} for all services, and passes each service's section
+     * of the output on to the parsers of that service. Services without a
+     * parser are skipped. The results are available from the parsers.
+     * Sections are matched by the first word of each parser's service, so
+     * arguments to a service (e.g.: {@code package com.example}) are not
+     * applied; the parser receives the service's complete dump.
+     * Note that a complete dump may take several seconds, as every service
+     * on the device is dumped up to the last requested one.
+     * @param device The device to read.
+     * @param parsers The parsers of the services to read.
+     * @throws IOException If the services could not be read, or a parser failed.
+     * @throws InterruptedException If the thread was interrupted while reading the output.
+     */
+    public static void readAll(Device device, IDumpsysParser<?>... parsers) throws IOException, InterruptedException {
+        if (parsers.length == 0) return;
+        AndroidCommand cmd = AndroidCommand.formAndroidShellCommand(device, false, "dumpsys");
+        AndroidController.getInstance().executeCommandStreamOutput(cmd, new SectionRouter(parsers));
+    }
+    
+    /**
+     * Splits the output of a complete {@code dumpsys} in to the sections of
+     * the individual services, and routes each section to its parsers.
+     * Lines of sections nobody asked for cost a single prefix check.
+     * This class is package-private.
+     */
+    static final class SectionRouter implements IOutputHandler {
+        
+        private static final String HEADER = "DUMP OF SERVICE ";
+        private static final String FOOTER = "--------- ";
+        private static final String[] PRIORITIES = { "CRITICAL ", "HIGH ", "NORMAL " };
+        
+        private final Map<String, List<IDumpsysParser<?>>> parsers = new HashMap<>();
+        private List<IDumpsysParser<?>> section = null;
+        private int pending;
+        
+        /**
+         * Creates a new router.
+         * @param parsers The parsers to route the sections to.
+         */
+        SectionRouter(IDumpsysParser<?>... parsers) {
+            for (IDumpsysParser<?> parser : parsers)
+                this.parsers.computeIfAbsent(nameOf(parser.getService()), service -> new ArrayList<>(1)).add(parser);
+            this.pending = this.parsers.size();
+        }
+        
+        /**
+         * {@inheritDoc}
+         * @return {@code false} once the sections of all requested services have been parsed.
+         */
+        @Override
+        public boolean onLine(String line) throws IOException {
+            if (line.startsWith(HEADER)) {
+                endSection();
+                section = parsers.remove(serviceOf(line));
+                return pending > 0;
+            }
+            if (section == null) return true;
+            if (line.startsWith(FOOTER) && line.contains(" was the duration of dumpsys ")) {
+                endSection();
+                return pending > 0;
+            }
+            
+            for (int i = section.size() - 1; i >= 0; i--)
+                if (!section.get(i).onLine(line)) section.remove(i);
+            if (section.isEmpty()) endSection();
+            return pending > 0;
+        }
+        
+        private void endSection() {
+            if (section == null) return;
+            section = null;
+            pending--;
+        }
+        
+        private static String nameOf(String service) {
+            int end = service.indexOf(' ');
+            return end < 0 ? service : service.substring(0, end);
+        }
+        
+        private static String serviceOf(String header) {
+            int start = HEADER.length();
+            for (String priority : PRIORITIES)
+                if (header.startsWith(priority, start)) start += priority.length();
+            int end = header.lastIndexOf(':');
+            return end > start ? header.substring(start, end) : header.substring(start);
+        }
+        
+    }
+    
+}
@@ -0,0 +1,153 @@
+/*
+ * Copyright (C) 2016 Ca Softworks.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+package com.casoftworks.jdroidlib.android;
+
+import com.casoftworks.jdroidlib.interfaces.IDumpsysParser;
+
+/**
+ * A generic parser, collecting the values of selected keys from the output of
+ * any {@code dumpsys} service, e.g.:
+ * <pre>
+ * DumpsysProperties window = new DumpsysProperties("window", '=', "mCurrentFocus");
+ * DumpsysProperties pkg = new DumpsysProperties("package com.example", '=', "versionName", "versionCode");
+ * Dumpsys.read(device, window);
+ * String focus = window.getString("mCurrentFocus");
+ * </pre>
+ * With {@code ':'} as separator, each line holds a single {@code key: value}
+ * pair (as printed by e.g.: {@code battery} or {@code meminfo}); with
+ * {@code '='}, a line may hold several {@code key=value} pairs separated by
+ * whitespace (as printed by e.g.: {@code package} or {@code window}).
+ * Only the first occurrence of each key is kept, and the parser stops reading
+ * as soon as all keys have been found. Values are kept as text, and only
+ * converted when they are requested.
+ * @author simoncahill
+ */
+public final class DumpsysProperties implements IDumpsysParser<DumpsysProperties> {
+    
+    private final String service;
+    private final char separator;
+    private final String[] names;
+    private final DumpsysTokenizer.Keys keys;
+    private final String[] values;
+    private final DumpsysTokenizer.Handler handler = this::onValue;
+    private int found = 0;
+    
+    /**
+     * Creates a new parser.
+     * @param service The service to read (e.g.: {@code window}). May include
+     *                arguments to the service (e.g.: {@code package com.example}).
+     * @param separator The character separating keys from values; usually {@code ':'} or {@code '='}.
+     * @param keys The keys whose values to collect. Keys are matched ignoring case.
+     */
+    public DumpsysProperties(String service, char separator, String... keys) {
+        this.service = service;
+        this.separator = separator;
+        this.names = keys.clone();
+        this.keys = new DumpsysTokenizer.Keys(keys);
+        this.values = new String[keys.length];
+    }
+    
+    //<editor-fold defaultstate="collapsed" desc="Methods implemented from IDumpsysParser" >
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String getService() { return service; }
+    
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean onLine(CharSequence line) {
+        if (separator == '=') DumpsysTokenizer.tokenizeAll(line, separator, keys, handler);
+        else DumpsysTokenizer.tokenize(line, separator, keys, handler);
+        return found < values.length;
+    }
+    
+    /**
+     * {@inheritDoc}
+     * @return This parser, holding the collected values.
+     */
+    @Override
+    public DumpsysProperties getResult() { return this; }
+    //</editor-fold>
+    
+    private void onValue(int key, CharSequence line, int start, int end) {
+        if (values[key] != null) return;
+        values[key] = line.subSequence(start, end).toString();
+        found++;
+    }
+    
+    //<editor-fold defaultstate="collapsed" desc="Getters" >
+    /**
+     * Gets a value indicating whether a value has been found for a given key.
+     * @param key The key.
+     * @return {@code true} if the key was found in the output.
+     */
+    public boolean contains(String key) { return getString(key) != null; }
+    
+    /**
+     * Gets the value of a key.
+     * @param key The key.
+     * @return The value as printed by the service, or {@code null} if the key was not found.
+     * @throws IllegalArgumentException If the key was not requested when creating this parser.
+     */
+    public String getString(String key) {
+        for (int i = 0; i < names.length; i++)
+            if (names[i].equalsIgnoreCase(key)) return values[i];
+        throw new IllegalArgumentException("Key was not requested: " + key);
+    }
+    
+    /**
+     * Gets the value of a key as an integer.
+     * @param key The key.
+     * @param defaultValue The value to return if the key was not found.
+     * @return The value.
+     * @throws NumberFormatException If the value is not an integer.
+     */
+    public int getInt(String key, int defaultValue) {
+        String value = getString(key);
+        return value == null ? defaultValue : DumpsysTokenizer.parseInt(value, 0, value.length());
+    }
+    
+    /**
+     * Gets the value of a key as a long integer.
+     * @param key The key.
+     * @param defaultValue The value to return if the key was not found.
+     * @return The value.
+     * @throws NumberFormatException If the value is not an integer.
+     */
+    public long getLong(String key, long defaultValue) {
+        String value = getString(key);
+        return value == null ? defaultValue : DumpsysTokenizer.parseLong(value, 0, value.length());
+    }
+    
+    /**
+     * Gets the value of a key as a boolean.
+     * @param key The key.
+     * @param defaultValue The value to return if the key was not found.
+     * @return {@code true} if the value is {@code true}, ignoring case.
+     */
+    public boolean getBoolean(String key, boolean defaultValue) {
+        String value = getString(key);
+        return value == null ? defaultValue : Boolean.parseBoolean(value);
+    }
+    //</editor-fold>
+    
+}
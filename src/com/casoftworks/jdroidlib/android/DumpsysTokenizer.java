@@ -0,0 +1,255 @@
+/*
+ * Copyright (C) 2016 Ca Softworks.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+package com.casoftworks.jdroidlib.android;
+
+/**
+ * Splits lines of {@code dumpsys} output in to keys and values, in a single
+ * pass and without allocating any objects.
+ * Most dumpsys services print their state as {@code key: value} or
+ * {@code key=value} lines. The key of each line is looked up once in a
+ * precomputed table of the keys a parser is interested in, and the value is
+ * handed to the parser as a range of the line, which can be converted with
+ * the parse methods of this class, again without temporary strings.
+ * This class is package-private.
+ * @author simoncahill
+ */
+final class DumpsysTokenizer {
+    
+    private DumpsysTokenizer() { }
+    
+    /**
+     * Receives the values of the keys found by the tokenizer.
+     */
+    @FunctionalInterface
+    interface Handler {
+        
+        /**
+         * Called for each line whose key is in the table.
+         * @param key The index of the key in the table.
+         * @param line The line.
+         * @param start The index of the first character of the value, with leading whitespace skipped.
+         * @param end The index after the last character of the value, with trailing whitespace skipped.
+         */
+        void onValue(int key, CharSequence line, int start, int end);
+        
+    }
+    
+    /**
+     * A precomputed, case-insensitive table of keys.
+     * Tables are immutable and can be shared by all parsers of the same output.
+     */
+    static final class Keys {
+        
+        private final char[][] keys;
+        private final int[] indices;
+        private final int mask;
+        
+        /**
+         * Creates a table of keys.
+         * @param keys The keys; each key's index is passed to the {@link Handler}.
+         */
+        Keys(String... keys) {
+            int capacity = Integer.highestOneBit(Math.max(2, keys.length) * 4 - 1) << 1;
+            this.keys = new char[capacity][];
+            this.indices = new int[capacity];
+            this.mask = capacity - 1;
+            
+            for (int i = 0; i < keys.length; i++) {
+                char[] key = keys[i].toLowerCase().toCharArray();
+                int slot = hash(keys[i], 0, keys[i].length()) & mask;
+                while (this.keys[slot] != null) slot = (slot + 1) & mask;
+                this.keys[slot] = key;
+                this.indices[slot] = i;
+            }
+        }
+        
+        /**
+         * Looks up a key.
+         * @param line The line containing the key.
+         * @param start The index of the first character of the key.
+         * @param end The index after the last character of the key.
+         * @return The index of the key, or -1 if the key is not in this table.
+         */
+        int lookup(CharSequence line, int start, int end) {
+            int slot = hash(line, start, end) & mask;
+            char[] key;
+            while ((key = keys[slot]) != null) {
+                if (matches(key, line, start, end)) return indices[slot];
+                slot = (slot + 1) & mask;
+            }
+            return -1;
+        }
+        
+        private static int hash(CharSequence text, int start, int end) {
+            int hash = 0;
+            for (int i = start; i < end; i++)
+                hash = 31 * hash + Character.toLowerCase(text.charAt(i));
+            return hash ^ (hash >>> 16);
+        }
+        
+        private static boolean matches(char[] key, CharSequence text, int start, int end) {
+            if (key.length != end - start) return false;
+            for (int i = 0; i < key.length; i++)
+                if (key[i] != Character.toLowerCase(text.charAt(start + i))) return false;
+            return true;
+        }
+        
+    }
+    
+    /**
+     * Tokenizes a line of the form {@code key<separator>value}, and passes the
+     * value on to the handler if the key is in the table.
+     * Leading indentation and whitespace around the key and value are ignored.
+     * Lines without a separator are ignored.
+     * @param line The line.
+     * @param separator The character separating the key from the value (e.g.: {@code ':'} or {@code '='}).
+     * @param keys The keys to look for.
+     * @param handler The handler receiving the values.
+     * @return The index of the key found, or -1 if the line holds no key of the table.
+     */
+    static int tokenize(CharSequence line, char separator, Keys keys, Handler handler) {
+        int length = line.length();
+        int keyStart = skipWhitespace(line, 0, length);
+        int separatorIndex = keyStart;
+        while (separatorIndex < length && line.charAt(separatorIndex) != separator) separatorIndex++;
+        if (separatorIndex == length) return -1;
+        
+        int keyEnd = trimEnd(line, keyStart, separatorIndex);
+        int key = keys.lookup(line, keyStart, keyEnd);
+        if (key < 0) return -1;
+        
+        int valueStart = skipWhitespace(line, separatorIndex + 1, length);
+        handler.onValue(key, line, valueStart, trimEnd(line, valueStart, length));
+        return key;
+    }
+    
+    /**
+     * Tokenizes a line holding several pairs of the form {@code key<separator>value},
+     * separated by whitespace (e.g.: {@code versionCode=31 minSdk=21 targetSdk=30}),
+     * and passes the values of the keys in the table on to the handler.
+     * A key is the word directly in front of a separator; a value runs up to
+     * the next key, so values may contain whitespace, but not the separator.
+     * @param line The line.
+     * @param separator The character separating the keys from the values (e.g.: {@code '='}).
+     * @param keys The keys to look for.
+     * @param handler The handler receiving the values.
+     * @return The number of values passed on to the handler.
+     */
+    static int tokenizeAll(CharSequence line, char separator, Keys keys, Handler handler) {
+        int length = line.length();
+        int found = 0;
+        int key = -1;
+        int valueStart = 0;
+        
+        for (int i = 0; i < length; i++) {
+            if (line.charAt(i) != separator) continue;
+            
+            int keyStart = i;
+            while (keyStart > valueStart && !Character.isWhitespace(line.charAt(keyStart - 1))) keyStart--;
+            if (key >= 0) {
+                handler.onValue(key, line, valueStart, trimEnd(line, valueStart, keyStart));
+                found++;
+            }
+            key = keyStart < i ? keys.lookup(line, keyStart, i) : -1;
+            valueStart = skipWhitespace(line, i + 1, length);
+            i = valueStart - 1;
+        }
+        if (key >= 0) {
+            handler.onValue(key, line, valueStart, trimEnd(line, valueStart, length));
+            found++;
+        }
+        return found;
+    }
+    
+    //<editor-fold defaultstate="collapsed" desc="Value parsers" >
+    /**
+     * Parses a decimal integer.
+     * @param text The text containing the value.
+     * @param start The index of the first character of the value.
+     * @param end The index after the last character of the value.
+     * @return The value.
+     * @throws NumberFormatException If the range holds no valid integer.
+     */
+    static int parseInt(CharSequence text, int start, int end) {
+        long value = parseLong(text, start, end);
+        if (value != (int)value) throw new NumberFormatException("Value out of range: " + text.subSequence(start, end));
+        return (int)value;
+    }
+    
+    /**
+     * Parses a decimal long integer.
+     * @param text The text containing the value.
+     * @param start The index of the first character of the value.
+     * @param end The index after the last character of the value.
+     * @return The value.
+     * @throws NumberFormatException If the range holds no valid integer.
+     */
+    static long parseLong(CharSequence text, int start, int end) {
+        boolean negative = start < end && text.charAt(start) == '-';
+        int i = negative || (start < end && text.charAt(start) == '+') ? start + 1 : start;
+        if (i == end || end - i > 18) throw new NumberFormatException("Invalid integer: " + text.subSequence(start, end));
+        
+        long value = 0;
+        for (; i < end; i++) {
+            int digit = text.charAt(i) - '0';
+            if (digit < 0 || digit > 9) throw new NumberFormatException("Invalid integer: " + text.subSequence(start, end));
+            value = value * 10 + digit;
+        }
+        return negative ? -value : value;
+    }
+    
+    /**
+     * Parses an integer given in tenths (e.g.: a temperature of {@code 285} for 28.5°C).
+     * @param text The text containing the value.
+     * @param start The index of the first character of the value.
+     * @param end The index after the last character of the value.
+     * @return The value divided by ten.
+     * @throws NumberFormatException If the range holds no valid integer.
+     */
+    static double parseTenths(CharSequence text, int start, int end) {
+        return parseLong(text, start, end) / 10.0;
+    }
+    
+    /**
+     * Parses a boolean the way {@link Boolean#parseBoolean(java.lang.String)} does.
+     * @param text The text containing the value.
+     * @param start The index of the first character of the value.
+     * @param end The index after the last character of the value.
+     * @return {@code true} if the value is {@code true}, ignoring case.
+     */
+    static boolean parseBoolean(CharSequence text, int start, int end) {
+        return end - start == 4
+            && Character.toLowerCase(text.charAt(start)) == 't'
+            && Character.toLowerCase(text.charAt(start + 1)) == 'r'
+            && Character.toLowerCase(text.charAt(start + 2)) == 'u'
+            && Character.toLowerCase(text.charAt(start + 3)) == 'e';
+    }
+    //</editor-fold>
+    
+    private static int skipWhitespace(CharSequence text, int index, int end) {
+        while (index < end && Character.isWhitespace(text.charAt(index))) index++;
+        return index;
+    }
+    
+    private static int trimEnd(CharSequence text, int start, int end) {
+        while (end > start && Character.isWhitespace(text.charAt(end - 1))) end--;
+        return end;
+    }
+    
+}
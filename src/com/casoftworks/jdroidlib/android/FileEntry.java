@@ -0,0 +1,289 @@
+/*
+ * Copyright (C) 2016 Ca Softworks.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+package com.casoftworks.jdroidlib.android;
+
+/**
+ * An entry of a device's filesystem, as listed by {@link FileSystem}.
+ * The type and permissions of an entry are taken from its Unix mode, as
+ * reported by the device.
+ * Entries are immutable.
+ * @author simoncahill
+ */
+public final class FileEntry {
+    
+    //<editor-fold defaultstate="collapsed" desc="Mode bits" >
+    static final int S_IFMT = 0170000;
+    static final int S_IFSOCK = 0140000;
+    static final int S_IFLNK = 0120000;
+    static final int S_IFREG = 0100000;
+    static final int S_IFBLK = 0060000;
+    static final int S_IFDIR = 0040000;
+    static final int S_IFCHR = 0020000;
+    static final int S_IFIFO = 0010000;
+    //</editor-fold>
+    
+    /**
+     * The types of filesystem entries.
+     */
+    public static enum Type {
+        /** A regular file. */
+        FILE,
+        /** A directory. */
+        DIRECTORY,
+        /** A symbolic link. */
+        SYMBOLIC_LINK,
+        /** A character device (e.g.: {@code /dev/null}). */
+        CHARACTER_DEVICE,
+        /** A block device (e.g.: a partition). */
+        BLOCK_DEVICE,
+        /** A named pipe. */
+        FIFO,
+        /** A Unix domain socket. */
+        SOCKET,
+        /** The type could not be determined. */
+        UNKNOWN;
+        
+        /**
+         * Gets the type of a given Unix mode.
+         * @param mode The mode.
+         * @return The type.
+         */
+        static Type ofMode(int mode) {
+            switch (mode & S_IFMT) {
+                case S_IFREG: return FILE;
+                case S_IFDIR: return DIRECTORY;
+                case S_IFLNK: return SYMBOLIC_LINK;
+                case S_IFCHR: return CHARACTER_DEVICE;
+                case S_IFBLK: return BLOCK_DEVICE;
+                case S_IFIFO: return FIFO;
+                case S_IFSOCK: return SOCKET;
+                default: return UNKNOWN;
+            }
+        }
+    }
+    
+    private final String directory;
+    private final String name;
+    private final int mode;
+    private final long size;
+    private final long lastModified;
+    private final String owner;
+    private final String group;
+    private final String linkTarget;
+    
+    /**
+     * Creates a new entry whose directory is unknown.
+     * @param name The name of the entry.
+     * @param mode The Unix mode of the entry (type and permissions).
+     * @param size The size of the entry in bytes, or -1 if it is unknown.
+     * @param lastModified The time of the last modification, in milliseconds since the epoch, or 0 if it is unknown.
+     */
+    FileEntry(String name, int mode, long size, long lastModified) {
+        this(null, name, mode, size, lastModified);
+    }
+    
+    /**
+     * Creates a new entry.
+     * Entries of the same directory share the directory's path, so listing a
+     * directory does not build a path string per entry.
+     * @param directory The path of the directory containing the entry, ending in a slash, or {@code null} if it is unknown.
+     * @param name The name of the entry.
+     * @param mode The Unix mode of the entry (type and permissions).
+     * @param size The size of the entry in bytes, or -1 if it is unknown.
+     * @param lastModified The time of the last modification, in milliseconds since the epoch, or 0 if it is unknown.
+     */
+    FileEntry(String directory, String name, int mode, long size, long lastModified) {
+        this(directory, name, mode, size, lastModified, null, null, null);
+    }
+    
+    /**
+     * Creates a new entry, including the details only listed by {@code ls -l}.
+     * @param directory The path of the directory containing the entry, ending in a slash, or {@code null} if it is unknown.
+     * @param name The name of the entry.
+     * @param mode The Unix mode of the entry (type and permissions).
+     * @param size The size of the entry in bytes, or -1 if it is unknown.
+     * @param lastModified The time of the last modification, in milliseconds since the epoch, or 0 if it is unknown.
+     * @param owner The name of the owning user, or {@code null} if it is unknown.
+     * @param group The name of the owning group, or {@code null} if it is unknown.
+     * @param linkTarget The target of a symbolic link, or {@code null} if the entry is no link or the target is unknown.
+     */
+    FileEntry(String directory, String name, int mode, long size, long lastModified, String owner, String group, String linkTarget) {
+        this.directory = directory;
+        this.name = name;
+        this.mode = mode;
+        this.size = size;
+        this.lastModified = lastModified;
+        this.owner = owner;
+        this.group = group;
+        this.linkTarget = linkTarget;
+    }
+    
+    /**
+     * Copies this entry with a different type and size, keeping its name and directory.
+     * Used to replace symbolic links by their targets.
+     * @param target The entry whose mode, size and time to take.
+     * @return The new entry.
+     */
+    FileEntry withTarget(FileEntry target) {
+        return new FileEntry(directory, name, target.mode, target.size, target.lastModified,
+                target.owner != null ? target.owner : owner, target.group != null ? target.group : group, null);
+    }
+    
+    /**
+     * Gets the name of the last element of a path.
+     * @param path The path (e.g.: {@code /sdcard/DCIM/}).
+     * @return The name (e.g.: {@code DCIM}), or {@code /} for the root directory.
+     */
+    static String nameOf(String path) {
+        int end = path.length();
+        while (end > 1 && path.charAt(end - 1) == '/') end--;
+        if (end == 1 && path.charAt(0) == '/') return "/";
+        return path.substring(path.lastIndexOf('/', end - 1) + 1, end);
+    }
+    
+    /**
+     * Gets the path of the directory containing a path.
+     * @param path The path (e.g.: {@code /sdcard/DCIM/}).
+     * @return The directory, ending in a slash (e.g.: {@code /sdcard/}), or {@code null} if the path has no directory.
+     */
+    static String directoryOf(String path) {
+        int end = path.length();
+        while (end > 1 && path.charAt(end - 1) == '/') end--;
+        int slash = path.lastIndexOf('/', end - 1);
+        return slash < 0 || end == 1 ? null : path.substring(0, slash + 1);
+    }
+    
+    /**
+     * Appends a slash to the path of a directory, unless it already ends in one.
+     * @param path The path of the directory.
+     * @return The path, ending in a slash.
+     */
+    static String asDirectory(String path) { return path.endsWith("/") ? path : path + "/"; }
+    
+    //<editor-fold defaultstate="collapsed" desc="Getters" >
+    /**
+     * Gets the name of this entry.
+     * @return The name, without the path of its directory.
+     */
+    public String getName() { return name; }
+    
+    /**
+     * Gets the path of the directory containing this entry.
+     * @return The path, ending in a slash, or {@code null} if it is unknown.
+     */
+    public String getDirectory() { return directory; }
+    
+    /**
+     * Gets the absolute path of this entry.
+     * The path is built on each call.
+     * @return The path of the entry, or its name if its directory is unknown.
+     */
+    public String getPath() { return directory == null ? name : directory + name; }
+    
+    /**
+     * Gets the Unix mode of this entry, i.e.: its type and permission bits.
+     * @return The mode.
+     */
+    public int getMode() { return mode; }
+    
+    /**
+     * Gets the permission bits of this entry, including the setuid, setgid and sticky bits.
+     * @return The permissions (e.g.: {@code 0755}).
+     */
+    public int getPermissions() { return mode & 07777; }
+    
+    /**
+     * Gets the type of this entry.
+     * @return The type.
+     */
+    public Type getType() { return Type.ofMode(mode); }
+    
+    /**
+     * Gets the size of this entry.
+     * @return The size in bytes, or -1 if it is unknown.
+     */
+    public long getSize() { return size; }
+    
+    /**
+     * Gets the time this entry was last modified.
+     * @return The time in milliseconds since the epoch, or 0 if it is unknown.
+     */
+    public long getLastModified() { return lastModified; }
+    
+    /**
+     * Gets the owner of this entry.
+     * Only listings made with {@code ls} tell the owner; the ADB {@code sync:} service does not.
+     * @return The name of the owning user (e.g.: {@code root}), or {@code null} if it is unknown.
+     */
+    public String getOwner() { return owner; }
+    
+    /**
+     * Gets the group of this entry.
+     * Only listings made with {@code ls} tell the group; the ADB {@code sync:} service does not.
+     * @return The name of the owning group (e.g.: {@code sdcard_rw}), or {@code null} if it is unknown.
+     */
+    public String getGroup() { return group; }
+    
+    /**
+     * Gets the target of this entry, if it is a symbolic link.
+     * Only listings made with {@code ls} tell the target; the ADB {@code sync:} service does not.
+     * @return The target as stored in the link (e.g.: {@code /storage/self/primary}), or {@code null} if it is unknown.
+     */
+    public String getLinkTarget() { return linkTarget; }
+    
+    /**
+     * Gets a value indicating whether this entry is a directory.
+     * @return {@code true} if this entry is a directory.
+     */
+    public boolean isDirectory() { return (mode & S_IFMT) == S_IFDIR; }
+    
+    /**
+     * Gets a value indicating whether this entry is a regular file.
+     * @return {@code true} if this entry is a regular file.
+     */
+    public boolean isFile() { return (mode & S_IFMT) == S_IFREG; }
+    
+    /**
+     * Gets a value indicating whether this entry is a symbolic link.
+     * @return {@code true} if this entry is a symbolic link.
+     */
+    public boolean isSymbolicLink() { return (mode & S_IFMT) == S_IFLNK; }
+    
+    /**
+     * Gets a value indicating whether this entry is a character or block device.
+     * @return {@code true} if this entry is a device.
+     */
+    public boolean isDevice() { return (mode & S_IFMT) == S_IFCHR || (mode & S_IFMT) == S_IFBLK; }
+    
+    /**
+     * Gets the listing type of this entry, as returned by {@link FileSystem#listFiles(String, boolean, FileSystem.ListingOptions)}.
+     * @return {@link FileSystem.ListingType#DIRECTORY} for directories, {@link FileSystem.ListingType#FILE} for anything else.
+     */
+    public FileSystem.ListingType getListingType() {
+        return isDirectory() ? FileSystem.ListingType.DIRECTORY : FileSystem.ListingType.FILE;
+    }
+    //</editor-fold>
+    
+    @Override
+    public String toString() {
+        return String.format("%s %06o %s %s %d %d%s", getPath(), mode, owner, group, size, lastModified,
+                linkTarget == null ? "" : " -> " + linkTarget);
+    }
+    
+}
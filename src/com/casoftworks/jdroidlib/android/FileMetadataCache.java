@@ -0,0 +1,267 @@
+/*
+ * Copyright (C) 2016 Ca Softworks.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+package com.casoftworks.jdroidlib.android;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Caches the metadata of a device's filesystem: the entries of listed
+ * directories, and the entries of stat'ed paths, including paths which do
+ * not exist. Each {@link FileSystem} has a cache of its own, keyed by absolute path.
+ * Entries stay valid for a configurable time, and the least recently used
+ * entries are dropped once the cache is full.
+ * Files pushed, deleted or created through the {@link FileSystem} invalidate
+ * the cached entries of their path, of everything below it and of all of its
+ * parent directories. Changes made by other means (e.g.: apps on the device)
+ * are only seen once the cached entries have expired.
+ * Nothing is cached by default; set a time to live to enable the cache.
+ * @author simoncahill
+ */
+public final class FileMetadataCache {
+    
+    /** Cached in place of an entry for paths which do not exist. */
+    static final Object MISSING = new Object();
+    
+    private static final class Entry {
+        
+        final Object value;
+        final long expires;
+        
+        Entry(Object value, long expires) {
+            this.value = value;
+            this.expires = expires;
+        }
+        
+    }
+    
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+            if (size() <= maxEntries) return false;
+            evictions.incrementAndGet();
+            return true;
+        }
+    };
+    private volatile long timeToLive = 0;
+    private volatile long negativeTimeToLive = 0;
+    private volatile int maxEntries = 1024;
+    /** Incremented by every invalidation, so results read before it are not cached after it. */
+    private long generation = 0;
+    
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+    private final AtomicLong invalidations = new AtomicLong();
+    
+    /**
+     * Default constructor. Package-private.
+     */
+    FileMetadataCache() { }
+    
+    //<editor-fold defaultstate="collapsed" desc="Configuration" >
+    /**
+     * Sets how long listings and entries stay valid.
+     * @param timeToLive The time (in ms) entries stay valid. Set to 0 to disable the cache.
+     */
+    public void setTimeToLive(long timeToLive) {
+        this.timeToLive = Math.max(0, timeToLive);
+        if (timeToLive <= 0) invalidateAll();
+    }
+    
+    /**
+     * Gets how long listings and entries stay valid.
+     * @return The time to live (in ms), or 0 if the cache is disabled.
+     */
+    public long getTimeToLive() { return timeToLive; }
+    
+    /**
+     * Sets how long paths which do not exist are remembered as missing.
+     * Negative entries are only cached while the cache is enabled.
+     * @param timeToLive The time (in ms) negative entries stay valid. Set to 0 to not cache missing paths.
+     */
+    public void setNegativeTimeToLive(long timeToLive) { this.negativeTimeToLive = Math.max(0, timeToLive); }
+    
+    /**
+     * Gets how long paths which do not exist are remembered as missing.
+     * @return The time to live (in ms) of negative entries, or 0 if missing paths are not cached.
+     */
+    public long getNegativeTimeToLive() { return negativeTimeToLive; }
+    
+    /**
+     * Sets the maximum number of listings and entries held by this cache.
+     * @param maxEntries The maximum number of cached listings and entries. Default is 1024.
+     */
+    public synchronized void setMaxEntries(int maxEntries) {
+        this.maxEntries = Math.max(0, maxEntries);
+        Iterator<String> keys = entries.keySet().iterator();
+        while (entries.size() > this.maxEntries && keys.hasNext()) {
+            keys.next();
+            keys.remove();
+            evictions.incrementAndGet();
+        }
+    }
+    
+    /**
+     * Gets the maximum number of listings and entries held by this cache.
+     * @return The maximum number of cached listings and entries.
+     */
+    public int getMaxEntries() { return maxEntries; }
+    //</editor-fold>
+    
+    //<editor-fold defaultstate="collapsed" desc="Invalidation" >
+    /**
+     * Removes all cached listings and entries.
+     */
+    public synchronized void invalidateAll() {
+        generation++;
+        entries.clear();
+    }
+    
+    /**
+     * Removes the cached listings and entries of a path, of everything below
+     * it, and of all of its parent directories, whose listings include it.
+     * @param path The absolute path.
+     */
+    public synchronized void invalidate(String path) {
+        generation++;
+        invalidations.incrementAndGet();
+        String normalized = normalize(path);
+        String below = normalized.equals("/") ? "/" : normalized + '/';
+        Iterator<String> keys = entries.keySet().iterator();
+        while (keys.hasNext()) {
+            String key = keys.next();
+            String cached = key.substring(0, key.indexOf('\0'));
+            if (cached.equals(normalized) || cached.startsWith(below) || isParent(cached, normalized))
+                keys.remove();
+        }
+    }
+    
+    private static boolean isParent(String parent, String path) {
+        return parent.equals("/") || (path.startsWith(parent) && path.length() > parent.length() && path.charAt(parent.length()) == '/');
+    }
+    //</editor-fold>
+    
+    //<editor-fold defaultstate="collapsed" desc="Statistics" >
+    /**
+     * Gets the number of lookups served from this cache.
+     * @return The number of hits.
+     */
+    public long getHits() { return hits.get(); }
+    
+    /**
+     * Gets the number of lookups not served from this cache, while it was enabled.
+     * @return The number of misses.
+     */
+    public long getMisses() { return misses.get(); }
+    
+    /**
+     * Gets the number of listings and entries dropped because the cache was full.
+     * @return The number of evictions.
+     */
+    public long getEvictions() { return evictions.get(); }
+    
+    /**
+     * Gets the number of paths invalidated, either explicitly or by changes made through the {@link FileSystem}.
+     * @return The number of invalidations.
+     */
+    public long getInvalidations() { return invalidations.get(); }
+    
+    /**
+     * Gets the number of listings and entries currently held by this cache, including expired ones.
+     * @return The number of cached listings and entries.
+     */
+    public synchronized int size() { return entries.size(); }
+    //</editor-fold>
+    
+    /**
+     * Gets a value indicating whether anything is cached.
+     * @return {@code true} if a time to live has been set.
+     */
+    boolean isEnabled() { return timeToLive > 0; }
+    
+    /**
+     * Gets the current generation of this cache, to be passed to {@link #put(String, char, Object, long)}
+     * once the value to cache has been read from the device.
+     * @return The generation.
+     */
+    synchronized long getGeneration() { return generation; }
+    
+    /**
+     * Gets a cached value.
+     * @param path The absolute path.
+     * @param kind The kind of value (e.g.: a listing or an entry), along with the options it was read with.
+     * @return The value, {@link #MISSING} if the path is known not to exist, or {@code null} if nothing valid is cached.
+     */
+    Object get(String path, char kind) {
+        if (!isEnabled()) return null;
+        String key = key(path, kind);
+        Entry entry;
+        synchronized (this) {
+            entry = entries.get(key);
+            if (entry != null && entry.expires - System.nanoTime() <= 0) {
+                entries.remove(key);
+                entry = null;
+            }
+        }
+        if (entry == null) {
+            misses.incrementAndGet();
+            return null;
+        }
+        hits.incrementAndGet();
+        return entry.value;
+    }
+    
+    /**
+     * Caches a value, unless the cache has been invalidated since the value was read.
+     * @param path The absolute path.
+     * @param kind The kind of value.
+     * @param value The value, or {@link #MISSING} if the path does not exist.
+     * @param generation The generation of the cache before the value was read.
+     */
+    void put(String path, char kind, Object value, long generation) {
+        long ttl = value == MISSING ? Math.min(negativeTimeToLive, timeToLive) : timeToLive;
+        if (ttl <= 0) return;
+        Entry entry = new Entry(value, System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(ttl));
+        synchronized (this) {
+            if (generation == this.generation)
+                entries.put(key(path, kind), entry);
+        }
+    }
+    
+    /**
+     * Removes redundant slashes from the end of a path.
+     */
+    static String normalize(String path) {
+        int end = path.length();
+        while (end > 1 && path.charAt(end - 1) == '/') end--;
+        return end == path.length() ? path : path.substring(0, end);
+    }
+    
+    /**
+     * Builds the key of a value: its path and kind, separated by a NUL character.
+     */
+    private static String key(String path, char kind) {
+        return normalize(path) + '\0' + kind;
+    }
+    
+}
@@ -19,12 +19,19 @@
 package com.casoftworks.jdroidlib.android;
 
 import com.casoftworks.jdroidlib.exception.FileListingException;
-import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
-import java.io.StringReader;
+import java.io.InputStream;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.List;
+import java.util.TimeZone;
+import java.util.function.Predicate;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 /**
  * Represents the filesystem of a given {@link Device}.
@@ -71,6 +78,7 @@ public class FileSystem {
         private boolean _sortBySize = false;
         private boolean _sortByExtension = false;
         private boolean _sortByVersion = false;
+        private boolean _showOwnersAndLinkTargets = false;
         //</editor-fold>
         
         //<editor-fold defaultstate="collapsed" desc="Getter/Setter Methods" >
@@ -144,6 +152,12 @@ public class FileSystem {
          */
         public boolean sortByVersion() { return _sortByVersion; }
         
+        /**
+         * Gets a value indicating whether the owners, groups and link targets of entries will be listed.
+         * @return {@code true} if owners, groups and link targets will be listed.
+         */
+        public boolean showOwnersAndLinkTargets() { return _showOwnersAndLinkTargets; }
+        
         /**
          * Sets a value whether to show all entries.
          * @param bool The new value.
@@ -158,6 +172,13 @@ public class FileSystem {
          */
         public ListingOptions hideDirectoryJumps(boolean bool) { _hideDirectoryJumps = bool; return this; }
         
+        /**
+         * Sets a value whether to follow symlinks, i.e.: list the type of their targets.
+         * @param bool The new value.
+         * @return The instance. (Useful for method-chaining.)
+         */
+        public ListingOptions followSymLinks(boolean bool) { _followSymLinks = bool; return this; }
+
         ListingOptions appendSlashToDirs(boolean bool) { _appendSlashToDirs = bool; return this; }
         
         /**
@@ -201,8 +222,79 @@ public class FileSystem {
          * @return The instance. (Useful for method-chaining.)
          */
         public ListingOptions sortByVersion(boolean bool) { _sortByVersion = bool; return this; }
+        
+        /**
+         * Sets a value whether to list the owners, groups and link targets of entries.
+         * Only {@code ls -l} lists these, so directories are listed with {@code ls}
+         * instead of the faster ADB {@code sync:} service if this is set.
+         * @param bool The new value.
+         * @return The instance. (Useful for method-chaining.)
+         */
+        public ListingOptions showOwnersAndLinkTargets(boolean bool) { _showOwnersAndLinkTargets = bool; return this; }
         //</editor-fold>
         
+        /**
+         * Gets a comparator ordering entries the way {@code ls} does with these options:
+         * by size (largest first), by extension, by version (e.g.: {@code file9} before
+         * {@code file10}) or else by name, and in reverse order if required.
+         * Ties are broken by name.
+         * @return The comparator.
+         */
+        public Comparator<FileEntry> getComparator() {
+            Comparator<FileEntry> comparator;
+            if (_sortBySize)
+                comparator = Comparator.comparingLong(FileEntry::getSize).reversed().thenComparing(FileEntry::getName);
+            else if (_sortByExtension)
+                comparator = Comparator.comparing(FileEntry::getName, ListingOptions::compareExtensions).thenComparing(FileEntry::getName);
+            else if (_sortByVersion)
+                comparator = Comparator.comparing(FileEntry::getName, ListingOptions::compareVersions);
+            else
+                comparator = Comparator.comparing(FileEntry::getName);
+            return _sortInReverseOrder ? comparator.reversed() : comparator;
+        }
+        
+        /**
+         * Compares the extensions of two names; names without an extension come first.
+         */
+        private static int compareExtensions(String a, String b) {
+            int dotA = a.lastIndexOf('.'), dotB = b.lastIndexOf('.');
+            if (dotA <= 0 || dotB <= 0) return (dotA <= 0 ? 0 : 1) - (dotB <= 0 ? 0 : 1);
+            int lengthA = a.length() - dotA, lengthB = b.length() - dotB;
+            for (int i = 1; i < Math.min(lengthA, lengthB); i++) {
+                int difference = a.charAt(dotA + i) - b.charAt(dotB + i);
+                if (difference != 0) return difference;
+            }
+            return lengthA - lengthB;
+        }
+        
+        /**
+         * Compares two names, comparing runs of digits by their numeric value.
+         */
+        private static int compareVersions(String a, String b) {
+            int i = 0, j = 0;
+            while (i < a.length() && j < b.length()) {
+                char x = a.charAt(i), y = b.charAt(j);
+                if (!isDigit(x) || !isDigit(y)) {
+                    if (x != y) return x - y;
+                    i++;
+                    j++;
+                    continue;
+                }
+                
+                while (i < a.length() - 1 && a.charAt(i) == '0' && isDigit(a.charAt(i + 1))) i++;
+                while (j < b.length() - 1 && b.charAt(j) == '0' && isDigit(b.charAt(j + 1))) j++;
+                int endA = i, endB = j;
+                while (endA < a.length() && isDigit(a.charAt(endA))) endA++;
+                while (endB < b.length() && isDigit(b.charAt(endB))) endB++;
+                if (endA - i != endB - j) return (endA - i) - (endB - j);
+                for (; i < endA; i++, j++)
+                    if (a.charAt(i) != b.charAt(j)) return a.charAt(i) - b.charAt(j);
+            }
+            return (a.length() - i) - (b.length() - j);
+        }
+        
+        private static boolean isDigit(char c) { return c >= '0' && c <= '9'; }
+        
         /**
          * Gets all of the desired options as a {@link List(String)}.
          * @return A List of String containing all the options.
@@ -256,10 +348,129 @@ public class FileSystem {
         }
         
     }
+    
+    /**
+     * This class contains the options for walking a directory tree.
+     * Instances (objects) of this class are used in conjunction with the
+     * {@link FileSystem#walk(java.lang.String, boolean, com.casoftworks.jdroidlib.android.FileSystem.WalkOptions) } function.
+     * To get an instance of this class with default values, simply create a new instance of this class.
+     */
+    public static final class WalkOptions {
+        
+        //<editor-fold defaultstate="collapsed" desc="Variables and Consts" >
+        private int _maxDepth = Integer.MAX_VALUE;
+        private int _parallelism = 4;
+        private int _bufferSize = 1024;
+        private boolean _showHiddenEntries = true;
+        private Predicate<FileEntry> _filter = entry -> true;
+        private Predicate<FileEntry> _descendInto = entry -> true;
+        //</editor-fold>
+        
+        //<editor-fold defaultstate="collapsed" desc="Getter/Setter Methods" >
+        /**
+         * Gets the maximum depth of the walk. The root has a depth of 0, its entries a depth of 1, and so on.
+         * @return The maximum depth. Defaults to {@link Integer#MAX_VALUE}.
+         */
+        public int maxDepth() { return _maxDepth; }
+        
+        /**
+         * Gets the number of directories listed at the same time, each over a connection of its own.
+         * @return The number of connections. Defaults to 4.
+         */
+        public int parallelism() { return _parallelism; }
+        
+        /**
+         * Gets the number of entries found ahead of the consumer of the walk.
+         * Once this many entries are waiting, the walk pauses until the consumer catches up.
+         * @return The number of entries. Defaults to 1024.
+         */
+        public int bufferSize() { return _bufferSize; }
+        
+        /**
+         * Gets a value indicating whether hidden entries (entries starting with a period (.)) are walked.
+         * @return {@code true} if hidden entries are walked.
+         */
+        public boolean showHiddenEntries() { return _showHiddenEntries; }
+        
+        /**
+         * Gets the predicate deciding which entries are returned by the walk.
+         * @return The filter.
+         */
+        public Predicate<FileEntry> filter() { return _filter; }
+        
+        /**
+         * Gets the predicate deciding which directories are descended into.
+         * @return The predicate.
+         */
+        public Predicate<FileEntry> descendInto() { return _descendInto; }
+        
+        /**
+         * Sets the maximum depth of the walk. A depth of 0 only returns the root.
+         * @param depth The new value.
+         * @return The instance. (Useful for method-chaining.)
+         */
+        public WalkOptions maxDepth(int depth) {
+            if (depth < 0) throw new IllegalArgumentException("The depth must not be negative.");
+            _maxDepth = depth; return this;
+        }
+        
+        /**
+         * Sets the number of directories listed at the same time.
+         * Every listing takes one of the device's slots while it runs, so a value of more
+         * than {@link AndroidController#setSchedulingLimits(int, int, int) maxRunningPerDevice} is of no use.
+         * Slots are not held while waiting for the consumer, which may run commands on the same device.
+         * @param connections The new value.
+         * @return The instance. (Useful for method-chaining.)
+         */
+        public WalkOptions parallelism(int connections) {
+            if (connections < 1) throw new IllegalArgumentException("At least one connection is required.");
+            _parallelism = connections; return this;
+        }
+        
+        /**
+         * Sets the number of entries found ahead of the consumer of the walk.
+         * @param size The new value.
+         * @return The instance. (Useful for method-chaining.)
+         */
+        public WalkOptions bufferSize(int size) {
+            if (size < 1) throw new IllegalArgumentException("The buffer size must be at least 1.");
+            _bufferSize = size; return this;
+        }
+        
+        /**
+         * Sets a value whether to walk hidden entries. Hidden directories are not descended into otherwise.
+         * @param bool The new value.
+         * @return The instance. (Useful for method-chaining.)
+         */
+        public WalkOptions showHiddenEntries(boolean bool) { _showHiddenEntries = bool; return this; }
+        
+        /**
+         * Sets the predicate deciding which entries are returned by the walk.
+         * Directories rejected by the filter are still descended into.
+         * The predicate is called by the threads of the walk, not the consumer's.
+         * @param filter The new value.
+         * @return The instance. (Useful for method-chaining.)
+         */
+        public WalkOptions filter(Predicate<FileEntry> filter) { _filter = filter; return this; }
+        
+        /**
+         * Sets the predicate deciding which directories are descended into.
+         * Subtrees rejected by the predicate are never listed.
+         * The predicate is called by the threads of the walk, not the consumer's.
+         * @param predicate The new value.
+         * @return The instance. (Useful for method-chaining.)
+         */
+        public WalkOptions descendInto(Predicate<FileEntry> predicate) { _descendInto = predicate; return this; }
+        //</editor-fold>
+        
+    }
+    
     //</editor-fold>
     
     private final Device device;
     private final AndroidController androidController;
+    private final FileMetadataCache cache = new FileMetadataCache();
+    private volatile TimeZone timeZone = null;
     
     /**
      * Default constructor.
@@ -272,6 +483,9 @@ public class FileSystem {
     
     /**
      * Lists all the files in a given directory.
+     * Unless super user privileges are required, the directory is listed via
+     * the ADB {@code sync:} service if the device is reached through an ADB
+     * server; otherwise, {@code ls -l} is run on the device.
      * @param path The path from which to list the files.
      * @param requireSuperUser Set to {@code true}, if super user privileges are required to scan a directory.
      * @param options The options for the file/directory listing. Set to {@code null} to use the default options!
@@ -284,51 +498,365 @@ public class FileSystem {
         HashMap<String, ListingType> entries = new HashMap<>();
         
         // Don't even think of using BusyBox in this method. Create a separate method for it.
-        // Set listing options
-        if (options == null)
-            options = new ListingOptions()
-                    .appendIndicatorToEntries(false)
-                    .appendSlashToDirs(false)
-                    .hideDirectoryJumps(true)
-                    .showAllEntries(false)
-                    .showHumanReadableSizes(false)
-                    .sortByExtension(false)
-                    .sortBySize(false)
-                    .sortByVersion(false)
-                    .sortInReverseOrder(false);
-        
-        AndroidCommand cmd = AndroidCommand.formAndroidShellCommand(device, requireSuperUser , "ls", options.getOptionsAsListIncludePath(path));
-        String output = androidController.executeCommandReturnOutput(cmd);
-        if (output.toLowerCase().contains("aborting.") || output.toLowerCase().contains("permission denied."))
-            throw new FileListingException(output.replace("ls:", ""));
-        
-        try (BufferedReader reader = new BufferedReader(new StringReader(output))) {
-            String line;
-            
-            while ((line = reader.readLine()) != null) {
-                String[] split = line.split("\\s");
-                // Split string by whitespace. If the length of the array is 6, the entry is a directory.
-                // If the length of the array is 7, the entry is a file.
-                // File listings include the size of the file. With directories, this is left out as whitespace.
-                
-                if (split.length == 6)
-                    // Entry is a directory - missing file size
-                    entries.put(split[split.length - 1], ListingType.DIRECTORY);
-                else
-                    // Entry is a file - file size is present.
-                    entries.put(split[split.length - 1], ListingType.FILE);
-                
+        for (FileEntry entry : listEntries(path, requireSuperUser, options))
+            entries.put(entry.getName(), entry.getListingType());
+        return entries;
+    }
+    
+    /**
+     * Lists all the entries in a given directory, with their type, permissions,
+     * size and time of last modification.
+     * Unless super user privileges are required, the directory is listed via
+     * the ADB {@code sync:} service, which reports each entry as a binary
+     * record. If super user privileges are required, the device is reached
+     * through the ADB binary, or {@link ListingOptions#showOwnersAndLinkTargets()}
+     * is set, {@code ls -l} is run instead, whose output also tells the owner,
+     * group and link target of each entry.
+     * Entries are sorted as set by the options (see {@link ListingOptions#getComparator()}).
+     * Listings are served from the {@link #getCache() cache} while they are valid.
+     * @param path The absolute path of the directory. If the path is a file, only the file is listed.
+     * @param requireSuperUser Set to {@code true}, if super user privileges are required to scan a directory.
+     * @param options The options for the listing. Set to {@code null} to use the default options.
+     * @return The entries of the directory.
+     * @throws IOException If the device could not be reached.
+     * @throws InterruptedException If the thread was interrupted while listing the directory.
+     * @throws FileListingException If the directory does not exist or could not be read.
+     */
+    @SuppressWarnings("unchecked")
+    public List<FileEntry> listEntries(String path, boolean requireSuperUser, ListingOptions options) throws IOException, InterruptedException, FileListingException {
+        if (options == null) options = defaultOptions();
+        char kind = listingKind(requireSuperUser, options);
+        Object cached = cache.get(path, kind);
+        if (cached == FileMetadataCache.MISSING)
+            throw new FileListingException(path + MISSING);
+        
+        List<FileEntry> entries;
+        if (cached != null)
+            entries = new ArrayList<>((List<FileEntry>)cached);
+        else {
+            long generation = cache.getGeneration();
+            try {
+                entries = readEntries(path, requireSuperUser, options);
+            } catch (FileListingException ex) {
+                if (ex.getMessage() != null && ex.getMessage().endsWith(MISSING))
+                    cache.put(path, kind, FileMetadataCache.MISSING, generation);
+                throw ex;
+            }
+            if (cache.isEnabled())
+                cache.put(path, kind, Collections.unmodifiableList(new ArrayList<>(entries)), generation);
+        }
+        entries.sort(options.getComparator());
+        return entries;
+    }
+    
+    /**
+     * Lists a directory on the device, bypassing the cache. The entries are not sorted.
+     * Used directly by {@link FileWalker}, whose listings would only flood the cache.
+     */
+    List<FileEntry> readEntries(String path, boolean requireSuperUser, ListingOptions options) throws IOException, InterruptedException, FileListingException {
+        if (!requireSuperUser && !options.showOwnersAndLinkTargets()) {
+            try (SyncProtocol sync = androidController.openSync(device)) {
+                if (sync != null) return listEntries(sync, path, options);
+            }
+        }
+        return listWithShell(path, requireSuperUser, options);
+    }
+    
+    /**
+     * Gets the entry of a given path, following symbolic links.
+     * Unless super user privileges are required, the entry is read via the ADB
+     * {@code sync:} service if possible; otherwise, {@code stat} is run on the device.
+     * Devices without the {@code stat_v2} feature cannot follow symbolic links
+     * via the sync service; for them, links are reported as links.
+     * Entries are served from the {@link #getCache() cache} while they are valid.
+     * @param path The absolute path.
+     * @param requireSuperUser Set to {@code true}, if super user privileges are required to reach the path.
+     * @return The entry, or {@code null} if the path does not exist.
+     * @throws IOException If the device could not be reached, or the path could not be read.
+     * @throws InterruptedException If the thread was interrupted while reading the entry.
+     */
+    public FileEntry stat(String path, boolean requireSuperUser) throws IOException, InterruptedException {
+        return stat(path, requireSuperUser, true);
+    }
+    
+    /**
+     * Gets the entry of a given path, without following symbolic links.
+     * Unless super user privileges are required, the entry is read via the ADB
+     * {@code sync:} service if possible; otherwise, {@code stat} is run on the device.
+     * Entries are served from the {@link #getCache() cache} while they are valid.
+     * @param path The absolute path.
+     * @param requireSuperUser Set to {@code true}, if super user privileges are required to reach the path.
+     * @return The entry, or {@code null} if the path does not exist.
+     * @throws IOException If the device could not be reached, or the path could not be read.
+     * @throws InterruptedException If the thread was interrupted while reading the entry.
+     */
+    public FileEntry lstat(String path, boolean requireSuperUser) throws IOException, InterruptedException {
+        return stat(path, requireSuperUser, false);
+    }
+    
+    /**
+     * Walks a directory tree, returning the entries of all of its directories and subdirectories.
+     * The tree is walked lazily, while the returned stream is consumed, and
+     * several directories are listed at the same time, each over its own
+     * connection; a connection done with its subtree takes over part of
+     * another's. At most {@link WalkOptions#bufferSize()} entries are kept
+     * ahead of the consumer, so walking trees of millions of files takes no
+     * more memory than walking small ones.
+     * The first entry of the stream is the root itself. The other entries are
+     * returned in no particular order. Symbolic links are returned, but not
+     * followed; directories which cannot be read are skipped.
+     * Unless super user privileges are required, directories are listed via the
+     * ADB {@code sync:} service if possible; otherwise, {@code ls} is run for each directory.
+     * The stream should be closed once it is no longer needed (e.g.: with a
+     * {@code try}-with-resources statement), as its connections stay open until
+     * the walk ends otherwise. If a connection fails, the stream throws an
+     * {@link java.io.UncheckedIOException}.
+     * @param root The absolute path of the directory to walk.
+     * @param requireSuperUser Set to {@code true}, if super user privileges are required to list the directories.
+     * @param options The options of the walk. Set to {@code null} to use the default options.
+     * @return A stream of the entries.
+     * @throws IOException If the device could not be reached.
+     * @throws InterruptedException If the thread was interrupted while reading the root.
+     * @throws FileListingException If the root does not exist.
+     */
+    public Stream<FileEntry> walk(String root, boolean requireSuperUser, WalkOptions options) throws IOException, InterruptedException, FileListingException {
+        if (options == null) options = new WalkOptions();
+        FileEntry entry = stat(root, requireSuperUser);
+        if (entry == null)
+            throw new FileListingException(root + MISSING);
+        
+        FileWalker walker = new FileWalker(this, androidController, device, root, entry, requireSuperUser, options);
+        return StreamSupport.stream(walker, false).onClose(walker::close);
+    }
+    
+    private FileEntry stat(String path, boolean requireSuperUser, boolean followLinks) throws IOException, InterruptedException {
+        char kind = followLinks ? (requireSuperUser ? 'S' : 's') : (requireSuperUser ? 'L' : 'l');
+        Object cached = cache.get(path, kind);
+        if (cached != null)
+            return cached == FileMetadataCache.MISSING ? null : (FileEntry)cached;
+        
+        long generation = cache.getGeneration();
+        FileEntry entry = readStat(path, requireSuperUser, followLinks);
+        cache.put(path, kind, entry == null ? FileMetadataCache.MISSING : entry, generation);
+        return entry;
+    }
+    
+    private FileEntry readStat(String path, boolean requireSuperUser, boolean followLinks) throws IOException, InterruptedException {
+        if (!requireSuperUser) {
+            try (SyncProtocol sync = androidController.openSync(device)) {
+                if (sync != null) return followLinks ? sync.stat(path) : sync.lstat(path);
+            }
+        }
+        
+        AndroidCommand cmd = followLinks ?
+                AndroidCommand.formAndroidShellCommand(device, requireSuperUser, "stat", "-L", "-c", "'%f %s %Y'", quote(path)) :
+                AndroidCommand.formAndroidShellCommand(device, requireSuperUser, "stat", "-c", "'%f %s %Y'", quote(path));
+        CommandResult result = androidController.executeCommandReturnResult(cmd);
+        String output = result.getOutput().trim();
+        if (result.getExitCode() != 0 || output.isEmpty()) {
+            if ((output + result.getError()).contains("No such file")) return null;
+            throw new IOException("Could not stat " + path + ": " + (output + result.getError()).trim());
+        }
+        
+        String[] fields = output.split("\\s+");
+        try {
+            return new FileEntry(FileEntry.directoryOf(path), FileEntry.nameOf(path), Integer.parseInt(fields[0], 16), Long.parseLong(fields[1]), Long.parseLong(fields[2]) * 1000);
+        } catch (NumberFormatException | ArrayIndexOutOfBoundsException ex) {
+            throw new IOException("Unexpected output of stat: " + output);
+        }
+    }
+    
+    //<editor-fold defaultstate="collapsed" desc="Modifications" >
+    /**
+     * Pushes a local file to the device.
+     * The file is sent via the ADB {@code sync:} service if the device is
+     * reached through an ADB server; otherwise, {@code adb push} is run.
+     * Cached listings and entries of the remote path and its parent directories are invalidated.
+     * @param localFile The file to push.
+     * @param remotePath The absolute path of the file on the device. If the
+     *                   path ends in a slash, the file is pushed in to that
+     *                   directory under its own name.
+     * @throws IOException If the file could not be read, or not be written to the device.
+     * @throws InterruptedException If the thread was interrupted while pushing the file.
+     */
+    public void push(File localFile, String remotePath) throws IOException, InterruptedException {
+        if (remotePath.endsWith("/")) remotePath += localFile.getName();
+        try {
+            try (SyncProtocol sync = androidController.openSync(device)) {
+                if (sync != null) {
+                    try (InputStream in = new FileInputStream(localFile)) {
+                        sync.send(remotePath, FileEntry.S_IFREG | (localFile.canExecute() ? 0755 : 0644), localFile.lastModified(), in);
+                    }
+                    return;
+                }
             }
             
-        } catch (IOException ex) {
-            System.err.println("An error has occurred within JDroidLib");
-            ex.printStackTrace(System.err);
-            throw ex;
+            CommandResult result = androidController.executeCommandReturnResult(
+                    new AndroidCommand("push", false, false, device, localFile.getAbsolutePath(), remotePath));
+            if (result.getExitCode() != 0)
+                throw new IOException("Could not push " + localFile + ": " + (result.getOutput() + result.getError()).trim());
+        } finally {
+            // Even a failed push may have left a partial file behind.
+            cache.invalidate(remotePath);
+        }
+    }
+    
+    /**
+     * Deletes a file or directory, including everything below it.
+     * Cached listings and entries of the path, everything below it and its parent directories are invalidated.
+     * @param path The absolute path.
+     * @param requireSuperUser Set to {@code true}, if super user privileges are required to delete the path.
+     * @throws IOException If the path could not be deleted, e.g.: because it does not exist.
+     * @throws InterruptedException If the thread was interrupted while deleting the path.
+     */
+    public void delete(String path, boolean requireSuperUser) throws IOException, InterruptedException {
+        try {
+            modify(AndroidCommand.formAndroidShellCommand(device, requireSuperUser, "rm", "-r", quote(path)), "delete " + path);
+        } finally {
+            cache.invalidate(path);
+        }
+    }
+    
+    /**
+     * Creates a directory, and any missing parent directories.
+     * Cached listings and entries of the path and its parent directories are invalidated.
+     * @param path The absolute path.
+     * @param requireSuperUser Set to {@code true}, if super user privileges are required to create the directory.
+     * @throws IOException If the directory could not be created.
+     * @throws InterruptedException If the thread was interrupted while creating the directory.
+     */
+    public void mkdir(String path, boolean requireSuperUser) throws IOException, InterruptedException {
+        try {
+            modify(AndroidCommand.formAndroidShellCommand(device, requireSuperUser, "mkdir", "-p", quote(path)), "create " + path);
+        } finally {
+            cache.invalidate(path);
+        }
+    }
+    
+    /**
+     * Runs a command which prints nothing unless it fails.
+     */
+    private void modify(AndroidCommand cmd, String action) throws IOException, InterruptedException {
+        CommandResult result = androidController.executeCommandReturnResult(cmd);
+        String message = (result.getOutput() + result.getError()).trim();
+        if (result.getExitCode() != 0 || !message.isEmpty())
+            throw new IOException("Could not " + action + ": " + message.replace("rm: ", "").replace("mkdir: ", ""));
+    }
+    //</editor-fold>
+    
+    /**
+     * Gets the cache of this filesystem's listings and entries.
+     * The cache is disabled until a time to live is set, e.g.: {@code getCache().setTimeToLive(5000)}.
+     * @return The cache.
+     */
+    public FileMetadataCache getCache() { return cache; }
+    
+    /** The end of the message of a {@link FileListingException} for a missing path. */
+    private static final String MISSING = ": No such file or directory";
+    
+    /**
+     * Gets the kind under which a listing is cached: one bit per option changing the listed entries.
+     */
+    private static char listingKind(boolean requireSuperUser, ListingOptions options) {
+        return (char)(0x100
+                | (requireSuperUser ? 1 : 0)
+                | (options.showAllEntries() ? 2 : 0)
+                | (options.hideDirectoryJumps() ? 4 : 0)
+                | (options.followSymLinks() ? 8 : 0)
+                | (options.showOwnersAndLinkTargets() ? 16 : 0));
+    }
+    
+    /**
+     * Lists a directory with {@code ls -l}.
+     * Sizes are always listed in bytes, regardless of {@link ListingOptions#showHumanReadableSizes()}.
+     */
+    private List<FileEntry> listWithShell(String path, boolean requireSuperUser, ListingOptions options) throws IOException, InterruptedException, FileListingException {
+        List<String> args = options.getOptionsAsList();
+        args.remove("-h");
+        args.add(quote(path));
+        
+        AndroidCommand cmd = AndroidCommand.formAndroidShellCommand(device, requireSuperUser, "ls", args);
+        ListingParser parser = new ListingParser(path, options, getTimeZone());
+        androidController.executeCommandStreamOutput(cmd, parser);
+        if (!parser.getError().isEmpty())
+            throw new FileListingException(parser.getError());
+        return parser.getEntries();
+    }
+    
+    /**
+     * Gets the time zone of the device, in which {@code ls} prints times.
+     * The time zone is read once, from the {@code persist.sys.timezone} property; devices without it are assumed to use UTC.
+     */
+    private TimeZone getTimeZone() throws IOException, InterruptedException {
+        TimeZone zone = timeZone;
+        if (zone == null) {
+            CommandResult result = androidController.executeCommandReturnResult(
+                    AndroidCommand.formAndroidShellCommand(device, false, "getprop", "persist.sys.timezone"));
+            String id = result.getOutput().trim();
+            timeZone = zone = result.getExitCode() != 0 || id.isEmpty() || id.contains(" ") ? TimeZone.getTimeZone("UTC") : TimeZone.getTimeZone(id);
+        }
+        return zone;
+    }
+    
+    /**
+     * Lists a directory via the sync service.
+     */
+    private List<FileEntry> listEntries(SyncProtocol sync, String path, ListingOptions options) throws IOException, FileListingException {
+        List<FileEntry> entries = new ArrayList<>();
+        String directory = FileEntry.asDirectory(path);
+        int[] listed = { 0 };
+        sync.list(path, entry -> {
+            String name = entry.getName();
+            boolean jump = name.equals(".") || name.equals("..");
+            if (jump ? options.showAllEntries() && !options.hideDirectoryJumps()
+                     : !name.startsWith(".") || options.showAllEntries() || options.hideDirectoryJumps())
+                entries.add(entry);
+            listed[0]++;
+            return true;
+        });
+        
+        if (listed[0] == 0) {
+            // Unreadable directories are listed as empty; even . and .. are missing.
+            FileEntry entry = sync.lstat(path);
+            if (entry == null)
+                throw new FileListingException(path + MISSING);
+            if (!entry.isDirectory())
+                return Collections.singletonList(entry);
+            throw new FileListingException(path + ": Permission denied");
         }
         
+        if (options.followSymLinks()) {
+            for (int i = 0; i < entries.size(); i++) {
+                FileEntry entry = entries.get(i);
+                if (!entry.isSymbolicLink()) continue;
+                FileEntry target = sync.stat(directory + entry.getName());
+                if (target != null)
+                    entries.set(i, entry.withTarget(target));
+            }
+        }
         return entries;
     }
     
+    private static ListingOptions defaultOptions() {
+        return new ListingOptions()
+                .appendIndicatorToEntries(false)
+                .appendSlashToDirs(false)
+                .hideDirectoryJumps(true)
+                .showAllEntries(false)
+                .showHumanReadableSizes(false)
+                .sortByExtension(false)
+                .sortBySize(false)
+                .sortByVersion(false)
+                .sortInReverseOrder(false);
+    }
+    
+    /**
+     * Quotes a path for the device's shell.
+     * @param path The path.
+     * @return The quoted path.
+     */
+    static String quote(String path) { return "'" + path.replace("'", "'\\''") + "'"; }
+    
     /**
      * Lists all of the filesystem entries in a given directory.
      * This function uses busybox! If busybox is not installed on the system, this method WILL throw an exception if the busybox binary could not be found!
@@ -0,0 +1,302 @@
+/*
+ * Copyright (C) 2016 Ca Softworks.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+package com.casoftworks.jdroidlib.android;
+
+import com.casoftworks.jdroidlib.exception.FileListingException;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+/**
+ * Walks a directory tree of a device with several connections at once, and
+ * hands the entries found to a single consumer, as a {@link Spliterator}.
+ * Every worker owns one connection to the device and a deque of directories
+ * still to be listed. Subdirectories found by a worker are pushed on to its
+ * own deque, and a worker takes the directory it found last, so each worker
+ * descends depth-first. Idle workers steal the oldest directory of another
+ * worker, which usually is the largest subtree left.
+ * Entries are passed to the consumer through a bounded queue; once it is
+ * full, the workers wait for the consumer. As workers do not discover further
+ * directories while they wait, the memory used by a walk stays bounded, no
+ * matter how many entries the tree holds.
+ * A worker's connection only holds one of the device's slots while it lists
+ * a directory, and hands it back while waiting for the consumer, so the
+ * consumer can run commands on the same device without deadlocking the walk.
+ * The walk begins with the first entry requested, not when it is created.
+ * This class is package-private.
+ * @author simoncahill
+ */
+final class FileWalker extends Spliterators.AbstractSpliterator<FileEntry> {
+    
+    /** Marks the end of the walk in the queue of entries. */
+    private static final Object END = new Object();
+    
+    /**
+     * A directory waiting to be listed.
+     */
+    private static final class Directory {
+        
+        private final String path;
+        private final int depth;
+        
+        private Directory(String path, int depth) {
+            this.path = path;
+            this.depth = depth;
+        }
+        
+    }
+    
+    private final FileSystem fileSystem;
+    private final Controller controller;
+    private final Device device;
+    private final String rootPath;
+    private final FileEntry root;
+    private final boolean requireSuperUser;
+    private final FileSystem.WalkOptions options;
+    private final FileSystem.ListingOptions listingOptions;
+    
+    private final BlockingQueue<Object> entries;
+    private final List<LinkedBlockingDeque<Directory>> deques = new ArrayList<>();
+    private final List<Future<?>> workers = new ArrayList<>();
+    /** The number of directories found, but not listed yet. */
+    private final AtomicInteger pending = new AtomicInteger();
+    private final Object idle = new Object();
+    /** Set once the workers are to stop. */
+    private volatile boolean done = false;
+    private volatile IOException failure = null;
+    private boolean started = false;
+    private boolean finished = false;
+    private boolean closed = false;
+    
+    /**
+     * Creates a new walker.
+     * @param fileSystem The filesystem to walk.
+     * @param controller The controller opening the connections.
+     * @param device The device.
+     * @param rootPath The path of the directory to walk.
+     * @param root The entry of the directory to walk.
+     * @param requireSuperUser Set to {@code true} to list directories with super user privileges.
+     * @param options The options of the walk.
+     */
+    FileWalker(FileSystem fileSystem, Controller controller, Device device, String rootPath, FileEntry root, boolean requireSuperUser, FileSystem.WalkOptions options) {
+        super(Long.MAX_VALUE, Spliterator.NONNULL | Spliterator.DISTINCT);
+        this.fileSystem = fileSystem;
+        this.controller = controller;
+        this.device = device;
+        this.rootPath = rootPath;
+        this.root = root;
+        this.requireSuperUser = requireSuperUser;
+        this.options = options;
+        this.listingOptions = new FileSystem.ListingOptions()
+                .showAllEntries(options.showHiddenEntries())
+                .hideDirectoryJumps(true);
+        this.entries = new ArrayBlockingQueue<>(options.bufferSize());
+    }
+    
+    @Override
+    public boolean tryAdvance(Consumer<? super FileEntry> action) {
+        if (finished) return false;
+        if (!started) {
+            // The root is handed out directly; it does not take up room in the queue.
+            started = true;
+            if (options.maxDepth() > 0 && (root.isDirectory() || root.isSymbolicLink())) start();
+            else finished = true;
+            if (options.filter().test(root)) {
+                action.accept(root);
+                return true;
+            }
+            if (finished) return false;
+        }
+        
+        Object next;
+        try {
+            next = entries.take();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            close();
+            throw new UncheckedIOException(new InterruptedIOException("Interrupted while walking " + rootPath + "."));
+        }
+        
+        if (next == END) {
+            close();
+            if (failure != null) throw new UncheckedIOException(failure);
+            return false;
+        }
+        action.accept((FileEntry)next);
+        return true;
+    }
+    
+    private void start() {
+        int parallelism = options.parallelism();
+        for (int i = 0; i < parallelism; i++)
+            deques.add(new LinkedBlockingDeque<>());
+        
+        pending.set(1);
+        deques.get(0).add(new Directory(rootPath, 0));
+        for (int i = 0; i < parallelism; i++) {
+            final int index = i;
+            workers.add(CommandExecutor.submit(() -> { work(index); return null; }));
+        }
+    }
+    
+    /**
+     * Stops the walk, and closes all connections.
+     */
+    void close() {
+        finished = true;
+        if (closed) return;
+        closed = true;
+        done = true;
+        workers.forEach(worker -> worker.cancel(true));
+        entries.clear();
+        synchronized (idle) { idle.notifyAll(); }
+    }
+    
+    //<editor-fold defaultstate="collapsed" desc="Workers" >
+    private void work(int index) {
+        SyncProtocol sync = null;
+        try {
+            if (!requireSuperUser) sync = controller.openSync(device);
+            if (sync != null) sync.releaseSlot();
+            Directory directory;
+            while ((directory = next(index)) != null) {
+                if (sync != null) sync.acquireSlot();
+                try {
+                    list(sync, index, directory);
+                } finally {
+                    if (sync != null) sync.releaseSlot();
+                }
+                if (pending.decrementAndGet() == 0) {
+                    put(sync, END);
+                    synchronized (idle) { idle.notifyAll(); }
+                }
+            }
+        } catch (InterruptedException | InterruptedIOException ex) {
+            // The walk has been closed.
+        } catch (IOException ex) {
+            fail(ex);
+        } catch (RuntimeException ex) {
+            fail(new IOException(ex));
+        } finally {
+            if (sync != null) {
+                try { sync.close(); } catch (IOException ex) { /* The walk is over either way. */ }
+            }
+        }
+    }
+    
+    /**
+     * Gets the next directory for a worker: the last one it found itself, or
+     * else the oldest one of another worker.
+     * @return The directory, or {@code null} once the walk is over.
+     */
+    private Directory next(int index) throws InterruptedException {
+        while (!done) {
+            Directory directory = deques.get(index).pollLast();
+            for (int i = 1; directory == null && i < deques.size(); i++)
+                directory = deques.get((index + i) % deques.size()).pollFirst();
+            if (directory != null) return directory;
+            if (pending.get() == 0) return null;
+            
+            synchronized (idle) {
+                // Directories pushed while this worker looked are caught by the timeout.
+                if (!done && pending.get() > 0) idle.wait(10);
+            }
+        }
+        return null;
+    }
+    
+    private void list(SyncProtocol sync, int index, Directory directory) throws IOException, InterruptedException {
+        int depth = directory.depth + 1;
+        if (sync != null) {
+            // Directories which cannot be read are listed as empty; they are skipped.
+            sync.list(directory.path, entry -> {
+                String name = entry.getName();
+                if (name.equals(".") || name.equals("..")) return true;
+                if (!options.showHiddenEntries() && name.startsWith(".")) return true;
+                try {
+                    found(sync, index, entry, depth);
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException();
+                }
+                return !done;
+            });
+            return;
+        }
+        
+        List<FileEntry> listing;
+        try {
+            listing = fileSystem.readEntries(directory.path, requireSuperUser, listingOptions);
+        } catch (FileListingException ex) {
+            return;
+        }
+        for (FileEntry entry : listing) {
+            if (entry.getName().equals(".") || entry.getName().equals("..")) continue;
+            found(null, index, entry, depth);
+        }
+    }
+    
+    private void found(SyncProtocol sync, int index, FileEntry entry, int depth) throws IOException, InterruptedException {
+        if (entry.isDirectory() && depth < options.maxDepth() && options.descendInto().test(entry)) {
+            pending.incrementAndGet();
+            deques.get(index).addLast(new Directory(entry.getPath(), depth));
+            synchronized (idle) { idle.notify(); }
+        }
+        if (options.filter().test(entry)) put(sync, entry);
+    }
+    
+    /**
+     * Hands an entry to the consumer. If the consumer is behind, the slot held
+     * by the worker's connection is handed back while waiting.
+     */
+    private void put(SyncProtocol sync, Object entry) throws IOException, InterruptedException {
+        if (entries.offer(entry)) return;
+        if (sync != null) sync.releaseSlot();
+        while (!done && !entries.offer(entry, 10, TimeUnit.MILLISECONDS)) { }
+        if (sync != null && !done) sync.acquireSlot();
+    }
+    
+    /**
+     * Stops the walk after a worker failed, and passes the failure on to the consumer.
+     */
+    private void fail(IOException ex) {
+        synchronized (idle) {
+            if (done) return;
+            failure = ex;
+            done = true;
+            idle.notifyAll();
+        }
+        // Workers stop putting entries once done is set, but one may still be in the middle of it.
+        while (!entries.offer(END)) entries.clear();
+    }
+    //</editor-fold>
+    
+}
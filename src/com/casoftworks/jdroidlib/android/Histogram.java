@@ -0,0 +1,162 @@
+/*
+ * Copyright (C) 2016 Ca Softworks.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+package com.casoftworks.jdroidlib.android;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A concurrent histogram of non-negative values (e.g.: latencies in nanoseconds).
+ * Values are counted in log-linear buckets, as HdrHistogram does: each power
+ * of two is split in to 16 equally sized buckets, so any reported value is
+ * within about 6% of the recorded one. Values up to 2<sup>45</sup> are tracked;
+ * larger values are counted as 2<sup>45</sup> - 1.
+ * Recording a value is lock-free and never allocates memory.
+ * @author simoncahill
+ */
+public final class Histogram {
+    
+    private static final int SUB_BUCKET_BITS = 5;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int HALF_SUB_BUCKETS = SUB_BUCKETS >> 1;
+    private static final int MAX_SHIFT = 40;
+    
+    /** The largest value which can be tracked. */
+    public static final long MAX_VALUE = (1L << (MAX_SHIFT + SUB_BUCKET_BITS)) - 1;
+    
+    private final AtomicLongArray counts = new AtomicLongArray(SUB_BUCKETS + MAX_SHIFT * HALF_SUB_BUCKETS);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong sum = new AtomicLong();
+    private final AtomicLong min = new AtomicLong(Long.MAX_VALUE);
+    private final AtomicLong max = new AtomicLong();
+    
+    /**
+     * Default constructor. Package-private.
+     */
+    Histogram() { }
+    
+    /**
+     * Records a value.
+     * @param value The value. Negative values are recorded as 0.
+     */
+    void record(long value) {
+        value = Math.max(0, Math.min(value, MAX_VALUE));
+        counts.incrementAndGet(indexOf(value));
+        count.incrementAndGet();
+        sum.addAndGet(value);
+        
+        long current;
+        while (value > (current = max.get()) && !max.compareAndSet(current, value)) { }
+        while (value < (current = min.get()) && !min.compareAndSet(current, value)) { }
+    }
+    
+    /**
+     * Gets the number of values recorded.
+     * @return The number of values.
+     */
+    public long getCount() { return count.get(); }
+    
+    /**
+     * Gets the sum of all values recorded.
+     * @return The sum of all values.
+     */
+    public long getSum() { return sum.get(); }
+    
+    /**
+     * Gets the smallest value recorded.
+     * @return The smallest value, or 0 if no values have been recorded.
+     */
+    public long getMin() {
+        long value = min.get();
+        return value == Long.MAX_VALUE ? 0 : value;
+    }
+    
+    /**
+     * Gets the largest value recorded.
+     * @return The largest value, or 0 if no values have been recorded.
+     */
+    public long getMax() { return max.get(); }
+    
+    /**
+     * Gets the arithmetic mean of all values recorded.
+     * @return The mean, or 0 if no values have been recorded.
+     */
+    public double getMean() {
+        long n = count.get();
+        return n == 0 ? 0 : (double)sum.get() / n;
+    }
+    
+    /**
+     * Gets the value below which a given percentage of all recorded values fall.
+     * @param percentile The percentile (e.g.: 99.0).
+     * @return The highest value equivalent to the percentile's bucket, or 0 if
+     *         no values have been recorded.
+     */
+    public long getValueAtPercentile(double percentile) {
+        long total = 0;
+        for (int i = 0; i < counts.length(); i++)
+            total += counts.get(i);
+        if (total == 0) return 0;
+        
+        long target = Math.max(1, (long)Math.ceil(Math.min(100, Math.max(0, percentile)) / 100 * total));
+        long seen = 0;
+        for (int i = 0; i < counts.length(); i++) {
+            seen += counts.get(i);
+            if (seen >= target)
+                return Math.min(highestEquivalentValue(i), getMax());
+        }
+        return getMax();
+    }
+    
+    /**
+     * Discards all values recorded so far.
+     * Values recorded while resetting may be partially discarded.
+     */
+    public void reset() {
+        for (int i = 0; i < counts.length(); i++)
+            counts.set(i, 0);
+        count.set(0);
+        sum.set(0);
+        min.set(Long.MAX_VALUE);
+        max.set(0);
+    }
+    
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String toString() {
+        return String.format("Histogram[count=%d, mean=%.1f, p50=%d, p99=%d, max=%d]",
+                getCount(), getMean(), getValueAtPercentile(50), getValueAtPercentile(99), getMax());
+    }
+    
+    private static int indexOf(long value) {
+        if (value < SUB_BUCKETS) return (int)value;
+        int shift = 64 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+        return SUB_BUCKETS + (shift - 1) * HALF_SUB_BUCKETS + (int)(value >>> shift) - HALF_SUB_BUCKETS;
+    }
+    
+    private static long highestEquivalentValue(int index) {
+        if (index < SUB_BUCKETS) return index;
+        int shift = (index - SUB_BUCKETS) / HALF_SUB_BUCKETS + 1;
+        long subBucket = HALF_SUB_BUCKETS + (index - SUB_BUCKETS) % HALF_SUB_BUCKETS;
+        return ((subBucket + 1) << shift) - 1;
+    }
+    
+}
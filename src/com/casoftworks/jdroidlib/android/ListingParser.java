@@ -0,0 +1,334 @@
+/*
+ * Copyright (C) 2016 Ca Softworks.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+package com.casoftworks.jdroidlib.android;
+
+import com.casoftworks.jdroidlib.interfaces.IOutputHandler;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TimeZone;
+
+/**
+ * Parses the output of {@code ls -l} in to {@link FileEntry entries}, line by line.
+ * Each line is scanned once, without splitting it: the mode, owner, group,
+ * size, time, name and link target are read straight from their positions in
+ * the line. Owners and groups mostly repeat from one line to the next, so the
+ * previous line's strings are reused when they match.
+ * Both formats found on devices are understood; that of toybox (Android 6
+ * and newer), which lists the number of links and the size of every entry:
+ * <pre>
+ * drwxrwx--x 4 root sdcard_rw 4096 2016-05-02 10:21 DCIM
+ * lrwxrwxrwx 1 root root 21 2016-05-02 10:21 sdcard -&gt; /storage/self/primary
+ * crw-rw-rw- 1 root root 1,   3 2016-05-02 10:21 null
+ * </pre>
+ * and that of toolbox (older devices), which lists neither the number of
+ * links, nor the size of directories and links.
+ * Error messages are collected instead of being listed as entries.
+ * This class is package-private.
+ * @author simoncahill
+ */
+final class ListingParser implements IOutputHandler {
+    
+    private static final int MAX_FIELDS = 5;
+    
+    private final String directory;
+    private final boolean indicators;
+    private final TimeZone timeZone;
+    private final List<FileEntry> entries = new ArrayList<>();
+    private final StringBuilder error = new StringBuilder();
+    private final int[] starts = new int[MAX_FIELDS];
+    private final int[] ends = new int[MAX_FIELDS];
+    private String owner = null;
+    private String group = null;
+    
+    /**
+     * Creates a new parser.
+     * @param directory The path of the listed directory, or {@code null} if it is unknown.
+     * @param options The options {@code ls} was run with; indicators appended to names are removed if required.
+     * @param timeZone The time zone of the device, in which {@code ls} prints times.
+     */
+    ListingParser(String directory, FileSystem.ListingOptions options, TimeZone timeZone) {
+        this.directory = directory == null ? null : FileEntry.asDirectory(directory);
+        this.indicators = options.appendIndicatorToEntries() || options.appendSlashToDirs();
+        this.timeZone = timeZone;
+    }
+    
+    @Override
+    public boolean onLine(String line) {
+        FileEntry entry = parseLine(line);
+        if (entry != null) entries.add(entry);
+        return true;
+    }
+    
+    /**
+     * Gets the entries parsed so far, in the order they were listed.
+     * @return The entries.
+     */
+    List<FileEntry> getEntries() { return entries; }
+    
+    /**
+     * Gets the error messages printed by {@code ls}.
+     * @return The messages, or an empty string if there were none.
+     */
+    String getError() { return error.toString(); }
+    
+    /**
+     * Parses a single line of output.
+     * Lines which are no entries (e.g.: {@code total 24}) are skipped; error messages are collected.
+     * @param line The line.
+     * @return The entry, or {@code null} if the line holds no entry.
+     */
+    FileEntry parseLine(CharSequence line) {
+        int length = line.length();
+        int modeStart = skipWhitespace(line, 0, length);
+        if (modeStart == length) return null;
+        int modeEnd = nextWhitespace(line, modeStart, length);
+        int mode = parseMode(line, modeStart, modeEnd);
+        if (mode < 0) {
+            if (!startsWith(line, modeStart, "total ")) {
+                if (error.length() > 0) error.append('\n');
+                error.append(line.toString().replace("ls:", "").trim());
+            }
+            return null;
+        }
+        
+        // Collect the fields up to the date; their number tells the format apart.
+        int fields = 0;
+        int position = modeEnd;
+        int dateStart, dateEnd;
+        while (true) {
+            position = skipWhitespace(line, position, length);
+            if (position == length) return null;
+            int end = nextWhitespace(line, position, length);
+            if (isDate(line, position, end)) {
+                dateStart = position;
+                dateEnd = end;
+                break;
+            }
+            if (fields == MAX_FIELDS) return null;
+            starts[fields] = position;
+            ends[fields] = end;
+            fields++;
+            position = end;
+        }
+        
+        boolean device = (mode & FileEntry.S_IFMT) == FileEntry.S_IFCHR || (mode & FileEntry.S_IFMT) == FileEntry.S_IFBLK;
+        int owner;
+        long size = -1;
+        if (device) {
+            // Devices list their major and minor numbers instead of a size.
+            if (fields != 4 && fields != 5) return null;
+            owner = fields - 4;
+            size = 0;
+        } else if (fields == 4 || fields == 3) {
+            owner = fields - 3;
+            size = parseLong(line, starts[fields - 1], ends[fields - 1]);
+            if (size < 0) return null;
+        } else if (fields == 2) {
+            owner = 0;
+        } else return null;
+        
+        int timeStart = skipWhitespace(line, dateEnd, length);
+        int timeEnd = nextWhitespace(line, timeStart, length);
+        long time = parseTime(line, dateStart, timeStart, timeEnd);
+        if (time < 0) return null;
+        
+        // A single space separates the time from the name, which may contain spaces itself.
+        int nameStart = Math.min(timeEnd + 1, length);
+        int nameEnd = length;
+        while (nameEnd > nameStart && (line.charAt(nameEnd - 1) == '\r' || line.charAt(nameEnd - 1) == '\n')) nameEnd--;
+        String linkTarget = null;
+        if ((mode & FileEntry.S_IFMT) == FileEntry.S_IFLNK) {
+            int arrow = indexOf(line, " -> ", nameStart, nameEnd);
+            if (arrow >= 0) {
+                // The indicator of a link is appended to its target, and depends on the target's type.
+                int targetEnd = stripIndicator(line, arrow + 4, nameEnd, -1);
+                linkTarget = line.subSequence(arrow + 4, targetEnd).toString();
+                nameEnd = arrow;
+            }
+        } else nameEnd = stripIndicator(line, nameStart, nameEnd, mode);
+        if (nameEnd == nameStart) return null;
+        
+        String name = line.subSequence(nameStart, nameEnd).toString();
+        String parent = directory;
+        if (name.indexOf('/') >= 0) {
+            // A path given to ls which is no directory is listed by its path.
+            parent = FileEntry.directoryOf(name);
+            name = FileEntry.nameOf(name);
+        }
+        this.owner = reuse(this.owner, line, starts[owner], ends[owner]);
+        this.group = reuse(this.group, line, starts[owner + 1], ends[owner + 1]);
+        return new FileEntry(parent, name, mode, size, time, this.owner, this.group, linkTarget);
+    }
+    
+    //<editor-fold defaultstate="collapsed" desc="Fields" >
+    /**
+     * Parses a mode as printed by {@code ls -l} (e.g.: {@code drwxr-x--x}),
+     * optionally followed by an ACL or SELinux marker.
+     * @return The mode, or -1 if the field is no mode.
+     */
+    static int parseMode(CharSequence text, int start, int end) {
+        if (end - start != 10 && end - start != 11) return -1;
+        int mode;
+        switch (text.charAt(start)) {
+            case '-': mode = FileEntry.S_IFREG; break;
+            case 'd': mode = FileEntry.S_IFDIR; break;
+            case 'l': mode = FileEntry.S_IFLNK; break;
+            case 'c': mode = FileEntry.S_IFCHR; break;
+            case 'b': mode = FileEntry.S_IFBLK; break;
+            case 'p': mode = FileEntry.S_IFIFO; break;
+            case 's': mode = FileEntry.S_IFSOCK; break;
+            default: return -1;
+        }
+        
+        for (int i = 0; i < 9; i++) {
+            char c = text.charAt(start + 1 + i);
+            int bit = 1 << (8 - i);
+            int kind = i % 3;
+            if (c == '-') continue;
+            if (kind == 0 && c == 'r' || kind == 1 && c == 'w' || kind == 2 && c == 'x') {
+                mode |= bit;
+                continue;
+            }
+            if (kind != 2) return -1;
+            // s/S: setuid/setgid, t/T: sticky; lower case if also executable.
+            int special = i == 2 ? 04000 : i == 5 ? 02000 : 01000;
+            char lower = i == 8 ? 't' : 's';
+            if (c == lower) mode |= bit | special;
+            else if (c == Character.toUpperCase(lower)) mode |= special;
+            else return -1;
+        }
+        return mode;
+    }
+    
+    private static boolean isDate(CharSequence text, int start, int end) {
+        return end - start == 10 && text.charAt(start + 4) == '-' && text.charAt(start + 7) == '-'
+            && isDigits(text, start, start + 4) && isDigits(text, start + 5, start + 7) && isDigits(text, start + 8, end);
+    }
+    
+    /**
+     * Converts a date ({@code yyyy-MM-dd}) and time ({@code HH:mm} or {@code HH:mm:ss})
+     * of the device's time zone to milliseconds since the epoch.
+     * @return The time, or -1 if the time is invalid.
+     */
+    private long parseTime(CharSequence text, int dateStart, int timeStart, int timeEnd) {
+        int length = timeEnd - timeStart;
+        if ((length != 5 && length != 8) || text.charAt(timeStart + 2) != ':' || (length == 8 && text.charAt(timeStart + 5) != ':'))
+            return -1;
+        if (!isDigits(text, timeStart, timeStart + 2) || !isDigits(text, timeStart + 3, timeStart + 5)
+                || (length == 8 && !isDigits(text, timeStart + 6, timeStart + 8)))
+            return -1;
+        
+        int year = digits(text, dateStart, dateStart + 4);
+        int month = digits(text, dateStart + 5, dateStart + 7);
+        int day = digits(text, dateStart + 8, dateStart + 10);
+        int hours = digits(text, timeStart, timeStart + 2);
+        int minutes = digits(text, timeStart + 3, timeStart + 5);
+        int seconds = length == 8 ? digits(text, timeStart + 6, timeStart + 8) : 0;
+        
+        long local = ((daysSinceEpoch(year, month, day) * 24 + hours) * 60 + minutes) * 60000L + seconds * 1000L;
+        return local - timeZone.getOffset(local - timeZone.getRawOffset());
+    }
+    
+    /**
+     * Counts the days from 1970-01-01 to a given date of the proleptic Gregorian calendar.
+     */
+    private static long daysSinceEpoch(int year, int month, int day) {
+        int y = month <= 2 ? year - 1 : year;
+        int era = Math.floorDiv(y, 400);
+        int yearOfEra = y - era * 400;
+        int dayOfYear = (153 * (month + (month > 2 ? -3 : 9)) + 2) / 5 + day - 1;
+        int dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100 + dayOfYear;
+        return era * 146097L + dayOfEra - 719468;
+    }
+    
+    private static long parseLong(CharSequence text, int start, int end) {
+        if (end == start || end - start > 18 || !isDigits(text, start, end)) return -1;
+        long value = 0;
+        for (int i = start; i < end; i++) value = value * 10 + text.charAt(i) - '0';
+        return value;
+    }
+    
+    private static int digits(CharSequence text, int start, int end) { return (int)parseLong(text, start, end); }
+    
+    private static boolean isDigits(CharSequence text, int start, int end) {
+        for (int i = start; i < end; i++)
+            if (text.charAt(i) < '0' || text.charAt(i) > '9') return false;
+        return true;
+    }
+    //</editor-fold>
+    
+    //<editor-fold defaultstate="collapsed" desc="Scanning" >
+    /**
+     * Removes an indicator appended by {@code -F} or {@code -p} (one of: * / = @ |) from the end of a name.
+     * @param mode The mode of the entry, whose type decides the indicator, or -1 to remove any indicator.
+     */
+    private int stripIndicator(CharSequence text, int start, int end, int mode) {
+        if (!indicators || end - start < 2) return end;
+        char last = text.charAt(end - 1);
+        if (mode < 0)
+            return last == '/' || last == '*' || last == '=' || last == '@' || last == '|' ? end - 1 : end;
+        
+        switch (mode & FileEntry.S_IFMT) {
+            case FileEntry.S_IFDIR: return last == '/' ? end - 1 : end;
+            case FileEntry.S_IFSOCK: return last == '=' ? end - 1 : end;
+            case FileEntry.S_IFIFO: return last == '|' ? end - 1 : end;
+            case FileEntry.S_IFREG: return last == '*' && (mode & 0111) != 0 ? end - 1 : end;
+            default: return end;
+        }
+    }
+    
+    /**
+     * Returns the previous string if it equals a given range of the line, or a new string otherwise.
+     */
+    private static String reuse(String previous, CharSequence text, int start, int end) {
+        if (previous != null && previous.length() == end - start) {
+            int i = 0;
+            while (i < previous.length() && previous.charAt(i) == text.charAt(start + i)) i++;
+            if (i == previous.length()) return previous;
+        }
+        return text.subSequence(start, end).toString();
+    }
+    
+    private static int indexOf(CharSequence text, String pattern, int start, int end) {
+        outer:
+        for (int i = start; i <= end - pattern.length(); i++) {
+            for (int j = 0; j < pattern.length(); j++)
+                if (text.charAt(i + j) != pattern.charAt(j)) continue outer;
+            return i;
+        }
+        return -1;
+    }
+    
+    private static boolean startsWith(CharSequence text, int start, String prefix) {
+        return text.length() - start >= prefix.length() && indexOf(text, prefix, start, start + prefix.length()) == start;
+    }
+    
+    private static int skipWhitespace(CharSequence text, int index, int end) {
+        while (index < end && Character.isWhitespace(text.charAt(index))) index++;
+        return index;
+    }
+    
+    private static int nextWhitespace(CharSequence text, int index, int end) {
+        while (index < end && !Character.isWhitespace(text.charAt(index))) index++;
+        return index;
+    }
+    //</editor-fold>
+    
+}
@@ -0,0 +1,274 @@
+/*
+ * Copyright (C) 2016 Ca Softworks.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+package com.casoftworks.jdroidlib.android;
+
+import com.casoftworks.jdroidlib.exception.CommandTimeoutException;
+import com.casoftworks.jdroidlib.interfaces.ICommand;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * Executes commands by spawning the ADB binary extracted by JDroidLib.
+ * This is the original execution path of JDroidLib and serves as the fallback
+ * for any command which cannot be expressed as an ADB server service.
+ * This class is package-private.
+ * @author simoncahill
+ */
+final class ProcessController extends Controller {
+    
+    /** The socket of the ADB server spawned processes talk to; {@code null} for the default one. */
+    private final String serverSocket;
+    
+    /**
+     * Default constructor. Uses the ADB binary extracted by the
+     * {@link com.casoftworks.jdroidlib.util.ResourceManager}.
+     * @throws IOException If the resources could not be extracted.
+     */
+    ProcessController() throws IOException {
+        super();
+        serverSocket = null;
+    }
+    
+    /**
+     * Customisable constructor.
+     * @param executable The ADB binary to use.
+     */
+    ProcessController(File executable) { this(executable, null); }
+    
+    /**
+     * Customisable constructor for an ADB server other than the default one.
+     * @param executable The ADB binary to use.
+     * @param serverSocket The socket of the ADB server the binary talks to,
+     *                     as passed in {@code ADB_SERVER_SOCKET} (e.g.: {@code tcp:localhost:5038}),
+     *                     or {@code null} for the default server.
+     */
+    ProcessController(File executable, String serverSocket) {
+        super(executable);
+        this.serverSocket = serverSocket;
+    }
+    
+    //<editor-fold defaultstate="collapsed" desc="Methods implemented from Controller" >
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String executeCommandReturnOutput(ICommand cmd) throws IOException, InterruptedException {
+        try (CommandMetrics.Sample sample = CommandMetrics.getInstance().start(cmd)) {
+            Process pr = start(cmd.buildProcess(), sample);
+            CommandWatchdog.Timeout timeout = CommandWatchdog.getInstance().watch(cmd.getTimeout(), pr);
+            String output;
+            
+            try {
+                try {
+                    output = readOutput(sample.count(pr.getInputStream()));
+                } catch (IOException ex) {
+                    timeout.throwIfExpired();
+                    System.err.println("An error has occurred within JDroidLib!");
+                    ex.printStackTrace(System.err);
+                    throw ex;
+                }
+                sample.finished(waitFor(pr, timeout));
+                return output;
+            } finally {
+                timeout.cancel();
+            }
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int executeCommandReturnExitCode(ICommand cmd) throws IOException, InterruptedException {
+        try (CommandMetrics.Sample sample = CommandMetrics.getInstance().start(cmd)) {
+            Process pr = start(cmd.buildProcess(), sample);
+            CommandWatchdog.Timeout timeout = CommandWatchdog.getInstance().watch(cmd.getTimeout(), pr);
+            try {
+                drain(pr, sample, timeout);
+                int exitCode = waitFor(pr, timeout);
+                sample.finished(exitCode);
+                return exitCode;
+            } finally {
+                timeout.cancel();
+            }
+        } catch (IOException | InterruptedException ex) {
+            System.err.println("An error has occurred within JDroidLib!");
+            ex.printStackTrace(System.err);
+            throw ex;
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void executeCommand(ICommand cmd) throws IOException, InterruptedException {
+        try (CommandMetrics.Sample sample = CommandMetrics.getInstance().start(cmd)) {
+            Process pr = start(cmd.buildProcess(), sample);
+            CommandWatchdog.Timeout timeout = CommandWatchdog.getInstance().watch(cmd.getTimeout(), pr);
+            try {
+                drain(pr, sample, timeout);
+                sample.finished(waitFor(pr, timeout));
+            } finally {
+                timeout.cancel();
+            }
+        }
+    }
+    
+    /**
+     * {@inheritDoc}
+     * The error output is read from the process' error stream. The ADB binary
+     * only keeps it apart from the output, and only passes on the exit code
+     * of the command, for devices supporting the {@code shell_v2} protocol.
+     */
+    @Override
+    public CommandResult executeCommandReturnResult(ICommand cmd) throws IOException, InterruptedException {
+        ProcessBuilder builder = cmd.buildProcess();
+        builder.redirectErrorStream(false);
+        
+        try (CommandMetrics.Sample sample = CommandMetrics.getInstance().start(cmd)) {
+            Process pr = start(builder, sample);
+            CommandWatchdog.Timeout timeout = CommandWatchdog.getInstance().watch(cmd.getTimeout(), pr);
+            // The error output is read on another thread, so it is counted once it has been read.
+            CompletableFuture<String> error = CommandExecutor.submit(() -> readOutput(pr.getErrorStream()));
+            
+            try {
+                String output;
+                try {
+                    output = readOutput(sample.count(pr.getInputStream()));
+                } catch (IOException ex) {
+                    timeout.throwIfExpired();
+                    throw ex;
+                }
+                int exitCode = waitFor(pr, timeout);
+                try {
+                    CommandResult result = new CommandResult(output, error.get(), exitCode);
+                    sample.read(result.getError().length());
+                    sample.finished(exitCode);
+                    return result;
+                } catch (ExecutionException ex) {
+                    timeout.throwIfExpired();
+                    throw ex.getCause() instanceof IOException ? (IOException)ex.getCause() : new IOException(ex.getCause());
+                }
+            } finally {
+                timeout.cancel();
+                if (!error.isDone()) pr.destroyForcibly();
+            }
+        }
+    }
+    
+    /**
+     * {@inheritDoc}
+     * Closing the stream destroys the process, if it is still running.
+     */
+    @Override
+    InputStream openOutput(ICommand cmd) throws IOException {
+        CommandMetrics.Sample sample = CommandMetrics.getInstance().startStreaming(cmd);
+        final Process pr;
+        try {
+            pr = start(cmd.buildProcess(), sample);
+        } catch (IOException | RuntimeException ex) {
+            sample.close();
+            throw ex;
+        }
+        CommandWatchdog.Timeout timeout = CommandWatchdog.getInstance().watch(cmd.getTimeout(), pr);
+        return new CommandWatchdog.WatchedInputStream(sample.count(pr.getInputStream()), timeout, () -> {
+            sample.finished(pr.isAlive() ? -1 : pr.exitValue());
+            pr.destroy();
+            sample.close();
+        });
+    }
+    //</editor-fold>
+    
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    ShellSession.Channel openShell(Device device) throws IOException {
+        ProcessBuilder builder = AndroidCommand.formAndroidCommand(device, "shell").buildProcess();
+        return ShellSession.of(select(builder).start());
+    }
+    
+    /**
+     * Points a process at the ADB server of this controller.
+     * @param builder The builder of the process.
+     * @return The builder. (Useful for method-chaining.)
+     */
+    private ProcessBuilder select(ProcessBuilder builder) {
+        if (serverSocket != null) builder.environment().put("ADB_SERVER_SOCKET", serverSocket);
+        return builder;
+    }
+    
+    /**
+     * Spawns the ADB process for a command, and reports it to the command's sample.
+     * The process is destroyed if the task running the command is cancelled.
+     * @param builder The builder of the process.
+     * @param sample The sample of the command.
+     * @return The process.
+     * @throws IOException If the process could not be spawned.
+     */
+    private Process start(ProcessBuilder builder, CommandMetrics.Sample sample) throws IOException {
+        Process pr = select(builder).start();
+        CommandExecutor.closeOnCancel(pr::destroyForcibly);
+        sample.started();
+        return pr;
+    }
+    
+    /**
+     * Reads and discards the output of a process, so it never blocks on a full pipe.
+     * @param pr The process.
+     * @param sample The sample the output is reported to.
+     * @param timeout The deadline of the process.
+     * @throws IOException If reading failed, or the deadline has expired.
+     */
+    private static void drain(Process pr, CommandMetrics.Sample sample, CommandWatchdog.Timeout timeout) throws IOException {
+        byte[] buffer = new byte[4096];
+        try (InputStream stream = sample.count(pr.getInputStream())) {
+            while (stream.read(buffer) >= 0) { }
+        } catch (IOException ex) {
+            timeout.throwIfExpired();
+            throw ex;
+        }
+    }
+    
+    /**
+     * Waits for a process to exit. If the thread is interrupted while waiting,
+     * the process is killed, so it is never left behind.
+     * @param pr The process.
+     * @param timeout The deadline of the process.
+     * @return The exit code of the process.
+     * @throws InterruptedException If the thread was interrupted while waiting.
+     * @throws CommandTimeoutException If the deadline has expired.
+     */
+    private static int waitFor(Process pr, CommandWatchdog.Timeout timeout) throws InterruptedException, CommandTimeoutException {
+        try {
+            int exitCode = pr.waitFor();
+            timeout.throwIfExpired();
+            return exitCode;
+        } catch (InterruptedException ex) {
+            pr.destroyForcibly();
+            throw ex;
+        }
+    }
+    
+}
@@ -0,0 +1,242 @@
+/*
+ * Copyright (C) 2016 Ca Softworks.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+package com.casoftworks.jdroidlib.android;
+
+import com.casoftworks.jdroidlib.interfaces.ICommand;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Caches the output of idempotent device queries for a short amount of time.
+ * Only commands whose class has been given a time to live are cached. A
+ * command class is either the command itself (e.g.: {@code getprop}), or the
+ * command followed by its first argument (e.g.: {@code dumpsys battery});
+ * the more specific class wins.
+ * Results are keyed by device, command and arguments, and the least recently
+ * used results are dropped once the cache is full.
+ * Nothing is cached by default.
+ * @author simoncahill
+ */
+public final class ResultCache {
+    
+    private static final class Entry {
+        
+        final String output;
+        final long expires;
+        
+        Entry(String output, long expires) {
+            this.output = output;
+            this.expires = expires;
+        }
+        
+    }
+    
+    private final Map<String, Long> timesToLive = new ConcurrentHashMap<>();
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+            if (size() <= maxEntries) return false;
+            evictions.incrementAndGet();
+            return true;
+        }
+    };
+    private volatile int maxEntries = 1024;
+    
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+    
+    /**
+     * Default constructor. Package-private.
+     */
+    ResultCache() { }
+    
+    //<editor-fold defaultstate="collapsed" desc="Configuration" >
+    /**
+     * Sets how long the results of a command class stay valid.
+     * @param commandClass The command (e.g.: {@code getprop}), or the command
+     *                     followed by a space and its first argument (e.g.: {@code dumpsys battery}).
+     * @param timeToLive The time (in ms) results stay valid. Set to 0 to stop caching the command class.
+     */
+    public void setTimeToLive(String commandClass, long timeToLive) {
+        if (timeToLive > 0)
+            timesToLive.put(commandClass, timeToLive);
+        else {
+            timesToLive.remove(commandClass);
+            invalidate(null, commandClass);
+        }
+    }
+    
+    /**
+     * Gets how long the results of a command class stay valid.
+     * @param commandClass The command class.
+     * @return The time to live (in ms), or 0 if the command class is not cached.
+     */
+    public long getTimeToLive(String commandClass) {
+        Long ttl = timesToLive.get(commandClass);
+        return ttl == null ? 0 : ttl;
+    }
+    
+    /**
+     * Sets the maximum number of results held by this cache.
+     * @param maxEntries The maximum number of results. Default is 1024.
+     */
+    public synchronized void setMaxEntries(int maxEntries) {
+        this.maxEntries = Math.max(0, maxEntries);
+        Iterator<String> keys = entries.keySet().iterator();
+        while (entries.size() > this.maxEntries && keys.hasNext()) {
+            keys.next();
+            keys.remove();
+            evictions.incrementAndGet();
+        }
+    }
+    
+    /**
+     * Gets the maximum number of results held by this cache.
+     * @return The maximum number of results.
+     */
+    public int getMaxEntries() { return maxEntries; }
+    //</editor-fold>
+    
+    //<editor-fold defaultstate="collapsed" desc="Invalidation" >
+    /**
+     * Removes all cached results.
+     */
+    public synchronized void invalidateAll() { entries.clear(); }
+    
+    /**
+     * Removes all cached results of a given device.
+     * @param device The device.
+     */
+    public void invalidate(Device device) { invalidate(device, null); }
+    
+    /**
+     * Removes the cached results of a given command class.
+     * @param device The device to remove the results of, or {@code null} for all devices.
+     * @param commandClass The command class, or {@code null} for all command classes.
+     */
+    public synchronized void invalidate(Device device, String commandClass) {
+        String serial = device == null ? null : device.getSerialNumber() + '\0';
+        Iterator<String> keys = entries.keySet().iterator();
+        while (keys.hasNext()) {
+            String key = keys.next();
+            int split = key.indexOf('\0');
+            if (serial != null && !key.startsWith(serial)) continue;
+            if (commandClass != null) {
+                String command = key.substring(key.indexOf('\0', split + 1) + 1);
+                if (!command.equals(commandClass) && !command.startsWith(commandClass + ' ')) continue;
+            }
+            keys.remove();
+        }
+    }
+    //</editor-fold>
+    
+    //<editor-fold defaultstate="collapsed" desc="Statistics" >
+    /**
+     * Gets the number of lookups served from this cache.
+     * @return The number of hits.
+     */
+    public long getHits() { return hits.get(); }
+    
+    /**
+     * Gets the number of lookups of cacheable commands not served from this cache.
+     * @return The number of misses.
+     */
+    public long getMisses() { return misses.get(); }
+    
+    /**
+     * Gets the number of results dropped because the cache was full.
+     * @return The number of evictions.
+     */
+    public long getEvictions() { return evictions.get(); }
+    
+    /**
+     * Gets the number of results currently held by this cache, including expired ones.
+     * @return The number of results.
+     */
+    public synchronized int size() { return entries.size(); }
+    //</editor-fold>
+    
+    /**
+     * Gets the time to live of a given command.
+     * @param cmd The command.
+     * @return The time to live (in ms), or 0 if the command is not cached.
+     */
+    long getTimeToLive(ICommand cmd) {
+        if (timesToLive.isEmpty() || !(cmd instanceof AndroidCommand)) return 0;
+        AndroidCommand command = (AndroidCommand)cmd;
+        if (!command.getArgs().isEmpty()) {
+            Long ttl = timesToLive.get(command.getCommand() + ' ' + command.getArgs().get(0));
+            if (ttl != null) return ttl;
+        }
+        return getTimeToLive(command.getCommand());
+    }
+    
+    /**
+     * Gets the cached output of a given command.
+     * @param cmd The command. Must be cacheable.
+     * @return The output, or {@code null} if none is cached or it has expired.
+     */
+    String get(ICommand cmd) {
+        String key = key((AndroidCommand)cmd);
+        Entry entry;
+        synchronized (this) {
+            entry = entries.get(key);
+            if (entry != null && entry.expires - System.nanoTime() <= 0) {
+                entries.remove(key);
+                entry = null;
+            }
+        }
+        if (entry == null) {
+            misses.incrementAndGet();
+            return null;
+        }
+        hits.incrementAndGet();
+        return entry.output;
+    }
+    
+    /**
+     * Caches the output of a given command.
+     * @param cmd The command. Must be cacheable.
+     * @param output The output of the command.
+     */
+    void put(ICommand cmd, String output) {
+        long ttl = getTimeToLive(cmd);
+        if (ttl <= 0) return;
+        Entry entry = new Entry(output, System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(ttl));
+        synchronized (this) {
+            entries.put(key((AndroidCommand)cmd), entry);
+        }
+    }
+    
+    /**
+     * Builds the key of a command: serial, root flag and command line, separated by NUL characters.
+     */
+    private static String key(AndroidCommand cmd) {
+        String serial = cmd.getDevice() == null ? "" : cmd.getDevice().getSerialNumber();
+        return serial + '\0' + (cmd.runAsRoot() ? 'r' : 'u') + (cmd.isShellCommand() ? 's' : 'h') + '\0'
+                + AdbSocketController.joinCommandLine(cmd.getCommand(), cmd.getArgs());
+    }
+    
+}
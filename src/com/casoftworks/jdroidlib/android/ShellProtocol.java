@@ -0,0 +1,101 @@
+/*
+ * Copyright (C) 2016 Ca Softworks.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+package com.casoftworks.jdroidlib.android;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Reads the framed output of the ADB {@code shell,v2} service.
+ * Every packet consists of a one-byte stream id, the length of its payload as
+ * a little-endian 32-bit integer, and the payload itself. The service ends
+ * with an exit packet, whose single byte is the exit code of the command.
+ * Devices advertise support for this protocol with the {@code shell_v2} feature.
+ * This class is package-private.
+ * @author simoncahill
+ */
+final class ShellProtocol {
+    
+    /** The feature a device advertises when it supports this protocol. */
+    static final String FEATURE = "shell_v2";
+    
+    static final int ID_STDOUT = 1;
+    static final int ID_STDERR = 2;
+    static final int ID_EXIT = 3;
+    
+    private ShellProtocol() { }
+    
+    /**
+     * Forms the service request for a given command line. The command is run
+     * without a pseudo-terminal, so its output is passed through unaltered.
+     * @param commandLine The command line to run.
+     * @return The service request.
+     */
+    static String request(String commandLine) { return "shell,v2,raw:" + commandLine; }
+    
+    /**
+     * Reads packets until the exit packet has been received.
+     * Standard output and standard error are decoded as UTF-8, their lines
+     * separated by {@code \n}.
+     * @param stream The stream of the accepted service.
+     * @return The result of the command.
+     * @throws EOFException If the stream ended before the exit packet.
+     * @throws IOException If reading from the stream fails.
+     */
+    static CommandResult read(InputStream stream) throws IOException {
+        DataInputStream in = stream instanceof DataInputStream ? (DataInputStream)stream : new DataInputStream(stream);
+        ByteArrayOutputStream stdout = new ByteArrayOutputStream();
+        ByteArrayOutputStream stderr = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        
+        while (true) {
+            int id = in.read();
+            if (id < 0)
+                throw new EOFException("The shell service ended without reporting an exit code.");
+            int length = Integer.reverseBytes(in.readInt());
+            if (length < 0)
+                throw new IOException("Invalid packet length received from shell service: " + length);
+            
+            if (id == ID_EXIT) {
+                int exitCode = length > 0 ? in.readUnsignedByte() : -1;
+                if (length > 1) in.skipBytes(length - 1);
+                return new CommandResult(decode(stdout), decode(stderr), exitCode);
+            }
+            
+            ByteArrayOutputStream target = id == ID_STDOUT ? stdout : id == ID_STDERR ? stderr : null;
+            while (length > 0) {
+                int read = in.read(buffer, 0, Math.min(length, buffer.length));
+                if (read < 0)
+                    throw new EOFException("The shell service ended in the middle of a packet.");
+                if (target != null) target.write(buffer, 0, read);
+                length -= read;
+            }
+        }
+    }
+    
+    private static String decode(ByteArrayOutputStream bytes) throws IOException {
+        return Controller.readOutput(new StringReader(new String(bytes.toByteArray(), StandardCharsets.UTF_8)));
+    }
+    
+}
@@ -0,0 +1,234 @@
+/*
+ * Copyright (C) 2016 Ca Softworks.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+package com.casoftworks.jdroidlib.android;
+
+import com.casoftworks.jdroidlib.exception.DeviceNotRootedException;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * A long-lived interactive shell on a given device.
+ * Instead of starting a new shell for every command, commands are written to
+ * the shell's input, surrounded by sentinel markers. The markers delimit the
+ * output of each command and carry its exit code back to JDroidLib.
+ * The markers are split by quotes in the command line, so a terminal echoing
+ * the input back can never be mistaken for the command's output.
+ * A session runs only one command at a time.
+ * This class is package-private.
+ * @author simoncahill
+ */
+final class ShellSession implements Closeable {
+    
+    /**
+     * A bidirectional byte stream to a device's shell.
+     */
+    interface Channel extends Closeable {
+        
+        /**
+         * Gets the stream the shell's output is read from.
+         * @return The input stream.
+         * @throws IOException If the stream is not available.
+         */
+        InputStream getInputStream() throws IOException;
+        
+        /**
+         * Gets the stream the shell's input is written to.
+         * @return The output stream.
+         * @throws IOException If the stream is not available.
+         */
+        OutputStream getOutputStream() throws IOException;
+        
+    }
+    
+    private static final String BEGIN_MARKER = ":JDLB:";
+    private static final String END_MARKER = ":JDLE:";
+    /**
+     * The time (in ms) {@code su} may take to hand out a root shell. Superuser
+     * apps may wait for the user to grant the request, or never answer at all.
+     */
+    static final long SU_TIMEOUT = 15000;
+    
+    private final Channel channel;
+    private final BufferedReader reader;
+    private final Writer writer;
+    private final boolean root;
+    private long nextId = 0;
+    private volatile boolean broken = false;
+    
+    private ShellSession(Channel channel, boolean root) throws IOException {
+        this.channel = channel;
+        this.root = root;
+        this.reader = new BufferedReader(new InputStreamReader(channel.getInputStream(), StandardCharsets.UTF_8));
+        this.writer = new OutputStreamWriter(channel.getOutputStream(), StandardCharsets.UTF_8);
+    }
+    
+    /**
+     * Starts a new session on a given channel.
+     * If a root session is requested, {@code su} is entered once and the
+     * session is checked for super user-rights before it is handed out. If
+     * {@code su} does not hand out a shell within {@link #SU_TIMEOUT}, the
+     * session is closed and a
+     * {@link com.casoftworks.jdroidlib.exception.CommandTimeoutException} is thrown.
+     * @param channel The channel to the device's shell.
+     * @param root Set to {@code true} to start a root shell.
+     * @return The new session.
+     * @throws IOException If the session could not be started. If the device
+     *                     is not rooted, the cause is a {@link DeviceNotRootedException}.
+     */
+    static ShellSession open(Channel channel, boolean root) throws IOException {
+        ShellSession session = new ShellSession(channel, root);
+        try {
+            if (root) {
+                session.write("su");
+                CommandResult result = session.execute("id -u", SU_TIMEOUT);
+                if (result.getExitCode() != 0 || !result.getOutput().trim().equals("0"))
+                    throw new IOException(new DeviceNotRootedException("Could not acquire super user-rights: " + result.getOutput()));
+            }
+            return session;
+        } catch (IOException ex) {
+            session.close();
+            throw ex;
+        }
+    }
+    
+    /**
+     * Executes a command line in this session.
+     * The command's input is redirected from {@code /dev/null} and its error
+     * stream is merged in to its output.
+     * @param commandLine The command line to execute.
+     * @param timeout The time (in ms) the command may take. Once it has passed,
+     *                the session is closed and a
+     *                {@link com.casoftworks.jdroidlib.exception.CommandTimeoutException}
+     *                is thrown. -1 waits indefinitely.
+     * @return The output and exit code of the command.
+     * @throws IOException If the session broke while executing the command.
+     *                     A broken session cannot be used again.
+     */
+    CommandResult execute(String commandLine, long timeout) throws IOException {
+        if (broken) throw new IOException("The shell session has been closed.");
+        long id = nextId++;
+        String begin = BEGIN_MARKER + id;
+        String end = END_MARKER + id + ":";
+        
+        CommandWatchdog.Timeout deadline = CommandWatchdog.getInstance().watch(timeout, (Closeable)this);
+        try {
+            write(String.format("echo %s; { %s ; } </dev/null 2>&1; __jdl=$?; echo; echo %s$__jdl",
+                    split(begin), commandLine, split(end)));
+            
+            StringBuilder output = new StringBuilder();
+            boolean begun = false;
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.endsWith("\r")) line = line.substring(0, line.length() - 1);
+                if (!begun) {
+                    begun = line.equals(begin);
+                    continue;
+                }
+                int index = line.indexOf(end);
+                if (index >= 0) {
+                    // Drop the newline echoed in front of the end marker.
+                    output.setLength(Math.max(0, output.length() - 1));
+                    return new CommandResult(output.toString(), parseExitCode(line.substring(index + end.length())));
+                }
+                output.append(line).append('\n');
+            }
+            deadline.throwIfExpired();
+            throw new IOException("The shell session was closed by the device.");
+        } catch (IOException ex) {
+            close();
+            deadline.throwIfExpired();
+            throw ex;
+        } finally {
+            deadline.cancel();
+        }
+    }
+    
+    /**
+     * Gets a value indicating whether this session is a root shell.
+     * @return {@code true} if this session has super user-rights.
+     */
+    boolean isRoot() { return root; }
+    
+    /**
+     * Gets a value indicating whether this session can still be used.
+     * @return {@code true} if the session has not broken or been closed.
+     */
+    boolean isUsable() { return !broken; }
+    
+    /**
+     * Closes this session and the underlying channel. Never throws.
+     */
+    @Override
+    public void close() {
+        broken = true;
+        try {
+            channel.close();
+        } catch (IOException ex) {
+            // Nothing left to do with a broken channel.
+        }
+    }
+    
+    private void write(String line) throws IOException {
+        writer.write(line);
+        writer.write('\n');
+        writer.flush();
+    }
+    
+    /**
+     * Splits a marker with an empty quote pair, so the marker's echo differs from its output.
+     * @param marker The marker to split.
+     * @return The split marker.
+     */
+    private static String split(String marker) {
+        return marker.substring(0, 4) + "''" + marker.substring(4);
+    }
+    
+    private static int parseExitCode(String value) {
+        try {
+            return Integer.parseInt(value.trim());
+        } catch (NumberFormatException ex) {
+            return -1;
+        }
+    }
+    
+    /**
+     * Wraps a spawned {@code adb shell} process as a channel.
+     * @param process The process.
+     * @return The channel.
+     */
+    static Channel of(final Process process) {
+        return new Channel() {
+            @Override
+            public InputStream getInputStream() { return process.getInputStream(); }
+            @Override
+            public OutputStream getOutputStream() { return process.getOutputStream(); }
+            @Override
+            public void close() { process.destroy(); }
+        };
+    }
+    
+}
@@ -0,0 +1,118 @@
+/*
+ * Copyright (C) 2016 Ca Softworks.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+package com.casoftworks.jdroidlib.android;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+/**
+ * Holds the shell sessions of one kind (user or root) for a single device.
+ * Sessions are opened lazily, reused while they are usable, and replaced
+ * transparently once they break (e.g.: when the device was reconnected).
+ * The number of sessions open at the same time is capped; callers wait for
+ * a session to become free once the cap has been reached.
+ * This class is package-private.
+ * @author simoncahill
+ */
+final class ShellSessionPool {
+    
+    private final Device device;
+    private final boolean root;
+    private final Deque<ShellSession> idle = new ArrayDeque<>();
+    private int open = 0;
+    
+    /**
+     * Default constructor.
+     * @param device The device the sessions are opened on.
+     * @param root Set to {@code true} if this pool holds root shells.
+     */
+    ShellSessionPool(Device device, boolean root) {
+        this.device = device;
+        this.root = root;
+    }
+    
+    /**
+     * Takes a session from this pool, opening a new one if none is idle and
+     * the cap has not been reached yet.
+     * @param controller The controller used to open new shells.
+     * @param maxSessions The maximum number of sessions open at the same time.
+     * @return A usable session. Must be handed back via {@link #release(ShellSession, int)}.
+     * @throws IOException If a new session could not be opened.
+     * @throws InterruptedException If the thread was interrupted while waiting for a session.
+     */
+    ShellSession acquire(Controller controller, int maxSessions) throws IOException, InterruptedException {
+        synchronized (this) {
+            while (true) {
+                ShellSession session = idle.pollFirst();
+                if (session != null) {
+                    if (session.isUsable()) return session;
+                    open--;
+                    continue;
+                }
+                if (open < Math.max(1, maxSessions)) {
+                    open++;
+                    break;
+                }
+                wait();
+            }
+        }
+        
+        try {
+            return ShellSession.open(controller.openShell(device), root);
+        } catch (IOException ex) {
+            synchronized (this) {
+                open--;
+                notifyAll();
+            }
+            throw ex;
+        }
+    }
+    
+    /**
+     * Hands a session back to this pool.
+     * Broken sessions, and sessions beyond the current cap, are closed.
+     * @param session The session to hand back.
+     * @param maxSessions The maximum number of sessions open at the same time.
+     */
+    synchronized void release(ShellSession session, int maxSessions) {
+        if (session.isUsable() && open <= maxSessions)
+            idle.addFirst(session);
+        else {
+            session.close();
+            open--;
+        }
+        notifyAll();
+    }
+    
+    /**
+     * Closes all idle sessions in this pool.
+     * Sessions currently in use are closed when they are handed back, if
+     * the cap has been lowered in the meantime.
+     */
+    synchronized void closeIdle() {
+        for (ShellSession session : idle) {
+            session.close();
+            open--;
+        }
+        idle.clear();
+        notifyAll();
+    }
+    
+}
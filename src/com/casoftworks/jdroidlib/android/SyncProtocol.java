@@ -0,0 +1,366 @@
+/*
+ * Copyright (C) 2016 Ca Softworks.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+package com.casoftworks.jdroidlib.android;
+
+import com.casoftworks.jdroidlib.exception.AdbServerException;
+
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * A client of the ADB {@code sync:} service, which answers filesystem
+ * requests with binary records instead of text.
+ * Every request consists of a four-letter id, the length of its payload as a
+ * little-endian 32-bit integer, and the payload (usually a path). Supported
+ * requests are {@code LIST}, which answers with a {@code DENT} record per
+ * directory entry followed by {@code DONE}, and {@code STAT}, {@code STA2}
+ * and {@code LST2}, which answer with a single record, and {@code SEND},
+ * which writes a file in {@code DATA} chunks. The {@code *2}
+ * requests are only available on devices advertising the {@code stat_v2}
+ * feature; they report 64-bit sizes and times, and distinguish missing
+ * files from other errors.
+ * A single sync connection serves any number of requests, one at a time.
+ * A connection opened through a scheduler holds one of its device's slots,
+ * which can be handed back while the connection is idle.
+ * This class is package-private.
+ * @author simoncahill
+ */
+final class SyncProtocol implements Closeable {
+    
+    /** The feature a device advertises when it supports {@code STA2} and {@code LST2}. */
+    static final String FEATURE_STAT_V2 = "stat_v2";
+    
+    private static final int ID_LIST = id("LIST");
+    private static final int ID_DENT = id("DENT");
+    private static final int ID_DONE = id("DONE");
+    private static final int ID_STAT = id("STAT");
+    private static final int ID_STAT_V2 = id("STA2");
+    private static final int ID_LSTAT_V2 = id("LST2");
+    private static final int ID_SEND = id("SEND");
+    private static final int ID_DATA = id("DATA");
+    private static final int ID_OKAY = id("OKAY");
+    private static final int ID_FAIL = id("FAIL");
+    private static final int ID_QUIT = id("QUIT");
+    
+    /** The largest path the sync service accepts. */
+    private static final int MAX_PATH = 1024;
+    /** The largest chunk of a file the sync service accepts. */
+    private static final int MAX_DATA = 64 * 1024;
+    
+    private static final int ENOENT = 2;
+    private static final int ENOTDIR = 20;
+    
+    /**
+     * One of a device's slots, held by a connection while it serves requests.
+     */
+    interface Slot {
+        
+        /**
+         * Waits until the slot has been taken again.
+         * @throws IOException If the thread was interrupted while waiting, or too many commands are waiting for the device.
+         */
+        void acquire() throws IOException;
+        
+        /**
+         * Hands back the slot, allowing other commands to run on the device.
+         */
+        void release();
+        
+    }
+    
+    /**
+     * Receives the entries of a listed directory.
+     */
+    @FunctionalInterface
+    interface EntryHandler {
+        
+        /**
+         * Called for each entry of the directory, including {@code .} and {@code ..}.
+         * @param entry The entry.
+         * @return {@code true} to continue receiving entries.
+         * @throws IOException Thrown by implementations to abort the listing.
+         */
+        boolean onEntry(FileEntry entry) throws IOException;
+        
+    }
+    
+    private final AdbConnection connection;
+    private final DataInputStream in;
+    private final OutputStream out;
+    private final boolean statV2;
+    private final byte[] buffer = new byte[MAX_PATH];
+    private Slot slot = null;
+    private boolean holdingSlot = false;
+    private boolean broken = false;
+    private boolean closed = false;
+    
+    /**
+     * Creates a new client on a connection whose {@code sync:} service has been accepted.
+     * @param connection The connection.
+     * @param statV2 Set to {@code true} if the device supports {@code STA2} and {@code LST2}.
+     */
+    SyncProtocol(AdbConnection connection, boolean statV2) {
+        this.connection = connection;
+        this.in = connection.getInputStream();
+        this.out = connection.getOutputStream();
+        this.statV2 = statV2;
+    }
+    
+    /**
+     * Sets the slot this client holds. It is handed back once this client has been closed.
+     * @param slot The slot, which must already be taken.
+     */
+    void holdSlot(Slot slot) {
+        this.slot = slot;
+        this.holdingSlot = true;
+    }
+    
+    /**
+     * Hands back the slot of this client while the caller waits for something
+     * other than the device (e.g.: for a consumer to take the entries found),
+     * so commands the caller is waiting for can run on the device meanwhile.
+     * The slot must be taken again with {@link #acquireSlot()} before the next request.
+     * Has no effect if this client holds no slot.
+     */
+    void releaseSlot() {
+        if (!holdingSlot) return;
+        holdingSlot = false;
+        slot.release();
+    }
+    
+    /**
+     * Takes the slot handed back by {@link #releaseSlot()} again.
+     * Has no effect if this client was not opened through a scheduler.
+     * @throws IOException If the thread was interrupted while waiting, or too many commands are waiting for the device.
+     */
+    void acquireSlot() throws IOException {
+        if (slot == null || holdingSlot) return;
+        slot.acquire();
+        holdingSlot = true;
+    }
+    
+    /**
+     * Gets a value indicating whether the device supports {@code STA2} and {@code LST2}.
+     * @return {@code true} if 64-bit stat requests are used.
+     */
+    boolean supportsStatV2() { return statV2; }
+    
+    /**
+     * Lists a directory.
+     * Directories which cannot be read (missing, not a directory, or
+     * permission denied) are listed as empty, without even {@code .} and {@code ..}.
+     * @param path The absolute path of the directory.
+     * @param handler The handler receiving the entries.
+     * @return {@code false} if the handler stopped the listing.
+     * @throws IOException If the device could not be reached, or refused the request.
+     */
+    boolean list(String path, EntryHandler handler) throws IOException {
+        request(ID_LIST, path);
+        String directory = FileEntry.asDirectory(path);
+        boolean listing = true;
+        while (true) {
+            int id = readId();
+            if (id == ID_DONE) {
+                in.skipBytes(16);
+                return listing;
+            }
+            if (id != ID_DENT) throw unexpected(id);
+            
+            int mode = readInt();
+            long size = readInt() & 0xffffffffL;
+            long time = readInt() & 0xffffffffL;
+            String name = readName(readInt());
+            // The rest of the listing must still be read, so the connection stays usable.
+            if (listing) listing = handler.onEntry(new FileEntry(directory, name, mode, size, time * 1000));
+        }
+    }
+    
+    /**
+     * Gets the entry of a given path, following symbolic links.
+     * Requires the {@code stat_v2} feature; older devices are asked for
+     * {@link #lstat(String)} instead, which does not follow symbolic links.
+     * @param path The absolute path.
+     * @return The entry, or {@code null} if the path does not exist.
+     * @throws IOException If the device could not be reached, or the path could not be read.
+     */
+    FileEntry stat(String path) throws IOException {
+        return statV2 ? readStatV2(ID_STAT_V2, path) : lstat(path);
+    }
+    
+    /**
+     * Gets the entry of a given path, without following symbolic links.
+     * @param path The absolute path.
+     * @return The entry, or {@code null} if the path does not exist.
+     * @throws IOException If the device could not be reached, or the path could not be read.
+     */
+    FileEntry lstat(String path) throws IOException {
+        if (statV2) return readStatV2(ID_LSTAT_V2, path);
+        
+        request(ID_STAT, path);
+        int id = readId();
+        if (id != ID_STAT) throw unexpected(id);
+        int mode = readInt();
+        long size = readInt() & 0xffffffffL;
+        long time = readInt() & 0xffffffffL;
+        return mode == 0 ? null : new FileEntry(FileEntry.directoryOf(path), FileEntry.nameOf(path), mode, size, time * 1000);
+    }
+    
+    private FileEntry readStatV2(int request, String path) throws IOException {
+        request(request, path);
+        int id = readId();
+        if (id != request) throw unexpected(id);
+        
+        int error = readInt();
+        in.skipBytes(16);           // dev, ino
+        int mode = readInt();
+        in.skipBytes(12);           // nlink, uid, gid
+        long size = readLong();
+        in.skipBytes(8);            // atime
+        long mtime = readLong();
+        in.skipBytes(8);            // ctime
+        
+        if (error == ENOENT || error == ENOTDIR) return null;
+        if (error != 0) throw new IOException("Could not stat " + path + " (errno " + error + ").");
+        return new FileEntry(FileEntry.directoryOf(path), FileEntry.nameOf(path), mode, size, mtime * 1000);
+    }
+    
+    /**
+     * Writes a file. Missing parent directories are created by the device.
+     * @param path The absolute path of the file.
+     * @param mode The Unix mode of the file (type and permissions).
+     * @param lastModified The time of the last modification, in milliseconds since the epoch.
+     * @param data The content of the file; read to its end, but not closed.
+     * @throws IOException If the device could not be reached, or refused to write the file.
+     */
+    void send(String path, int mode, long lastModified, InputStream data) throws IOException {
+        request(ID_SEND, path + "," + mode);
+        // Each chunk is sent with its header in front, in a single write.
+        byte[] chunk = new byte[8 + MAX_DATA];
+        try {
+            int read;
+            while ((read = data.read(chunk, 8, MAX_DATA)) >= 0) {
+                if (read == 0) continue;
+                writeInt(chunk, 0, ID_DATA);
+                writeInt(chunk, 4, read);
+                out.write(chunk, 0, 8 + read);
+            }
+        } catch (IOException ex) {
+            // The device still waits for data; the connection cannot be used any more.
+            broken = true;
+            throw ex;
+        }
+        
+        byte[] done = new byte[8];
+        writeInt(done, 0, ID_DONE);
+        writeInt(done, 4, (int)(lastModified / 1000));
+        out.write(done);
+        out.flush();
+        
+        int id = readId();
+        if (id != ID_OKAY) throw unexpected(id);
+        in.skipBytes(4);
+    }
+    
+    //<editor-fold defaultstate="collapsed" desc="Wire format" >
+    private void request(int id, String path) throws IOException {
+        if (broken) throw new IOException("The sync connection is no longer usable.");
+        byte[] payload = path.getBytes(StandardCharsets.UTF_8);
+        if (payload.length > MAX_PATH) throw new IOException("Path too long for the sync service: " + path);
+        
+        byte[] header = new byte[8];
+        writeInt(header, 0, id);
+        writeInt(header, 4, payload.length);
+        out.write(header);
+        out.write(payload);
+        out.flush();
+    }
+    
+    private int readId() throws IOException {
+        int id = readInt();
+        if (id == ID_FAIL) {
+            broken = true;
+            throw new AdbServerException(readName(readInt()));
+        }
+        return id;
+    }
+    
+    private int readInt() throws IOException {
+        return Integer.reverseBytes(in.readInt());
+    }
+    
+    private long readLong() throws IOException {
+        return Long.reverseBytes(in.readLong());
+    }
+    
+    private String readName(int length) throws IOException {
+        if (length < 0 || length > MAX_PATH) {
+            broken = true;
+            throw new IOException("Invalid name length received from sync service: " + length);
+        }
+        in.readFully(buffer, 0, length);
+        return new String(buffer, 0, length, StandardCharsets.UTF_8);
+    }
+    
+    private IOException unexpected(int id) {
+        broken = true;
+        byte[] name = new byte[4];
+        writeInt(name, 0, id);
+        return new IOException("Unexpected response from sync service: " + new String(name, StandardCharsets.US_ASCII));
+    }
+    
+    private static void writeInt(byte[] buffer, int offset, int value) {
+        buffer[offset] = (byte)value;
+        buffer[offset + 1] = (byte)(value >>> 8);
+        buffer[offset + 2] = (byte)(value >>> 16);
+        buffer[offset + 3] = (byte)(value >>> 24);
+    }
+    
+    private static int id(String name) {
+        byte[] bytes = name.getBytes(StandardCharsets.US_ASCII);
+        return (bytes[0] & 0xff) | (bytes[1] & 0xff) << 8 | (bytes[2] & 0xff) << 16 | (bytes[3] & 0xff) << 24;
+    }
+    //</editor-fold>
+    
+    /**
+     * Ends the sync service and closes the connection.
+     */
+    @Override
+    public void close() throws IOException {
+        if (closed) return;
+        closed = true;
+        try {
+            if (!broken && !connection.isClosed()) {
+                byte[] quit = new byte[8];
+                writeInt(quit, 0, ID_QUIT);
+                out.write(quit);
+                out.flush();
+            }
+        } catch (IOException ex) {
+            // The connection is closed either way.
+        } finally {
+            connection.close();
+            releaseSlot();
+        }
+    }
+    
+}
@@ -0,0 +1,43 @@
+/*
+ * Copyright (C) 2016 Ca Softworks.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+package com.casoftworks.jdroidlib.exception;
+
+import java.io.IOException;
+
+/**
+ * JDroidLib exception.
+ * 
+ * This exception is thrown when the ADB server refuses a request sent to it by JDroidLib,
+ * or when the server answers with something JDroidLib does not understand.
+ * The message of this exception is the reason reported by the ADB server.
+ * 
+ * Common remedies for this problem:
+ *  -   Make sure the device the request was aimed at is still connected and authorized.
+ *      The ADB server will refuse requests for devices it does not know of.
+ *  -   Make sure the ADB server is running and is of a version which supports the requested service.
+ *      Older servers do not support every service JDroidLib may use.
+ * @author simoncahill
+ */
+public class AdbServerException extends IOException {
+    
+    public AdbServerException() { super(); }
+    
+    public AdbServerException(String msg) { super(msg); }
+    
+}
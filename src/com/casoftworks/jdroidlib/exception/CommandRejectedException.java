@@ -0,0 +1,41 @@
+/*
+ * Copyright (C) 2016 Ca Softworks.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+package com.casoftworks.jdroidlib.exception;
+
+import java.io.IOException;
+
+/**
+ * JDroidLib exception.
+ * 
+ * This exception is thrown when a command could not be queued for a device,
+ * because too many commands are already waiting to be executed on it.
+ * 
+ * Common remedies for this problem:
+ *  -   Wait for some of the commands issued to the device to finish, then try again.
+ *  -   Raise the queue limit of the {@link com.casoftworks.jdroidlib.android.AndroidController},
+ *      if the device is known to keep up with the load.
+ * @author simoncahill
+ */
+public class CommandRejectedException extends IOException {
+    
+    public CommandRejectedException() { super(); }
+    
+    public CommandRejectedException(String msg) { super(msg); }
+    
+}
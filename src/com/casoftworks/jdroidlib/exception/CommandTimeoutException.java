@@ -0,0 +1,44 @@
+/*
+ * Copyright (C) 2016 Ca Softworks.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+package com.casoftworks.jdroidlib.exception;
+
+import java.io.IOException;
+
+/**
+ * JDroidLib exception.
+ * 
+ * This exception is thrown when a command did not finish within the timeout
+ * set via {@link com.casoftworks.jdroidlib.interfaces.ICommand#setTimeout(long)}.
+ * By the time this exception is thrown, JDroidLib has already terminated the
+ * command: spawned ADB processes have been killed, and connections to the
+ * ADB server or the device's shell have been closed.
+ * 
+ * Common remedies for this problem:
+ *  -   Raise the timeout of commands which are known to take long (e.g.: installing large packages).
+ *  -   Check whether the device is still responsive. A device which is
+ *      overloaded, or stuck while booting, may not answer at all.
+ * @author simoncahill
+ */
+public class CommandTimeoutException extends IOException {
+    
+    public CommandTimeoutException() { super(); }
+    
+    public CommandTimeoutException(String msg) { super(msg); }
+    
+}
@@ -0,0 +1,53 @@
+/*
+ * Copyright (C) 2016 Ca Softworks.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+package com.casoftworks.jdroidlib.interfaces;
+
+import com.casoftworks.jdroidlib.android.BatteryMetric;
+import com.casoftworks.jdroidlib.android.Device;
+
+/**
+ * Battery threshold listener interface for JDroidLib.
+ * Receives the samples of a {@link com.casoftworks.jdroidlib.android.BatterySampler}
+ * which cross a threshold, i.e.: whose value is on the other side of the
+ * threshold than the device's previous sample.
+ * Listeners are called on the thread which took the sample, and should return quickly.
+ * @author simoncahill
+ * @see com.casoftworks.jdroidlib.android.BatterySampler#addThresholdListener(BatteryMetric, int, IBatteryThresholdListener) 
+ */
+public interface IBatteryThresholdListener {
+    
+    /**
+     * Called when a value has risen to or above the threshold.
+     * @param device The device which was sampled.
+     * @param metric The metric which crossed the threshold.
+     * @param threshold The threshold.
+     * @param value The value sampled.
+     */
+    default void valueRose(Device device, BatteryMetric metric, int threshold, int value) { }
+    
+    /**
+     * Called when a value has fallen below the threshold.
+     * @param device The device which was sampled.
+     * @param metric The metric which crossed the threshold.
+     * @param threshold The threshold.
+     * @param value The value sampled.
+     */
+    default void valueFell(Device device, BatteryMetric metric, int threshold, int value) { }
+    
+}
@@ -91,8 +91,11 @@ public interface ICommand {
     
     /**
      * Sets the timeout for the process in milliseconds.
+     * Once the timeout has passed, JDroidLib terminates the command and the
+     * execution fails with a
+     * {@link com.casoftworks.jdroidlib.exception.CommandTimeoutException}.
      * @param timeout The time (in ms) to wait before terminating the process.
-     * Default is -1.
+     * Default is -1, which waits indefinitely.
      */
     void setTimeout(long timeout);
     
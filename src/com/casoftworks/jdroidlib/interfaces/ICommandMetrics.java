@@ -0,0 +1,62 @@
+/*
+ * Copyright (C) 2016 Ca Softworks.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+package com.casoftworks.jdroidlib.interfaces;
+
+import javax.management.MXBean;
+
+/**
+ * Management interface of the registry holding JDroidLib's command metrics.
+ * The registry is registered with the platform MBean server as
+ * {@code com.casoftworks.jdroidlib:type=CommandMetrics}; the metrics of each
+ * command are available through {@link ICommandStats}.
+ * @author simoncahill
+ */
+@MXBean
+public interface ICommandMetrics {
+    
+    /**
+     * Gets a value indicating whether metrics are being recorded.
+     * @return {@code true} if metrics are being recorded.
+     */
+    boolean isEnabled();
+    
+    /**
+     * Enables or disables recording metrics.
+     * @param enabled Set to {@code false} to stop recording metrics. Default is {@code true}.
+     */
+    void setEnabled(boolean enabled);
+    
+    /**
+     * Gets the number of combinations of device and command being tracked.
+     * @return The number of tracked commands.
+     */
+    int getTrackedCommands();
+    
+    /**
+     * Gets the total number of executions recorded, for all devices and commands.
+     * @return The number of executions.
+     */
+    long getTotalCommands();
+    
+    /**
+     * Discards all metrics recorded so far. Tracked commands remain registered.
+     */
+    void reset();
+    
+}
@@ -0,0 +1,145 @@
+/*
+ * Copyright (C) 2016 Ca Softworks.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+package com.casoftworks.jdroidlib.interfaces;
+
+import javax.management.MXBean;
+
+/**
+ * Management interface of the metrics recorded for one command on one device.
+ * Each combination of device and command is registered with the platform
+ * MBean server as
+ * {@code com.casoftworks.jdroidlib:type=CommandStats,serial="<serial>",command="<command>"},
+ * so latencies can be watched and alerted on with any JMX client.
+ * All times are in milliseconds.
+ * @author simoncahill
+ */
+@MXBean
+public interface ICommandStats {
+    
+    /**
+     * Gets the serial number of the device the commands were executed on.
+     * @return The serial number, or an empty string for commands run directly within the ADB.
+     */
+    String getSerialNumber();
+    
+    /**
+     * Gets the name of the command (e.g.: {@code dumpsys}).
+     * @return The name of the command.
+     */
+    String getCommand();
+    
+    /**
+     * Gets the number of executions recorded.
+     * @return The number of executions.
+     */
+    long getCount();
+    
+    /**
+     * Gets the number of executions which exited with code 0.
+     * @return The number of successful executions.
+     */
+    long getSucceeded();
+    
+    /**
+     * Gets the number of executions which exited with a code other than 0.
+     * @return The number of failed executions.
+     */
+    long getFailed();
+    
+    /**
+     * Gets the number of executions whose exit code could not be determined
+     * (e.g.: streams closed before the command had finished).
+     * @return The number of executions with an unknown outcome.
+     */
+    long getUnknown();
+    
+    /**
+     * Gets the number of executions which ended with an exception (e.g.: timeouts).
+     * @return The number of executions which ended with an exception.
+     */
+    long getErrors();
+    
+    /**
+     * Gets the total number of bytes of output read.
+     * @return The number of bytes.
+     */
+    long getBytesRead();
+    
+    /**
+     * Gets the mean time from starting a command until it has finished.
+     * @return The mean latency.
+     */
+    double getLatencyMeanMillis();
+    
+    /**
+     * Gets the median time from starting a command until it has finished.
+     * @return The median latency.
+     */
+    double getLatencyP50Millis();
+    
+    /**
+     * Gets the 90th percentile of the time from starting a command until it has finished.
+     * @return The 90th percentile of the latency.
+     */
+    double getLatencyP90Millis();
+    
+    /**
+     * Gets the 99th percentile of the time from starting a command until it has finished.
+     * @return The 99th percentile of the latency.
+     */
+    double getLatencyP99Millis();
+    
+    /**
+     * Gets the longest time from starting a command until it has finished.
+     * @return The maximum latency.
+     */
+    double getLatencyMaxMillis();
+    
+    /**
+     * Gets the median time taken to spawn the ADB process or connect to the ADB server.
+     * @return The median start time.
+     */
+    double getStartTimeP50Millis();
+    
+    /**
+     * Gets the 99th percentile of the time taken to spawn the ADB process or
+     * connect to the ADB server.
+     * @return The 99th percentile of the start time.
+     */
+    double getStartTimeP99Millis();
+    
+    /**
+     * Gets the median time from starting a command until its first byte of output arrived.
+     * @return The median time to first byte.
+     */
+    double getTimeToFirstByteP50Millis();
+    
+    /**
+     * Gets the 99th percentile of the time from starting a command until its
+     * first byte of output arrived.
+     * @return The 99th percentile of the time to first byte.
+     */
+    double getTimeToFirstByteP99Millis();
+    
+    /**
+     * Discards all metrics recorded so far.
+     */
+    void reset();
+    
+}
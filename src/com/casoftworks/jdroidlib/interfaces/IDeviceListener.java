@@ -0,0 +1,57 @@
+/*
+ * Copyright (C) 2016 Ca Softworks.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+package com.casoftworks.jdroidlib.interfaces;
+
+import com.casoftworks.jdroidlib.android.Device;
+import com.casoftworks.jdroidlib.android.DeviceState;
+
+/**
+ * Device listener interface for JDroidLib.
+ * Receives the changes to the list of devices connected to the ADB server, as
+ * soon as the ADB server reports them.
+ * Listeners are called on the thread tracking the devices, one event at a time;
+ * while a listener is busy, no further changes are applied.
+ * @author simoncahill
+ * @see com.casoftworks.jdroidlib.android.AndroidController#startDeviceTracking() 
+ */
+public interface IDeviceListener {
+    
+    /**
+     * Called when a device has been connected, including all devices already
+     * connected when tracking starts.
+     * @param device The device.
+     */
+    default void deviceConnected(Device device) { }
+    
+    /**
+     * Called when a device has been disconnected.
+     * @param device The device. It keeps the last state it was in.
+     */
+    default void deviceDisconnected(Device device) { }
+    
+    /**
+     * Called when a connected device has changed its state (e.g.: it has been
+     * authorized, or has gone offline).
+     * @param device The device.
+     * @param oldState The state the device was in before.
+     * @param newState The state the device is in now.
+     */
+    default void deviceStateChanged(Device device, DeviceState oldState, DeviceState newState) { }
+    
+}
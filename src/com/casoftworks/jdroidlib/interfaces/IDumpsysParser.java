@@ -0,0 +1,58 @@
+/*
+ * Copyright (C) 2016 Ca Softworks.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+package com.casoftworks.jdroidlib.interfaces;
+
+import java.io.IOException;
+
+/**
+ * Dumpsys parser interface for JDroidLib.
+ * Parses the section of {@code dumpsys}' output written by a single system
+ * service (e.g.: {@code battery} or {@code meminfo}), line by line, as the
+ * output arrives. Parsers only see the lines of their own service; the
+ * sections of all other services are skipped without being parsed.
+ * Parsers hold the state of a single reading, and are not reused.
+ * @author simoncahill
+ * @param <T> The type of the parsed result.
+ * @see com.casoftworks.jdroidlib.android.Dumpsys
+ */
+public interface IDumpsysParser<T> {
+    
+    /**
+     * Gets the name of the service whose output is parsed (e.g.: {@code battery}).
+     * @return The name of the service, as passed to {@code dumpsys}.
+     */
+    String getService();
+    
+    /**
+     * Called for each line of the service's output, in the order the lines were received.
+     * @param line The line, without any line terminators.
+     * @return {@code true} to continue receiving the service's output,
+     *         {@code false} if the parser has everything it needs.
+     * @throws IOException Thrown by implementations to abort reading the output.
+     *                     The exception is passed on to the caller.
+     */
+    boolean onLine(CharSequence line) throws IOException;
+    
+    /**
+     * Gets the result, once the output has been parsed.
+     * @return The parsed result.
+     */
+    T getResult();
+    
+}
@@ -0,0 +1,46 @@
+/*
+ * Copyright (C) 2016 Ca Softworks.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+package com.casoftworks.jdroidlib.interfaces;
+
+import java.io.IOException;
+
+/**
+ * Output handler interface for JDroidLib.
+ * Receives the output of a command line by line, as soon as each line arrives.
+ * Handlers are called on the thread reading the command's output; while a
+ * handler is busy, no further output is read, and the command is held back
+ * until the handler is ready for more.
+ * This makes it possible to process endless (e.g.: {@code logcat}) or very
+ * large (e.g.: {@code ls -R /}) outputs in constant memory.
+ * @author simoncahill
+ */
+@FunctionalInterface
+public interface IOutputHandler {
+    
+    /**
+     * Called for each line of output, in the order the lines were received.
+     * @param line The line, without any line terminators.
+     * @return {@code true} to continue receiving output, {@code false} to stop
+     *         the command and stop receiving output.
+     * @throws IOException Thrown by implementations to abort the command.
+     *                     The exception is passed on to the caller.
+     */
+    boolean onLine(String line) throws IOException;
+    
+}
@@ -39,12 +39,14 @@ public final class ResourceManager {
     /**
      * Contains the running instance of this class.
      */
-    private static ResourceManager _instance;
+    private static volatile ResourceManager _instance;
     
     /**
      * Gets an instance of this class.
      * If no instance is present (e.g.: the application has just started),
      * then this method will generate and return a new instance of this class.
+     * The resources are extracted only once, even if several threads call
+     * this method at the same time.
      * Do <b>NOT</b> call 
      * {@link com.casoftworks.jdroidlib.util.ResourceManager#finalize()}
      * on this class!
@@ -55,8 +57,12 @@ public final class ResourceManager {
      *                              resources needed by JDroidLib.
      */
     public static ResourceManager getInstance() throws IOException { 
-        return _instance == null ? 
-                _instance = new ResourceManager() : _instance;
+        ResourceManager instance = _instance;
+        if (instance != null) return instance;
+        synchronized (ResourceManager.class) {
+            if (_instance == null) _instance = new ResourceManager();
+            return _instance;
+        }
     }
     //</editor-fold>
     